@@ -55,6 +55,7 @@ public class BTreeChecker {
      * 3) range invariants.
      * 4) record to page pointers.
      * 5) occupancy invariants. (if enabled)
+     * 6) high keys of linked pages.
      */
     public static void checkRep(BTreeFile bt, TransactionId tid, HashMap<PageId, Page> dirtypages,
                                 boolean checkOccupancy) throws
@@ -77,6 +78,9 @@ public class BTreeChecker {
             TransactionAbortedException, DbException {
         BTreePage page = (BTreePage )bt.getPage(tid, dirtypages, pageId, Permissions.READ_ONLY);
         assert(page.getParentId().equals(parentId));
+        // the high key of a linked page is the upper bound of its subtree
+        assert(!page.isLinked() || (upperBound == null ? page.getHighKey() == null
+                : page.getHighKey() != null && upperBound.equals(page.getHighKey())));
 
         if (page.getId().pgcateg() == BTreePageId.LEAF) {
             BTreeLeafPage bpage = (BTreeLeafPage) page;
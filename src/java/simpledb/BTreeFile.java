@@ -2,6 +2,11 @@ package simpledb;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+import java.util.concurrent.locks.StampedLock;
 
 import simpledb.Predicate.Op;
 
@@ -11,6 +16,22 @@ import simpledb.Predicate.Op;
  * a set of internal pages, and a set of leaf pages, which contain a collection of tuples
  * in sorted order. BTreeFile works closely with BTreeLeafPage, BTreeInternalPage,
  * and BTreeRootPtrPage. The format of these pages is described in their constructors.
+ * <p>
+ * Transactions lock leaf pages only.  The root pointer and the internal pages are
+ * latched for as long as an operation reads or changes them: searches couple
+ * shared latches down the tree, and splits and merges hold exclusive latches on the
+ * pages they change, see {@link #findLeafPage(TransactionId, HashMap, Permissions, Field)}
+ * and {@link #restructure}.  Splits and merges still lock every page they change
+ * exclusively, as aborts restore whole pages.
+ * <p>
+ * A linked B+ tree (a B-link tree) also keeps on each page the high key of the page,
+ * and on internal pages the pointer to their right sibling, as leaves do.  Its
+ * searches latch no page: they validate what they read of each internal page against
+ * the changes of the page, which splits and merges make only once they have all their
+ * locks, and move right whenever the key they look for is above the high key of a
+ * page a split left them on.  Changes that move keys left, merges, redistributions
+ * and aborts, make the searches overlapping them start over, see
+ * {@link #findLinkedLeafPage}.
  * 
  * @see simpledb.BTreeLeafPage#BTreeLeafPage
  * @see simpledb.BTreeInternalPage#BTreeInternalPage
@@ -24,6 +45,17 @@ public class BTreeFile implements DbFile {
 	private final TupleDesc td;
 	private final int tableid ;
 	private int keyField;
+	private final boolean linked;
+
+	/** the latches on the root pointer and internal pages, by page */
+	private final ConcurrentHashMap<BTreePageId, Latch> latches = new ConcurrentHashMap<BTreePageId, Latch>();
+
+	/**
+	 * the number of changes begun and ended that move keys to the left, which searches
+	 * of linked trees cannot follow
+	 */
+	private final AtomicLong movesBegun = new AtomicLong();
+	private final AtomicLong movesEnded = new AtomicLong();
 
 	/**
 	 * Constructs a B+ tree file backed by the specified file.
@@ -34,10 +66,24 @@ public class BTreeFile implements DbFile {
 	 * @param td - the tuple descriptor of tuples in the file
 	 */
 	public BTreeFile(File f, int key, TupleDesc td) {
+		this(f, key, td, false);
+	}
+
+	/**
+	 * Constructs a B+ tree file backed by the specified file.
+	 * 
+	 * @param f - the file that stores the on-disk backing store for this B+ tree
+	 *            file.
+	 * @param key - the field which index is keyed on
+	 * @param td - the tuple descriptor of tuples in the file
+	 * @param linked - whether the tree is a linked one, whose pages are in the linked format
+	 */
+	public BTreeFile(File f, int key, TupleDesc td, boolean linked) {
 		this.f = f;
 		this.tableid = f.getAbsoluteFile().hashCode();
 		this.keyField = key;
 		this.td = td;
+		this.linked = linked;
 	}
 
 	/**
@@ -113,11 +159,11 @@ public class BTreeFile implements DbFile {
 				}
 				Debug.log(1, "BTreeFile.readPage: read page %d", id.getPageNumber());
 				if(id.pgcateg() == BTreePageId.INTERNAL) {
-					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField);
+					BTreeInternalPage p = new BTreeInternalPage(id, pageBuf, keyField, linked);
 					return p;
 				}
 				else if(id.pgcateg() == BTreePageId.LEAF) {
-					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField);
+					BTreeLeafPage p = new BTreeLeafPage(id, pageBuf, keyField, linked);
 					return p;
 				}
 				else { // id.pgcateg() == BTreePageId.HEADER
@@ -176,70 +222,317 @@ public class BTreeFile implements DbFile {
 	}
 
 	/**
-	 * Recursive function which finds and locks the leaf page in the B+ tree corresponding to
-	 * the left-most page possibly containing the key field f. It locks all internal
-	 * nodes along the path to the leaf node with READ_ONLY permission, and locks the 
-	 * leaf node with permission perm.
+	 * Returns whether this is a linked B+ tree, whose searches take no latches
+	 */
+	public boolean isLinked() {
+		return linked;
+	}
+
+	/**
+	 * The latch on the root pointer or an internal page, and the lock that changes of the
+	 * page hold, which the searches of linked trees validate their reads against.
+	 */
+	private static class Latch extends ReentrantReadWriteLock {
+		private static final long serialVersionUID = 1L;
+
+		final StampedLock change = new StampedLock();
+	}
+
+	/**
+	 * @return whether pid is a page that operations latch rather than lock: the root
+	 * pointer or an internal page
+	 */
+	private static boolean isLatched(BTreePageId pid) {
+		return pid.pgcateg() == BTreePageId.ROOT_PTR || pid.pgcateg() == BTreePageId.INTERNAL;
+	}
+
+	private Latch latchFor(BTreePageId pid) {
+		return latches.computeIfAbsent(pid, id -> new Latch());
+	}
+
+	/**
+	 * Called before the buffer pool replaces page pid with its committed image, as a
+	 * transaction aborts.  The root pointer and internal pages are latched exclusively
+	 * until {@link #endRestore(PageId)}, and since keys may move left, the searches of
+	 * linked trees overlapping it start over.
+	 */
+	void beginRestore(PageId pid) {
+		BTreePageId id = (BTreePageId) pid;
+		if (isLatched(id)) {
+			Latch latch = latchFor(id);
+			latch.writeLock().lock();
+			movesBegun.incrementAndGet();
+			latch.change.asWriteLock().lock();
+		}
+	}
+
+	/**
+	 * Called once the buffer pool has replaced page pid with its committed image.
+	 */
+	void endRestore(PageId pid) {
+		BTreePageId id = (BTreePageId) pid;
+		if (isLatched(id)) {
+			Latch latch = latchFor(id);
+			latch.change.asWriteLock().unlock();
+			movesEnded.incrementAndGet();
+			latch.writeLock().unlock();
+		}
+	}
+
+	/**
+	 * Reads a page without locking it.  The caller holds the latch that keeps whatever
+	 * it reads from the page still.
+	 */
+	private Page readUnlocked(TransactionId tid, BTreePageId pid)
+			throws DbException, TransactionAbortedException {
+		try (PageHandle h = Database.getBufferPool().pinPageUnlocked(tid, pid)) {
+			return h == null ? null : h.getPage();
+		}
+	}
+
+	/**
+	 * Finds and locks the leaf page in the B+ tree corresponding to the left-most page
+	 * possibly containing the key field f, by latch coupling: the root pointer and the
+	 * internal pages along the path are latched shared, each until the latch on its
+	 * child is held, and are not locked.  The leaf is locked with permission perm while
+	 * its parent is still latched, so that no split or merge moves the key away in
+	 * between.
+	 * 
+	 * Nobody waits for a lock while holding a latch.  If the leaf's lock is not available
+	 * right away, the latch is released, the lock waited for, and the search repeated,
+	 * since the tree may have changed meanwhile.  A lock waited for in vain is released
+	 * again, unless the transaction held one on the page before.
 	 * 
 	 * If f is null, it finds the left-most leaf page -- used for the iterator
 	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root yet
 	 * 
 	 */
-	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pid, Permissions perm,
+	private BTreeLeafPage findLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages, Permissions perm,
 			Field f) 
 					throws DbException, TransactionAbortedException {
-
-		if (pid.pgcateg() == BTreePageId.LEAF) {
-			return (BTreeLeafPage) getPage(tid,dirtypages,pid,perm);
+		if (linked) {
+			return findLinkedLeafPage(tid, dirtypages, perm, f);
+		}
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId waitedFor = null;
+		while (true) {
+			BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+			Lock latch = latchFor(pid).readLock();
+			latch.lock();
+			try {
+				pid = ((BTreeRootPtrPage) readUnlocked(tid, pid)).getRootId();
+				while (pid != null && pid.pgcateg() != BTreePageId.LEAF) {
+					Lock next = latchFor(pid).readLock();
+					next.lock();
+					latch.unlock();
+					latch = next;
+					BTreeInternalPage internalPage = (BTreeInternalPage) readUnlocked(tid, pid);
+					if (null == f) {
+						pid = internalPage.iterator().next().getLeftChild();
+					} else {
+						pid = searchInternalPage(internalPage, f);
+					}
+				}
+				if (waitedFor != null && !waitedFor.equals(pid)) {
+					bp.releasePage(tid, waitedFor);
+				}
+				waitedFor = null;
+				if (pid == null || dirtypages.containsKey(pid)) {
+					return (BTreeLeafPage) (pid == null ? null : dirtypages.get(pid));
+				}
+				PageHandle h = bp.tryPinPage(tid, pid, perm);
+				if (h != null) {
+					return keepLeafPage(dirtypages, h, perm);
+				}
+			} finally {
+				latch.unlock();
+			}
+			// wait for the lock like any other request, and look again
+			boolean held = bp.holdsLock(tid, pid);
+			bp.getPage(tid, pid, perm);
+			if (!held) {
+				waitedFor = pid;
+			}
 		}
-		BTreePageId leftPid = null;
-		if (null == f) {
-			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-			leftPid = internalPage.iterator().next().getLeftChild();
+	}
+
+	/**
+	 * Adds a leaf page a search found and locked to dirtypages if it is to be written,
+	 * and releases the handle on it unless dirtypages keeps pages pinned.
+	 * @return the leaf page
+	 */
+	private BTreeLeafPage keepLeafPage(HashMap<PageId, Page> dirtypages, PageHandle h, Permissions perm) {
+		if (perm == Permissions.READ_WRITE) {
+			if (!(dirtypages instanceof PinnedPages)) {
+				h.close();
+			}
+			// unpinned by releaseDirtyPages rather than through the handle
+			dirtypages.put(h.getPage().getId(), h.getPage());
 		} else {
-			BTreeInternalPage internalPage = (BTreeInternalPage) getPage(tid,dirtypages,pid,Permissions.READ_ONLY);
-			Iterator<BTreeEntry> iterator = internalPage.iterator();
-			BTreeEntry bTreeEntry = null;
-			while (iterator.hasNext() ) {
-				bTreeEntry = iterator.next();
-				if (bTreeEntry.getKey().compare(Op.LESS_THAN,f)) {
-					continue;
-				}else {
-					break;
+			h.close();
+		}
+		return (BTreeLeafPage) h.getPage();
+	}
+
+	/**
+	 * findLeafPage for linked trees, which takes no latches.  The root pointer and each
+	 * internal page along the path are read optimistically, and the read validated
+	 * against the changes of the page, see {@link #nextLinkedPage}.  Whenever the key
+	 * field f is above the high key of a page, which a split moved entries from after
+	 * its parent was read, the search moves on to the right sibling instead of down.
+	 * The leaf is locked with permission perm, waiting for the lock if need be, and then
+	 * checked the same way: it cannot change while it is locked.
+	 * 
+	 * Splits only ever move keys right.  Since merges, redistributions and aborts may
+	 * move them left, a search overlapping one starts over, releasing the lock it took
+	 * on the leaf unless the transaction held one before.
+	 * 
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
+	 */
+	private BTreeLeafPage findLinkedLeafPage(TransactionId tid, HashMap<PageId, Page> dirtypages,
+			Permissions perm, Field f) throws DbException, TransactionAbortedException {
+		BufferPool bp = Database.getBufferPool();
+		BTreePageId rootPtrId = BTreeRootPtrPage.getId(tableid);
+		while (true) {
+			long moves = movesBegun.get();
+			if (movesEnded.get() != moves) {
+				Thread.yield();
+				continue;
+			}
+			BTreePageId pid = nextLinkedPage(tid, rootPtrId, f);
+			if (pid == null) {
+				return null;
+			}
+			while (pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+				pid = nextLinkedPage(tid, pid, f);
+			}
+			while (pid != null) {
+				if (dirtypages.containsKey(pid)) {
+					return (BTreeLeafPage) dirtypages.get(pid);
+				}
+				boolean held = bp.holdsLock(tid, pid);
+				PageHandle h = bp.tryPinPage(tid, pid, perm);
+				if (h == null) {
+					// wait for the lock like any other request, then look again
+					bp.getPage(tid, pid, perm);
+					h = bp.pinPage(tid, pid, perm);
+				}
+				BTreeLeafPage leaf = (BTreeLeafPage) h.getPage();
+				Field high = leaf.getHighKey();
+				BTreePageId next = null;
+				if (movesBegun.get() != moves) {
+					// start over
+				}
+				else if (f != null && high != null && f.compare(Op.GREATER_THAN, high)) {
+					next = leaf.getRightSiblingId();
+				}
+				else {
+					return keepLeafPage(dirtypages, h, perm);
+				}
+				h.close();
+				if (!held) {
+					bp.releasePage(tid, pid);
+				}
+				pid = next;
+			}
+		}
+	}
+
+	/**
+	 * Reads the root pointer or an internal page of a linked tree without latching it.
+	 * The read is optimistic: if the page changed meanwhile, it is read again, once the
+	 * change is over.
+	 * 
+	 * @return the page to go on to looking for the key field f: the root, the child of
+	 * the internal page, or its right sibling if f is above its high key; or null if the
+	 * tree has no root, or the internal page was left empty by a change the search
+	 * should start over from
+	 */
+	private BTreePageId nextLinkedPage(TransactionId tid, BTreePageId pid, Field f)
+			throws DbException, TransactionAbortedException {
+		StampedLock change = latchFor(pid).change;
+		while (true) {
+			long stamp = change.tryOptimisticRead();
+			if (stamp == 0) {
+				Lock wait = change.asReadLock();
+				wait.lock();
+				wait.unlock();
+				continue;
+			}
+			BTreePageId next = null;
+			RuntimeException failed = null;
+			try {
+				Page p = readUnlocked(tid, pid);
+				if (p instanceof BTreeRootPtrPage) {
+					next = ((BTreeRootPtrPage) p).getRootId();
 				}
+				else {
+					BTreeInternalPage internalPage = (BTreeInternalPage) p;
+					Field high = internalPage.getHighKey();
+					if (f != null && high != null && f.compare(Op.GREATER_THAN, high)) {
+						next = internalPage.getRightSiblingId();
+					}
+					else if (internalPage.getNumEntries() > 0) {
+						next = f == null ? internalPage.iterator().next().getLeftChild()
+								: searchInternalPage(internalPage, f);
+					}
+				}
+			} catch (RuntimeException e) {
+				// read as it changed, most likely
+				failed = e;
 			}
-			if (!iterator.hasNext() && bTreeEntry.getKey().compare(Op.LESS_THAN,f)) {
-				leftPid = bTreeEntry.getRightChild();
-			} else {
-				leftPid = bTreeEntry.getLeftChild();
+			if (change.validate(stamp)) {
+				if (failed != null) {
+					throw failed;
+				}
+				return next;
 			}
 		}
+	}
 
-		return findLeafPage(tid,dirtypages,leftPid,perm,f);
+	/**
+	 * @return the child of an internal page to descend into to find the
+	 * left-most leaf page possibly containing the key field f
+	 */
+	private BTreePageId searchInternalPage(BTreeInternalPage internalPage, Field f) {
+		Iterator<BTreeEntry> iterator = internalPage.iterator();
+		BTreeEntry bTreeEntry = null;
+		while (iterator.hasNext() ) {
+			bTreeEntry = iterator.next();
+			if (bTreeEntry.getKey().compare(Op.LESS_THAN,f)) {
+				continue;
+			}else {
+				break;
+			}
+		}
+		if (!iterator.hasNext() && bTreeEntry.getKey().compare(Op.LESS_THAN,f)) {
+			return bTreeEntry.getRightChild();
+		} else {
+			return bTreeEntry.getLeftChild();
+		}
 	}
 	
 	/**
 	 * Convenience method to find a leaf page when there is no dirtypages HashMap.
 	 * Used by the BTreeFile iterator.
-	 * @see #findLeafPage(TransactionId, HashMap, BTreePageId, Permissions, Field)
+	 * @see #findLeafPage(TransactionId, HashMap, Permissions, Field)
 	 * 
 	 * @param tid - the transaction id
-	 * @param pid - the current page being searched
 	 * @param perm - the permissions with which to lock the leaf page
 	 * @param f - the field to search for
-	 * @return the left-most leaf page possibly containing the key field f
+	 * @return the left-most leaf page possibly containing the key field f, or null if
+	 * the tree has no root yet
 	 * 
 	 */
-	BTreeLeafPage findLeafPage(TransactionId tid, BTreePageId pid, Permissions perm,
-			Field f) 
+	BTreeLeafPage findLeafPage(TransactionId tid, Permissions perm, Field f) 
 					throws DbException, TransactionAbortedException {
-		return findLeafPage(tid, new HashMap<PageId, Page>(), pid, perm, f);
+		return findLeafPage(tid, new HashMap<PageId, Page>(), perm, f);
 	}
 
 	/**
@@ -301,6 +594,8 @@ public class BTreeFile implements DbFile {
 		if (nextPage != null) dirtypages.put(nextPage.pid,nextPage);
 
 		Field mid = iterator.next().getField(page.keyField);
+		newLeaf.setHighKey(page.getHighKey());
+		page.setHighKey(mid);
 		BTreeEntry bTreeEntry = new BTreeEntry(mid,page.pid,newLeaf.pid);
 		BTreeInternalPage internalPage = getParentWithEmptySlots(tid,dirtypages,page.getParentId(),mid);
 		internalPage.insertEntry(bTreeEntry);
@@ -364,6 +659,10 @@ public class BTreeFile implements DbFile {
 
 		BTreeEntry mid = iterator.next();
 		page.deleteKeyAndRightChild(mid);
+		newInternal.setHighKey(page.getHighKey());
+		newInternal.setRightSiblingId(page.getRightSiblingId());
+		page.setHighKey(mid.getKey());
+		page.setRightSiblingId(newInternal.getId());
 
 		mid.setRightChild(newInternal.pid);
 		mid.setLeftChild(page.pid);
@@ -488,6 +787,13 @@ public class BTreeFile implements DbFile {
 	 * This method is needed to ensure that page updates are not lost if the same pages are
 	 * accessed multiple times.
 	 * 
+	 * When dirtypages belongs to insertTuple or deleteTuple, pages fetched with read-write
+	 * permission are also pinned in the buffer pool, so that they cannot be evicted while
+	 * the operation is changing them; the operation releases them when it is done.  Such
+	 * operations read pages without locking them, and while they split or merge pages,
+	 * they latch and lock the pages they change without waiting for the locks.
+	 * @see #restructure
+	 * 
 	 * @param tid - the transaction id
 	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
 	 * @param pid - the id of the requested page
@@ -503,8 +809,19 @@ public class BTreeFile implements DbFile {
 		if(dirtypages.containsKey(pid)) {
 			return dirtypages.get(pid);
 		}
+		else if(dirtypages instanceof Restructure) {
+			return getPage(tid, (Restructure) dirtypages, pid, perm);
+		}
 		else {
-			Page p = Database.getBufferPool().getPage(tid, pid, perm);
+			Page p;
+			if(perm == Permissions.READ_WRITE && dirtypages instanceof PinnedPages) {
+				// unpinned by releaseDirtyPages rather than through the handle
+				PageHandle h = Database.getBufferPool().pinPage(tid, pid, perm);
+				p = h == null ? null : h.getPage();
+			}
+			else {
+				p = Database.getBufferPool().getPage(tid, pid, perm);
+			}
 			if(perm == Permissions.READ_WRITE) {
 				dirtypages.put(pid, p);
 			}
@@ -512,6 +829,349 @@ public class BTreeFile implements DbFile {
 		}
 	}
 
+	/**
+	 * The dirtypages cache of a top-level insert or delete, whose pages getPage pins.
+	 * @see #releaseDirtyPages(TransactionId, HashMap)
+	 */
+	private static class PinnedPages extends HashMap<PageId, Page> {
+		private static final long serialVersionUID = 1L;
+	}
+
+	/**
+	 * The dirtypages cache of an insert or delete, which reads pages without locking
+	 * them.  While the operation splits or merges pages, it holds latches, and getPage
+	 * latches and locks the pages it changes without waiting for the locks.  The change
+	 * is rehearsed first on copies of the pages, with a cache of its own.
+	 * @see #restructure
+	 */
+	private static class Restructure extends PinnedPages {
+		private static final long serialVersionUID = 1L;
+
+		/** the latches of the split or merge under way, or null */
+		Latches latches;
+		/** whether this is the cache of a rehearsal, whose pages are copies */
+		final boolean rehearsal;
+		/** the number of stand-ins for pages the rehearsal allocated */
+		int standIns;
+
+		Restructure() {
+			this(null, false);
+		}
+
+		Restructure(Latches latches, boolean rehearsal) {
+			this.latches = latches;
+			this.rehearsal = rehearsal;
+		}
+	}
+
+	/**
+	 * Thrown when a split or merge would have to wait for a lock or latch while it holds
+	 * latches.  The operation releases them, waits for the lock, if any, and starts over.
+	 */
+	private static class Conflict extends RuntimeException {
+		private static final long serialVersionUID = 1L;
+
+		/** the page whose lock to wait for, or null */
+		final BTreePageId pid;
+		final Permissions perm;
+
+		Conflict(BTreePageId pid, Permissions perm) {
+			super(null, null, false, false);
+			this.pid = pid;
+			this.perm = perm;
+		}
+	}
+
+	/** The exclusive latches a split or merge holds, in the order it took them. */
+	private class Latches {
+		private final LinkedHashMap<BTreePageId, Lock> held = new LinkedHashMap<BTreePageId, Lock>();
+		/** the change locks held while the change is applied, see {@link Latch} */
+		private final ArrayList<Lock> changing = new ArrayList<Lock>();
+		private boolean applying;
+
+		boolean holds(BTreePageId pid) {
+			return held.containsKey(pid);
+		}
+
+		/**
+		 * Latches pid, waiting if need be.  Latches are only waited for top-down, on the
+		 * root pointer while holding none, or on the child of a page latched already.
+		 */
+		void latch(BTreePageId pid) {
+			if (!held.containsKey(pid)) {
+				Lock l = latchFor(pid).writeLock();
+				l.lock();
+				held.put(pid, l);
+				if (applying) {
+					lockChange(pid);
+				}
+			}
+		}
+
+		/** @return whether pid is latched, without waiting for it */
+		boolean tryLatch(BTreePageId pid) {
+			if (!held.containsKey(pid)) {
+				Lock l = latchFor(pid).writeLock();
+				if (!l.tryLock()) {
+					return false;
+				}
+				held.put(pid, l);
+				if (applying) {
+					lockChange(pid);
+				}
+			}
+			return true;
+		}
+
+		private void lockChange(BTreePageId pid) {
+			Lock c = latchFor(pid).change.asWriteLock();
+			c.lock();
+			changing.add(c);
+		}
+
+		/**
+		 * Locks the changes of the pages latched, and of the pages latched from now on,
+		 * until {@link #endChanges()}: the searches of linked trees wait for the change
+		 * being applied to them.
+		 */
+		void beginChanges() {
+			applying = true;
+			for (BTreePageId pid : held.keySet()) {
+				lockChange(pid);
+			}
+		}
+
+		void endChanges() {
+			applying = false;
+			for (Lock c : changing) {
+				c.unlock();
+			}
+			changing.clear();
+		}
+
+		/** Releases the latches taken before pid's, but the root pointer's if asked to. */
+		void releaseAbove(BTreePageId pid, boolean keepRootPtr) {
+			Iterator<Map.Entry<BTreePageId, Lock>> it = held.entrySet().iterator();
+			while (it.hasNext()) {
+				Map.Entry<BTreePageId, Lock> e = it.next();
+				if (e.getKey().equals(pid)) {
+					break;
+				}
+				if (!keepRootPtr || e.getKey().pgcateg() != BTreePageId.ROOT_PTR) {
+					e.getValue().unlock();
+					it.remove();
+				}
+			}
+		}
+
+		void releaseAll() {
+			endChanges();
+			for (Lock l : held.values()) {
+				l.unlock();
+			}
+			held.clear();
+		}
+	}
+
+	/** Latches the path to the leaf a split or merge starts from. */
+	private interface PathLatcher {
+		/** @return the id of the leaf, or null if the tree has no root yet */
+		BTreePageId latch(Latches latches) throws DbException, TransactionAbortedException;
+	}
+
+	/** A split or merge starting from a leaf. */
+	private interface Restructuring {
+		void apply(Restructure dirtypages, BTreePageId leafId)
+				throws DbException, IOException, TransactionAbortedException;
+	}
+
+	/**
+	 * getPage for the dirtypages of an insert or delete.
+	 */
+	private Page getPage(TransactionId tid, Restructure dirtypages, BTreePageId pid, Permissions perm)
+			throws DbException, TransactionAbortedException {
+		if(perm == Permissions.READ_ONLY) {
+			// what splits and merges read of pages they do not change, parent pointers
+			// and free slots, is kept still by the latches they hold or checked again
+			return readUnlocked(tid, pid);
+		}
+		BufferPool bp = Database.getBufferPool();
+		Page p;
+		if(dirtypages.latches == null) {
+			// unpinned by releaseDirtyPages rather than through the handle
+			PageHandle h = bp.pinPage(tid, pid, perm);
+			p = h == null ? null : h.getPage();
+		}
+		else {
+			Latches held = dirtypages.latches;
+			if(isLatched(pid) && !held.holds(pid)) {
+				if(pid.pgcateg() != BTreePageId.ROOT_PTR) {
+					held.latch(pid);
+				}
+				else if(!held.tryLatch(pid)) {
+					throw new Conflict(null, null);
+				}
+			}
+			PageHandle h = bp.tryPinPage(tid, pid, perm);
+			if(h == null) {
+				throw new Conflict(pid, perm);
+			}
+			p = h.getPage();
+			if(dirtypages.rehearsal) {
+				h.close();
+				p = newPage(pid, p.getPageData());
+			}
+		}
+		dirtypages.put(pid, p);
+		return p;
+	}
+
+	/** @return a page of this file made from the given data */
+	private Page newPage(BTreePageId pid, byte[] data) {
+		try {
+			switch(pid.pgcateg()) {
+			case BTreePageId.ROOT_PTR:
+				return new BTreeRootPtrPage(pid, data);
+			case BTreePageId.INTERNAL:
+				return new BTreeInternalPage(pid, data, keyField, linked);
+			case BTreePageId.LEAF:
+				return new BTreeLeafPage(pid, data, keyField, linked);
+			default:
+				return new BTreeHeaderPage(pid, data);
+			}
+		} catch (IOException e) {
+			throw new RuntimeException(e);
+		}
+	}
+
+	/**
+	 * Splits or merges pages.  The path down to the leaf the change starts from is
+	 * latched exclusively, releasing the latches above each internal page the change
+	 * cannot spread beyond.  The change is then rehearsed on copies of the pages, which
+	 * latches and locks every page it changes without waiting for the locks, and applied
+	 * to the pages themselves once it has them all.  If a lock is held by another
+	 * transaction, the latches are released, the lock waited for like any other, and the
+	 * change started over.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the list of dirty pages which should be updated with all new dirty pages
+	 * @param path - latches the path to the leaf
+	 * @param change - the split or merge
+	 * @param movesLeft - whether the change may move keys to the left, as merges do, which
+	 * the searches of linked trees cannot follow
+	 */
+	private void restructure(TransactionId tid, Restructure dirtypages, PathLatcher path, Restructuring change,
+			boolean movesLeft) throws DbException, IOException, TransactionAbortedException {
+		while(true) {
+			Latches latches = new Latches();
+			try {
+				BTreePageId leafId = path.latch(latches);
+				change.apply(new Restructure(latches, true), leafId);
+				dirtypages.latches = latches;
+				if(movesLeft) {
+					movesBegun.incrementAndGet();
+				}
+				latches.beginChanges();
+				try {
+					change.apply(dirtypages, leafId);
+				} catch (Conflict c) {
+					// only a page to reuse that another transaction locked, against
+					// the odds, differs from the rehearsal; the change is half done
+					throw new TransactionAbortedException();
+				} finally {
+					latches.endChanges();
+					if(movesLeft) {
+						movesEnded.incrementAndGet();
+					}
+					dirtypages.latches = null;
+				}
+				return;
+			} catch (Conflict c) {
+				latches.releaseAll();
+				if(c.pid != null) {
+					Database.getBufferPool().getPage(tid, c.pid, c.perm);
+				}
+				else {
+					Thread.yield();
+				}
+			} finally {
+				latches.releaseAll();
+			}
+		}
+	}
+
+	/**
+	 * Latches the path to the leaf a tuple with key field f goes in, keeping the latches
+	 * from the lowest internal page with an empty slot down, where a split stops.
+	 * @return the id of the leaf, or null if the tree has no root yet
+	 */
+	private BTreePageId latchInsertPath(TransactionId tid, Latches latches, Field f)
+			throws DbException, TransactionAbortedException {
+		BTreePageId pid = BTreeRootPtrPage.getId(tableid);
+		latches.latch(pid);
+		pid = ((BTreeRootPtrPage) readUnlocked(tid, pid)).getRootId();
+		while(pid != null && pid.pgcateg() == BTreePageId.INTERNAL) {
+			latches.latch(pid);
+			BTreeInternalPage internalPage = (BTreeInternalPage) readUnlocked(tid, pid);
+			if(internalPage.getNumEmptySlots() > 0) {
+				latches.releaseAbove(pid, false);
+			}
+			pid = searchInternalPage(internalPage, f);
+		}
+		return pid;
+	}
+
+	/**
+	 * Latches the path to a leaf the caller has locked, keeping the latches from the
+	 * lowest internal page that stays at least half full if a child merges, or the root
+	 * if it keeps an entry.  The leaf's ancestors are read from the parent pointers, then
+	 * checked from the top down under the latches.  The root pointer stays latched if
+	 * the file has no header page yet, since a merge creates it.
+	 * @return the id of the leaf
+	 * @throws Conflict if the ancestors changed meanwhile
+	 */
+	private BTreePageId latchDeletePath(TransactionId tid, Latches latches, BTreePageId leafId)
+			throws DbException, TransactionAbortedException {
+		LinkedList<BTreePageId> ancestors = new LinkedList<BTreePageId>();
+		BTreePageId pid = leafId;
+		do {
+			pid = ((BTreePage) readUnlocked(tid, pid)).getParentId();
+			ancestors.addFirst(pid);
+			if(ancestors.size() > 64) {
+				// parent pointers read as they changed
+				throw new Conflict(null, null);
+			}
+		} while(pid.pgcateg() != BTreePageId.ROOT_PTR);
+
+		latches.latch(pid);
+		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) readUnlocked(tid, pid);
+		boolean keepRootPtr = rootPtr.getHeaderId() == null;
+		BTreePageId child = ancestors.size() > 1 ? ancestors.get(1) : leafId;
+		if(!child.equals(rootPtr.getRootId())) {
+			throw new Conflict(null, null);
+		}
+		for(int i = 1; i < ancestors.size(); i++) {
+			pid = ancestors.get(i);
+			latches.latch(pid);
+			BTreeInternalPage internalPage = (BTreeInternalPage) readUnlocked(tid, pid);
+			child = i + 1 < ancestors.size() ? ancestors.get(i + 1) : leafId;
+			boolean found = false;
+			Iterator<BTreeEntry> it = internalPage.iterator();
+			while(it.hasNext() && !found) {
+				BTreeEntry e = it.next();
+				found = e.getLeftChild().equals(child) || e.getRightChild().equals(child);
+			}
+			if(!found) {
+				throw new Conflict(null, null);
+			}
+			int maxEmptySlots = internalPage.getMaxEntries() - internalPage.getMaxEntries()/2; // ceiling
+			if(i == 1 ? internalPage.getNumEntries() > 1 : internalPage.getNumEmptySlots() < maxEmptySlots) {
+				latches.releaseAbove(pid, keepRootPtr);
+			}
+		}
+		return leafId;
+	}
+
 	/**
 	 * Insert a tuple into this BTreeFile, keeping the tuples in sorted order. 
 	 * May cause pages to split if the page where tuple t belongs is full.
@@ -524,31 +1184,50 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> insertTuple(TransactionId tid, Tuple t)
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
-
-		// get a read lock on the root pointer page and use it to locate the root page
-		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
-		BTreePageId rootId = rootPtr.getRootId();
+		Restructure dirtypages = new Restructure();
+		try {
+			// create the root pointer page and root page if necessary
+			getRootPtrPage(tid, dirtypages);
+
+			// find and lock the left-most leaf page corresponding to the key field;
+			// unless it has to split, it is the only page that changes
+			Field key = t.getField(keyField);
+			BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, Permissions.READ_WRITE, key);
+			if(leafPage != null && leafPage.getNumEmptySlots() > 0) {
+				leafPage.insertTuple(t);
+			}
+			else {
+				restructure(tid, dirtypages, latches -> latchInsertPath(tid, latches, key),
+						(pages, leafId) -> insertTuple(tid, pages, leafId, t), false);
+			}
+			return new ArrayList<Page>(dirtypages.values());
+		} finally {
+			releaseDirtyPages(tid, dirtypages);
+		}
+	}
 
-		if(rootId == null) { // the root has just been created, so set the root pointer to point to it		
-			rootId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
-			rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
-			rootPtr.setRootId(rootId);
+	/**
+	 * Inserts a tuple into a leaf page, splitting it if it is full.
+	 * 
+	 * @param leafId - the leaf page where the tuple belongs, or null if the tree has no
+	 * root yet
+	 */
+	private void insertTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId leafId, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
+		if(leafId == null) { // the root has just been created, so set the root pointer to point to it		
+			leafId = new BTreePageId(tableid, numPages(), BTreePageId.LEAF);
+			BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) getPage(tid, dirtypages, BTreeRootPtrPage.getId(tableid), Permissions.READ_WRITE);
+			rootPtr.setRootId(leafId);
 		}
 
-		// find and lock the left-most leaf page corresponding to the key field,
-		// and split the leaf page if there are no more slots available
-		BTreeLeafPage leafPage = findLeafPage(tid, dirtypages, rootId, Permissions.READ_WRITE, t.getField(keyField));
+		// split the leaf page if there are no more slots available
+		BTreeLeafPage leafPage = (BTreeLeafPage) getPage(tid, dirtypages, leafId, Permissions.READ_WRITE);
 		if(leafPage.getNumEmptySlots() == 0) {
 			leafPage = splitLeafPage(tid, dirtypages, leafPage, t.getField(keyField));	
 		}
 
 		// insert the tuple into the leaf page
 		leafPage.insertTuple(t);
-
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
 	}
 	
 	/**
@@ -687,6 +1366,7 @@ public class BTreeFile implements DbFile {
 			Field field = fromLeft.getField(parent.keyField);
 			entry.setKey(field);
 			parent.updateEntry(entry);
+			sibling.setHighKey(field);
 		} else {
 			Tuple fromRight = null;
 			Iterator<Tuple> iterator = sibling.iterator();
@@ -699,6 +1379,7 @@ public class BTreeFile implements DbFile {
 			Field field = fromRight.getField(parent.keyField);
 			entry.setKey(field);
 			parent.updateEntry(entry);
+			page.setHighKey(field);
 		}
 	}
 
@@ -803,6 +1484,7 @@ public class BTreeFile implements DbFile {
 
 		parentEntry.setKey(fromLeft.getKey());
 		parent.updateEntry(parentEntry);
+		leftSibling.setHighKey(fromLeft.getKey());
 		updateParentPointers(tid,dirtypages,page);
 
 	}
@@ -850,12 +1532,13 @@ public class BTreeFile implements DbFile {
 			// 取前一个entry
 			page.insertEntry(fromRight);
 			fromRight = iterator.next();
-			rightSibling.deleteKeyAndRightChild(fromRight);
+			rightSibling.deleteKeyAndLeftChild(fromRight);
 			toSteal--;
 		}
 
 		parentEntry.setKey(fromRight.getKey());
 		parent.updateEntry(parentEntry);
+		page.setHighKey(fromRight.getKey());
 		updateParentPointers(tid,dirtypages,page);
 	}
 	
@@ -901,6 +1584,7 @@ public class BTreeFile implements DbFile {
 		} else {
 			leftPage.setRightSiblingId(null);
 		}
+		leftPage.setHighKey(rightPage.getHighKey());
 		setEmptyPage(tid,dirtypages,rightPage.getId().getPageNumber());
 		deleteParentEntry(tid,dirtypages,leftPage,parent,parentEntry);
 	}
@@ -946,6 +1630,8 @@ public class BTreeFile implements DbFile {
 			rightPage.deleteKeyAndLeftChild(e);
 			leftPage.insertEntry(e);
 		}
+		leftPage.setHighKey(rightPage.getHighKey());
+		leftPage.setRightSiblingId(rightPage.getRightSiblingId());
 		updateParentPointers(tid,dirtypages,leftPage);
 		setEmptyPage(tid,dirtypages,rightPage.getId().getPageNumber());
 		deleteParentEntry(tid,dirtypages,leftPage,parent,parentEntry);
@@ -1011,11 +1697,39 @@ public class BTreeFile implements DbFile {
 	 */
 	public ArrayList<Page> deleteTuple(TransactionId tid, Tuple t) 
 			throws DbException, IOException, TransactionAbortedException {
-		HashMap<PageId, Page> dirtypages = new HashMap<PageId, Page>();
+		Restructure dirtypages = new Restructure();
+		try {
+			BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
+					BTreePageId.LEAF);
+			BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+
+			// unless the page falls below minimum occupancy, it is the only page that changes
+			int maxEmptySlots = page.getMaxTuples() - page.getMaxTuples()/2; // ceiling
+			if(page.getNumEmptySlots() + 1 <= maxEmptySlots) {
+				page.deleteTuple(t);
+			}
+			else {
+				RecordId rid = t.getRecordId();
+				restructure(tid, dirtypages, latches -> latchDeletePath(tid, latches, pageId),
+						(pages, leafId) -> deleteTuple(tid, pages, leafId, rid, t), true);
+			}
+			return new ArrayList<Page>(dirtypages.values());
+		} finally {
+			releaseDirtyPages(tid, dirtypages);
+		}
+	}
 
-		BTreePageId pageId = new BTreePageId(tableid, t.getRecordId().getPageId().getPageNumber(),
-				BTreePageId.LEAF);
+	/**
+	 * Deletes a tuple from a leaf page, and gets some tuples from its siblings or merges
+	 * it with one of them if it falls below minimum occupancy.
+	 * 
+	 * @param rid - the record id of the tuple, which a rehearsal cleared
+	 */
+	private void deleteTuple(TransactionId tid, HashMap<PageId, Page> dirtypages, BTreePageId pageId,
+			RecordId rid, Tuple t)
+			throws DbException, IOException, TransactionAbortedException {
 		BTreeLeafPage page = (BTreeLeafPage) getPage(tid, dirtypages, pageId, Permissions.READ_WRITE);
+		t.setRecordId(rid);
 		page.deleteTuple(t);
 
 		// if the page is below minimum occupancy, get some tuples from its siblings
@@ -1024,10 +1738,24 @@ public class BTreeFile implements DbFile {
 		if(page.getNumEmptySlots() > maxEmptySlots) { 
 			handleMinOccupancyPage(tid, dirtypages, page);
 		}
+	}
 
-		ArrayList<Page> dirtyPagesArr = new ArrayList<Page>();
-		dirtyPagesArr.addAll(dirtypages.values());
-		return dirtyPagesArr;
+	/**
+	 * Marks the pages an insert or delete fetched with read-write permission dirty and
+	 * releases the pins getPage took on them.  The pages are dirtied before they are
+	 * unpinned, since a clean page may be evicted as soon as it is unpinned.
+	 * 
+	 * @param tid - the transaction id
+	 * @param dirtypages - the pages fetched with read-write permission by the operation
+	 */
+	private void releaseDirtyPages(TransactionId tid, HashMap<PageId, Page> dirtypages) {
+		BufferPool bp = Database.getBufferPool();
+		for (Map.Entry<PageId, Page> e : dirtypages.entrySet()) {
+			if (e.getValue() != null) {
+				e.getValue().markDirty(true, tid);
+			}
+			bp.unpinPage(tid, e.getKey());
+		}
 	}
 
 	/**
@@ -1073,6 +1801,12 @@ public class BTreeFile implements DbFile {
 	 */
 	protected int getEmptyPageNo(TransactionId tid, HashMap<PageId, Page> dirtypages) 
 			throws DbException, IOException, TransactionAbortedException {
+		if(dirtypages instanceof Restructure && ((Restructure) dirtypages).rehearsal) {
+			// a rehearsal allocates stand-ins, numbered below zero, and leaves the
+			// header pages alone; they are locked only while the change is applied
+			return -(++((Restructure) dirtypages).standIns);
+		}
+
 		// get a read lock on the root pointer page and use it to locate the first header page
 		BTreeRootPtrPage rootPtr = getRootPtrPage(tid, dirtypages);
 		BTreePageId headerId = rootPtr.getHeaderId();
@@ -1095,10 +1829,21 @@ public class BTreeFile implements DbFile {
 
 			// if headerPage is not null, it must have an empty slot
 			if(headerPage != null) {
-				headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
-				int emptySlot = headerPage.getEmptySlot();
-				headerPage.markSlotUsed(emptySlot, true);
-				emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				try {
+					headerPage = (BTreeHeaderPage) getPage(tid, dirtypages, headerId, Permissions.READ_WRITE);
+				} catch (Conflict c) {
+					// the header page is another transaction's, so create a page instead
+					headerPage = null;
+				}
+				int emptySlot = headerPage == null ? -1 : headerPage.getEmptySlot();
+				if(emptySlot == -1) {
+					// the slot was taken since the header page was read without a lock
+					headerId = null;
+				}
+				else {
+					headerPage.markSlotUsed(emptySlot, true);
+					emptyPageNo = headerPageCount * BTreeHeaderPage.getNumSlots() + emptySlot;
+				}
 			}
 		}
 
@@ -1140,6 +1885,12 @@ public class BTreeFile implements DbFile {
 		// create the new page
 		int emptyPageNo = getEmptyPageNo(tid, dirtypages);
 		BTreePageId newPageId = new BTreePageId(tableid, emptyPageNo, pgcateg);
+		if(emptyPageNo < 0) {
+			// a rehearsal's stand-in
+			Page p = newPage(newPageId, BTreePage.createEmptyPageData());
+			dirtypages.put(newPageId, p);
+			return p;
+		}
 		
 		// write empty page to disk
 		RandomAccessFile rf = new RandomAccessFile(f, "rw");
@@ -1149,7 +1900,9 @@ public class BTreeFile implements DbFile {
 		
 		// make sure the page is not in the buffer pool	or in the local cache		
 		Database.getBufferPool().discardPage(newPageId);
-		dirtypages.remove(newPageId);
+		if (dirtypages.remove(newPageId) != null && dirtypages instanceof PinnedPages) {
+			Database.getBufferPool().unpinPage(tid, newPageId);
+		}
 		
 		return getPage(tid, dirtypages, newPageId, Permissions.READ_WRITE);
 	}
@@ -1275,6 +2028,8 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	/** pin on curp, so it is not evicted while it is iterated */
+	PageHandle pinned = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1293,11 +2048,28 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 	 * Open this iterator by getting an iterator on the first leaf page
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
-		curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
-		it = curp.iterator();
+		BTreeLeafPage leftmost = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		if (leftmost != null) {
+			curp = pin(leftmost.getId());
+			it = curp.iterator();
+		}
+	}
+
+	/**
+	 * Pins a leaf page in place of the current one.
+	 * @return the pinned page
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		return (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			pinned.close();
+			pinned = null;
+		}
 	}
 
 	/**
@@ -1315,10 +2087,10 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			if(nextp == null) {
 				curp = null;
+				unpin();
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 				if (!it.hasNext())
 					it = null;
@@ -1345,6 +2117,7 @@ class BTreeFileIterator extends AbstractDbFileIterator {
 		super.close();
 		it = null;
 		curp = null;
+		unpin();
 	}
 }
 
@@ -1356,6 +2129,8 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 
 	Iterator<Tuple> it = null;
 	BTreeLeafPage curp = null;
+	/** pin on curp, so it is not evicted while it is iterated */
+	PageHandle pinned = null;
 
 	TransactionId tid;
 	BTreeFile f;
@@ -1378,17 +2153,34 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	 * for the given predicate operation
 	 */
 	public void open() throws DbException, TransactionAbortedException {
-		BTreeRootPtrPage rootPtr = (BTreeRootPtrPage) Database.getBufferPool().getPage(
-				tid, BTreeRootPtrPage.getId(f.getId()), Permissions.READ_ONLY);
-		BTreePageId root = rootPtr.getRootId();
 		if(ipred.getOp() == Op.EQUALS || ipred.getOp() == Op.GREATER_THAN 
 				|| ipred.getOp() == Op.GREATER_THAN_OR_EQ) {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, ipred.getField());
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, ipred.getField());
 		}
 		else {
-			curp = f.findLeafPage(tid, root, Permissions.READ_ONLY, null);
+			curp = f.findLeafPage(tid, Permissions.READ_ONLY, null);
+		}
+		if (curp != null) {
+			curp = pin(curp.getId());
+			it = curp.iterator();
+		}
+	}
+
+	/**
+	 * Pins a leaf page in place of the current one.
+	 * @return the pinned page
+	 */
+	private BTreeLeafPage pin(BTreePageId pid) throws DbException, TransactionAbortedException {
+		unpin();
+		pinned = Database.getBufferPool().pinPage(tid, pid, Permissions.READ_ONLY);
+		return (BTreeLeafPage) pinned.getPage();
+	}
+
+	private void unpin() {
+		if (pinned != null) {
+			pinned.close();
+			pinned = null;
 		}
-		it = curp.iterator();
 	}
 
 	/**
@@ -1423,11 +2215,11 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 			BTreePageId nextp = curp.getRightSiblingId();
 			// if there are no more pages to the right, end the iteration
 			if(nextp == null) {
+				unpin();
 				return null;
 			}
 			else {
-				curp = (BTreeLeafPage) Database.getBufferPool().getPage(tid,
-						nextp, Permissions.READ_ONLY);
+				curp = pin(nextp);
 				it = curp.iterator();
 			}
 		}
@@ -1449,5 +2241,6 @@ class BTreeSearchIterator extends AbstractDbFileIterator {
 	public void close() {
 		super.close();
 		it = null;
+		unpin();
 	}
 }
@@ -20,6 +20,7 @@ public class BTreeInternalPage extends BTreePage {
 	private final int numSlots;
 	
 	private int childCategory; // either leaf or internal
+	private int rightSibling; // linked pages only: internal node or 0
 
 	public void checkRep(Field lowerBound, Field upperBound, boolean checkOccupancy, int depth) {
 		Field prev = lowerBound;
@@ -66,7 +67,22 @@ public class BTreeInternalPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeInternalPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, key, false);
+	}
+
+	/**
+	 * Create a BTreeInternalPage from a set of bytes of data read from disk.  Linked
+	 * pages store a pointer to their right sibling and their high key after the child
+	 * page category.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @param linked - whether the page is in the format of linked B+ trees
+	 * @see #BTreeInternalPage(BTreePageId, byte[], int)
+	 */
+	public BTreeInternalPage(BTreePageId id, byte[] data, int key, boolean linked) throws IOException {
+		super(id, key, linked);
 		this.numSlots = getMaxEntries() + 1;
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -81,6 +97,12 @@ public class BTreeInternalPage extends BTreePage {
 		// read the child page category
 		childCategory = (int) dis.readByte();
 
+		// read the right sibling pointer and the high key of linked pages
+		if (linked) {
+			rightSibling = dis.readInt();
+			readHighKey(dis);
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -118,8 +140,9 @@ public class BTreeInternalPage extends BTreePage {
 		int keySize = td.getFieldType(keyField).getLen();
 		int bitsPerEntryIncludingHeader = keySize * 8 + INDEX_SIZE * 8 + 1;
 		// extraBits are: one parent pointer, 1 byte for child page category, 
-		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header
-		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1; 
+		// one extra child pointer (node with m entries has m+1 pointers to children), 1 bit for extra header,
+		// and the right sibling pointer and high key of linked pages
+		int extraBits = 2 * INDEX_SIZE * 8 + 8 + 1 + (linked ? (INDEX_SIZE + getHighKeySize()) * 8 : 0); 
 		int entriesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerEntryIncludingHeader; //round down
 		return entriesPerPage;
 	}
@@ -145,7 +168,7 @@ public class BTreeInternalPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeInternalPage(pid,oldDataRef,keyField);
+			return new BTreeInternalPage(pid,oldDataRef,keyField,linked);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -252,6 +275,16 @@ public class BTreeInternalPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		// write out the right sibling pointer and the high key of linked pages
+		if (linked) {
+			try {
+				dos.writeInt(rightSibling);
+				writeHighKey(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
 			try {
@@ -316,7 +349,8 @@ public class BTreeInternalPage extends BTreePage {
 
 		// padding
 		int zerolen = BufferPool.getPageSize() - (INDEX_SIZE + 1 + header.length + 
-				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length); 
+				td.getFieldType(keyField).getLen() * (keys.length - 1) + INDEX_SIZE * children.length
+				+ (linked ? INDEX_SIZE + getHighKeySize() : 0)); 
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
@@ -558,6 +592,38 @@ public class BTreeInternalPage extends BTreePage {
 		}
 	}
 
+	/**
+	 * Get the id of the right sibling of this page, the internal page of the same level
+	 * holding the keys above this page's high key.  Only linked pages keep it.
+	 * @return the id of the right sibling, or null if this page is the right-most of its level
+	 */
+	public BTreePageId getRightSiblingId() {
+		if(rightSibling == 0) {
+			return null;
+		}
+		return new BTreePageId(pid.getTableId(), rightSibling, BTreePageId.INTERNAL);
+	}
+
+	/**
+	 * Set the right sibling id of this page
+	 * @param id - the new right sibling id
+	 * @throws DbException if the id is not valid
+	 */
+	public void setRightSiblingId(BTreePageId id) throws DbException {
+		if(id == null) {
+			rightSibling = 0;
+		}
+		else {
+			if(id.getTableId() != pid.getTableId()) {
+				throw new DbException("table id mismatch in setRightSiblingId");
+			}
+			if(id.pgcateg() != BTreePageId.INTERNAL) {
+				throw new DbException("rightSibling must be an internal node");
+			}
+			rightSibling = id.getPageNumber();
+		}
+	}
+
 	/**
 	 * Returns the number of entries (keys) currently stored on this page
 	 */
@@ -761,8 +827,16 @@ class BTreeInternalPageReverseIterator implements Iterator<BTreeEntry> {
 			while (true) {
 				int entry = curEntry--;
 				Field key = p.getKey(entry);
-				BTreePageId childId = p.getChildId(entry - 1);
-				if(key != null && childId != null) {
+				if(key == null) {
+					continue;
+				}
+				// the left child is the right child of the previous slot in use
+				int prev = entry - 1;
+				while(prev > 0 && !p.isSlotUsed(prev)) {
+					--prev;
+				}
+				BTreePageId childId = p.getChildId(prev);
+				if(childId != null) {
 					nextToReturn = new BTreeEntry(key, childId, nextChildId);
 					nextToReturn.setRecordId(new RecordId(p.pid, entry));
 					nextChildId = childId;
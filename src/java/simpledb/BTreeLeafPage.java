@@ -62,7 +62,21 @@ public class BTreeLeafPage extends BTreePage {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreeLeafPage(BTreePageId id, byte[] data, int key) throws IOException {
-		super(id, key);
+		this(id, data, key, false);
+	}
+
+	/**
+	 * Create a BTreeLeafPage from a set of bytes of data read from disk.  Linked pages
+	 * store their high key after the sibling pointers.
+	 * 
+	 * @param id - the id of this page
+	 * @param data - the raw data of this page
+	 * @param key - the field which the index is keyed on
+	 * @param linked - whether the page is in the format of linked B+ trees
+	 * @see #BTreeLeafPage(BTreePageId, byte[], int)
+	 */
+	public BTreeLeafPage(BTreePageId id, byte[] data, int key, boolean linked) throws IOException {
+		super(id, key, linked);
 		this.numSlots = getMaxTuples();
 		DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
 
@@ -88,6 +102,10 @@ public class BTreeLeafPage extends BTreePage {
 			e.printStackTrace();
 		}
 
+		if (linked) {
+			readHighKey(dis);
+		}
+
 		// allocate and read the header slots of this page
 		header = new byte[getHeaderSize()];
 		for (int i=0; i<header.length; i++)
@@ -111,8 +129,9 @@ public class BTreeLeafPage extends BTreePage {
 	 */
 	public int getMaxTuples() {        
 		int bitsPerTupleIncludingHeader = td.getSize() * 8 + 1;
-		// extraBits are: left sibling pointer, right sibling pointer, parent pointer
-		int extraBits = 3 * INDEX_SIZE * 8; 
+		// extraBits are: left sibling pointer, right sibling pointer, parent pointer,
+		// and the high key of linked pages
+		int extraBits = 3 * INDEX_SIZE * 8 + (linked ? getHighKeySize() * 8 : 0); 
 		int tuplesPerPage = (BufferPool.getPageSize()*8 - extraBits) / bitsPerTupleIncludingHeader; //round down
 		return tuplesPerPage;
 	}
@@ -137,7 +156,7 @@ public class BTreeLeafPage extends BTreePage {
 			{
 				oldDataRef = oldData;
 			}
-			return new BTreeLeafPage(pid,oldDataRef,keyField);
+			return new BTreeLeafPage(pid,oldDataRef,keyField,linked);
 		} catch (IOException e) {
 			e.printStackTrace();
 			//should never happen -- we parsed it OK before!
@@ -222,6 +241,13 @@ public class BTreeLeafPage extends BTreePage {
 		} catch (IOException e) {
 			e.printStackTrace();
 		}
+		if (linked) {
+			try {
+				writeHighKey(dos);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
 
 		// create the header of the page
 		for (int i=0; i<header.length; i++) {
@@ -262,7 +288,8 @@ public class BTreeLeafPage extends BTreePage {
 		}
 
 		// padding
-		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE); //- numSlots * td.getSize();
+		int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length + 3 * INDEX_SIZE
+				+ (linked ? getHighKeySize() : 0)); //- numSlots * td.getSize();
 		byte[] zeroes = new byte[zerolen];
 		try {
 			dos.write(zeroes, 0, zerolen);
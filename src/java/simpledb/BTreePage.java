@@ -13,6 +13,7 @@ import java.io.*;
 public abstract class BTreePage implements Page {
 	protected volatile boolean dirty = false;
 	protected volatile TransactionId dirtier = null;
+	private volatile long lsn = 0; // see Page#getLSN
 
 	protected final static int INDEX_SIZE = Type.INT_TYPE.getLen();
 
@@ -21,6 +22,8 @@ public abstract class BTreePage implements Page {
 	protected final int keyField;
 
 	protected int parent; // parent is always internal node or 0 for root node
+	protected final boolean linked;
+	protected Field highKey; // linked pages only: keys above it belong right of this page, or null
 	protected byte[] oldData;
 	protected final Byte oldDataLock=new Byte((byte)0);
 
@@ -49,8 +52,19 @@ public abstract class BTreePage implements Page {
 	 * @param key - the field which the index is keyed on
 	 */
 	public BTreePage(BTreePageId id, int key) throws IOException {
+		this(id, key, false);
+	}
+
+	/**
+	 * @param id - the id of this page
+	 * @param key - the field which the index is keyed on
+	 * @param linked - whether the page is in the format of linked B+ trees, which also
+	 * stores a high key, see {@link BTreeFile#isLinked()}
+	 */
+	public BTreePage(BTreePageId id, int key, boolean linked) throws IOException {
 		this.pid = id;
 		this.keyField = key;
+		this.linked = linked;
 		this.td = Database.getCatalog().getTupleDesc(id.getTableId());
 	}
 
@@ -109,11 +123,69 @@ public abstract class BTreePage implements Page {
 		}
 	}
 
+	/**
+	 * @return whether this page is in the format of linked B+ trees
+	 */
+	public boolean isLinked() {
+		return linked;
+	}
+
+	/**
+	 * Get the high key of this page: the keys above it belong to the pages right of this
+	 * one.  Only linked pages keep a high key.
+	 * @return the high key, or null if this page is the right-most of its level
+	 */
+	public Field getHighKey() {
+		return highKey;
+	}
+
+	/**
+	 * Set the high key of this page
+	 * @param key - the new high key, or null if this page is the right-most of its level
+	 */
+	public void setHighKey(Field key) {
+		highKey = key;
+	}
+
+	/**
+	 * @return the number of bytes the high key takes on linked pages: one saying whether
+	 * there is a high key, and the key
+	 */
+	protected int getHighKeySize() {
+		return 1 + td.getFieldType(keyField).getLen();
+	}
+
+	/**
+	 * Read the high key of a linked page from the source file.
+	 */
+	protected void readHighKey(DataInputStream dis) throws IOException {
+		boolean isSet = dis.readByte() != 0;
+		try {
+			Field f = td.getFieldType(keyField).parse(dis);
+			highKey = isSet ? f : null;
+		} catch (java.text.ParseException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Write out the high key of a linked page.
+	 */
+	protected void writeHighKey(DataOutputStream dos) throws IOException {
+		dos.writeByte(highKey == null ? 0 : 1);
+		if (highKey != null) {
+			highKey.serialize(dos);
+		}
+		else {
+			dos.write(new byte[td.getFieldType(keyField).getLen()]);
+		}
+	}
+
 	/**
 	 * Marks this page as dirty/not dirty and record that transaction
 	 * that did the dirtying
 	 */
-	public void markDirty(boolean dirty, TransactionId tid) {
+	public synchronized void markDirty(boolean dirty, TransactionId tid) {
 		this.dirty = dirty;
 		if (dirty) this.dirtier = tid;
 	}
@@ -121,13 +193,21 @@ public abstract class BTreePage implements Page {
 	/**
 	 * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
 	 */
-	public TransactionId isDirty() {
+	public synchronized TransactionId isDirty() {
 		if (this.dirty)
 			return this.dirtier;
 		else
 			return null;
 	}
 
+	public long getLSN() {
+		return lsn;
+	}
+
+	public void setLSN(long lsn) {
+		this.lsn = lsn;
+	}
+
 	/**
 	 * Returns the number of empty slots on this page.
 	 */
@@ -4,7 +4,14 @@ import java.awt.print.Paper;
 import java.io.*;
 
 import java.util.*;
+import java.nio.ByteBuffer;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * BufferPool manages the reading and writing of pages into memory from
@@ -28,73 +35,1316 @@ public class BufferPool {
     constructor instead. */
     public static final int DEFAULT_PAGES = 50;
 
-    private LinkedHashMap<PageId,Page> buffer;
+    /** Upper bound on the number of partitions the page table is split into. */
+    private static final int MAX_SHARDS = 16;
 
-    private int maxPages;
+    /**
+     * How long a page request waits for pinned pages to be unpinned when
+     * every unpinned page is dirty, before giving up.
+     */
+    private static final long PIN_WAIT_MILLIS = 500;
+
+    /**
+     * Dirtier of pages holding committed updates that are logged but not
+     * written back yet (NO-FORCE).  Such pages are written without logging
+     * them again.
+     */
+    static final TransactionId COMMITTED_DIRTIER = new TransactionId();
+
+    /**
+     * The page table, hash-partitioned by PageId.  Each shard has its own
+     * latch and its own replacement state, so lookups of pages living in
+     * different shards never contend with each other.
+     */
+    private final Shard[] shards;
+
+    /** Number of pages cached across all shards, never more than maxPages. */
+    private final AtomicInteger numCached = new AtomicInteger(0);
+
+    /** Shard the next eviction starts searching from. */
+    private final AtomicInteger evictionHand = new AtomicInteger(0);
+
+    /** Number of distinct pages pinned across all shards. */
+    private final AtomicInteger numPinned = new AtomicInteger(0);
+
+    /** Signalled whenever a page is unpinned. */
+    private final Object unpinned = new Object();
+    /** Number of unpins so far; guarded by unpinned */
+    private long unpinCount;
+
+    private final int maxPages;
+
+    private final ReplacementPolicy.Kind policyKind;
+
+    /** Off-heap frames pages are read into, or null to keep pages on the heap. */
+    private final FrameArena arena;
+
+    /** Background I/O thread that reads pages ahead of sequential scans. */
+    private final ThreadPoolExecutor readAheadThread;
+
+    /** Background writer of dirty pages, or null if it is not running. */
+    private PageWriter pageWriter;
+
+    /** Most pages in the private ring of a large sequential scan. */
+    static final int RING_PAGES = 16;
+
+    /** The page locks of the transactions using this pool. */
+    private final LockManager lockManager = new LockManager();
+
+    /** Counters, gauges and latencies of this pool, see {@link #getMetrics()}. */
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter hits = metrics.counter("getPage.hits");
+    private final Metrics.Counter misses = metrics.counter("getPage.misses");
+    private final Metrics.Counter evictions = metrics.counter("evictPage.evictions");
+    private final Metrics.Counter flushes = metrics.counter("flushPage.flushes");
+    private final Metrics.Histogram getPageLatency = metrics.histogram("getPage");
+    private final Metrics.Histogram evictPageLatency = metrics.histogram("evictPage");
+    private final Metrics.Histogram flushPageLatency = metrics.histogram("flushPage");
+    private final Metrics.Histogram readPageLatency = metrics.histogram("DbFile.readPage");
+    private final Metrics.Histogram writePageLatency = metrics.histogram("DbFile.writePage");
+
+    /** Committed images of modified pages, for snapshot readers. */
+    private final VersionStore versions;
+
+    /** Whether writers save versions, see {@link #setMultiVersion(boolean)}. */
+    private volatile boolean multiVersion;
+
+    /** The read and write sets of the optimistic transactions. */
+    private final ConcurrentHashMap<TransactionId, OptimisticState> optimistic = new ConcurrentHashMap<>();
+
+    /**
+     * Number of commits that wrote each page, for the validation of
+     * optimistic transactions; absent for pages never written.
+     */
+    private final ConcurrentHashMap<PageId, Long> commitVersions = new ConcurrentHashMap<>();
+
+    private final Metrics.Counter txnCommits = metrics.counter("txn.commits");
+    private final Metrics.Counter txnAborts = metrics.counter("txn.aborts");
+    private final Metrics.Counter occCommits = metrics.counter("occ.commits");
+    private final Metrics.Counter occFailures = metrics.counter("occ.validation.failures");
+
+    /** Sub-pools by name, created as their tables' pages are requested. */
+    private final ConcurrentHashMap<String, SubPool> subPools = new ConcurrentHashMap<>();
+
+    /** Most pages a warm-up reads per batch, see {@link #warmUp(File)}. */
+    static final int WARM_UP_BATCH = 32;
+
+    /** Thread dumping the hot page list periodically, or null; guarded by dumperLock */
+    private Thread hotPageDumper;
+    private boolean hotPageDumperRunning;
+    private final Object dumperLock = new Object();
+
+    /** Whether dirty pages may be evicted and commits only force the log. */
+    private volatile boolean stealNoForce;
+
+    /**
+     * Transactions some of whose pages were written by the page writer
+     * before they completed.  Aborting one of them has to restore the
+     * pages on disk from the log.
+     */
+    private final Set<TransactionId> writtenAhead = ConcurrentHashMap.newKeySet();
+
+    /** One partition of the page table, guarded by its latch. */
+    private static class Shard {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<PageId, Page> pages = new HashMap<>();
+        /** arena frame of each cached page that lives in one */
+        final HashMap<PageId, Integer> frames = new HashMap<>();
+        /** transactions pinning each pinned page, once per pin */
+        final HashMap<PageId, List<TransactionId>> pins = new HashMap<>();
+        /** sub-pool each cached page counts against */
+        final HashMap<PageId, SubPool> owners = new HashMap<>();
+        /** pages read for a scan's ring that no other request has used */
+        final HashMap<PageId, ScanContext> rings = new HashMap<>();
+        /** pages being read ahead or warmed up, with the read they are
+            read by; caching or uncaching a page cancels its read, whose
+            image may be older than the page's by then */
+        final HashMap<PageId, Object> reads = new HashMap<>();
+        final ReplacementPolicy policy;
+
+        Shard(ReplacementPolicy policy) {
+            this.policy = policy;
+        }
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     */
+    public BufferPool(int numPages) {
+        this(numPages, ReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages and evicts
+     * them according to the given replacement policy.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy used by evictPage
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policy) {
+        this(numPages, policy, false);
+    }
+
+    /**
+     * Creates a BufferPool that caches up to numPages pages, optionally
+     * keeping their contents in an off-heap arena of numPages frames
+     * instead of on the Java heap.
+     *
+     * @param numPages maximum number of pages in this buffer pool.
+     * @param policy the replacement policy used by evictPage
+     * @param offHeap whether to read pages into off-heap frames
+     */
+    public BufferPool(int numPages, ReplacementPolicy.Kind policy, boolean offHeap) {
+        this.maxPages = numPages;
+        this.policyKind = policy;
+        this.arena = offHeap ? new FrameArena(numPages, pageSize) : null;
+        this.readAheadThread = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "BufferPool read-ahead");
+                    t.setDaemon(true);
+                    return t;
+                });
+        readAheadThread.allowCoreThreadTimeOut(true);
+        // power of two no larger than the pool, so tiny pools still get
+        // a true LRU order over all of their pages
+        int n = 1;
+        while (n * 2 <= Math.min(MAX_SHARDS, numPages)) {
+            n *= 2;
+        }
+        this.shards = new Shard[n];
+        int shardCapacity = (numPages + n - 1) / n;
+        for (int i = 0; i < n; i++) {
+            shards[i] = new Shard(policy.create(shardCapacity));
+        }
+        this.versions = new VersionStore(metrics, numPages);
+        metrics.gauge("pages.capacity", () -> maxPages);
+        metrics.gauge("pages.cached", numCached::get);
+        metrics.gauge("pages.dirty", this::getNumDirtyPages);
+        metrics.gauge("pages.pinned", numPinned::get);
+    }
+
+    /**
+     * Returns the metrics of this pool: getPage hits and misses, evictions
+     * and flushes, the numbers of cached, dirty and pinned pages, and the
+     * latencies of getPage, evictPage, flushPage and of the DbFile page
+     * reads and writes the pool makes.  Vectored reads ahead of scans are
+     * timed once per read.  Transactions completed are counted as
+     * txn.commits and txn.aborts.
+     *
+     * @see #getResidency()
+     * @see LockManager#getMetrics()
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /** @return the lock manager granting the page locks getPage takes */
+    public LockManager getLockManager() {
+        return lockManager;
+    }
+
+    /** @return the number of cached pages that are dirty */
+    private long getNumDirtyPages() {
+        long n = 0;
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                for (Page p : shard.pages.values()) {
+                    if (p.isDirty() != null) {
+                        n++;
+                    }
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        return n;
+    }
+
+    /** @return the number of cached pages of each table, by table id */
+    public Map<Integer, Integer> getResidency() {
+        Map<Integer, Integer> residency = new TreeMap<>();
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                for (PageId pid : shard.pages.keySet()) {
+                    residency.merge(pid.getTableId(), 1, Integer::sum);
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        return residency;
+    }
+
+    /** @return the arena pages are read into, or null if pages live on the heap */
+    FrameArena getFrameArena() {
+        return arena;
+    }
+
+    /**
+     * Switches between the default NO-STEAL/FORCE buffer management and
+     * STEAL/NO-FORCE.
+     * <p>
+     * Under STEAL, when every clean page is in use, eviction writes a dirty
+     * page out, after logging it and forcing the log, rather than failing.
+     * Under NO-FORCE, a commit logs the transaction's dirty pages and leaves
+     * them dirty in the pool; only the log is forced, and the pages reach
+     * the disk when they are evicted, flushed or written by the page writer.
+     * Aborts and recovery undo and redo from the log.
+     * <p>
+     * Both only apply to transactions that logged a BEGIN record (see
+     * {@link Transaction#start()}); pages of other transactions are handled
+     * as before.
+     */
+    public void setStealNoForce(boolean stealNoForce) {
+        this.stealNoForce = stealNoForce;
+    }
+
+    /** @return whether this pool runs STEAL/NO-FORCE */
+    public boolean isStealNoForce() {
+        return stealNoForce;
+    }
+
+    /**
+     * Turns multi-version concurrency control on or off; it is off by
+     * default.  While it is on, writers save the committed image of each
+     * page they modify in a {@link VersionStore}, and read-only
+     * transactions can read a snapshot of the database without taking
+     * locks, see {@link #beginSnapshot(TransactionId)}.  Switch it while no
+     * transaction is running.
+     */
+    public void setMultiVersion(boolean multiVersion) {
+        this.multiVersion = multiVersion;
+    }
+
+    /** @return whether this pool keeps versions for snapshot readers */
+    public boolean isMultiVersion() {
+        return multiVersion;
+    }
+
+    /**
+     * Makes tid a snapshot reader: until it completes, getPage returns the
+     * pages as of the last commit before now, without locking them, and
+     * tid may not modify any page.  Requires multi-version mode.
+     */
+    public void beginSnapshot(TransactionId tid) {
+        if (!multiVersion) {
+            throw new IllegalStateException("snapshots need multi-version mode");
+        }
+        versions.beginSnapshot(tid);
+    }
+
+    /** @return the versions kept for snapshot readers */
+    public VersionStore getVersionStore() {
+        return versions;
+    }
+
+    /**
+     * Runs tid under optimistic concurrency control: getPage takes no
+     * locks, but hands tid private copies of the pages' committed images,
+     * and remembers how many commits had written each.  tid modifies its
+     * copies, and its writes stay local until {@link #validateAndInstall}.
+     * Call before tid gets its first page.  An optimistic transaction that
+     * completes without validating leaves no trace.
+     */
+    public void beginOptimistic(TransactionId tid) {
+        optimistic.put(tid, new OptimisticState());
+    }
+
+    /**
+     * Validates an optimistic transaction and installs its writes.  The
+     * pages tid wrote are locked exclusively, in a fixed order; then every
+     * page it read must have had no commit since, and no other transaction
+     * may be writing it.  If so, tid's copies replace the cached pages, and
+     * tid commits as a locking transaction that dirtied them would,
+     * logging and flushing them.
+     *
+     * @throws TransactionAbortedException if validation fails, or the
+     *     locks or pages cannot be had; tid is to abort
+     */
+    public void validateAndInstall(TransactionId tid) throws TransactionAbortedException {
+        OptimisticState occ = optimistic.get(tid);
+        if (occ == null) {
+            return;
+        }
+        List<PageId> writes = occ.writeSet();
+        for (PageId pid : writes) {
+            lockManager.exclusiveLock(tid, pid);
+        }
+        for (PageId pid : occ.readSet()) {
+            if (commitVersions.getOrDefault(pid, 0L) != occ.versionRead(pid)
+                    || lockManager.isWriteLocked(tid, pid)) {
+                occFailures.increment();
+                throw new TransactionAbortedException();
+            }
+        }
+        for (PageId pid : writes) {
+            install(tid, occ.get(pid));
+        }
+        optimistic.remove(tid);
+        occCommits.increment();
+    }
+
+    /** Replaces the cached page with tid's copy, dirtied by tid. */
+    private void install(TransactionId tid, Page copy) throws TransactionAbortedException {
+        PageId pid = copy.getId();
+        Page live;
+        try {
+            live = lookupOrRead(tid, pid, null, true);
+        } catch (DbException e) {
+            throw new TransactionAbortedException();
+        }
+        if (multiVersion && live != null) {
+            versions.beforeWrite(tid, live);
+        }
+        Shard shard = shardFor(pid);
+        shard.latch.lock();
+        try {
+            Page cached = shard.pages.get(pid);
+            if (cached != null) {
+                releaseFrame(shard, cached);
+                shard.pages.put(pid, copy);
+            }
+            copy.markDirty(true, tid);
+        } finally {
+            shard.latch.unlock();
+        }
+        unpinPage(tid, pid);
+    }
+
+    /**
+     * @return tid's copy of a page, taken as the page's committed image on
+     *     first access; null if there is no such page
+     */
+    private Page optimisticPage(OptimisticState occ, TransactionId tid, PageId pid,
+                                Permissions perm, ScanContext scan)
+        throws TransactionAbortedException, DbException {
+        Page p = occ.get(pid);
+        if (p == null) {
+            // the version before the image: a commit in between only
+            // makes the validation fail
+            long version = commitVersions.getOrDefault(pid, 0L);
+            Page live = lookupOrRead(tid, pid, scan, false);
+            if (live == null) {
+                return null;
+            }
+            p = live.getBeforeImage();
+            occ.read(pid, version, p);
+        }
+        if (perm.equals(Permissions.READ_WRITE)) {
+            occ.write(pid);
+        }
+        return p;
+    }
+
+    /** @return whether tid takes locks, rather than reading a snapshot or optimistically */
+    private boolean isLocking(TransactionId tid) {
+        return !versions.isSnapshot(tid) && !optimistic.containsKey(tid);
+    }
+
+    /**
+     * Locks a table for a scan by tid: S for READ_ONLY, X for READ_WRITE.
+     * Snapshot readers and optimistic transactions take no lock.
+     */
+    public void lockTable(TransactionId tid, int tableId, Permissions perm)
+        throws TransactionAbortedException {
+        if (isLocking(tid)) {
+            lockManager.lockTable(tid, tableId,
+                    perm == Permissions.READ_WRITE ? LockManager.Mode.X : LockManager.Mode.S);
+        }
+    }
+
+    /** @throws DbException if tid is a snapshot reader */
+    private void checkWritable(TransactionId tid) throws DbException {
+        if (versions.isSnapshot(tid)) {
+            throw new DbException("snapshot transaction " + tid.getId() + " is read-only");
+        }
+    }
+
+    /** @return the replacement policy this pool was built with */
+    public ReplacementPolicy.Kind getReplacementPolicy() {
+        return policyKind;
+    }
+
+    private Shard shardFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return shards[h & (shards.length - 1)];
+    }
+
+    /**
+     * @return the cached copy of the page, or null if it is not resident.
+     * Does not acquire any transactional lock, and does not count as a
+     * use of the page for replacement purposes.
+     */
+    private Page lookup(PageId pid) {
+        Shard shard = shardFor(pid);
+        shard.latch.lock();
+        try {
+            return shard.pages.get(pid);
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /** @return the number of pages currently cached in this buffer pool */
+    int getNumCachedPages() {
+        return numCached.get();
+    }
+    
+    public static int getPageSize() {
+      return pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void setPageSize(int pageSize) {
+    	BufferPool.pageSize = pageSize;
+    }
+    
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    public static void resetPageSize() {
+    	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions.
+     * Will acquire a lock and may block if that lock is held by another
+     * transaction.
+     * <p>
+     * The retrieved page should be looked up in the buffer pool.  If it
+     * is present, it should be returned.  If it is not present, it should
+     * be added to the buffer pool and returned.  If there is insufficient
+     * space in the buffer pool, a page should be evicted and the new page
+     * should be added in its place.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     */
+    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return getPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions on behalf
+     * of a sequential scan.  Once the scan has asked for consecutive pages,
+     * the pages following pid are read ahead on a background thread, so
+     * that they are already cached when the scan gets to them.  Read-ahead
+     * is only done for heap files, so pid must be a HeapPageId.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @param scan read-ahead state of the scan, or null for a random access
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public Page getPage(TransactionId tid, PageId pid, Permissions perm, ScanContext scan)
+        throws TransactionAbortedException, DbException {
+        return fetchPage(tid, pid, perm, scan, false);
+    }
+
+    /**
+     * Retrieve the specified page with the associated permissions, as
+     * getPage does, and pin it.  The page is not evicted until the returned
+     * handle is closed or the transaction completes.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a handle on the pinned page, or null if there is no such page
+     * @see #getPage(TransactionId, PageId, Permissions)
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        return pinPage(tid, pid, perm, null);
+    }
+
+    /**
+     * Retrieve and pin the specified page on behalf of a sequential scan.
+     *
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     * @see #getPage(TransactionId, PageId, Permissions, ScanContext)
+     */
+    public PageHandle pinPage(TransactionId tid, PageId pid, Permissions perm, ScanContext scan)
+        throws TransactionAbortedException, DbException {
+        Page p = fetchPage(tid, pid, perm, scan, true);
+        return p == null ? null : new PageHandle(this, tid, p);
+    }
+
+    /**
+     * Retrieves and pins the specified page, as pinPage does, unless that
+     * means waiting for a lock another transaction holds.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @param perm the requested permissions on the page
+     * @return a handle on the pinned page, or null if the lock is not
+     *     available right away, or there is no such page
+     * @see #pinPage(TransactionId, PageId, Permissions)
+     */
+    public PageHandle tryPinPage(TransactionId tid, PageId pid, Permissions perm)
+        throws TransactionAbortedException, DbException {
+        if (isLocking(tid)) {
+            boolean locked = perm.equals(Permissions.READ_WRITE)
+                    ? lockManager.tryExclusiveLock(tid, pid)
+                    : lockManager.tryShareLock(tid, pid);
+            if (!locked) {
+                return null;
+            }
+        }
+        return pinPage(tid, pid, perm);
+    }
+
+    /**
+     * Pins the specified page for reading without locking it, for the
+     * pages of structures that latch them instead, like the internal pages
+     * of B+ trees.  The caller keeps the page from changing while it reads
+     * it.  Snapshot readers and optimistic transactions get the page as
+     * they would from pinPage.
+     *
+     * @param tid the ID of the transaction requesting the page
+     * @param pid the ID of the requested page
+     * @return a handle on the pinned page, or null if there is no such page
+     */
+    public PageHandle pinPageUnlocked(TransactionId tid, PageId pid)
+        throws TransactionAbortedException, DbException {
+        if (!isLocking(tid)) {
+            return pinPage(tid, pid, Permissions.READ_ONLY);
+        }
+        Page p = lookupOrRead(tid, pid, null, true);
+        return p == null ? null : new PageHandle(this, tid, p);
+    }
+
+    /**
+     * Releases one pin of a page taken by pinPage.  Normally called by
+     * closing its {@link PageHandle}.
+     *
+     * @param tid the transaction that pinned the page
+     * @param pid the ID of the page to unpin
+     */
+    public void unpinPage(TransactionId tid, PageId pid) {
+        Shard shard = shardFor(pid);
+        boolean unpinnedOne = false;
+        shard.latch.lock();
+        try {
+            List<TransactionId> pinners = shard.pins.get(pid);
+            if (pinners != null && pinners.remove(tid)) {
+                unpinnedOne = true;
+                if (pinners.isEmpty()) {
+                    shard.pins.remove(pid);
+                    numPinned.decrementAndGet();
+                }
+            }
+        } finally {
+            shard.latch.unlock();
+        }
+        if (unpinnedOne) {
+            signalUnpin();
+        }
+    }
+
+    /** @return the number of pins currently held on a page */
+    int getPinCount(PageId pid) {
+        Shard shard = shardFor(pid);
+        shard.latch.lock();
+        try {
+            List<TransactionId> pinners = shard.pins.get(pid);
+            return pinners == null ? 0 : pinners.size();
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /** Pins a page for tid.  Callers hold the shard latch. */
+    private void pin(Shard shard, PageId pid, TransactionId tid) {
+        List<TransactionId> pinners = shard.pins.get(pid);
+        if (pinners == null) {
+            pinners = new ArrayList<>(2);
+            shard.pins.put(pid, pinners);
+            numPinned.incrementAndGet();
+        }
+        pinners.add(tid);
+    }
+
+    /** Drops the pins a completed transaction did not release itself. */
+    private void unpinAll(TransactionId tid) {
+        boolean unpinnedAny = false;
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                Iterator<List<TransactionId>> it = shard.pins.values().iterator();
+                while (it.hasNext()) {
+                    List<TransactionId> pinners = it.next();
+                    if (pinners.removeIf(tid::equals)) {
+                        unpinnedAny = true;
+                        if (pinners.isEmpty()) {
+                            it.remove();
+                            numPinned.decrementAndGet();
+                        }
+                    }
+                }
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        if (unpinnedAny) {
+            signalUnpin();
+        }
+    }
+
+    private void signalUnpin() {
+        synchronized (unpinned) {
+            unpinCount++;
+            unpinned.notifyAll();
+        }
+    }
+
+    private long getUnpinCount() {
+        synchronized (unpinned) {
+            return unpinCount;
+        }
+    }
+
+    /**
+     * Waits up to millis ms for a page to be unpinned, unless one has been
+     * since the unpin count was seen.
+     */
+    private void awaitUnpin(long seen, long millis) throws DbException {
+        synchronized (unpinned) {
+            if (unpinCount != seen) {
+                return;
+            }
+            try {
+                unpinned.wait(millis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new DbException("interrupted while waiting for a pinned page");
+            }
+        }
+    }
+
+    /**
+     * Looks the page up, reading it on a miss, and pins it if asked to.
+     */
+    private Page fetchPage(TransactionId tid, PageId pid, Permissions perm, ScanContext scan, boolean pin)
+        throws TransactionAbortedException, DbException {
+        long start = System.nanoTime();
+        try {
+            OptimisticState occ = optimistic.get(tid);
+            if (occ != null) {
+                return optimisticPage(occ, tid, pid, perm, scan);
+            }
+            if (versions.isSnapshot(tid)) {
+                // the snapshot's image is private, so there is nothing to pin
+                if (perm.equals(Permissions.READ_WRITE)) {
+                    checkWritable(tid);
+                }
+                return versions.read(tid, pid, lookupOrRead(tid, pid, scan, false));
+            }
+            if (perm.equals(Permissions.READ_ONLY)) {
+                lockManager.shareLock(tid,pid);
+            }else if (perm.equals(Permissions.READ_WRITE)) {
+                lockManager.exclusiveLock(tid,pid);
+            }
+            Page p = lookupOrRead(tid, pid, scan, pin);
+            if (multiVersion && p != null && perm.equals(Permissions.READ_WRITE)) {
+                versions.beforeWrite(tid, p);
+            }
+            return p;
+        } finally {
+            getPageLatency.recordSince(start);
+        }
+    }
+
+    private Page lookupOrRead(TransactionId tid, PageId pid, ScanContext scan, boolean pin)
+        throws TransactionAbortedException, DbException {
+        TransactionId pinner = pin ? tid : null;
+        int tableId = pid.getTableId();
+        Catalog catalog = Database.getCatalog();
+        Shard shard = shardFor(pid);
+        SubPool owner = subPoolFor(tableId);
+        if (scan != null && !scan.ringDecided()) {
+            // scans of tables that do not fit in the pool keep to a small
+            // ring of their own, like PostgreSQL's bulk read strategy
+            boolean large = catalog.getDatabaseFile(tableId).numPages() > maxPages;
+            scan.setRingSize(large ? Math.max(1, Math.min(RING_PAGES, maxPages / 8)) : 0);
+        }
+        Page hit = cachedPage(shard, pid, pinner, scan);
+        if (hit == null && scan != null && scan.awaitReadAhead(pid.getPageNumber())) {
+            hit = cachedPage(shard, pid, pinner, scan);
+        }
+        if (scan != null) {
+            scan.accessed(pid.getPageNumber(), hit != null);
+            readAhead(pid, scan);
+        }
+        if (hit != null) {
+            hits.increment();
+            owner.hit();
+            if (scan != null && scan.usesRing() && inRing(shard, pid, scan)) {
+                // read ahead for the scan, it joins the ring now
+                evictRingPage(scan.addToRing(pid), scan);
+            }
+            return hit;
+        }
+        misses.increment();
+        owner.miss();
+        if (scan != null && scan.usesRing()) {
+            evictRingPage(scan.addToRing(pid), scan);
+        }
+        DbFile file = catalog.getDatabaseFile(tableId);
+        makeRoomInSubPool(owner);
+        reserveFrame(true);
+        // read outside the shard latch so a miss does not stall hits on
+        // the other pages of this shard
+        long readStart = System.nanoTime();
+        int frame = arena == null ? -1 : arena.allocate();
+        Page p;
+        try {
+            p = frame < 0 ? null : file.readPage(pid, arena.frame(frame));
+            if (p == null && frame >= 0) {
+                arena.release(frame);
+                frame = -1;
+            }
+            if (p == null) {
+                p = file.readPage(pid);
+            }
+        } catch (RuntimeException e) {
+            // the frame reserved is not going to be used
+            if (frame >= 0) {
+                arena.release(frame);
+            }
+            numCached.decrementAndGet();
+            throw e;
+        }
+        readPageLatency.recordSince(readStart);
+        shard.latch.lock();
+        try {
+            Page cached = shard.pages.get(pid);
+            if (cached != null || p == null) {
+                // somebody else loaded it first, or it is past the end of the file
+                if (frame >= 0) {
+                    arena.release(frame);
+                }
+                numCached.decrementAndGet();
+                if (cached != null && pin) {
+                    pin(shard, pid, tid);
+                }
+                return cached;
+            }
+            cache(shard, p, frame, owner);
+            if (scan != null && scan.usesRing()) {
+                shard.rings.put(pid, scan);
+            }
+            shard.policy.pageAdded(pid);
+            if (pin) {
+                pin(shard, pid, tid);
+            }
+            return p;
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * @param pinner the transaction to pin the page for, or null
+     * @param scan the scan requesting the page, or null
+     * @return the cached page, counting this as a use of it, or null.
+     */
+    private Page cachedPage(Shard shard, PageId pid, TransactionId pinner, ScanContext scan) {
+        shard.latch.lock();
+        try {
+            Page p = shard.pages.get(pid);
+            if (p != null) {
+                shard.policy.pageHit(pid);
+                ScanContext ring = shard.rings.get(pid);
+                if (ring != null && ring != scan) {
+                    // somebody else wants it too, it is no longer the scan's
+                    shard.rings.remove(pid);
+                }
+                if (pinner != null) {
+                    pin(shard, pid, pinner);
+                }
+            }
+            return p;
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Issues the read-ahead due for a scan that just accessed pid, if any.
+     * Pages already cached at the edges of the window are not read again.
+     */
+    private void readAhead(PageId pid, ScanContext scan) {
+        // never let one scan's read-ahead take more than a quarter of the pool
+        int start = scan.nextReadAhead(maxPages / 4);
+        if (start < 0) {
+            return;
+        }
+        int end = start + scan.getWindow();
+        int tableId = pid.getTableId();
+        int first = start;
+        while (first < end && lookup(new HeapPageId(tableId, first)) != null) {
+            first++;
+        }
+        int last = end;
+        while (last > first && lookup(new HeapPageId(tableId, last - 1)) != null) {
+            last--;
+        }
+        if (first == last) {
+            scan.readAheadIssued(start, end, null);
+            return;
+        }
+        final DbFile file = Database.getCatalog().getDatabaseFile(tableId);
+        final PageId from = new HeapPageId(tableId, first);
+        final int count = last - first;
+        final ScanContext ring = scan.usesRing() ? scan : null;
+        List<PageId> pids = new ArrayList<>();
+        for (int i = first; i < last; i++) {
+            pids.add(new HeapPageId(tableId, i));
+        }
+        final Object read = startRead(pids);
+        Future<?> f = readAheadThread.submit(() -> readPages(file, from, count, ring, read));
+        scan.readAheadIssued(start, end, f);
+    }
+
+    /**
+     * Registers a read of pages no transaction asked for, before it is
+     * issued, see {@link #addPage}.
+     *
+     * @return the read
+     */
+    private Object startRead(List<PageId> pids) {
+        Object read = new Object();
+        for (PageId pid : pids) {
+            Shard shard = shardFor(pid);
+            shard.latch.lock();
+            try {
+                shard.reads.put(pid, read);
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        return read;
+    }
+
+    /** Unregisters the pages of a read that were not added. */
+    private void endRead(List<PageId> pids, Object read) {
+        for (PageId pid : pids) {
+            Shard shard = shardFor(pid);
+            shard.latch.lock();
+            try {
+                shard.reads.remove(pid, read);
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+    }
+
+    /**
+     * Reads count consecutive pages starting at first with one vectored
+     * read and adds those that are not cached yet to the pool.
+     *
+     * @param scan the scan whose ring the pages are added for, or null
+     * @param read the read of the pages, see {@link #startRead}
+     * @return the number of pages added
+     */
+    private int readPages(DbFile file, PageId first, int count, ScanContext scan, Object read) {
+        ByteBuffer[] buffers = new ByteBuffer[count];
+        int[] frames = new int[count];
+        for (int i = 0; i < count; i++) {
+            frames[i] = arena == null ? -1 : arena.allocate();
+            buffers[i] = frames[i] >= 0 ? arena.frame(frames[i]) : ByteBuffer.allocate(pageSize);
+        }
+        long start = System.nanoTime();
+        List<Page> pages = file.readPages(first, buffers);
+        readPageLatency.recordSince(start);
+        int added = 0;
+        List<PageId> pids = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            pids.add(new HeapPageId(first.getTableId(), first.getPageNumber() + i));
+            if (pages != null && i < pages.size()) {
+                if (addPage(pages.get(i), frames[i], scan, read)) {
+                    added++;
+                }
+            } else if (frames[i] >= 0) {
+                arena.release(frames[i]);
+            }
+        }
+        endRead(pids, read);
+        return added;
+    }
+
+    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
+    // waits for all read-ahead issued so far to complete
+    void awaitReadAhead() throws Exception {
+        readAheadThread.submit(() -> { }).get();
+    }
 
     /**
-     * Creates a BufferPool that caches up to numPages pages.
-     *
-     * @param numPages maximum number of pages in this buffer pool.
+     * @return the ids of the cached pages, hottest first.  Each shard's
+     * pages are ordered by its replacement policy, furthest from eviction
+     * first, and the shards are interleaved.
      */
-    public BufferPool(int numPages) {
-        // some code goes here
-        this.buffer = new LinkedHashMap<>();
-        this.maxPages = numPages;
+    List<PageId> getHotPages() {
+        List<List<PageId>> perShard = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                List<PageId> l = shard.policy.nextVictims(shard.pages.size(), pid -> true);
+                Collections.reverse(l);
+                perShard.add(l);
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        List<PageId> hot = new ArrayList<>();
+        for (int i = 0; hot.size() < numCached.get(); i++) {
+            boolean more = false;
+            for (List<PageId> l : perShard) {
+                if (i < l.size()) {
+                    hot.add(l.get(i));
+                    more = true;
+                }
+            }
+            if (!more) {
+                break;
+            }
+        }
+        return hot;
     }
-    
-    public static int getPageSize() {
-      return pageSize;
+
+    /**
+     * Writes the ids of the cached pages, hottest first, to f, so that
+     * {@link #warmUp(File)} can read them back in after a restart.
+     *
+     * @see HotPageList
+     */
+    public void dumpHotPages(File f) throws IOException {
+        HotPageList.write(f, getHotPages());
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void setPageSize(int pageSize) {
-    	BufferPool.pageSize = pageSize;
+
+    /**
+     * Starts a thread that calls {@link #dumpHotPages(File)} every
+     * intervalMillis milliseconds, so the list is at most that old when
+     * the database goes down.
+     */
+    public void startHotPageDumper(final File f, final long intervalMillis) {
+        synchronized (dumperLock) {
+            if (hotPageDumper != null) {
+                return;
+            }
+            hotPageDumperRunning = true;
+            hotPageDumper = new Thread("BufferPool hot page dumper") {
+                public void run() {
+                    while (true) {
+                        synchronized (dumperLock) {
+                            long until = System.currentTimeMillis() + intervalMillis;
+                            long left;
+                            while (hotPageDumperRunning && (left = until - System.currentTimeMillis()) > 0) {
+                                try {
+                                    dumperLock.wait(left);
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                            if (!hotPageDumperRunning) {
+                                return;
+                            }
+                        }
+                        try {
+                            dumpHotPages(f);
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            hotPageDumper.setDaemon(true);
+            hotPageDumper.start();
+        }
     }
-    
-    // THIS FUNCTION SHOULD ONLY BE USED FOR TESTING!!
-    public static void resetPageSize() {
-    	BufferPool.pageSize = DEFAULT_PAGE_SIZE;
+
+    /** Stops the hot page dumper, if it is running, waiting for a dump in progress. */
+    public void stopHotPageDumper() {
+        Thread t;
+        synchronized (dumperLock) {
+            t = hotPageDumper;
+            hotPageDumper = null;
+            hotPageDumperRunning = false;
+            dumperLock.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
     }
 
     /**
-     * Retrieve the specified page with the associated permissions.
-     * Will acquire a lock and may block if that lock is held by another
-     * transaction.
+     * Reads the pages listed in a file written by {@link #dumpHotPages(File)}
+     * back into the pool in the background, on the read-ahead thread.
      * <p>
-     * The retrieved page should be looked up in the buffer pool.  If it
-     * is present, it should be returned.  If it is not present, it should
-     * be added to the buffer pool and returned.  If there is insufficient
-     * space in the buffer pool, a page should be evicted and the new page
-     * should be added in its place.
+     * Only the hottest pages that fit in the pool are read.  They are read
+     * in order of their offset in their file, in batches of up to
+     * {@link #WARM_UP_BATCH} pages, consecutive heap pages with a single
+     * vectored read; read-ahead for scans that start meanwhile is queued
+     * between the batches.  Pages that are already cached, and pages of
+     * tables that are not in the catalog or have shrunk, are skipped.
+     * The catalog has to be loaded before calling this.
      *
-     * @param tid the ID of the transaction requesting the page
-     * @param pid the ID of the requested page
-     * @param perm the requested permissions on the page
+     * @return the number of pages read, once they all are
+     * @throws IOException if f is not a hot page list
      */
-    public  Page getPage(TransactionId tid, PageId pid, Permissions perm)
-        throws TransactionAbortedException, DbException {
-        // some code goes here
-        int tableId = pid.getTableId();
-        Catalog catalog = Database.getCatalog();
-        if (perm.equals(Permissions.READ_ONLY)) {
-            TransactionLockMap.shareLock(tid,pid);
-        }else if (perm.equals(Permissions.READ_WRITE)) {
-            TransactionLockMap.exclusiveLock(tid,pid);
-        }
-        if (buffer.containsKey(pid)) {
-            Page p = buffer.get(pid);
-            buffer.remove(pid);
-            buffer.put(pid,p);
-            return p;
+    public Future<Integer> warmUp(File f) throws IOException {
+        List<PageId> hot = HotPageList.read(f);
+        List<PageId> pids = new ArrayList<>(hot.subList(0, Math.min(hot.size(), maxPages)));
+        pids.sort(Comparator.comparingInt(PageId::getTableId).thenComparingInt(PageId::getPageNumber));
+        final AtomicInteger loaded = new AtomicInteger();
+        for (int i = 0; i < pids.size(); i += WARM_UP_BATCH) {
+            final List<PageId> batch = pids.subList(i, Math.min(pids.size(), i + WARM_UP_BATCH));
+            final Object read = startRead(batch);
+            readAheadThread.submit(() -> loaded.addAndGet(warmUpBatch(batch, read)));
         }
-        if (buffer.size() == this.maxPages) {
-            evictPage();
-//            throw new DbException("buffer exceed maxSize");
+        return readAheadThread.submit(loaded::get);
+    }
+
+    /**
+     * Reads a batch of a warm-up, sorted by table and page number.
+     *
+     * @return the number of pages added
+     */
+    private int warmUpBatch(List<PageId> batch, Object read) {
+        int added = 0;
+        int i = 0;
+        while (i < batch.size()) {
+            PageId first = batch.get(i);
+            // consecutive heap pages of one table are read together
+            int run = 1;
+            while (first instanceof HeapPageId && i + run < batch.size()
+                    && batch.get(i + run) instanceof HeapPageId
+                    && batch.get(i + run).getTableId() == first.getTableId()
+                    && batch.get(i + run).getPageNumber() == first.getPageNumber() + run) {
+                run++;
+            }
+            try {
+                DbFile file = Database.getCatalog().getDatabaseFile(first.getTableId());
+                if (run > 1) {
+                    added += readPages(file, first, run, null, read);
+                } else if (lookup(first) == null) {
+                    long start = System.nanoTime();
+                    int frame = arena == null ? -1 : arena.allocate();
+                    Page p = frame < 0 ? null : file.readPage(first, arena.frame(frame));
+                    if (p == null && frame >= 0) {
+                        arena.release(frame);
+                        frame = -1;
+                    }
+                    if (p == null) {
+                        p = file.readPage(first);
+                    }
+                    readPageLatency.recordSince(start);
+                    if (p != null && addPage(p, frame, null, read)) {
+                        added++;
+                    }
+                }
+            } catch (NoSuchElementException | IllegalArgumentException e) {
+                // the table is gone, or the page is past its end
+            }
+            i += run;
+        }
+        endRead(batch, read);
+        return added;
+    }
+
+    /**
+     * Caches a page read without any transaction asking for it, unless it
+     * is cached already or no clean page can be evicted to make room.
+     * The read is registered before it is issued, and the page is dropped
+     * if it was cached or uncached since: the read may have raced with a
+     * transaction that loaded it, wrote it and let it go.
+     *
+     * @param frame the arena frame the page was read into, or -1
+     * @param scan the scan whose ring the page is read for, or null
+     * @param read the read of the page, see {@link #startRead}
+     * @return whether the page was added
+     */
+    private boolean addPage(Page p, int frame, ScanContext scan, Object read) {
+        PageId pid = p.getId();
+        Shard shard = shardFor(pid);
+        SubPool owner = subPoolFor(pid.getTableId());
+        boolean added = false;
+        if (lookup(pid) == null) {
+            try {
+                makeRoomInSubPool(owner);
+                // the read-ahead thread never waits for pinned pages
+                reserveFrame(false);
+                shard.latch.lock();
+                try {
+                    if (shard.reads.remove(pid, read) && !shard.pages.containsKey(pid)) {
+                        cache(shard, p, frame, owner);
+                        if (scan != null) {
+                            shard.rings.put(pid, scan);
+                        }
+                        shard.policy.pageAdded(pid);
+                        added = true;
+                    } else {
+                        numCached.decrementAndGet();
+                    }
+                } finally {
+                    shard.latch.unlock();
+                }
+            } catch (DbException e) {
+                // every page is dirty, drop the page
+            }
+        }
+        if (!added && frame >= 0) {
+            arena.release(frame);
+        }
+        return added;
+    }
+
+    /**
+     * Adds a page to a latched shard and counts it against its sub-pool.
+     * The caller has reserved a frame for it and tells the policy.
+     *
+     * @param frame the arena frame the page lives in, or -1
+     */
+    private void cache(Shard shard, Page p, int frame, SubPool owner) {
+        PageId pid = p.getId();
+        shard.pages.put(pid, p);
+        shard.reads.remove(pid);
+        if (frame >= 0) {
+            shard.frames.put(pid, frame);
+        }
+        shard.owners.put(pid, owner);
+        owner.pageAdded();
+    }
+
+    /**
+     * Removes a cached page from a latched shard and frees its frame.
+     * The caller tells the policy, if the policy did not choose the page.
+     */
+    private void uncache(Shard shard, PageId pid) {
+        releaseFrame(shard, shard.pages.remove(pid));
+        shard.owners.remove(pid).pageRemoved();
+        shard.rings.remove(pid);
+        shard.reads.remove(pid);
+        numCached.decrementAndGet();
+    }
+
+    /**
+     * @return the sub-pool the catalog puts the table's pages in
+     */
+    private SubPool subPoolFor(int tableId) {
+        return getSubPool(Database.getCatalog().getTablePool(tableId));
+    }
+
+    /**
+     * Returns the statistics of a buffer sub-pool.  Sub-pools are
+     * configured through the catalog, see
+     * {@link Catalog#setTablePool(int, String)} and
+     * {@link Catalog#setPoolQuota(String, int)}.
+     *
+     * @param name the name of the sub-pool, e.g. Catalog.DEFAULT_POOL
+     */
+    public SubPool getSubPool(String name) {
+        return subPools.computeIfAbsent(name, SubPool::new);
+    }
+
+    /** @return the sub-pools pages have been requested from so far */
+    public Collection<SubPool> getSubPools() {
+        return Collections.unmodifiableCollection(subPools.values());
+    }
+
+    /**
+     * Evicts pages of a sub-pool at its quota until there is room for one
+     * more.  If all of its pages are dirty or pinned, the sub-pool goes
+     * over its quota rather than failing the request.
+     */
+    private void makeRoomInSubPool(SubPool pool) {
+        int quota = Database.getCatalog().getPoolQuota(pool.getName());
+        while (quota > 0 && pool.getNumPages() >= quota) {
+            if (!evictCleanPage(pool)) {
+                return;
+            }
+        }
+    }
+
+    /** @return whether the cached page is in the scan's ring */
+    private boolean inRing(Shard shard, PageId pid, ScanContext scan) {
+        shard.latch.lock();
+        try {
+            return shard.rings.get(pid) == scan;
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Evicts a page that fell out of a scan's ring, unless it is dirty,
+     * pinned or gone.  A page that other requests used in the meantime is
+     * left to the replacement policy, like the shared pages the scan hit.
+     *
+     * @param pid the page, or null
+     */
+    private void evictRingPage(PageId pid, ScanContext scan) {
+        if (pid == null) {
+            return;
+        }
+        Shard shard = shardFor(pid);
+        shard.latch.lock();
+        try {
+            Page p = shard.pages.get(pid);
+            if (p != null && shard.rings.get(pid) == scan && p.isDirty() == null
+                    && !shard.pins.containsKey(pid)) {
+                shard.policy.pageRemoved(pid);
+                uncache(shard, pid);
+                evictions.increment();
+            }
+        } finally {
+            shard.latch.unlock();
+        }
+    }
+
+    /**
+     * Claim room for one more page, evicting pages until the pool is
+     * below its capacity.
+     *
+     * @param waitForUnpin whether to wait a while for pinned pages to be
+     * released when nothing can be evicted, rather than fail at once
+     */
+    private void reserveFrame(boolean waitForUnpin) throws DbException {
+        long deadline = 0;
+        while (true) {
+            int n = numCached.get();
+            if (n < maxPages) {
+                if (numCached.compareAndSet(n, n + 1)) {
+                    return;
+                }
+                continue;
+            }
+            long seen = getUnpinCount();
+            try {
+                evictPage();
+            } catch (DbException e) {
+                if (!waitForUnpin || numPinned.get() == 0) {
+                    throw e;
+                }
+                long now = System.currentTimeMillis();
+                if (deadline == 0) {
+                    deadline = now + PIN_WAIT_MILLIS;
+                } else if (now >= deadline) {
+                    throw e;
+                }
+                awaitUnpin(seen, deadline - now);
+            }
         }
-        Page p = catalog.getDatabaseFile(tableId).readPage(pid);
-        buffer.put(pid,p);
-        return p;
     }
 
     /**
@@ -109,7 +1359,7 @@ public class BufferPool {
     public  void releasePage(TransactionId tid, PageId pid) {
         // some code goes here
         // not necessary for lab1|lab2
-        TransactionLockMap.releasePage(tid,pid);
+        lockManager.releasePage(tid,pid);
     }
 
     /**
@@ -129,7 +1379,7 @@ public class BufferPool {
     public boolean holdsLock(TransactionId tid, PageId p) {
         // some code goes here
         // not necessary for lab1|lab2
-        return TransactionLockMap.holdsLock(tid,p);
+        return lockManager.holdsLock(tid,p);
     }
 
     /**
@@ -143,21 +1393,104 @@ public class BufferPool {
         throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
+        (commit ? txnCommits : txnAborts).increment();
+        if (versions.isSnapshot(tid)) {
+            versions.endSnapshot(tid);
+            return;
+        }
+        optimistic.remove(tid);
+        boolean early = writtenAhead.remove(tid);
         if (commit) {
             flushPages(tid);
+            versions.commit(tid);
+            Set<PageId> locked = lockManager.getLockedPages(tid);
+            if (locked != null) {
+                for (PageId pid : locked) {
+                    if (lockManager.holdsExclusive(tid, pid)) {
+                        commitVersions.merge(pid, 1L, Long::sum);
+                    }
+                }
+            }
         }else {
+            // pages the page writer wrote early are clean, and only the
+            // log knows what they looked like before
+            LogFile log = Database.getLogFile();
+            if (early && log.isActive(tid)) {
+                log.rollback(tid);
+            }
             // abort reload dirty pages from disk
-            Iterator<Map.Entry<PageId, Page>> iterator = buffer.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry<PageId, Page> entry = iterator.next();
-                if (entry.getValue().isDirty() != null) {
-                    PageId pageId = entry.getKey();
-                    Page page = Database.getCatalog().getDatabaseFile(pageId.getTableId()).readPage(pageId);
-                    buffer.put(pageId,page);
+            for (Shard shard : shards) {
+                List<PageId> dirty = new ArrayList<>();
+                shard.latch.lock();
+                try {
+                    for (Map.Entry<PageId, Page> entry : shard.pages.entrySet()) {
+                        if (tid.equals(entry.getValue().isDirty())) {
+                            dirty.add(entry.getKey());
+                        }
+                    }
+                } finally {
+                    shard.latch.unlock();
                 }
+                for (PageId pageId : dirty) {
+                    restorePage(shard, tid, pageId);
+                }
+            }
+            versions.abort(tid);
+        }
+        unpinAll(tid);
+        lockManager.transactionComplete(tid);
+    }
+
+    /**
+     * Replaces a page dirtied by an aborting transaction with its committed
+     * image.  Pages that readers latch rather than lock are latched while
+     * they are replaced, so a reader does not go on from a page it read to
+     * a child whose lock the abort is about to release; the latch is taken
+     * before the shard's, as the readers take them.
+     *
+     * @see BTreeFile#beginRestore(PageId)
+     */
+    private void restorePage(Shard shard, TransactionId tid, PageId pageId) {
+        DbFile file = Database.getCatalog().getDatabaseFile(pageId.getTableId());
+        BTreeFile tree = file instanceof BTreeFile ? (BTreeFile) file : null;
+        if (tree != null) {
+            tree.beginRestore(pageId);
+        }
+        shard.latch.lock();
+        try {
+            Page cached = shard.pages.get(pageId);
+            if (cached == null || !tid.equals(cached.isDirty())) {
+                return;
+            }
+            if (stealNoForce) {
+                // the disk may lack committed updates of the
+                // page (NO-FORCE), its before image has them
+                Page p = cached.getBeforeImage();
+                p.markDirty(true, COMMITTED_DIRTIER);
+                releaseFrame(shard, cached);
+                shard.pages.put(pageId, p);
+                return;
+            }
+            Integer frame = shard.frames.get(pageId);
+            Page p = null;
+            long start = System.nanoTime();
+            if (frame != null) {
+                // re-read the page into its own frame
+                cached.detachFrame();
+                p = file.readPage(pageId, arena.frame(frame));
+                if (p == null) {
+                    shard.frames.remove(pageId);
+                    arena.release(frame);
+                }
+            }
+            shard.pages.put(pageId, p != null ? p : file.readPage(pageId));
+            readPageLatency.recordSince(start);
+        } finally {
+            shard.latch.unlock();
+            if (tree != null) {
+                tree.endRestore(pageId);
             }
         }
-        TransactionLockMap.transactionComplete(tid);
     }
 
     /**
@@ -179,6 +1512,7 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid);
         DbFile dbFile = Database.getCatalog().getDatabaseFile(tableId);
         ArrayList<Page> res = dbFile.insertTuple(tid,t);
         for (Page p : res) {
@@ -203,6 +1537,7 @@ public class BufferPool {
         throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         // not necessary for lab1
+        checkWritable(tid);
         DbFile dbFile = Database.getCatalog().getDatabaseFile(t.getRecordId().getPageId().getTableId());
         ArrayList<Page> res =dbFile.deleteTuple(tid,t);
         for (Page p : res) {
@@ -215,12 +1550,28 @@ public class BufferPool {
      * NB: Be careful using this routine -- it writes dirty data to disk so will
      *     break simpledb if running in NO STEAL mode.
      */
-    public synchronized void flushAllPages() throws IOException {
+    public void flushAllPages() throws IOException {
         // some code goes here
         // not necessary for lab1
-        for (PageId pid: buffer.keySet()) {
-            flushPage(pid);
+        List<Page> logged = new ArrayList<>();
+        synchronized (this) {
+            for (Shard shard : shards) {
+                List<PageId> pids;
+                shard.latch.lock();
+                try {
+                    pids = new ArrayList<>(shard.pages.keySet());
+                } finally {
+                    shard.latch.unlock();
+                }
+                for (PageId pid : pids) {
+                    Page p = lookup(pid);
+                    if (p != null && logForFlush(p)) {
+                        logged.add(p);
+                    }
+                }
+            }
         }
+        flushLogged(logged, false);
     }
 
     /** Remove the specific page id from the buffer pool.
@@ -231,83 +1582,381 @@ public class BufferPool {
         Also used by B+ tree files to ensure that deleted pages
         are removed from the cache so they can be reused safely
     */
-    public synchronized void discardPage(PageId pid) {
+    public void discardPage(PageId pid) {
         // some code goes here
         // not necessary for lab1
-        buffer.remove(pid);
+        Shard shard = shardFor(pid);
+        shard.latch.lock();
+        try {
+            if (shard.pages.containsKey(pid)) {
+                shard.policy.pageRemoved(pid);
+                uncache(shard, pid);
+            }
+        } finally {
+            shard.latch.unlock();
+        }
+        // whoever discards a page with committed updates has put the page
+        // on disk in the state it wants
+        Database.getLogFile().pageDiscarded(pid);
     }
 
     /**
-     * Flushes a certain page to disk
-     * @param pid an ID indicating the page to flush
+     * Hands the arena frame of a page that was just removed from the shard
+     * back to the arena, after making the page copy its contents out.
+     * Callers hold the shard latch.
      */
-    private synchronized  void flushPage(PageId pid) throws IOException {
-        // some code goes here
-        // not necessary for lab1
-        Page p = buffer.get(pid);
-        TransactionId dirtier = p.isDirty();
-        if (dirtier != null){
-            Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
-            Database.getLogFile().force();
+    private void releaseFrame(Shard shard, Page p) {
+        Integer frame = shard.frames.remove(p.getId());
+        if (frame != null) {
+            p.detachFrame();
+            arena.release(frame);
+        }
+    }
+
+    /**
+     * Logs a dirty page that is about to be flushed, unless it only holds
+     * committed NO-FORCE updates, which were logged at commit.  Callers
+     * hold this pool's monitor, and flush the page with flushLogged.
+     *
+     * @return whether the page is dirty
+     */
+    private boolean logForFlush(Page p) throws IOException {
+        synchronized (p) {
+            TransactionId dirtier = p.isDirty();
+            if (dirtier == null) {
+                return false;
+            }
+            if (dirtier != COMMITTED_DIRTIER) {
+                Database.getLogFile().logWrite(dirtier, p.getBeforeImage(), p);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Flushes pages logged by logForFlush: forces the log once, up to the
+     * last of their records, and then writes the pages still dirty.  Called
+     * without this pool's monitor, so evictions, the page writer and other
+     * commits go on during the force.
+     *
+     * @param setBeforeImage whether to make the pages' current contents
+     *     their before-images, once written
+     */
+    private void flushLogged(List<Page> pages, boolean setBeforeImage) throws IOException {
+        if (pages.isEmpty()) {
+            return;
+        }
+        long start = System.nanoTime();
+        long lsn = 0;
+        for (Page p : pages) {
+            lsn = Math.max(lsn, p.getLSN());
+        }
+        LogFile log = Database.getLogFile();
+        // write-ahead: the pages' last log records go first
+        log.force(lsn);
+        for (Page p : pages) {
+            boolean written = false;
+            synchronized (p) {
+                // the page writer may have written the page meanwhile
+                if (p.isDirty() != null) {
+                    // write before marking clean, a clean page may be
+                    // evicted and re-read from disk at any time
+                    writePage(p);
+                    p.markDirty(false, new TransactionId());
+                    written = true;
+                }
+                if (setBeforeImage) {
+                    p.setBeforeImage();
+                }
+            }
+            if (written) {
+                log.pageFlushed(p.getId());
+                flushes.increment();
+                // the first page takes the force
+                flushPageLatency.recordSince(start);
+                start = System.nanoTime();
+            }
+        }
+    }
+
+    /** Writes a page to its file, timing the write. */
+    private void writePage(Page p) throws IOException {
+        long start = System.nanoTime();
+        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+        writePageLatency.recordSince(start);
+    }
+
+    /**
+     * Starts a background thread that writes dirty pages to disk ahead of
+     * eviction, at most pagesPerSecond of them per second.  Pages are
+     * taken in the order the replacement policy would evict them.
+     * <p>
+     * Only pages dirtied by transactions that logged their BEGIN record
+     * (see {@link Transaction#start()}) are written, since an abort has to
+     * roll them back from the log.
+     *
+     * @param pagesPerSecond the most pages to write per second
+     * @return the writer, for its statistics
+     */
+    public synchronized PageWriter startPageWriter(int pagesPerSecond) {
+        stopPageWriter();
+        pageWriter = new PageWriter(this, pagesPerSecond);
+        pageWriter.start();
+        return pageWriter;
+    }
+
+    /** Stops the background page writer, if it is running. */
+    public void stopPageWriter() {
+        PageWriter w;
+        synchronized (this) {
+            w = pageWriter;
+            pageWriter = null;
+        }
+        // the writer needs this pool's monitor to finish its current page
+        if (w != null) {
+            w.shutdown();
+        }
+    }
+
+    /**
+     * Writes up to max dirty pages, the ones closest to eviction first,
+     * taking candidates from each shard in turn.
+     *
+     * @return the number of pages written
+     */
+    int writeAheadPages(int max) throws IOException {
+        List<List<PageId>> candidates = new ArrayList<>();
+        for (Shard shard : shards) {
+            shard.latch.lock();
+            try {
+                final Map<PageId, Page> pages = shard.pages;
+                candidates.add(shard.policy.nextVictims(max, pid -> pages.get(pid).isDirty() != null));
+            } finally {
+                shard.latch.unlock();
+            }
+        }
+        int written = 0;
+        for (int i = 0; i < max && written < max; i++) {
+            boolean more = false;
+            for (List<PageId> l : candidates) {
+                if (i < l.size()) {
+                    more = true;
+                    if (written < max && writeAhead(l.get(i))) {
+                        written++;
+                    }
+                }
+            }
+            if (!more) {
+                break;
+            }
         }
+        return written;
+    }
 
-        if (p != null && p.isDirty() != null) {
-            p.markDirty(false,new TransactionId());
-            Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(p);
+    /**
+     * Writes one dirty page ahead of its commit, for the page writer or a
+     * STEAL eviction.  Pages of running transactions are logged first;
+     * pages that only hold committed updates were logged at commit.  The
+     * page is logged under this pool's monitor, like flushPages does, but
+     * the log is forced and the page written under the page's monitor
+     * alone, so committers go on logging and share the force.
+     *
+     * @return true if the page was dirty and has been written
+     */
+    private boolean writeAhead(PageId pid) throws IOException {
+        LogFile log = Database.getLogFile();
+        Page p;
+        TransactionId dirtier;
+        byte[] logged;
+        synchronized (this) {
+            p = lookup(pid);
+            if (p == null) {
+                return false;
+            }
+            synchronized (p) {
+                dirtier = p.isDirty();
+                if (dirtier == null) {
+                    return false;
+                }
+                if (dirtier != COMMITTED_DIRTIER) {
+                    if (!log.isActive(dirtier)) {
+                        return false;
+                    }
+                    writtenAhead.add(dirtier);
+                    log.logWrite(dirtier, p.getBeforeImage(), p);
+                }
+                logged = p.getPageData();
+            }
+        }
+        // write-ahead: the page's last log record goes first
+        log.force(p.getLSN());
+        synchronized (p) {
+            // its dirtier may have changed the page during the force, and
+            // those changes are not logged yet: leave it for the next round
+            if (p.isDirty() != dirtier || !Arrays.equals(p.getPageData(), logged)) {
+                return false;
+            }
+            writePage(p);
+            p.markDirty(false, dirtier);
         }
+        log.pageFlushed(pid);
+        return true;
+    }
 
+    /**
+     * Logs a page a committing transaction dirtied and leaves it dirty in
+     * the pool, on behalf of COMMITTED_DIRTIER (NO-FORCE).  The log is
+     * forced by the commit record.
+     */
+    private void logCommittedPage(TransactionId tid, PageId pid) throws IOException {
+        Page p = lookup(pid);
+        if (p == null) {
+            return;
+        }
+        synchronized (p) {
+            if (tid.equals(p.isDirty())) {
+                Database.getLogFile().logUnflushedWrite(tid, p.getBeforeImage(), p);
+                p.markDirty(true, COMMITTED_DIRTIER);
+            }
+        }
     }
 
     /** Write all pages of the specified transaction to disk.
+     *  In STEAL/NO-FORCE mode, pages of a logged transaction are only
+     *  logged, see {@link #setStealNoForce(boolean)}.
      */
-    public synchronized  void flushPages(TransactionId tid) throws IOException {
+    public void flushPages(TransactionId tid) throws IOException {
         // some code goes here
         // not necessary for lab1|lab2
-        if(!TransactionLockMap.getTransactionIdSetMap().containsKey(tid)) {
+        Set<PageId> locked = lockManager.getLockedPages(tid);
+        if (locked == null) {
             return;
         }
-        Iterator<PageId> iterator= TransactionLockMap.getTransactionIdSetMap().get(tid).iterator();
-        while (iterator.hasNext()){
-            PageId pageId = iterator.next();
-            flushPage(pageId);
-            // use current page contents as the before-image
-            // for the next transaction that modifies this page.
-            try {
-                getPage(tid,pageId,Permissions.READ_WRITE).setBeforeImage();
-            } catch (TransactionAbortedException e) {
-                e.printStackTrace();
-            } catch (DbException e) {
-                e.printStackTrace();
+        LogFile log = Database.getLogFile();
+        // log all the pages, then force the log once for all of them
+        List<Page> logged = new ArrayList<>();
+        synchronized (this) {
+            boolean noForce = stealNoForce && log.isActive(tid);
+            Iterator<PageId> iterator= locked.iterator();
+            while (iterator.hasNext()){
+                PageId pageId = iterator.next();
+                Page p = lookup(pageId);
+                if (p == null) {
+                    continue;
+                }
+                if (noForce) {
+                    logCommittedPage(tid, pageId);
+                } else if (!stealNoForce || p.isDirty() != COMMITTED_DIRTIER) {
+                    // pages already committed NO-FORCE are left for the page
+                    // writer and eviction
+                    if (logForFlush(p)) {
+                        logged.add(p);
+                        continue;
+                    }
+                }
+                // use current page contents as the before-image
+                // for the next transaction that modifies this page.
+                p.setBeforeImage();
             }
         }
+        flushLogged(logged, true);
     }
 
     /**
      * Discards a page from the buffer pool.
      * Flushes the page to disk to ensure dirty pages are updated on disk.
      */
-    private synchronized  void evictPage() throws DbException {
+    private void evictPage() throws DbException {
         // some code goes here
         // not necessary for lab1
-        Map.Entry<PageId, Page> res = null;
-        Iterator<Map.Entry<PageId, Page>> iterator = buffer.entrySet().iterator();
+        long start = System.nanoTime();
         try {
-            while (iterator.hasNext()) {
-                Map.Entry<PageId, Page> entry = iterator.next();
-                if (entry.getValue().isDirty() == null) {
-                    res = entry;
-                    flushPage(entry.getKey());
-                    break;
+            evictOrSteal();
+        } finally {
+            evictPageLatency.recordSince(start);
+        }
+    }
+
+    private void evictOrSteal() throws DbException {
+        if (evictCleanPage()) {
+            return;
+        }
+        if (stealNoForce) {
+            // STEAL: write a dirty page out, logged first, so it can go
+            for (PageId pid : dirtyVictims()) {
+                try {
+                    if (writeAhead(pid) && evictCleanPage()) {
+                        return;
+                    }
+                } catch (IOException e) {
+                    throw new DbException("could not write page " + pid + ": " + e.getMessage());
                 }
             }
+        }
+        throw new DbException(numPinned.get() == 0 ? "All pages are dirty" : "All pages are dirty or pinned");
+    }
+
+    /**
+     * Evicts a clean, unpinned page.
+     *
+     * @return false if there is none
+     */
+    private boolean evictCleanPage() {
+        return evictCleanPage(null);
+    }
 
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Evicts a clean, unpinned page of the given sub-pool, or of any if
+     * it is null.
+     *
+     * @return false if there is none
+     */
+    private boolean evictCleanPage(final SubPool only) {
+        // only clean pages are evicted, so nothing needs flushing,
+        // and pinned pages are in use.
+        // Start from a rotating shard so evictions are spread over the pool.
+        int start = evictionHand.getAndIncrement();
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) & (shards.length - 1)];
+            shard.latch.lock();
+            try {
+                final Map<PageId, Page> pages = shard.pages;
+                final Map<PageId, List<TransactionId>> pins = shard.pins;
+                final Map<PageId, SubPool> owners = shard.owners;
+                PageId victim = shard.policy.evict(pid -> pages.get(pid).isDirty() == null
+                        && !pins.containsKey(pid) && (only == null || owners.get(pid) == only));
+                if (victim != null) {
+                    uncache(shard, victim);
+                    evictions.increment();
+                    return true;
+                }
+            } finally {
+                shard.latch.unlock();
+            }
         }
-        if (res == null) {
-            throw new DbException("All pages are dirty");
+        return false;
+    }
+
+    /**
+     * @return the unpinned dirty page each shard would evict first, were
+     * it clean
+     */
+    private List<PageId> dirtyVictims() {
+        List<PageId> victims = new ArrayList<>();
+        int start = evictionHand.get();
+        for (int i = 0; i < shards.length; i++) {
+            Shard shard = shards[(start + i) & (shards.length - 1)];
+            shard.latch.lock();
+            try {
+                final Map<PageId, Page> pages = shard.pages;
+                final Map<PageId, List<TransactionId>> pins = shard.pins;
+                victims.addAll(shard.policy.nextVictims(1,
+                        pid -> pages.get(pid).isDirty() != null && !pins.containsKey(pid)));
+            } finally {
+                shard.latch.unlock();
+            }
         }
-        discardPage(res.getKey());
+        return victims;
     }
 
 }
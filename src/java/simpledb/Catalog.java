@@ -18,6 +18,9 @@ import java.util.concurrent.ConcurrentHashMap;
  */
 public class Catalog {
 
+    /** The buffer sub-pool of tables not assigned to any other. */
+    public static final String DEFAULT_POOL = "default";
+
     /**
      * Constructor.
      * Creates a new, empty catalog.
@@ -26,6 +29,9 @@ public class Catalog {
     Map<String,Integer> tablenameTotableid;
     Map<Integer,String> tableidToPkey;
     Map<Integer,String> tableidToName;
+    // read by the buffer pool on every page request
+    Map<Integer,String> tableidToPool = new ConcurrentHashMap<>();
+    Map<String,Integer> poolQuotas = new ConcurrentHashMap<>();
     public Catalog() {
         // some code goes here
         tableidToDb = new HashMap<>();
@@ -122,6 +128,51 @@ public class Catalog {
         return tableidToName.get(id);
     }
     
+    /**
+     * Assigns a table to a named buffer sub-pool.  The pages of the tables
+     * in one sub-pool count against its quota, and their hits and misses
+     * are counted together.
+     *
+     * @param tableid the id of the table
+     * @param pool the name of the sub-pool, or DEFAULT_POOL
+     * @see BufferPool#getSubPool(String)
+     */
+    public void setTablePool(int tableid, String pool) {
+        if (pool.equals(DEFAULT_POOL)) {
+            tableidToPool.remove(tableid);
+        } else {
+            tableidToPool.put(tableid, pool);
+        }
+    }
+
+    /** @return the name of the buffer sub-pool the table is in */
+    public String getTablePool(int tableid) {
+        String pool = tableidToPool.get(tableid);
+        return pool == null ? DEFAULT_POOL : pool;
+    }
+
+    /**
+     * Limits the number of pages a buffer sub-pool may keep cached.  Once a
+     * sub-pool is at its quota, reading another of its pages evicts one of
+     * its own pages instead of any page of the pool.
+     *
+     * @param pool the name of the sub-pool
+     * @param pages the most pages it may cache, or 0 for no limit
+     */
+    public void setPoolQuota(String pool, int pages) {
+        if (pages <= 0) {
+            poolQuotas.remove(pool);
+        } else {
+            poolQuotas.put(pool, pages);
+        }
+    }
+
+    /** @return the quota of the buffer sub-pool, or 0 if it has none */
+    public int getPoolQuota(String pool) {
+        Integer pages = poolQuotas.get(pool);
+        return pages == null ? 0 : pages;
+    }
+
     /** Delete all tables from the catalog */
     public void clear() {
         // some code goes here
@@ -129,10 +180,16 @@ public class Catalog {
         tableidToDb.clear();
         tablenameTotableid.clear();
         tableidToName.clear();
+        tableidToPool.clear();
+        poolQuotas.clear();
     }
     
     /**
      * Reads the schema from a file and creates the appropriate tables in the database.
+     * <p>
+     * Each line is either a table, "name (field type [pk], ...)", which may
+     * be followed by "pool poolName" to put it in a buffer sub-pool, or a
+     * sub-pool quota, "pool poolName pages".
      * @param catalogFile
      */
     public void loadSchema(String catalogFile) {
@@ -142,6 +199,11 @@ public class Catalog {
             BufferedReader br = new BufferedReader(new FileReader(new File(catalogFile)));
             
             while ((line = br.readLine()) != null) {
+                if (line.trim().startsWith("pool ")) {
+                    String[] quota = line.trim().split("\\s+");
+                    setPoolQuota(quota[1], Integer.parseInt(quota[2]));
+                    continue;
+                }
                 //assume line is of the format name (field type, field type, ...)
                 String name = line.substring(0, line.indexOf("(")).trim();
                 //System.out.println("TABLE NAME: " + name);
@@ -175,12 +237,16 @@ public class Catalog {
                 TupleDesc t = new TupleDesc(typeAr, namesAr);
                 HeapFile tabHf = new HeapFile(new File(baseFolder+"/"+name + ".dat"), t);
                 addTable(tabHf,name,primaryKey);
+                String[] options = line.substring(line.indexOf(")") + 1).trim().split("\\s+");
+                if (options.length == 2 && options[0].equals("pool")) {
+                    setTablePool(tabHf.getId(), options[1]);
+                }
                 System.out.println("Added table : " + name + " with schema " + t);
             }
         } catch (IOException e) {
             e.printStackTrace();
             System.exit(0);
-        } catch (IndexOutOfBoundsException e) {
+        } catch (IndexOutOfBoundsException | NumberFormatException e) {
             System.out.println ("Invalid catalog entry : " + line);
             System.exit(0);
         }
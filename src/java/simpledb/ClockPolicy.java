@@ -0,0 +1,93 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Second chance (CLOCK) replacement.  Pages sit in a circular array of
+ * frames, each with a reference bit that is set on every hit.  The hand
+ * sweeps the frames, clearing set bits and evicting the first evictable
+ * page whose bit was already clear.  A hit is a single store and an
+ * eviction only looks at a few frames on average.
+ */
+public class ClockPolicy implements ReplacementPolicy {
+
+    private final ArrayList<PageId> frames = new ArrayList<PageId>();
+    private final BitSet referenced = new BitSet();
+    private final HashMap<PageId, Integer> frameOf = new HashMap<PageId, Integer>();
+    // frames emptied by pageRemoved/evict, reused before the ring grows
+    private final ArrayList<Integer> freeFrames = new ArrayList<Integer>();
+    private int hand = 0;
+
+    public void pageAdded(PageId pid) {
+        if (frameOf.containsKey(pid)) {
+            pageHit(pid);
+            return;
+        }
+        int frame;
+        if (freeFrames.isEmpty()) {
+            frame = frames.size();
+            frames.add(pid);
+        } else {
+            frame = freeFrames.remove(freeFrames.size() - 1);
+            frames.set(frame, pid);
+        }
+        referenced.clear(frame);
+        frameOf.put(pid, frame);
+    }
+
+    public void pageHit(PageId pid) {
+        Integer frame = frameOf.get(pid);
+        if (frame != null) {
+            referenced.set(frame);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        Integer frame = frameOf.remove(pid);
+        if (frame != null) {
+            frames.set(frame, null);
+            freeFrames.add(frame);
+        }
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        int n = frames.size();
+        // two full sweeps: the first may only be clearing reference bits
+        for (int i = 0; i < 2 * n; i++) {
+            int frame = hand;
+            hand = (hand + 1) % n;
+            PageId pid = frames.get(frame);
+            if (pid == null) {
+                continue;
+            }
+            if (referenced.get(frame)) {
+                referenced.clear(frame);
+            } else if (evictable.test(pid)) {
+                pageRemoved(pid);
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> nextVictims(int n, Predicate<PageId> wanted) {
+        // the hand takes unreferenced frames on its first sweep and the
+        // rest on the second
+        List<PageId> victims = new ArrayList<PageId>();
+        int size = frames.size();
+        for (int pass = 0; pass < 2; pass++) {
+            for (int i = 0; i < size && victims.size() < n; i++) {
+                int frame = (hand + i) % size;
+                PageId pid = frames.get(frame);
+                if (pid != null && referenced.get(frame) == (pass == 1) && wanted.test(pid)) {
+                    victims.add(pid);
+                }
+            }
+        }
+        return victims;
+    }
+}
@@ -55,11 +55,31 @@ public class Database {
      * return it
      */
     public static BufferPool resetBufferPool(int pages) {
+        return resetBufferPool(pages, ReplacementPolicy.Kind.LRU);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given replacement policy and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policy) {
+        return resetBufferPool(pages, policy, false);
+    }
+
+    /**
+     * Method used for testing -- create a new instance of the buffer pool
+     * with the given replacement policy, optionally keeping pages in
+     * off-heap frames, and return it
+     */
+    public static BufferPool resetBufferPool(int pages, ReplacementPolicy.Kind policy, boolean offHeap) {
         java.lang.reflect.Field bufferPoolF=null;
+        // the old pool's threads would keep working through the new one's catalog
+        getBufferPool().stopPageWriter();
+        getBufferPool().stopHotPageDumper();
         try {
             bufferPoolF = Database.class.getDeclaredField("_bufferpool");
             bufferPoolF.setAccessible(true);
-            bufferPoolF.set(_instance.get(), new BufferPool(pages));
+            bufferPoolF.set(_instance.get(), new BufferPool(pages, policy, offHeap));
         } catch (NoSuchFieldException e) {
             e.printStackTrace();
         } catch (SecurityException e) {
@@ -75,6 +95,10 @@ public class Database {
 
     // reset the database, used for unit tests only.
     public static void reset() {
+        getBufferPool().stopPageWriter();
+        getBufferPool().stopHotPageDumper();
+        getLogFile().stopCheckpointer();
+        getLogFile().stopGroupCommit();
         _instance.set(new Database());
     }
 
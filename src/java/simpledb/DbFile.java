@@ -3,6 +3,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 /**
  * The interface for database files on disk. Each table is represented by a
@@ -19,6 +20,34 @@ public interface DbFile {
      */
     public Page readPage(PageId id);
 
+    /**
+     * Read the specified page from disk into a frame of the buffer pool's
+     * off-heap arena.  The returned page may keep reading and writing its
+     * contents in place in the frame until {@link Page#detachFrame} is
+     * called.
+     *
+     * @param frame a page-size buffer owned by the caller
+     * @return the page, or null if this file does not support frames, in
+     *         which case the caller should use {@link #readPage(PageId)}
+     */
+    default Page readPage(PageId id, ByteBuffer frame) {
+        return null;
+    }
+
+    /**
+     * Read consecutive pages starting at first into the given page-size
+     * buffers, with as few reads as possible.  Used to read ahead of
+     * sequential scans.  The returned pages may keep using their buffers
+     * like {@link #readPage(PageId, ByteBuffer)}.
+     *
+     * @param buffers one buffer per page to read
+     * @return the pages read, fewer than buffers.length if the file ends
+     *         first, or null if this file does not support it
+     */
+    default List<Page> readPages(PageId first, ByteBuffer[] buffers) {
+        return null;
+    }
+
     /**
      * Push the specified page to disk.
      *
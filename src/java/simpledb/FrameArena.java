@@ -0,0 +1,89 @@
+package simpledb;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A fixed pool of page-size frames carved out of one direct (off-heap)
+ * ByteBuffer.  BufferPool hands frames to DbFiles so that page contents
+ * live outside the Java heap and are not copied or traced by the garbage
+ * collector; only small page header objects remain on the heap.
+ * <p>
+ * Frames are identified by their number.  allocate() and release() are
+ * thread safe; the contents of a frame are guarded by whoever owns it.
+ */
+public class FrameArena {
+
+    private final ByteBuffer[] frames;
+    private final int frameSize;
+
+    /** stack of free frame numbers, frees[0..numFree) */
+    private final int[] frees;
+    private int numFree;
+
+    /**
+     * Allocates numFrames frames of frameSize bytes each.
+     *
+     * @param numFrames number of frames in the arena
+     * @param frameSize size of each frame in bytes, normally the page size
+     */
+    public FrameArena(int numFrames, int frameSize) {
+        this.frameSize = frameSize;
+        this.frames = new ByteBuffer[numFrames];
+        this.frees = new int[numFrames];
+        ByteBuffer arena = ByteBuffer.allocateDirect(numFrames * frameSize);
+        for (int i = 0; i < numFrames; i++) {
+            arena.limit((i + 1) * frameSize);
+            arena.position(i * frameSize);
+            frames[i] = arena.slice();
+            // hand out low frame numbers first
+            frees[i] = numFrames - 1 - i;
+        }
+        numFree = numFrames;
+    }
+
+    /** @return the size of each frame in bytes */
+    public int getFrameSize() {
+        return frameSize;
+    }
+
+    /** @return the total number of frames in this arena */
+    public int numFrames() {
+        return frames.length;
+    }
+
+    /** @return the number of frames not currently allocated */
+    public synchronized int numFreeFrames() {
+        return numFree;
+    }
+
+    /**
+     * Takes a free frame out of the arena.
+     *
+     * @return the number of the frame, or -1 if every frame is in use
+     */
+    public synchronized int allocate() {
+        if (numFree == 0) {
+            return -1;
+        }
+        return frees[--numFree];
+    }
+
+    /**
+     * Returns a frame to the arena.  The caller must not touch the frame's
+     * buffer afterwards.
+     */
+    public synchronized void release(int frame) {
+        if (numFree == frees.length) {
+            throw new IllegalStateException("frame " + frame + " released twice");
+        }
+        frees[numFree++] = frame;
+    }
+
+    /**
+     * @return a buffer covering the given frame, positioned at 0 with its
+     * limit at the frame size.  Every call returns an independent view.
+     */
+    public ByteBuffer frame(int frame) {
+        return frames[frame].duplicate();
+    }
+}
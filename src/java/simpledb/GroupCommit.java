@@ -0,0 +1,174 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Group commit for a LogFile: a single flusher thread makes the records
+ * appended to the log durable in batches, with one force of the log for
+ * all the records appended while the previous force was running.
+ * <p>
+ * A committing thread appends its commit record and waits on the future
+ * {@link #durable(long)} returns for the LSN past the record, so threads
+ * committing at the same time share a force instead of queueing for one
+ * each.
+ *
+ * @Threadsafe
+ * @see LogFile#logCommit(TransactionId)
+ */
+class GroupCommit {
+    private static class Waiter {
+        final long upTo;
+        final CompletableFuture<Void> done = new CompletableFuture<>();
+
+        Waiter(long upTo) {
+            this.upTo = upTo;
+        }
+    }
+
+    private final LogFile log;
+
+    private final Object lock = new Object();
+    private final List<Waiter> waiting = new ArrayList<>(); // guarded by lock
+    private long durable; // the LSN up to which the log is on disk; guarded by lock
+    private boolean running; // guarded by lock
+    private boolean stopped; // guarded by lock
+    private Thread thread; // guarded by lock
+
+    /** the waiters completed by the flusher's forces */
+    private final Metrics.Counter batched;
+
+    GroupCommit(LogFile log, Metrics metrics) {
+        this.log = log;
+        this.batched = metrics.counter("log.groupCommit.waiters");
+    }
+
+    /** @return whether the log is on disk up to LSN upTo, excluded */
+    boolean isDurable(long upTo) {
+        synchronized (lock) {
+            return upTo <= durable;
+        }
+    }
+
+    /**
+     * Returns a future completed once the log is on disk up to LSN upTo,
+     * excluded, starting the flusher if it is not running.
+     *
+     * @return null if the flusher has been shut down, and the caller has
+     *     to force the log itself
+     */
+    CompletableFuture<Void> durable(long upTo) {
+        synchronized (lock) {
+            if (upTo <= durable) {
+                return CompletableFuture.completedFuture(null);
+            }
+            if (stopped) {
+                return null;
+            }
+            if (!running) {
+                running = true;
+                thread = new Thread(this::run, "LogFile group commit");
+                thread.setDaemon(true);
+                thread.start();
+            }
+            Waiter w = new Waiter(upTo);
+            waiting.add(w);
+            lock.notifyAll();
+            return w.done;
+        }
+    }
+
+    /**
+     * Records that the log has been forced up to LSN upTo, excluded,
+     * completing the waiters it covers.
+     *
+     * @return the number of waiters completed
+     */
+    int forced(long upTo) {
+        List<Waiter> done = new ArrayList<>();
+        synchronized (lock) {
+            if (upTo <= durable) {
+                return 0;
+            }
+            durable = upTo;
+            Iterator<Waiter> it = waiting.iterator();
+            while (it.hasNext()) {
+                Waiter w = it.next();
+                if (w.upTo <= upTo) {
+                    done.add(w);
+                    it.remove();
+                }
+            }
+        }
+        for (Waiter w : done) {
+            w.done.complete(null);
+        }
+        return done.size();
+    }
+
+    /**
+     * Stops the flusher, after it has made durable the records that are
+     * waited for.  Later callers of {@link #durable(long)} force the log
+     * themselves.  The thread is not interrupted, as that would close the
+     * log's channel in the middle of a force.
+     */
+    void shutdown() {
+        Thread t;
+        synchronized (lock) {
+            stopped = true;
+            running = false;
+            t = thread;
+            thread = null;
+            lock.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void run() {
+        while (true) {
+            long upTo = 0;
+            synchronized (lock) {
+                while (running && waiting.isEmpty()) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (waiting.isEmpty()) {
+                    return;
+                }
+                for (Waiter w : waiting) {
+                    upTo = Math.max(upTo, w.upTo);
+                }
+            }
+            // waiters arriving during the force wait for the next one
+            try {
+                batched.add(forced(log.forceAppended(upTo)));
+            } catch (IOException e) {
+                fail(e);
+            }
+        }
+    }
+
+    /** Fails every waiter with the error of the force it waited for. */
+    private void fail(IOException e) {
+        List<Waiter> failed;
+        synchronized (lock) {
+            failed = new ArrayList<>(waiting);
+            waiting.clear();
+        }
+        for (Waiter w : failed) {
+            w.done.completeExceptionally(e);
+        }
+    }
+}
@@ -1,6 +1,9 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 
 /**
@@ -95,6 +98,66 @@ public class HeapFile implements DbFile {
         return p;
     }
 
+    // see DbFile.java for javadocs
+    public Page readPage(PageId pid, ByteBuffer frame) {
+        long offset = (long) pid.getPageNumber() * BufferPool.getPageSize();
+        if (offset >= file.length()) {
+            return null;
+        }
+        frame.clear();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            while (frame.hasRemaining()) {
+                int n = channel.read(frame, offset + frame.position());
+                if (n < 0) {
+                    break;
+                }
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return null;
+        }
+        // zero whatever lies past the end of a short last page
+        while (frame.hasRemaining()) {
+            frame.put((byte) 0);
+        }
+        frame.clear();
+        return new HeapPage(new HeapPageId(pid.getTableId(),pid.getPageNumber()), frame);
+    }
+
+    // see DbFile.java for javadocs
+    public List<Page> readPages(PageId first, ByteBuffer[] buffers) {
+        List<Page> pages = new ArrayList<>();
+        int count = Math.min(buffers.length, numPages() - first.getPageNumber());
+        if (count <= 0) {
+            return pages;
+        }
+        ByteBuffer[] dsts = Arrays.copyOf(buffers, count);
+        for (ByteBuffer b : dsts) {
+            b.clear();
+        }
+        long offset = (long) first.getPageNumber() * BufferPool.getPageSize();
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            // one scattering read for the whole run of pages
+            channel.position(offset);
+            long remaining = (long) count * BufferPool.getPageSize();
+            while (remaining > 0) {
+                long n = channel.read(dsts);
+                if (n < 0) {
+                    break;
+                }
+                remaining -= n;
+            }
+        } catch (IOException e) {
+            e.printStackTrace();
+            return pages;
+        }
+        for (int i = 0; i < count && !dsts[i].hasRemaining(); i++) {
+            dsts[i].clear();
+            pages.add(new HeapPage(new HeapPageId(first.getTableId(), first.getPageNumber() + i), dsts[i]));
+        }
+        return pages;
+    }
+
     // see DbFile.java for javadocs
     public void writePage(Page page) throws IOException {
         // some code goes here
@@ -118,28 +181,45 @@ public class HeapFile implements DbFile {
             throws DbException, IOException, TransactionAbortedException {
         // some code goes here
         ArrayList<Page> res = new ArrayList<>();
+        BufferPool bp = Database.getBufferPool();
         for (int pgNo =0;pgNo<numPages();pgNo++) {
             HeapPageId heapPageId = new HeapPageId(this.getId(),pgNo);
-            HeapPage p =(HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_ONLY);
+            // only the probe's own lock may be given up early, not one the
+            // transaction took before (it may have changed the page)
+            boolean held = bp.holdsLock(tid,heapPageId);
+            HeapPage p =(HeapPage) bp.getPage(tid,heapPageId,Permissions.READ_ONLY);
             if (p != null && p.getNumEmptySlots() > 0) {
-                TransactionLockMap.releasePage(tid,heapPageId);
-                p = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-                p.insertTuple(t);
+                // upgrade the probe's read lock in place
+                try (PageHandle h = bp.pinPage(tid,heapPageId,Permissions.READ_WRITE)) {
+                    p = (HeapPage) h.getPage();
+                    p.insertTuple(t);
+                    // dirty it while pinned, a clean page may be evicted
+                    // as soon as it is unpinned
+                    p.markDirty(true,tid);
+                }
 //                writePage(p);
                 res.add(p);
                 return res;
             }
-            TransactionLockMap.releasePage(tid,heapPageId);
+            if (!held) {
+                bp.releasePage(tid,heapPageId);
+            }
         }
         // 需要新增
         HeapPageId heapPageId = new HeapPageId(this.getId(),numPages());
         HeapPage p =new HeapPage(heapPageId,HeapPage.createEmptyPageData());
-        TransactionLockMap.dbFileLock(tid,this);
-        writePage(p);
-        TransactionLockMap.releaseDbFile(tid,this);
+        bp.getLockManager().lockFile(tid,this);
+        try {
+            writePage(p);
+        } finally {
+            bp.getLockManager().unlockFile(tid,this);
+        }
         // 加入到buffer pool 中
-        p = (HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
-        p.insertTuple(t);
+        try (PageHandle h = bp.pinPage(tid,heapPageId,Permissions.READ_WRITE)) {
+            p = (HeapPage) h.getPage();
+            p.insertTuple(t);
+            p.markDirty(true,tid);
+        }
         res.add(p);
         return res;
     }
@@ -149,13 +229,19 @@ public class HeapFile implements DbFile {
             TransactionAbortedException {
         // some code goes here
         ArrayList<Page> res = new ArrayList<>();
-        for (int pgNo =0;pgNo<numPages();pgNo++) {
-            HeapPageId heapPageId = new HeapPageId(this.getId(),pgNo);
-            HeapPage p =(HeapPage) Database.getBufferPool().getPage(tid,heapPageId,Permissions.READ_WRITE);
+        RecordId rid = t.getRecordId();
+        if (rid == null || rid.getPageId().getTableId() != getId()) {
+            throw new DbException("tuple is not in this file");
+        }
+        // only the tuple's page is locked, so deletes on other pages go on
+        HeapPageId heapPageId = new HeapPageId(this.getId(),rid.getPageId().getPageNumber());
+        try (PageHandle h = Database.getBufferPool().pinPage(tid,heapPageId,Permissions.READ_WRITE)) {
+            HeapPage p = (HeapPage) h.getPage();
             int previousEmpty = p.getNumEmptySlots();
-            if (p != null && previousEmpty < p.numSlots) {
+            if (previousEmpty < p.numSlots) {
                 p.deleteTuple(t);
-                if (previousEmpty - 1 == p.getNumEmptySlots()) {
+                if (previousEmpty + 1 == p.getNumEmptySlots()) {
+                    p.markDirty(true,tid);
                     res.add(p);
                 }
             }
@@ -175,6 +261,9 @@ public class HeapFile implements DbFile {
         private HeapFile heapFile;
         private TransactionId transactionId;
         private int pageNo;
+        private final ScanContext scan = new ScanContext();
+        /** pin on the page tupleIterator walks, so it is not evicted under it */
+        private PageHandle current;
         public HeapFileIterator(HeapFile f,TransactionId tid){
             this.heapFile = f;
             this.transactionId = tid;
@@ -184,6 +273,25 @@ public class HeapFile implements DbFile {
             // Ensures that a future call to next() will fail
             super.close();
             this.tupleIterator = null;
+            unpinCurrent();
+        }
+
+        private void unpinCurrent() {
+            if (current != null) {
+                current.close();
+                current = null;
+            }
+        }
+
+        /** Moves on to page pageNo, pinning it in place of the previous one. */
+        private void pinPage() throws DbException, TransactionAbortedException {
+            // the previous page is done with, so a one page pool can scan too
+            unpinCurrent();
+            HeapPageId heapPageId = new HeapPageId(this.heapFile.getId(),pageNo);
+            current = Database.getBufferPool().pinPage(transactionId,heapPageId,Permissions.READ_ONLY,scan);
+            if (current != null) {
+                this.tupleIterator = ((HeapPage) current.getPage()).iterator();
+            }
         }
 
         @Override
@@ -195,13 +303,15 @@ public class HeapFile implements DbFile {
             }else {
                 while (tuple == null && this.pageNo+1 < heapFile.numPages() ) {
                     this.pageNo++;
-                    HeapPageId heapPageId = new HeapPageId(this.heapFile.getId(),pageNo);
-                    HeapPage p =(HeapPage) Database.getBufferPool().getPage(transactionId,heapPageId,Permissions.READ_ONLY);
-                    if (p != null) {
-                        tupleIterator = p.iterator();
+                    pinPage();
+                    if (current != null) {
                         tuple =tupleIterator.hasNext() ?tupleIterator.next(): null;
                     }
                 }
+                if (tuple == null) {
+                    // done, let the last page go
+                    unpinCurrent();
+                }
 
             }
             return tuple;
@@ -209,16 +319,15 @@ public class HeapFile implements DbFile {
 
         @Override
         public void open() throws DbException, TransactionAbortedException {
-            HeapPageId heapPageId = new HeapPageId(this.heapFile.getId(),pageNo);
-            HeapPage p =(HeapPage) Database.getBufferPool().getPage(transactionId,heapPageId,Permissions.READ_ONLY);
-            if(p != null) {
-                this.tupleIterator = p.iterator();
-            }
+            // one table lock rather than a lock per page
+            Database.getBufferPool().lockTable(transactionId, heapFile.getId(), Permissions.READ_ONLY);
+            pinPage();
         }
 
         @Override
         public void rewind() throws DbException, TransactionAbortedException {
             this.pageNo = 0;
+            scan.reset();
             open();
         }
     }
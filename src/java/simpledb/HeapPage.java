@@ -2,6 +2,7 @@ package simpledb;
 
 import java.util.*;
 import java.io.*;
+import java.nio.ByteBuffer;
 
 import static simpledb.Utility.compareTuples;
 
@@ -17,15 +18,28 @@ public class HeapPage implements Page {
 
     final HeapPageId pid;
     final TupleDesc td;
-    final byte header[];
-    final Tuple tuples[];
     final int numSlots;
+    final int headerSize;
 
+    /**
+     * The raw page: header bytes followed by the tuple slots.  Tuples are
+     * decoded from and encoded into this buffer in place, so a page keeps no
+     * Tuple objects of its own.  It is either a private heap buffer or a
+     * frame of the BufferPool's off-heap arena (until detachFrame is called).
+     * Accesses to it are synchronized on the page.
+     */
+    private ByteBuffer data;
+
+    /**
+     * Contents of this page before its first modification since the last
+     * setBeforeImage(), or null if the page has not been modified since.
+     */
     byte[] oldData;
     private final Byte oldDataLock=new Byte((byte)0);
 
     private boolean dirty;
     private TransactionId dirtyTid;
+    private volatile long lsn; // see Page#getLSN
 
     /**
      * Create a HeapPage from a set of bytes of data read from disk.
@@ -44,26 +58,21 @@ public class HeapPage implements Page {
      * @see BufferPool#getPageSize()
      */
     public HeapPage(HeapPageId id, byte[] data) throws IOException {
+        this(id, ByteBuffer.wrap(data.clone()));
+    }
+
+    /**
+     * Create a HeapPage that reads and writes its contents in place in the
+     * given page-size buffer, typically a BufferPool frame.
+     *
+     * @see HeapFile#readPage(PageId, ByteBuffer)
+     */
+    HeapPage(HeapPageId id, ByteBuffer data) {
         this.pid = id;
         this.td = Database.getCatalog().getTupleDesc(id.getTableId());
         this.numSlots = getNumTuples();
-        DataInputStream dis = new DataInputStream(new ByteArrayInputStream(data));
-
-        // allocate and read the header slots of this page
-        header = new byte[getHeaderSize()];
-        for (int i=0; i<header.length; i++)
-            header[i] = dis.readByte();
-        
-        tuples = new Tuple[numSlots];
-        try{
-            // allocate and read the actual records of this page
-            for (int i=0; i<tuples.length; i++)
-                tuples[i] = readNextTuple(dis,i);
-        }catch(NoSuchElementException e){
-            e.printStackTrace();
-        }
-        dis.close();
-
+        this.headerSize = getHeaderSize();
+        this.data = data;
         setBeforeImage();
     }
 
@@ -99,6 +108,12 @@ public class HeapPage implements Page {
             synchronized(oldDataLock)
             {
                 oldDataRef = oldData;
+                if (oldDataRef == null) {
+                    // unmodified, the current contents are the before
+                    // image; copied under the lock, which the first
+                    // modification takes before it changes them
+                    oldDataRef = getPageData();
+                }
             }
             return new HeapPage(pid,oldDataRef);
         } catch (IOException e) {
@@ -112,7 +127,20 @@ public class HeapPage implements Page {
     public void setBeforeImage() {
         synchronized(oldDataLock)
         {
-        oldData = getPageData().clone();
+        // copied lazily by the first modification, see saveBeforeImage()
+        oldData = null;
+        }
+    }
+
+    /**
+     * Keep a copy of the current contents as the before image if this is
+     * the first modification since the last setBeforeImage().
+     */
+    private void saveBeforeImage() {
+        synchronized(oldDataLock)
+        {
+        if (oldData == null)
+            oldData = getPageData();
         }
     }
 
@@ -125,19 +153,11 @@ public class HeapPage implements Page {
     }
 
     /**
-     * Suck up tuples from the source file.
+     * Decode the tuple in the given slot in place.
+     * @return the tuple, or null if the slot is empty
      */
-    private Tuple readNextTuple(DataInputStream dis, int slotId) throws NoSuchElementException {
-        // if associated bit is not set, read forward to the next tuple, and
-        // return null.
+    private synchronized Tuple readTuple(int slotId) {
         if (!isSlotUsed(slotId)) {
-            for (int i=0; i<td.getSize(); i++) {
-                try {
-                    dis.readByte();
-                } catch (IOException e) {
-                    throw new NoSuchElementException("error reading empty tuple");
-                }
-            }
             return null;
         }
 
@@ -145,17 +165,48 @@ public class HeapPage implements Page {
         Tuple t = new Tuple(td);
         RecordId rid = new RecordId(pid, slotId);
         t.setRecordId(rid);
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.numFields(); j++) {
+            Type type = td.getFieldType(j);
+            t.setField(j, type.parse(data, offset));
+            offset += type.getLen();
+        }
+
+        return t;
+    }
+
+    /**
+     * Encode the tuple into the given slot in place.
+     */
+    private synchronized void writeTuple(int slotId, Tuple t) {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream(td.getSize());
+        DataOutputStream dos = new DataOutputStream(baos);
         try {
             for (int j=0; j<td.numFields(); j++) {
-                Field f = td.getFieldType(j).parse(dis);
-                t.setField(j, f);
+                t.getField(j).serialize(dos);
             }
-        } catch (java.text.ParseException e) {
+            dos.flush();
+        } catch (IOException e) {
+            // this really shouldn't happen
             e.printStackTrace();
-            throw new NoSuchElementException("parsing error!");
         }
+        ByteBuffer dst = data.duplicate();
+        dst.position(slotOffset(slotId));
+        dst.put(baos.toByteArray(), 0, td.getSize());
+    }
 
-        return t;
+    /**
+     * Zero out the given slot, so that empty slots serialize as zeroes.
+     */
+    private synchronized void clearTuple(int slotId) {
+        int offset = slotOffset(slotId);
+        for (int j=0; j<td.getSize(); j++) {
+            data.put(offset + j, (byte) 0);
+        }
+    }
+
+    private int slotOffset(int slotId) {
+        return headerSize + slotId * td.getSize();
     }
 
     /**
@@ -169,65 +220,23 @@ public class HeapPage implements Page {
      * @see #HeapPage
      * @return A byte array correspond to the bytes of this page.
      */
-    public byte[] getPageData() {
-        int len = BufferPool.getPageSize();
-        ByteArrayOutputStream baos = new ByteArrayOutputStream(len);
-        DataOutputStream dos = new DataOutputStream(baos);
-
-        // create the header of the page
-        for (int i=0; i<header.length; i++) {
-            try {
-                dos.writeByte(header[i]);
-            } catch (IOException e) {
-                // this really shouldn't happen
-                e.printStackTrace();
-            }
-        }
-
-        // create the tuples
-        for (int i=0; i<tuples.length; i++) {
-
-            // empty slot
-            if (!isSlotUsed(i)) {
-                for (int j=0; j<td.getSize(); j++) {
-                    try {
-                        dos.writeByte(0);
-                    } catch (IOException e) {
-                        e.printStackTrace();
-                    }
-
-                }
-                continue;
-            }
-
-            // non-empty slot
-            for (int j=0; j<td.numFields(); j++) {
-                Field f = tuples[i].getField(j);
-                try {
-                    f.serialize(dos);
-                
-                } catch (IOException e) {
-                    e.printStackTrace();
-                }
-            }
-        }
-
-        // padding
-        int zerolen = BufferPool.getPageSize() - (header.length + td.getSize() * tuples.length); //- numSlots * td.getSize();
-        byte[] zeroes = new byte[zerolen];
-        try {
-            dos.write(zeroes, 0, zerolen);
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+    public synchronized byte[] getPageData() {
+        byte[] bytes = new byte[BufferPool.getPageSize()];
+        ByteBuffer src = data.duplicate();
+        src.clear();
+        src.get(bytes);
+        return bytes;
+    }
 
-        try {
-            dos.flush();
-        } catch (IOException e) {
-            e.printStackTrace();
+    /**
+     * Copy the page out of the BufferPool frame it was read into, so the
+     * frame can be reused.
+     */
+    @Override
+    public synchronized void detachFrame() {
+        if (data.isDirect()) {
+            data = ByteBuffer.wrap(getPageData());
         }
-
-        return baos.toByteArray();
     }
 
     /**
@@ -255,10 +264,11 @@ public class HeapPage implements Page {
         // some code goes here
         // not necessary for lab1
         boolean exist = false;
-        for (int i=0;i<tuples.length;i++) {
-            if (isSlotUsed(i) && compareTuples(t,tuples[i])) {
+        for (int i=0;i<numSlots;i++) {
+            if (isSlotUsed(i) && compareTuples(t,readTuple(i))) {
+                saveBeforeImage();
                 markSlotUsed(i,false);
-                tuples[i] = null;
+                clearTuple(i);
                 exist = true;
                 break;
             }
@@ -285,10 +295,11 @@ public class HeapPage implements Page {
                 throw new DbException("tupledesc is mismatch");
         }
 
-        for (int i=0;i<tuples.length;i++) {
+        for (int i=0;i<numSlots;i++) {
             if (!isSlotUsed(i)) {
+                saveBeforeImage();
                 markSlotUsed(i,true);
-                tuples[i] = t;
+                writeTuple(i, t);
                 t.setRecordId(new RecordId(pid, i));
                 break;
             }
@@ -299,7 +310,7 @@ public class HeapPage implements Page {
      * Marks this page as dirty/not dirty and record that transaction
      * that did the dirtying
      */
-    public void markDirty(boolean dirty, TransactionId tid) {
+    public synchronized void markDirty(boolean dirty, TransactionId tid) {
         // some code goes here
 	// not necessary for lab1
         this.dirty = dirty;
@@ -309,20 +320,28 @@ public class HeapPage implements Page {
     /**
      * Returns the tid of the transaction that last dirtied this page, or null if the page is not dirty
      */
-    public TransactionId isDirty() {
+    public synchronized TransactionId isDirty() {
         // some code goes here
 	// Not necessary for lab1
         return dirty ? dirtyTid:null;
     }
 
+    public long getLSN() {
+        return lsn;
+    }
+
+    public void setLSN(long lsn) {
+        this.lsn = lsn;
+    }
+
     /**
      * Returns the number of empty slots on this page.
      */
-    public int getNumEmptySlots() {
+    public synchronized int getNumEmptySlots() {
         // some code goes here
         int cnt = 0;
-        for (int i=0;i< this.header.length;i++) {
-            byte b = this.header[i];
+        for (int i=0;i< headerSize;i++) {
+            byte b = data.get(i);
             for (int j=0;j<8;j++) {
                 if( (b & (1<<j)) != 0) {
                     cnt++;
@@ -335,23 +354,24 @@ public class HeapPage implements Page {
     /**
      * Returns true if associated slot on this page is filled.
      */
-    public boolean isSlotUsed(int i) {
+    public synchronized boolean isSlotUsed(int i) {
         // some code goes here
         int v = 1<<(i%8);
-        return (this.header[i/8]&v) != 0;
+        return (data.get(i/8)&v) != 0;
     }
 
     /**
      * Abstraction to fill or clear a slot on this page.
      */
-    private void markSlotUsed(int i, boolean value) {
+    private synchronized void markSlotUsed(int i, boolean value) {
         // some code goes here
         // not necessary for lab1
         byte v = value? (byte) (1 << (i % 8)) : (byte) ~(1<<(i%8));
+        byte b = data.get(i/8);
         if (value) {
-            this.header[i/8] = (byte) (this.header[i/8]|v);
+            data.put(i/8, (byte) (b|v));
         } else {
-            this.header[i/8] = (byte) (this.header[i/8]&v);
+            data.put(i/8, (byte) (b&v));
         }
     }
 
@@ -361,7 +381,34 @@ public class HeapPage implements Page {
      */
     public Iterator<Tuple> iterator() {
         // some code goes here
-        return Arrays.stream(this.tuples).filter(t -> t != null).iterator();
+        // tuples are decoded one at a time as the iterator advances
+        return new Iterator<Tuple>() {
+            private int slot = 0;
+            private Tuple next = advance();
+
+            private Tuple advance() {
+                while (slot < numSlots) {
+                    Tuple t = readTuple(slot++);
+                    if (t != null) {
+                        return t;
+                    }
+                }
+                return null;
+            }
+
+            public boolean hasNext() {
+                return next != null;
+            }
+
+            public Tuple next() {
+                if (next == null) {
+                    throw new NoSuchElementException();
+                }
+                Tuple t = next;
+                next = advance();
+                return t;
+            }
+        };
     }
 
 }
@@ -0,0 +1,123 @@
+package simpledb;
+
+import java.io.*;
+import java.lang.reflect.Constructor;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.*;
+
+/**
+ * The file a BufferPool dumps the ids of its resident pages to, so that a
+ * restarted database can read them back in before queries ask for them.
+ * <p>
+ * The format is:
+ * <pre>
+ * int MAGIC
+ * int number of PageId classes, then each class name (writeUTF)
+ * int number of pages, then for each page, hottest first:
+ *     byte index of its PageId class
+ *     byte number of ints in PageId.serialize(), then the ints
+ * </pre>
+ * Page ids are rebuilt with the constructor taking as many ints as
+ * serialize() returns, as the log does, so this works for any PageId
+ * (HeapPageId and BTreePageId alike).
+ * <p>
+ * The list is written to a temporary file that is then renamed over the
+ * old one, so a crash in the middle of a dump leaves the previous list.
+ *
+ * @see BufferPool#dumpHotPages(File)
+ * @see BufferPool#warmUp(File)
+ */
+public class HotPageList {
+    static final int MAGIC = 0x484f5450; // "HOTP"
+
+    private HotPageList() {
+    }
+
+    /**
+     * Writes pids to f, replacing its previous contents.
+     *
+     * @param pids the page ids, hottest first
+     */
+    public static void write(File f, List<PageId> pids) throws IOException {
+        File tmp = new File(f.getPath() + ".tmp");
+        List<String> classes = new ArrayList<String>();
+        for (PageId pid : pids) {
+            if (!classes.contains(pid.getClass().getName())) {
+                classes.add(pid.getClass().getName());
+            }
+        }
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(tmp)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(classes.size());
+            for (String c : classes) {
+                out.writeUTF(c);
+            }
+            out.writeInt(pids.size());
+            for (PageId pid : pids) {
+                int[] data = pid.serialize();
+                out.writeByte(classes.indexOf(pid.getClass().getName()));
+                out.writeByte(data.length);
+                for (int i : data) {
+                    out.writeInt(i);
+                }
+            }
+        }
+        Files.move(tmp.toPath(), f.toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Reads the page ids written to f.
+     *
+     * @return the page ids, hottest first; empty if f does not exist
+     * @throws IOException if f cannot be read or is not a hot page list
+     */
+    public static List<PageId> read(File f) throws IOException {
+        List<PageId> pids = new ArrayList<PageId>();
+        if (!f.exists()) {
+            return pids;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(f)))) {
+            if (in.readInt() != MAGIC) {
+                throw new IOException(f + " is not a hot page list");
+            }
+            int numClasses = in.readInt();
+            List<Class<?>> classes = new ArrayList<Class<?>>();
+            for (int i = 0; i < numClasses; i++) {
+                try {
+                    classes.add(Class.forName(in.readUTF()));
+                } catch (ClassNotFoundException e) {
+                    throw new IOException("unknown page id class in " + f, e);
+                }
+            }
+            int numPages = in.readInt();
+            for (int i = 0; i < numPages; i++) {
+                Class<?> c = classes.get(in.readByte());
+                Object[] args = new Object[in.readByte()];
+                for (int j = 0; j < args.length; j++) {
+                    args[j] = in.readInt();
+                }
+                pids.add(newPageId(c, args));
+            }
+        }
+        return pids;
+    }
+
+    private static PageId newPageId(Class<?> c, Object[] args) throws IOException {
+        try {
+            for (Constructor<?> cons : c.getDeclaredConstructors()) {
+                Class<?>[] params = cons.getParameterTypes();
+                if (params.length == args.length
+                        && (params.length == 0 || params[0] == int.class)) {
+                    return (PageId) cons.newInstance(args);
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IOException("cannot build a " + c.getName(), e);
+        }
+        throw new IOException(c.getName() + " has no constructor taking " + args.length + " ints");
+    }
+}
@@ -0,0 +1,1026 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * LockManager grants the locks of strict two-phase locking on tables and
+ * pages.
+ * <p>
+ * Locking is hierarchical: a table is the parent of its pages.  Besides
+ * shared (S) and exclusive (X) locks there are intention locks, IS and IX,
+ * which a transaction holds on the table of whatever page it locks S or X,
+ * and SIX, which is S and IX at once.  Requests for a page take the
+ * intention lock on its table first.  A table lock that implies the
+ * requested one, S for S or X for anything, makes the request a no-op: a
+ * scan that locks its table S takes no page locks.  A transaction that
+ * locks more than {@link #setEscalationThreshold the escalation threshold}
+ * pages of one table locks the table S, SIX or X instead, and releases the
+ * page locks that lock implies.
+ * <p>
+ * There are no record locks: aborts restore whole pages and a dirty page
+ * carries a single transaction, so writers lock the page X.
+ * <p>
+ * The lock table is hash-partitioned by key into buckets, each guarded
+ * by its own latch, so requests for pages in different buckets never
+ * contend.  Every locked page has an explicit FIFO queue of waiting
+ * requests.  A waiter parks on a condition of its bucket's latch, which
+ * releases the latch while it waits; nothing is held across the wait that
+ * other requests need.  Releasing a lock grants it to the requests at the
+ * head of the queue that are compatible with the remaining holders.
+ * <p>
+ * A transaction asking for a stronger lock than it holds, say X on a page
+ * it holds S, or IX on a table it holds S (for SIX), is upgraded in place;
+ * the key keeps its one lock entry.  If the new mode conflicts with other
+ * holders, the upgrade keeps its lock and waits ahead of the queued
+ * requests that are not upgrades, since those wait for it anyway, until
+ * the other holders release it.  Two transactions upgrading the same key
+ * may wait for each other, a deadlock the policy resolves.
+ * <p>
+ * Deadlocks are found in the waits-for graph, whose edges go from each
+ * waiting request to the holders and queued requests it waits behind.  A
+ * request that has to wait searches for a cycle through its transaction
+ * before parking, and again every {@link #DETECT_INTERVAL} ms while it
+ * waits.  The graph is read one bucket at a time rather than as a
+ * consistent snapshot, so a cycle that is broken during the search can
+ * still be reported.  The cheapest transaction of a cycle, the one with
+ * the fewest locks and then the youngest, is the victim: its waiting
+ * requests fail with TransactionAbortedException and it is expected to
+ * abort.
+ * <p>
+ * Instead of detecting deadlocks, the lock manager can prevent them, see
+ * {@link #setDeadlockPolicy(DeadlockPolicy)}.  The prevention policies
+ * take the order of TransactionIds as the age of transactions, so a
+ * transaction that is restarted with a new id becomes the youngest.
+ *
+ * @Threadsafe
+ * @see BufferPool#getLockManager()
+ */
+public class LockManager {
+    /** Number of lock table partitions; a power of two. */
+    private static final int BUCKETS = 256;
+
+    /** Milliseconds between the deadlock searches of a waiting request. */
+    static final long DETECT_INTERVAL = 1000;
+
+    /** Default milliseconds a request waits under the TIMEOUT policy. */
+    public static final long DEFAULT_LOCK_TIMEOUT = 500;
+
+    /** How the lock manager deals with deadlocks. */
+    public enum DeadlockPolicy {
+        /** Wait, and abort a transaction of any cycle in the waits-for graph. */
+        DETECT,
+        /**
+         * An older transaction aborts ("wounds") the younger ones it would
+         * wait for; a younger one waits for older ones.  A wounded
+         * transaction fails its current and next lock requests.
+         */
+        WOUND_WAIT,
+        /**
+         * An older transaction waits for younger ones; a younger one that
+         * would wait for an older one aborts ("dies") instead.
+         */
+        WAIT_DIE,
+        /** Wait between one and two lock timeouts, then abort. */
+        TIMEOUT
+    }
+
+    /** Default number of children locked under one parent before escalation. */
+    public static final int DEFAULT_ESCALATION_THRESHOLD = 1000;
+
+    /** The lock modes, from weakest to strongest. */
+    public enum Mode {
+        /** intention to lock children S */
+        IS,
+        /** intention to lock children X */
+        IX,
+        /** shared */
+        S,
+        /** shared, with the intention to lock children X */
+        SIX,
+        /** exclusive */
+        X;
+
+        private static final boolean[][] COMPATIBLE = {
+                //  IS     IX     S      SIX    X
+                {true,  true,  true,  true,  false},  // IS
+                {true,  true,  false, false, false},  // IX
+                {true,  false, true,  false, false},  // S
+                {true,  false, false, false, false},  // SIX
+                {false, false, false, false, false}}; // X
+
+        /** @return whether two transactions may hold this and other at once */
+        boolean compatibleWith(Mode other) {
+            return COMPATIBLE[ordinal()][other.ordinal()];
+        }
+
+        /** @return the weakest mode that is at least as strong as this and other */
+        Mode join(Mode other) {
+            if (this == other || other == IS) {
+                return this;
+            }
+            if (this == IS) {
+                return other;
+            }
+            if (this == X || other == X) {
+                return X;
+            }
+            // two of IX, S and SIX
+            return SIX;
+        }
+
+        /** @return whether holding this implies holding other */
+        boolean covers(Mode other) {
+            return join(other) == this;
+        }
+
+        /** @return the mode to hold on the parent of a key locked in this mode */
+        Mode intention() {
+            return this == IS || this == S ? IS : IX;
+        }
+
+        /** @return whether this on a parent implies other on its children */
+        boolean coversChildren(Mode other) {
+            return this == X || ((this == S || this == SIX) && (other == S || other == IS));
+        }
+    }
+
+    /** A queued request for a lock, granted or still waiting. */
+    private static class Request {
+        final TransactionId tid;
+        final Object key;
+        final Mode mode;
+        final Condition granted;
+        boolean isGranted;
+        /** set when the request's transaction is chosen as a deadlock victim */
+        boolean isVictim;
+        /** whether tid holds a weaker lock and asks for a stronger one */
+        final boolean isUpgrade;
+
+        Request(TransactionId tid, Object key, Mode mode, boolean isUpgrade, Condition granted) {
+            this.tid = tid;
+            this.key = key;
+            this.mode = mode;
+            this.isUpgrade = isUpgrade;
+            this.granted = granted;
+        }
+
+        /** @return whether this request and one of the given mode exclude each other */
+        boolean conflicts(Mode other) {
+            return !mode.compatibleWith(other);
+        }
+    }
+
+    /** The holders of one key's lock and the requests waiting for it. */
+    private static class LockEntry {
+        final HashMap<TransactionId, Mode> holders = new HashMap<>();
+        final LinkedList<Request> waiters = new LinkedList<>();
+
+        /** Queues an upgrade behind the earlier upgrades, ahead of the rest. */
+        void enqueueUpgrade(Request r) {
+            ListIterator<Request> it = waiters.listIterator();
+            while (it.hasNext()) {
+                if (!it.next().isUpgrade) {
+                    it.previous();
+                    break;
+                }
+            }
+            it.add(r);
+        }
+
+        /** @return whether tid may be granted mode right now */
+        boolean compatible(TransactionId tid, Mode mode) {
+            for (Map.Entry<TransactionId, Mode> h : holders.entrySet()) {
+                if (!h.getKey().equals(tid) && !mode.compatibleWith(h.getValue())) {
+                    return false;
+                }
+            }
+            return true;
+        }
+    }
+
+    /** One partition of the lock table, guarded by its latch. */
+    private static class Bucket {
+        final ReentrantLock latch = new ReentrantLock();
+        final HashMap<Object, LockEntry> locks = new HashMap<>();
+    }
+
+    /** The locks of one transaction, only changed by the transaction itself. */
+    private static class TxnLocks {
+        /** the mode held on each key locked explicitly */
+        final ConcurrentHashMap<Object, Mode> held = new ConcurrentHashMap<>();
+        /** the number of keys locked explicitly under each parent */
+        final ConcurrentHashMap<Object, Integer> children = new ConcurrentHashMap<>();
+        /** the pages locked, explicitly or through an ancestor */
+        final Set<PageId> pages = ConcurrentHashMap.newKeySet();
+    }
+
+    private final Bucket[] buckets = new Bucket[BUCKETS];
+
+    /** the locks of each transaction */
+    private final ConcurrentHashMap<TransactionId, TxnLocks> txns = new ConcurrentHashMap<>();
+
+    /** the requests each transaction is waiting on */
+    private final ConcurrentHashMap<TransactionId, Set<Request>> waiting = new ConcurrentHashMap<>();
+
+    /** Counts and latencies of deadlock detection, see {@link #getMetrics()}. */
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter deadlockSearches = metrics.counter("deadlock.searches");
+    private final Metrics.Counter deadlocks = metrics.counter("deadlock.victims");
+    private final Metrics.Counter lateDeadlocks = metrics.counter("deadlock.victims.late");
+    private final Metrics.Histogram searchLatency = metrics.histogram("deadlock.search");
+
+    private final Metrics.Counter upgrades = metrics.counter("lock.upgrade.waits");
+    private final Metrics.Counter escalations = metrics.counter("lock.escalations");
+    private final Metrics.Counter wounds = metrics.counter("prevention.wounds");
+    private final Metrics.Counter dies = metrics.counter("prevention.dies");
+    private final Metrics.Counter timeouts = metrics.counter("prevention.timeouts");
+    private final Metrics.Counter aborts = metrics.counter("lock.aborts");
+
+    /** Per-request metrics, only kept while {@link #setInstrumented instrumented}. */
+    private final Metrics.Counter[] requests = new Metrics.Counter[Mode.values().length];
+    private final Metrics.Counter allUpgrades = metrics.counter("lock.upgrades");
+    private final Metrics.Counter waits = metrics.counter("lock.waits");
+    private final Metrics.Counter queued = metrics.counter("lock.waits.queued");
+    private final Metrics.Histogram waitLatency = metrics.histogram("lock.wait");
+    private volatile boolean instrumented;
+
+    private volatile DeadlockPolicy policy = DeadlockPolicy.DETECT;
+    private volatile long lockTimeout = DEFAULT_LOCK_TIMEOUT;
+    private volatile int escalationThreshold = DEFAULT_ESCALATION_THRESHOLD;
+
+    /** the transactions wounded under WOUND_WAIT, until they complete */
+    private final Set<TransactionId> wounded = ConcurrentHashMap.newKeySet();
+
+    /** mutexes serializing the allocation of new pages, by table id */
+    private final ConcurrentHashMap<Integer, ReentrantLock> fileLocks = new ConcurrentHashMap<>();
+
+    public LockManager() {
+        for (int i = 0; i < BUCKETS; i++) {
+            buckets[i] = new Bucket();
+        }
+        for (Mode m : Mode.values()) {
+            requests[m.ordinal()] = metrics.counter("lock.requests." + m);
+        }
+        metrics.gauge("lock.transactions", txns::size);
+        metrics.gauge("lock.keys", () -> count(false));
+        metrics.gauge("lock.waiting", () -> count(true));
+        metrics.gauge("lock.queue.longest", this::longestQueue);
+    }
+
+    /**
+     * Returns the metrics of deadlock detection: the number of searches of
+     * the waits-for graph, their latencies, and the number of victims.  The
+     * victims of cycles only found by the periodic searches, which take up
+     * to {@link #DETECT_INTERVAL} ms longer, are also counted separately.
+     * Under the prevention policies, the wounded transactions, the requests
+     * that died and those that timed out are counted, and under all of them
+     * the upgrades that had to wait, the lock escalations, and the requests
+     * that failed with TransactionAbortedException.  Gauges give the number
+     * of transactions holding locks, of keys locked, of requests waiting,
+     * and the longest queue.
+     * <p>
+     * While {@link #setInstrumented instrumented}, the requests are
+     * counted by mode, along with the upgrades, and the requests that
+     * waited with the number of requests queued ahead of them when they
+     * started to, and the time they waited.
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Turns the per-request metrics on or off; they are off by default,
+     * when they cost a volatile read per request.
+     */
+    public void setInstrumented(boolean instrumented) {
+        this.instrumented = instrumented;
+    }
+
+    public boolean isInstrumented() {
+        return instrumented;
+    }
+
+    /**
+     * Sets how deadlocks are dealt with from now on; requests already
+     * waiting may keep to the previous policy.  The default is DETECT.
+     */
+    public void setDeadlockPolicy(DeadlockPolicy policy) {
+        this.policy = policy;
+    }
+
+    public DeadlockPolicy getDeadlockPolicy() {
+        return policy;
+    }
+
+    /**
+     * Sets the milliseconds a request waits under the TIMEOUT policy, which
+     * are randomly stretched by up to as much again.
+     */
+    public void setLockTimeout(long millis) {
+        this.lockTimeout = millis;
+    }
+
+    /**
+     * Sets how many pages of one table a transaction locks before it locks
+     * the table instead; 0 turns escalation off.  The default is
+     * {@link #DEFAULT_ESCALATION_THRESHOLD}.
+     */
+    public void setEscalationThreshold(int threshold) {
+        this.escalationThreshold = threshold;
+    }
+
+    private Bucket bucketFor(Object key) {
+        int h = key.hashCode();
+        h ^= (h >>> 16);
+        return buckets[h & (BUCKETS - 1)];
+    }
+
+    /**
+     * Acquires a shared lock on a page, waiting while another transaction
+     * holds it exclusively or is queued for it.
+     *
+     * @throws TransactionAbortedException if the thread is interrupted
+     *     while waiting, or the deadlock policy aborts tid
+     */
+    public void shareLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        lock(tid, pid, Mode.S);
+    }
+
+    /**
+     * Acquires an exclusive lock on a page, waiting while any other
+     * transaction holds it or is queued for it.
+     *
+     * @throws TransactionAbortedException if the thread is interrupted
+     *     while waiting, or the deadlock policy aborts tid
+     */
+    public void exclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        lock(tid, pid, Mode.X);
+    }
+
+    /**
+     * Acquires a shared lock on a page if that can be done without waiting.
+     *
+     * @return whether tid holds the lock now
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    public boolean tryShareLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        return lock(tid, pid, Mode.S, false);
+    }
+
+    /**
+     * Acquires an exclusive lock on a page if that can be done without
+     * waiting.
+     *
+     * @return whether tid holds the lock now
+     * @throws TransactionAbortedException if the deadlock policy aborted tid
+     */
+    public boolean tryExclusiveLock(TransactionId tid, PageId pid) throws TransactionAbortedException {
+        return lock(tid, pid, Mode.X, false);
+    }
+
+    /**
+     * Acquires a lock on a table.  Scans lock their table S, which spares
+     * them the page locks.
+     *
+     * @throws TransactionAbortedException if the thread is interrupted
+     *     while waiting, or the deadlock policy aborts tid
+     */
+    public void lockTable(TransactionId tid, int tableId, Mode mode) throws TransactionAbortedException {
+        lock(tid, tableId, mode);
+    }
+
+    /**
+     * Acquires a lock on a page, and the intention lock on its table.
+     *
+     * @throws TransactionAbortedException if the thread is interrupted
+     *     while waiting, or the deadlock policy aborts tid
+     */
+    public void lockPage(TransactionId tid, PageId pid, Mode mode) throws TransactionAbortedException {
+        lock(tid, pid, mode);
+    }
+
+    /** @return the key of the table that key is a child of, or null */
+    private static Object parentOf(Object key) {
+        if (key instanceof PageId) {
+            return ((PageId) key).getTableId();
+        }
+        return null;
+    }
+
+    /** @return whether a lock of tid on an ancestor of key implies mode on key */
+    private static boolean covered(TxnLocks t, Object key, Mode mode) {
+        for (Object a = parentOf(key); a != null; a = parentOf(a)) {
+            Mode m = t.held.get(a);
+            if (m != null && m.coversChildren(mode)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void lock(TransactionId tid, Object key, Mode mode) throws TransactionAbortedException {
+        lock(tid, key, mode, true);
+    }
+
+    /**
+     * @param wait whether to wait for the lock, rather than give up on it
+     * @return whether tid got the lock, which it always does if it waits
+     */
+    private boolean lock(TransactionId tid, Object key, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        TxnLocks t = txns.computeIfAbsent(tid, x -> new TxnLocks());
+        if (!covered(t, key, mode)) {
+            Object parent = parentOf(key);
+            int threshold = escalationThreshold;
+            if (parent != null && !lock(tid, parent, mode.intention(), wait)) {
+                return false;
+            }
+            Mode held = t.held.get(key);
+            if (held == null && parent != null && threshold > 0
+                    && t.children.getOrDefault(parent, 0) >= threshold) {
+                if (!escalate(tid, t, parent, mode, wait)) {
+                    return false;
+                }
+            } else if (held == null || !held.covers(mode)) {
+                Mode want = held == null ? mode : held.join(mode);
+                if (!acquire(tid, key, want, wait)) {
+                    return false;
+                }
+                t.held.put(key, want);
+                if (held == null && parent != null) {
+                    t.children.merge(parent, 1, Integer::sum);
+                }
+            }
+        }
+        if (key instanceof PageId) {
+            t.pages.add((PageId) key);
+        }
+        return true;
+    }
+
+    /**
+     * Locks parent, which tid holds an intention lock on, so that it implies
+     * mode on all the children, and releases the children's locks it
+     * implies.  Reads lock parent S, or SIX if tid holds IX on it, so the
+     * children tid writes stay locked X; writes lock parent X.
+     *
+     * @return whether tid got the lock on parent, which it always does if it waits
+     */
+    private boolean escalate(TransactionId tid, TxnLocks t, Object parent, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        Mode held = t.held.getOrDefault(parent, Mode.IS);
+        Mode target = mode.intention() == Mode.IS ? held.join(Mode.S) : Mode.X;
+        if (!lock(tid, parent, target, wait)) {
+            return false;
+        }
+        escalations.increment();
+        int kept = 0;
+        Iterator<Map.Entry<Object, Mode>> it = t.held.entrySet().iterator();
+        while (it.hasNext()) {
+            Map.Entry<Object, Mode> e = it.next();
+            Object key = e.getKey();
+            if (parent.equals(parentOf(key))) {
+                if (target.coversChildren(e.getValue())) {
+                    it.remove();
+                    release(tid, key);
+                } else {
+                    kept++;
+                }
+            }
+        }
+        if (kept > 0) {
+            t.children.put(parent, kept);
+        } else {
+            t.children.remove(parent);
+        }
+        return true;
+    }
+
+    /**
+     * Grants tid mode on key, which is at least as strong as what it holds.
+     *
+     * @param wait whether to wait for the lock, rather than give up on it
+     * @return whether tid got the lock, which it always does if it waits
+     */
+    private boolean acquire(TransactionId tid, Object key, Mode mode, boolean wait)
+            throws TransactionAbortedException {
+        if (wounded.contains(tid)) {
+            aborts.increment();
+            throw new TransactionAbortedException();
+        }
+        boolean instrumented = this.instrumented;
+        Bucket b = bucketFor(key);
+        b.latch.lock();
+        try {
+            LockEntry e = b.locks.get(key);
+            if (e == null) {
+                e = new LockEntry();
+                b.locks.put(key, e);
+            }
+            Mode held = e.holders.get(tid);
+            if (held != null && held.covers(mode)) {
+                return true;
+            }
+            boolean upgrade = held != null;
+            if (instrumented) {
+                requests[mode.ordinal()].increment();
+                if (upgrade) {
+                    allUpgrades.increment();
+                }
+            }
+            // new requests queue behind the waiters, so a stream of shared
+            // locks cannot starve an exclusive one; upgrades go first
+            if ((upgrade || e.waiters.isEmpty()) && e.compatible(tid, mode)) {
+                e.holders.put(tid, mode);
+            } else if (!wait) {
+                return false;
+            } else {
+                Request r = new Request(tid, key, mode, upgrade, b.latch.newCondition());
+                if (upgrade) {
+                    e.enqueueUpgrade(r);
+                    upgrades.increment();
+                } else {
+                    e.waiters.addLast(r);
+                }
+                waiting.computeIfAbsent(tid, t -> ConcurrentHashMap.newKeySet()).add(r);
+                long start = 0;
+                if (instrumented) {
+                    waits.increment();
+                    queued.add(e.waiters.indexOf(r));
+                    start = System.nanoTime();
+                }
+                try {
+                    DeadlockPolicy policy = this.policy;
+                    // up to twice the timeout, so transactions that started
+                    // waiting together do not all give up together
+                    long timeout = TimeUnit.MILLISECONDS.toNanos(lockTimeout);
+                    long deadline = System.nanoTime() + timeout
+                            + (long) (ThreadLocalRandom.current().nextDouble() * timeout);
+                    boolean check = true;
+                    boolean late = false;
+                    while (!r.isGranted) {
+                        if (r.isVictim || wounded.contains(tid)) {
+                            throw new TransactionAbortedException();
+                        }
+                        if (policy == DeadlockPolicy.TIMEOUT) {
+                            long left = deadline - System.nanoTime();
+                            if (left <= 0) {
+                                timeouts.increment();
+                                throw new TransactionAbortedException();
+                            }
+                            r.granted.awaitNanos(left);
+                        } else if (check) {
+                            check = false;
+                            if (policy == DeadlockPolicy.WAIT_DIE) {
+                                if (blockedByOlder(r)) {
+                                    dies.increment();
+                                    throw new TransactionAbortedException();
+                                }
+                                continue;
+                            }
+                            Set<TransactionId> blockers = blockers(r);
+                            // these latch other buckets, one at a time
+                            b.latch.unlock();
+                            try {
+                                if (policy == DeadlockPolicy.DETECT) {
+                                    detectDeadlock(tid, late);
+                                } else {
+                                    woundYounger(tid, blockers);
+                                }
+                            } finally {
+                                b.latch.lock();
+                            }
+                        } else {
+                            // blockers may change, look again now and then
+                            check = !r.granted.await(DETECT_INTERVAL, TimeUnit.MILLISECONDS);
+                            late = true;
+                        }
+                    }
+                } catch (InterruptedException ie) {
+                    if (!r.isGranted) {
+                        throw new TransactionAbortedException();
+                    }
+                    // too late, keep it, the transaction cleans up
+                    Thread.currentThread().interrupt();
+                } finally {
+                    // transactionComplete may have dropped the set already
+                    waiting.computeIfPresent(tid, (t, rs) -> {
+                        rs.remove(r);
+                        return rs;
+                    });
+                    if (instrumented) {
+                        waitLatency.recordSince(start);
+                    }
+                    if (!r.isGranted) {
+                        aborts.increment();
+                        // a victim at the head of the queue may have been
+                        // dropped with the entry, and the key given a new one
+                        // while the latch was released
+                        if (b.locks.get(key) == e) {
+                            e.waiters.remove(r);
+                            grantWaiters(b, key, e);
+                        }
+                    }
+                }
+            }
+            return true;
+        } finally {
+            b.latch.unlock();
+        }
+    }
+
+    /**
+     * Grants the lock to the waiters at the head of the queue that are
+     * compatible with its holders, and drops the entry once it is unused.
+     * Called with the bucket latched.
+     */
+    private void grantWaiters(Bucket b, Object key, LockEntry e) {
+        while (!e.waiters.isEmpty()) {
+            Request r = e.waiters.peekFirst();
+            if (r.isVictim) {
+                // aborted, its thread has yet to leave the queue
+                e.waiters.removeFirst();
+                continue;
+            }
+            if (!e.compatible(r.tid, r.mode)) {
+                break;
+            }
+            e.waiters.removeFirst();
+            e.holders.put(r.tid, r.mode);
+            r.isGranted = true;
+            r.granted.signal();
+        }
+        if (e.holders.isEmpty() && e.waiters.isEmpty()) {
+            b.locks.remove(key, e);
+        }
+    }
+
+    /**
+     * Searches the waits-for graph for cycles through tid, and aborts the
+     * waiting requests of the cheapest transaction of each until there are
+     * none left.  A victim may break the cycle that was found without
+     * breaking others through the same transactions, hence the loop.
+     *
+     * @param late whether tid has been waiting for a while, rather than
+     *     just started to
+     */
+    private void detectDeadlock(TransactionId tid, boolean late) {
+        while (true) {
+            long start = System.nanoTime();
+            List<TransactionId> cycle = new ArrayList<>();
+            boolean found = findCycle(tid, tid, cycle, new HashSet<>());
+            deadlockSearches.increment();
+            searchLatency.recordSince(start);
+            if (!found) {
+                return;
+            }
+            TransactionId victim = null;
+            int victimLocks = 0;
+            for (TransactionId t : cycle) {
+                TxnLocks locks = txns.get(t);
+                int n = locks == null ? 0 : locks.held.size();
+                if (victim == null || n < victimLocks
+                        || (n == victimLocks && t.getId() > victim.getId())) {
+                    victim = t;
+                    victimLocks = n;
+                }
+            }
+            if (!abortWaiting(victim)) {
+                // its requests were granted or aborted meanwhile
+                return;
+            }
+            deadlocks.increment();
+            if (late) {
+                lateDeadlocks.increment();
+            }
+            if (victim.equals(tid)) {
+                return;
+            }
+        }
+    }
+
+    /** @return whether tid had waiting requests, which are now aborted */
+    private boolean abortWaiting(TransactionId tid) {
+        Set<Request> waits = waiting.get(tid);
+        if (waits == null) {
+            return false;
+        }
+        boolean aborted = false;
+        for (Request r : waits) {
+            Bucket b = bucketFor(r.key);
+            b.latch.lock();
+            try {
+                if (!r.isGranted && !r.isVictim) {
+                    r.isVictim = true;
+                    r.granted.signal();
+                    aborted = true;
+                }
+            } finally {
+                b.latch.unlock();
+            }
+        }
+        return aborted;
+    }
+
+    /**
+     * Depth-first search for a path in the waits-for graph from t back to
+     * start, which is appended to path.
+     */
+    private boolean findCycle(TransactionId t, TransactionId start, List<TransactionId> path,
+                              Set<TransactionId> visited) {
+        path.add(t);
+        for (TransactionId next : blockers(t)) {
+            if (next.equals(start)
+                    || (visited.add(next) && findCycle(next, start, path, visited))) {
+                return true;
+            }
+        }
+        path.remove(path.size() - 1);
+        return false;
+    }
+
+    /** @return the transactions the waiting requests of tid wait for */
+    private Set<TransactionId> blockers(TransactionId tid) {
+        Set<TransactionId> res = new HashSet<>();
+        Set<Request> waits = waiting.get(tid);
+        if (waits == null) {
+            return res;
+        }
+        for (Request r : waits) {
+            res.addAll(blockers(r));
+        }
+        return res;
+    }
+
+    /**
+     * @return the transactions r waits for: the holders and the requests
+     *     queued ahead of it that conflict with it, none once it is granted
+     *     or aborted
+     */
+    private Set<TransactionId> blockers(Request r) {
+        Set<TransactionId> res = new HashSet<>();
+        Bucket b = bucketFor(r.key);
+        b.latch.lock();
+        try {
+            LockEntry e = b.locks.get(r.key);
+            if (r.isGranted || r.isVictim || e == null) {
+                return res;
+            }
+            for (Map.Entry<TransactionId, Mode> h : e.holders.entrySet()) {
+                if (!h.getKey().equals(r.tid) && r.conflicts(h.getValue())) {
+                    res.add(h.getKey());
+                }
+            }
+            for (Request ahead : e.waiters) {
+                if (ahead == r) {
+                    break;
+                }
+                if (!ahead.tid.equals(r.tid) && r.conflicts(ahead.mode)) {
+                    res.add(ahead.tid);
+                }
+            }
+        } finally {
+            b.latch.unlock();
+        }
+        return res;
+    }
+
+    /** @return whether r waits for a transaction older than its own */
+    private boolean blockedByOlder(Request r) {
+        for (TransactionId t : blockers(r)) {
+            if (t.getId() < r.tid.getId()) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /** Wounds the blockers of tid that are younger than it. */
+    private void woundYounger(TransactionId tid, Set<TransactionId> blockers) {
+        for (TransactionId t : blockers) {
+            if (t.getId() > tid.getId()) {
+                if (wounded.add(t)) {
+                    wounds.increment();
+                }
+                // again if need be, it may have started waiting since
+                abortWaiting(t);
+            }
+        }
+    }
+
+    /**
+     * Releases the lock tid holds on pid, if any, but not the intention
+     * lock on its table.
+     */
+    public void releasePage(TransactionId tid, PageId pid) {
+        TxnLocks t = txns.get(tid);
+        if (t == null) {
+            return;
+        }
+        t.pages.remove(pid);
+        if (t.held.remove(pid) != null) {
+            t.children.computeIfPresent(parentOf(pid), (k, n) -> n > 1 ? n - 1 : null);
+            release(tid, pid);
+        }
+    }
+
+    private void release(TransactionId tid, Object key) {
+        Bucket b = bucketFor(key);
+        b.latch.lock();
+        try {
+            LockEntry e = b.locks.get(key);
+            if (e != null && e.holders.remove(tid) != null) {
+                grantWaiters(b, key, e);
+            }
+        } finally {
+            b.latch.unlock();
+        }
+    }
+
+    /** @return whether tid holds a lock on pid, or on its table that implies one */
+    public boolean holdsLock(TransactionId tid, PageId pid) {
+        TxnLocks t = txns.get(tid);
+        return t != null && (t.held.containsKey(pid) || covered(t, pid, Mode.IS));
+    }
+
+    /** @return whether tid holds X on pid, or on its table */
+    public boolean holdsExclusive(TransactionId tid, PageId pid) {
+        TxnLocks t = txns.get(tid);
+        return t != null && (t.held.get(pid) == Mode.X || covered(t, pid, Mode.X));
+    }
+
+    /**
+     * @return whether a transaction other than tid may be writing pid: it
+     *     holds a lock on the page that excludes readers, or X on its table
+     */
+    public boolean isWriteLocked(TransactionId tid, PageId pid) {
+        return lockedByOther(tid, pid, Mode.S) || lockedByOther(tid, pid.getTableId(), Mode.IS);
+    }
+
+    /** @return whether a transaction other than tid holds key in a mode that excludes mode */
+    private boolean lockedByOther(TransactionId tid, Object key, Mode mode) {
+        Bucket b = bucketFor(key);
+        b.latch.lock();
+        try {
+            LockEntry e = b.locks.get(key);
+            return e != null && !e.compatible(tid, mode);
+        } finally {
+            b.latch.unlock();
+        }
+    }
+
+    /**
+     * @return the pages tid holds locks on, explicitly or through its table
+     * locks, or null if it holds none.  The set may change while it is
+     * iterated if the transaction takes more locks concurrently.
+     */
+    public Set<PageId> getLockedPages(TransactionId tid) {
+        TxnLocks t = txns.get(tid);
+        return t == null ? null : t.pages;
+    }
+
+    /** Releases all locks held by tid, pages first and tables last. */
+    public void transactionComplete(TransactionId tid) {
+        waiting.remove(tid);
+        wounded.remove(tid);
+        TxnLocks t = txns.remove(tid);
+        if (t == null) {
+            return;
+        }
+        List<Object> keys = new ArrayList<>(t.held.keySet());
+        for (Class<?> level : Arrays.asList(PageId.class, Object.class)) {
+            Iterator<Object> it = keys.iterator();
+            while (it.hasNext()) {
+                Object key = it.next();
+                if (level.isInstance(key)) {
+                    it.remove();
+                    release(tid, key);
+                }
+            }
+        }
+    }
+
+    /** @return the number of keys locked, or of requests waiting */
+    private long count(boolean waiters) {
+        long n = 0;
+        for (Bucket b : buckets) {
+            b.latch.lock();
+            try {
+                if (!waiters) {
+                    n += b.locks.size();
+                } else {
+                    for (LockEntry e : b.locks.values()) {
+                        n += e.waiters.size();
+                    }
+                }
+            } finally {
+                b.latch.unlock();
+            }
+        }
+        return n;
+    }
+
+    private long longestQueue() {
+        long max = 0;
+        for (Bucket b : buckets) {
+            b.latch.lock();
+            try {
+                for (LockEntry e : b.locks.values()) {
+                    max = Math.max(max, e.waiters.size());
+                }
+            } finally {
+                b.latch.unlock();
+            }
+        }
+        return max;
+    }
+
+    /** The lock on one key: who holds it, and who waits for it in which mode. */
+    public static class LockState {
+        private final Object key;
+        private final Map<TransactionId, Mode> holders;
+        private final List<Map.Entry<TransactionId, Mode>> waiters;
+
+        LockState(Object key, Map<TransactionId, Mode> holders,
+                  List<Map.Entry<TransactionId, Mode>> waiters) {
+            this.key = key;
+            this.holders = holders;
+            this.waiters = waiters;
+        }
+
+        /** @return the table id or PageId locked */
+        public Object getKey() {
+            return key;
+        }
+
+        public Map<TransactionId, Mode> getHolders() {
+            return holders;
+        }
+
+        /** @return the waiting requests, in the order they are granted */
+        public List<Map.Entry<TransactionId, Mode>> getWaiters() {
+            return waiters;
+        }
+    }
+
+    /**
+     * @return the locks held or waited for.  Each bucket of the lock table
+     *     is copied at a different time, so this is not a consistent
+     *     snapshot under concurrent requests.
+     */
+    public List<LockState> getLockTable() {
+        List<LockState> res = new ArrayList<>();
+        for (Bucket b : buckets) {
+            b.latch.lock();
+            try {
+                for (Map.Entry<Object, LockEntry> l : b.locks.entrySet()) {
+                    List<Map.Entry<TransactionId, Mode>> waiters = new ArrayList<>();
+                    for (Request r : l.getValue().waiters) {
+                        waiters.add(new AbstractMap.SimpleImmutableEntry<>(r.tid, r.mode));
+                    }
+                    res.add(new LockState(l.getKey(), new HashMap<>(l.getValue().holders), waiters));
+                }
+            } finally {
+                b.latch.unlock();
+            }
+        }
+        return res;
+    }
+
+    /**
+     * @return the waits-for graph: the transactions each waiting
+     *     transaction waits for, read as the deadlock search reads it
+     */
+    public Map<TransactionId, Set<TransactionId>> getWaitsFor() {
+        Map<TransactionId, Set<TransactionId>> res = new HashMap<>();
+        for (TransactionId tid : waiting.keySet()) {
+            Set<TransactionId> blockers = blockers(tid);
+            if (!blockers.isEmpty()) {
+                res.put(tid, blockers);
+            }
+        }
+        return res;
+    }
+
+    /**
+     * Serializes the allocation of new pages at the end of a file.  This is
+     * a short-term mutex rather than a transactional lock; it must be
+     * released with {@link #unlockFile} by the same thread.
+     */
+    public void lockFile(TransactionId tid, DbFile file) {
+        fileLocks.computeIfAbsent(file.getId(), id -> new ReentrantLock()).lock();
+    }
+
+    /** Releases the mutex taken by {@link #lockFile}. */
+    public void unlockFile(TransactionId tid, DbFile file) {
+        ReentrantLock l = fileLocks.get(file.getId());
+        if (l != null && l.isHeldByCurrentThread()) {
+            l.unlock();
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayDeque;
+
+/**
+ * The in-memory tail of a LogFile.  Records are serialized once, into a
+ * {@link Record}, and appended to a ring of fixed-size ByteBuffers, from
+ * which they reach the file in batches: a drain writes the buffers
+ * filled since the last one with a single gathering write.
+ * <p>
+ * A record never straddles two buffers, so every buffer ends on a record
+ * boundary, and the log can be drained up to a given record without
+ * writing the ones after it.  A record larger than a buffer gets a buffer
+ * of its own for as long as it is not on disk.
+ * <p>
+ * Positions are offsets in the log file.  LogBuffer is not thread safe;
+ * LogFile guards it with its own lock.
+ */
+class LogBuffer {
+    static final int BUFFER_SIZE = 64 * 1024;
+    static final int BUFFERS = 16;
+
+    /** The serialized form of a record, appended to a LogBuffer as is. */
+    static class Record extends ByteArrayOutputStream {
+        void copyTo(ByteBuffer b) {
+            b.put(buf, 0, count);
+        }
+    }
+
+    private FileChannel channel;
+    /** buffers holding records not in the file yet, oldest first */
+    private final ArrayDeque<ByteBuffer> filled = new ArrayDeque<>();
+    private final ArrayDeque<ByteBuffer> free = new ArrayDeque<>();
+    /** the offset the first record not in the file goes to */
+    private long fileEnd;
+    /** the offset past the last record appended */
+    private long end;
+
+    private final Metrics.Counter bytes;
+    private final Metrics.Counter drains;
+
+    LogBuffer(FileChannel channel, long end, Metrics metrics) {
+        for (int i = 0; i < BUFFERS; i++) {
+            free.add(ByteBuffer.allocateDirect(BUFFER_SIZE));
+        }
+        this.bytes = metrics.counter("log.bytes");
+        this.drains = metrics.counter("log.drains");
+        reset(channel, end);
+    }
+
+    /**
+     * Makes the buffer append to the given file from the given offset on,
+     * after the log file was replaced or appended to directly.  The buffer
+     * must have been drained.
+     */
+    void reset(FileChannel channel, long end) {
+        if (!filled.isEmpty()) {
+            throw new IllegalStateException("log buffer reset before it was drained");
+        }
+        this.channel = channel;
+        this.fileEnd = end;
+        this.end = end;
+    }
+
+    /** @return the offset past the last record appended */
+    long getEnd() {
+        return end;
+    }
+
+    /** @return the offset past the last record written to the file */
+    long getFileEnd() {
+        return fileEnd;
+    }
+
+    /**
+     * Appends a record, draining the ring first if it is full.
+     *
+     * @return the offset the record starts at
+     */
+    long append(Record r) throws IOException {
+        int len = r.size();
+        ByteBuffer tail = filled.peekLast();
+        if (tail == null || tail.remaining() < len) {
+            if (len > BUFFER_SIZE) {
+                tail = ByteBuffer.allocate(len);
+            } else {
+                if (free.isEmpty()) {
+                    drain(end);
+                }
+                tail = free.poll();
+            }
+            filled.add(tail);
+        }
+        r.copyTo(tail);
+        long start = end;
+        end += len;
+        bytes.add(len);
+        return start;
+    }
+
+    /**
+     * Writes the records that start before the given offset to the file,
+     * and the others in the buffers they share, with one gathering write.
+     * The file is not forced.
+     */
+    void drain(long upTo) throws IOException {
+        if (upTo <= fileEnd || filled.isEmpty()) {
+            return;
+        }
+        // the buffers holding a record starting before upTo
+        int n = 0;
+        long pos = fileEnd;
+        for (ByteBuffer b : filled) {
+            if (pos >= upTo) {
+                break;
+            }
+            pos += b.position();
+            n++;
+        }
+        ByteBuffer[] batch = new ByteBuffer[n];
+        for (int i = 0; i < n; i++) {
+            batch[i] = filled.poll();
+            batch[i].flip();
+        }
+        channel.position(fileEnd);
+        long left = pos - fileEnd;
+        while (left > 0) {
+            left -= channel.write(batch);
+        }
+        fileEnd = pos;
+        drains.increment();
+        for (ByteBuffer b : batch) {
+            b.clear();
+            if (b.capacity() == BUFFER_SIZE && b.isDirect()) {
+                free.add(b);
+            }
+        }
+    }
+
+    /** Writes all the records appended to the file. */
+    void drainAll() throws IOException {
+        drain(end);
+    }
+}
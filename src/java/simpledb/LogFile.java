@@ -2,7 +2,17 @@
 package simpledb;
 
 import java.io.*;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
 import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.lang.reflect.*;
 
 /**
@@ -32,6 +42,11 @@ must not be declared synchronized and must begin with a block like:
        }
     }
 </pre>
+
+<p>
+Commits and forces wait for the group commit flusher without holding
+the log, as the flusher takes it to find the end of the log; callers
+holding it force the log themselves.
 */
 
 /**
@@ -39,20 +54,21 @@ must not be declared synchronized and must begin with a block like:
 
 <ul>
 
-<li> The first long integer of the file represents the offset of the
-last written checkpoint, or -1 if there are no checkpoints
+<li> The file begins with a header of two long integers: the LSN of the
+last written checkpoint, or -1 if there are no checkpoints, and the LSN
+of offset 0 of the file (see below.)
 
 <li> All additional data in the log consists of log records.  Log
 records are variable length.
 
-<li> Each log record begins with an integer type and a long integer
-transaction id.
+<li> Each log record begins with an integer type, a long integer
+transaction id, and the LSN of the previous record of the transaction,
+or -1 if there is none.
 
-<li> Each log record ends with a long integer file offset representing
-the position in the log file where the record began.
+<li> Each log record ends with a long integer, its own LSN.
 
-<li> There are five record types: ABORT, COMMIT, UPDATE, BEGIN, and
-CHECKPOINT
+<li> There are seven record types: ABORT, COMMIT, UPDATE, DELTA, BEGIN,
+CHECKPOINT and CLR
 
 <li> ABORT, COMMIT, and BEGIN records contain no additional data
 
@@ -61,14 +77,53 @@ after image.  These images are serialized Page objects, and can be
 accessed with the LogFile.readPageData() and LogFile.writePageData()
 methods.  See LogFile.print() for an example.
 
-<li> CHECKPOINT records consist of active transactions at the time
-the checkpoint was taken and their first log record on disk.  The format
-of the record is an integer count of the number of transactions, as well
-as a long integer transaction id and a long integer first record offset
-for each active transaction.
+<li> DELTA records log an update of a page the log holds an image of
+since the last checkpoint, as the byte ranges that changed since that
+image (see PageDelta.)  They consist of the page class name, the page
+id, the length of the page data and the delta.  The first update of a
+page after a checkpoint is an UPDATE record.
+
+<li> CLR (compensation log) records are written when an update is
+undone, by an abort or by recovery.  They consist of the LSN of the next
+record of the transaction to undo (the previous record of the update
+undone), a boolean, and the image the page was restored to if it is
+true, or else the inverse of the undone DELTA, in the format of a DELTA
+record.  CLRs are redone but never undone, so updates are undone once,
+even if the system crashes during recovery.
+
+<li> CHECKPOINT records are fuzzy: they list the transactions running
+at the time the checkpoint was taken, and the pages whose updates may not
+be on disk yet.  The format of the record is an integer count of the
+number of transactions, and a long integer transaction id, the LSN of its
+first record and the LSN of its last record for each of them, then an
+integer count of the number of dirty pages, and a serialized page id and
+the LSN of the first record that dirtied the page (its recovery LSN) for
+each of them.
+
+<li> Records are appended to an in-memory LogBuffer and reach the file
+when the log is forced, or the buffer fills up.  The LSN of a record is
+its offset in the file plus the number of bytes truncation removed from
+the front of the log, so LSNs only grow, and truncation copies the
+records it keeps as they are.  Pages remember the LSN of their last
+UPDATE record, and are written only once the log is on disk up to it,
+see force(long).
 
 </ul>
 
+<p> Recovery follows ARIES.  Analysis reads the log from the last
+checkpoint on, to find the transactions that were running at the crash
+and the pages that may have been dirty.  Redo repeats history from the
+oldest recovery LSN of those pages, installing the images of the records
+at or past the recovery LSN of their page.  Undo then rolls the running
+transactions back, latest record first, following the previous LSNs of
+their records, writing CLRs, and ends each of them with an ABORT record.
+
+<p> Redo applies the records to the pages on a thread per partition of
+the pages (see ParallelRedo), while the thread recovering reads the log.
+Undo reads the records of every transaction it rolls back ahead, each on
+a thread of its own, and the pages recovered are written in parallel
+too.  See setRecoveryThreads().
+
 */
 
 public class LogFile {
@@ -82,16 +137,150 @@ public class LogFile {
     static final int UPDATE_RECORD = 3;
     static final int BEGIN_RECORD = 4;
     static final int CHECKPOINT_RECORD = 5;
+    static final int CLR_RECORD = 6;
+    static final int DELTA_RECORD = 7;
     static final long NO_CHECKPOINT_ID = -1;
+    /** The previous LSN of the first record of a transaction */
+    static final long NO_LSN = -1;
 
     final static int INT_SIZE = 4;
     final static int LONG_SIZE = 8;
+    /** The checkpoint LSN and the LSN of offset 0 */
+    final static int HEADER_SIZE = 2 * LONG_SIZE;
 
     long currentOffset = -1;//protected by this
 //    int pageSize;
     int totalRecords = 0; // for PatchTest //protected by this
 
+    /**
+     * The LSN of offset 0 of the log file.  The LSN of a record is its
+     * offset in the log as if the log had never been truncated, so LSNs
+     * keep growing across truncations.  Protected by this.
+     */
+    long lsnBase = 0;
+
+    private final Metrics metrics = new Metrics();
+    private final Metrics.Counter forces = metrics.counter("log.forces");
+    private final Metrics.Counter commits = metrics.counter("log.commits");
+    private final Metrics.Counter recordsRead = metrics.counter("log.recordsRead");
+
+    /** Batches the forces of concurrent commits, see {@link #setGroupCommit} */
+    private final GroupCommit groupCommit = new GroupCommit(this, metrics);
+    private volatile boolean groupCommitEnabled = true;
+
+    /** Records not in the file yet; protected by this */
+    private final LogBuffer buffer;
+    /** The record being serialized, and its transaction; protected by this */
+    private final LogBuffer.Record record = new LogBuffer.Record();
+    private final DataOutputStream recordOut = new DataOutputStream(record);
+    private long recordTid;
+
+    /** The transaction table: the LSNs of the first and of the last record
+        of every running transaction.  Protected by this. */
     HashMap<Long,Long> tidToFirstLogRecord = new HashMap<Long,Long>();
+    HashMap<Long,Long> tidToLastLSN = new HashMap<Long,Long>();
+
+    /**
+     * The dirty page table: pages with logged updates that may not be on
+     * disk yet, and the LSN of the first such update (the page's recovery
+     * LSN.)  Entries go once pageFlushed() is called.  Protected by this.
+     */
+    HashMap<PageId,Long> dirtyPages = new HashMap<PageId,Long>();
+
+    /** The most page images kept for DELTA records */
+    static final int LOGGED_IMAGES = 1024;
+
+    /** The image of a page as of its last record, and the transaction
+        that logged it */
+    private static class LoggedImage {
+        final long tid;
+        final byte[] data;
+
+        LoggedImage(long tid, byte[] data) {
+            this.tid = tid;
+            this.data = data;
+        }
+    }
+
+    /**
+     * The pages logged since the last checkpoint, least recently logged
+     * first, with their image as of their last record, which their next
+     * update is logged as a DELTA of.  Protected by this.
+     */
+    private final LinkedHashMap<PageId,LoggedImage> loggedImages =
+        new LinkedHashMap<PageId,LoggedImage>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<PageId,LoggedImage> eldest) {
+                return size() > LOGGED_IMAGES;
+            }
+        };
+    private volatile boolean compactUpdates = true;
+
+    /** The data of a page, and its class, as logged, or being rolled
+        back or recovered */
+    static class PageImage {
+        final String pageClass;
+        final byte[] data;
+
+        PageImage(String pageClass, byte[] data) {
+            this.pageClass = pageClass;
+            this.data = data;
+        }
+
+        PageImage(Page p) {
+            this(p.getClass().getName(), p.getPageData());
+        }
+
+        /** Read the image of the page of a DELTA record, or CLR without
+            an image, from disk, or make it all zeros if the page is past
+            the end of its file. */
+        static PageImage read(LogRecord r) {
+            Page p = null;
+            try {
+                p = Database.getCatalog().getDatabaseFile(r.pid.getTableId()).readPage(r.pid);
+            } catch (IllegalArgumentException e) {
+                // past the end of the file
+            }
+            return p != null ? new PageImage(p) : new PageImage(r.pageClass, new byte[r.pageLength]);
+        }
+    }
+
+    /** A record read back from the log, see {@link #readRecord} */
+    static class LogRecord {
+        int type;
+        long tid;
+        long lsn;
+        long prevLSN;
+        /** UPDATE, DELTA and CLR: the page updated */
+        PageId pid;
+        /** UPDATE: the page images; CLR: the image restored, in after.
+            Null if the record was read without its images. */
+        PageImage before;
+        PageImage after;
+        /** DELTA, and CLR without an image: the page class, the length of
+            its data, and the change */
+        String pageClass;
+        int pageLength;
+        PageDelta delta;
+        /** CLR: the LSN of the next record of the transaction to undo */
+        long undoNextLSN;
+        /** CHECKPOINT: the transaction table, tid to {first LSN, last LSN} */
+        HashMap<Long,long[]> transactions;
+        /** CHECKPOINT: the dirty page table */
+        HashMap<PageId,Long> dirtyPages;
+    }
+
+    /** The records of a transaction undo reads at a time */
+    static final int UNDO_CHUNK = 64;
+
+    /** Runs tasks in the thread submitting them */
+    private static final Executor INLINE = Runnable::run;
+
+    private volatile int recoveryThreads = Runtime.getRuntime().availableProcessors();
+
+    /** Thread taking periodic checkpoints, or null; guarded by checkpointLock */
+    private Thread checkpointer;
+    private boolean checkpointerRunning;
+    private final Object checkpointLock = new Object();
 
     /** Constructor.
         Initialize and back the log file with the specified file.
@@ -107,6 +296,7 @@ public class LogFile {
     public LogFile(File f) throws IOException {
 	this.logFile = f;
         raf = new RandomAccessFile(f, "rw");
+        buffer = new LogBuffer(raf.getChannel(), raf.length(), metrics);
         recoveryUndecided = true;
 
         // install shutdown hook to force cleanup on close
@@ -127,17 +317,119 @@ public class LogFile {
         totalRecords++;
         if(recoveryUndecided){
             recoveryUndecided = false;
-            raf.seek(0);
-            raf.setLength(0);
-            raf.writeLong(NO_CHECKPOINT_ID);
-            raf.seek(raf.length());
-            currentOffset = raf.getFilePointer();
+            startLog();
+        }
+    }
+
+    /** Empty the log file, leaving only a header with no checkpoint. */
+    private void startLog() throws IOException {
+        raf.seek(0);
+        raf.setLength(0);
+        raf.writeLong(NO_CHECKPOINT_ID);
+        raf.writeLong(lsnBase);
+        currentOffset = raf.getFilePointer();
+        buffer.reset(raf.getChannel(), currentOffset);
+    }
+
+    /** Start serializing a record of the given type and transaction,
+        returning the stream to write the rest of the record to.  The
+        caller holds this.
+
+        @see #endRecord
+    */
+    private DataOutputStream beginRecord(int type, long tid) throws IOException {
+        preAppend();
+        record.reset();
+        recordTid = tid;
+        recordOut.writeInt(type);
+        recordOut.writeLong(tid);
+        recordOut.writeLong(tidToLastLSN.getOrDefault(tid, NO_LSN));
+        return recordOut;
+    }
+
+    /** Finish the record begun by beginRecord with its LSN, append it to
+        the log buffer, and make it the last record of its transaction.
+
+        @return the LSN of the record
+    */
+    private long endRecord() throws IOException {
+        long lsn = lsnBase + currentOffset;
+        recordOut.writeLong(lsn);
+        buffer.append(record);
+        currentOffset = buffer.getEnd();
+        if (tidToLastLSN.containsKey(recordTid)) {
+            tidToLastLSN.put(recordTid, lsn);
         }
+        return lsn;
+    }
+
+    /** @return the LSN the next record appended will have */
+    public synchronized long getEndLSN() {
+        return lsnBase + currentOffset;
     }
 
     public synchronized int getTotalRecords() {
         return totalRecords;
     }
+
+    /**
+     * @return the log's counters: forces of the log, commits, the
+     * waiters the group commit flusher released, and the records read
+     * back by rollbacks and recovery
+     */
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * Sets whether commits and forces of the log wait for a shared flusher
+     * thread, which forces the log once for all the records appended while
+     * its previous force ran (group commit), or each force the log while
+     * holding it.  Group commit is on by default.
+     */
+    public void setGroupCommit(boolean enabled) {
+        groupCommitEnabled = enabled;
+    }
+
+    /**
+     * Sets whether updates of pages logged since the last checkpoint are
+     * logged as DELTA records, or as UPDATE records with both page images,
+     * like the first update of every page after a checkpoint.  DELTA
+     * records are on by default.
+     */
+    public void setCompactUpdates(boolean enabled) {
+        compactUpdates = enabled;
+    }
+
+    /**
+     * Sets the number of threads recovery redoes the log, reads the
+     * records to undo ahead and writes the pages recovered on.  With one
+     * thread, recovery does it all in the thread calling recover().
+     * Defaults to the number of processors.
+     */
+    public void setRecoveryThreads(int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("recovery needs a thread");
+        }
+        recoveryThreads = threads;
+    }
+
+    /**
+     * Stops the group commit flusher thread; forces from then on are done
+     * by the threads asking for them.
+     */
+    public void stopGroupCommit() {
+        groupCommit.shutdown();
+    }
+
+    /**
+     * @return true if the transaction has logged a BEGIN record and has
+     * not committed or aborted since, so that its updates can be rolled
+     * back from the log.
+     */
+    public synchronized boolean isActive(TransactionId tid) {
+        return tidToFirstLogRecord.containsKey(tid.getId());
+    }
     
     /** Write an abort record to the log for the specified tid, force
         the log to disk, and perform a rollback
@@ -156,35 +448,36 @@ public class LogFile {
 
                 // must do this here, since rollback only works for
                 // live transactions (needs tidToFirstLogRecord)
-                print();
+                //print();
                 rollback(tid);
 
-                raf.writeInt(ABORT_RECORD);
-                raf.writeLong(tid.getId());
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                force();
+                beginRecord(ABORT_RECORD, tid.getId());
+                force(endRecord());
                 tidToFirstLogRecord.remove(tid.getId());
+                tidToLastLSN.remove(tid.getId());
             }
         }
     }
 
     /** Write a commit record to disk for the specified tid,
-        and force the log to disk.
+        and force the log to disk.  The force is shared with the
+        transactions committing at the same time, see {@link #setGroupCommit}.
 
         @param tid The committing transaction.
     */
-    public synchronized void logCommit(TransactionId tid) throws IOException {
-        preAppend();
-        Debug.log("COMMIT " + tid.getId());
-        //should we verify that this is a live transaction?
-
-        raf.writeInt(COMMIT_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
-        force();
-        tidToFirstLogRecord.remove(tid.getId());
+    public void logCommit(TransactionId tid) throws IOException {
+        long lsn;
+        synchronized (this) {
+            Debug.log("COMMIT " + tid.getId());
+            //should we verify that this is a live transaction?
+
+            beginRecord(COMMIT_RECORD, tid.getId());
+            lsn = endRecord();
+            tidToFirstLogRecord.remove(tid.getId());
+            tidToLastLSN.remove(tid.getId());
+            commits.increment();
+        }
+        force(lsn);
     }
 
     /** Write an UPDATE record to disk for the specified tid and page
@@ -198,31 +491,125 @@ public class LogFile {
     public  synchronized void logWrite(TransactionId tid, Page before,
                                        Page after)
         throws IOException  {
-        Debug.log("WRITE, offset = " + raf.getFilePointer());
-        preAppend();
+        appendUpdate(tid, before, after);
+    }
+
+    /** Append an UPDATE record, or a DELTA record if the page was logged
+        since the last checkpoint, and make it the last record of the
+        updated page, returning its LSN.  The page must not be written
+        before the log is forced up to it, and stays in the dirty page
+        table until pageFlushed() is called for it.
+
+        @see Page#getLSN
+    */
+    private long appendUpdate(TransactionId tid, Page before, Page after)
+        throws IOException {
+        Debug.log("WRITE, offset = " + currentOffset);
         /* update record conists of
 
            record type
            transaction id
+           previous LSN of the transaction
            before page data (see writePageData)
            after page data
-           start offset
+           LSN
         */
-        raf.writeInt(UPDATE_RECORD);
-        raf.writeLong(tid.getId());
-
-        writePageData(raf,before);
-        writePageData(raf,after);
-        raf.writeLong(currentOffset);
-        currentOffset = raf.getFilePointer();
+        PageId pid = after.getId();
+        byte[] data = after.getPageData();
+        LoggedImage last = compactUpdates ? loggedImages.get(pid) : null;
+        // the image logged last is the page's before image, unless the
+        // transaction logged the page itself, or the page was replaced
+        // without being logged
+        if (last != null && last.data.length == data.length
+                && (last.tid == tid.getId() || Arrays.equals(last.data, before.getPageData()))) {
+            DataOutputStream out = beginRecord(DELTA_RECORD, tid.getId());
+            writeDelta(out, after.getClass().getName(), pid, data.length, PageDelta.diff(last.data, data));
+        } else {
+            DataOutputStream out = beginRecord(UPDATE_RECORD, tid.getId());
+            writePageData(out,before);
+            writePageData(out,after);
+        }
+        long lsn = endRecord();
+        after.setLSN(lsn);
+        dirtyPages.putIfAbsent(pid, lsn);
+        if (compactUpdates) {
+            loggedImages.put(pid, new LoggedImage(tid.getId(), data));
+        }
 
         Debug.log("WRITE OFFSET = " + currentOffset);
+        return lsn;
     }
 
-    void writePageData(RandomAccessFile raf, Page p) throws IOException{
-        PageId pid = p.getId();
-        int pageInfo[] = pid.serialize();
+    private void writeDelta(DataOutput out, String pageClass, PageId pid, int pageLength,
+                            PageDelta delta) throws IOException {
+        out.writeUTF(pageClass);
+        writePageId(out, pid);
+        out.writeInt(pageLength);
+        delta.write(out);
+    }
 
+    private void readDelta(DataInput in, LogRecord r) throws IOException {
+        r.pageClass = in.readUTF();
+        r.pid = readPageId(in);
+        r.pageLength = in.readInt();
+        r.delta = PageDelta.read(in);
+    }
+
+    /** Append a CLR for the undo of the given UPDATE or DELTA record,
+        with the image the page was restored to, or the inverse of the
+        delta.
+
+        @return the LSN of the record
+    */
+    private long appendCLR(LogRecord undone) throws IOException {
+        DataOutputStream out = beginRecord(CLR_RECORD, undone.tid);
+        out.writeLong(undone.prevLSN);
+        boolean image = undone.type == UPDATE_RECORD;
+        out.writeBoolean(image);
+        if (image) {
+            writeImage(out, undone.pid, undone.before);
+        } else {
+            writeDelta(out, undone.pageClass, undone.pid, undone.pageLength, undone.delta.inverse());
+        }
+        long lsn = endRecord();
+        dirtyPages.putIfAbsent(undone.pid, lsn);
+        return lsn;
+    }
+
+    /** Write an UPDATE record for a page that a committing transaction
+        leaves dirty in the buffer pool (NO-FORCE).  Until pageFlushed()
+        is called for the page, checkpoints keep the log from its first
+        such record on, so recovery can redo the update.
+
+        @see #logWrite
+    */
+    public synchronized void logUnflushedWrite(TransactionId tid, Page before,
+                                               Page after)
+        throws IOException {
+        appendUpdate(tid, before, after);
+    }
+
+    /** Tell the log that a page is on disk, or dropped from the buffer
+        pool, so its updates no longer need redoing.
+
+        @see #logUnflushedWrite
+    */
+    public synchronized void pageFlushed(PageId pid) {
+        dirtyPages.remove(pid);
+    }
+
+    /** Tell the log that a page was dropped from the buffer pool, and
+        may be replaced on disk without being logged, so its next update
+        is logged with both images.
+
+        @see #pageFlushed
+    */
+    public synchronized void pageDiscarded(PageId pid) {
+        dirtyPages.remove(pid);
+        loggedImages.remove(pid);
+    }
+
+    void writePageData(DataOutput out, Page p) throws IOException{
         //page data is:
         // page class name
         // id class name
@@ -232,53 +619,106 @@ public class LogFile {
         // page class data
 
         String pageClassName = p.getClass().getName();
-        String idClassName = pid.getClass().getName();
 
-        raf.writeUTF(pageClassName);
-        raf.writeUTF(idClassName);
+        out.writeUTF(pageClassName);
+        writePageId(out, p.getId());
 
-        raf.writeInt(pageInfo.length);
-        for (int i = 0; i < pageInfo.length; i++) {
-            raf.writeInt(pageInfo[i]);
-        }
         byte[] pageData = p.getPageData();
-        raf.writeInt(pageData.length);
-        raf.write(pageData);
+        out.writeInt(pageData.length);
+        out.write(pageData);
         //        Debug.log ("WROTE PAGE DATA, CLASS = " + pageClassName + ", table = " +  pid.getTableId() + ", page = " + pid.pageno());
     }
 
-    Page readPageData(RandomAccessFile raf) throws IOException {
-        PageId pid;
-        Page newPage = null;
-
-        String pageClassName = raf.readUTF();
-        String idClassName = raf.readUTF();
+    private void writePageId(DataOutput out, PageId pid) throws IOException {
+        int pageInfo[] = pid.serialize();
+        out.writeUTF(pid.getClass().getName());
+        out.writeInt(pageInfo.length);
+        for (int i = 0; i < pageInfo.length; i++) {
+            out.writeInt(pageInfo[i]);
+        }
+    }
 
+    private PageId readPageId(DataInput in) throws IOException {
+        String idClassName = in.readUTF();
+        int numIdArgs = in.readInt();
+        Object idArgs[] = new Object[numIdArgs];
+        for (int i = 0; i<numIdArgs;i++) {
+            idArgs[i] = Integer.valueOf(in.readInt());
+        }
         try {
-            Class<?> idClass = Class.forName(idClassName);
-            Class<?> pageClass = Class.forName(pageClassName);
+            Constructor<?>[] idConsts = Class.forName(idClassName).getDeclaredConstructors();
+            return (PageId)idConsts[0].newInstance(idArgs);
+        } catch (ReflectiveOperationException e) {
+            e.printStackTrace();
+            throw new IOException(e);
+        }
+    }
 
-            Constructor<?>[] idConsts = idClass.getDeclaredConstructors();
-            int numIdArgs = raf.readInt();
-            Object idArgs[] = new Object[numIdArgs];
-            for (int i = 0; i<numIdArgs;i++) {
-                idArgs[i] = new Integer(raf.readInt());
-            }
-            pid = (PageId)idConsts[0].newInstance(idArgs);
+    /** Read page data as written by writePageData, without making a
+        page of it, setting the page id of r. */
+    private PageImage readImage(DataInput in, LogRecord r) throws IOException {
+        String pageClassName = in.readUTF();
+        r.pid = readPageId(in);
+        byte[] pageData = new byte[in.readInt()];
+        in.readFully(pageData);
+        return new PageImage(pageClassName, pageData);
+    }
 
-            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
-            int pageSize = raf.readInt();
+    /** Write a page image in the format of writePageData. */
+    private void writeImage(DataOutput out, PageId pid, PageImage image) throws IOException {
+        out.writeUTF(image.pageClass);
+        writePageId(out, pid);
+        out.writeInt(image.data.length);
+        out.write(image.data);
+    }
 
-            byte[] pageData = new byte[pageSize];
-            raf.read(pageData); //read before image
+    /** Skip the page data at the current position of in.
+
+        @return the id of the page
+    */
+    private PageId skipPageData(DataInput in) throws IOException {
+        in.readUTF();
+        PageId pid = readPageId(in);
+        in.skipBytes(in.readInt());
+        return pid;
+    }
+
+    Page readPageData(DataInput in) throws IOException {
+        String pageClassName = in.readUTF();
+        PageId pid = readPageId(in);
+
+        int pageSize = in.readInt();
+        byte[] pageData = new byte[pageSize];
+        in.readFully(pageData);
+
+        return newPage(pageClassName, pid, pageData);
+    }
+
+    /** Make a page of the given class from its data. */
+    private Page newPage(String pageClassName, PageId pid, byte[] pageData) throws IOException {
+        try {
+            Class<?> pageClass = Class.forName(pageClassName);
+            Constructor<?>[] pageConsts = pageClass.getDeclaredConstructors();
 
-            Object[] pageArgs = new Object[2];
+            // B+ tree leaf and internal pages also take their key field and
+            // whether they are linked, in their longest constructor
+            Constructor<?> pageConst = null;
+            for (Constructor<?> c : pageConsts) {
+                if (c.getParameterTypes()[1] == byte[].class
+                        && (pageConst == null || c.getParameterCount() > pageConst.getParameterCount())) {
+                    pageConst = c;
+                }
+            }
+            Object[] pageArgs = new Object[pageConst.getParameterCount()];
             pageArgs[0] = pid;
             pageArgs[1] = pageData;
+            if (pageArgs.length > 2) {
+                BTreeFile file = (BTreeFile) Database.getCatalog().getDatabaseFile(pid.getTableId());
+                pageArgs[2] = file.keyField();
+                pageArgs[3] = file.isLinked();
+            }
 
-            newPage = (Page)pageConsts[0].newInstance(pageArgs);
-
-            //            Debug.log("READ PAGE OF TYPE " + pageClassName + ", table = " + newPage.getId().getTableId() + ", page = " + newPage.getId().pageno());
+            return (Page)pageConst.newInstance(pageArgs);
         } catch (ClassNotFoundException e){
             e.printStackTrace();
             throw new IOException();
@@ -292,8 +732,72 @@ public class LogFile {
             e.printStackTrace();
             throw new IOException();
         }
-        return newPage;
+    }
+
+    /** Read the record at the current position of in.  The page images
+        of UPDATE records and CLRs are skipped unless images is set,
+        leaving only the page ids; deltas are always read.
+
+        @throws EOFException if the log ends before the record does, as
+        it does after a crash in the middle of a write
+    */
+    LogRecord readRecord(LogReader in, boolean images) throws IOException {
+        LogRecord r = new LogRecord();
+        r.lsn = lsnBase + in.offset();
+        r.type = in.readInt();
+        r.tid = in.readLong();
+        r.prevLSN = in.readLong();
+        switch (r.type) {
+        case UPDATE_RECORD:
+            if (images) {
+                r.before = readImage(in, r);
+                r.after = readImage(in, r);
+            } else {
+                skipPageData(in);
+                r.pid = skipPageData(in);
+            }
+            break;
+        case DELTA_RECORD:
+            readDelta(in, r);
+            break;
+        case CLR_RECORD:
+            r.undoNextLSN = in.readLong();
+            if (!in.readBoolean()) {
+                readDelta(in, r);
+            } else if (images) {
+                r.after = readImage(in, r);
+            } else {
+                r.pid = skipPageData(in);
+            }
+            break;
+        case CHECKPOINT_RECORD:
+            r.transactions = new HashMap<Long,long[]>();
+            int numXactions = in.readInt();
+            while (numXactions-- > 0) {
+                long tid = in.readLong();
+                r.transactions.put(tid, new long[] {in.readLong(), in.readLong()});
+            }
+            r.dirtyPages = new HashMap<PageId,Long>();
+            int numPages = in.readInt();
+            while (numPages-- > 0) {
+                PageId pid = readPageId(in);
+                r.dirtyPages.put(pid, in.readLong());
+            }
+            break;
+        }
+        //all records finish with their LSN
+        if (in.readLong() != r.lsn) {
+            throw new EOFException("torn log record at LSN " + r.lsn);
+        }
+        recordsRead.increment();
+        return r;
+    }
 
+    /** Read the record with the given LSN, which is in the file. */
+    private LogRecord readRecord(LogReader in, long lsn, boolean images)
+        throws IOException {
+        in.seek(lsn - lsnBase);
+        return readRecord(in, images);
     }
 
     /** Write a BEGIN record for the specified transaction
@@ -307,146 +811,162 @@ public class LogFile {
             System.err.printf("logXactionBegin: already began this tid\n");
             throw new IOException("double logXactionBegin()");
         }
-        preAppend();
-        raf.writeInt(BEGIN_RECORD);
-        raf.writeLong(tid.getId());
-        raf.writeLong(currentOffset);
-        tidToFirstLogRecord.put(tid.getId(), currentOffset);
-        currentOffset = raf.getFilePointer();
+        beginRecord(BEGIN_RECORD, tid.getId());
+        long lsn = endRecord();
+        tidToFirstLogRecord.put(tid.getId(), lsn);
+        tidToLastLSN.put(tid.getId(), lsn);
 
         Debug.log("BEGIN OFFSET = " + currentOffset);
     }
 
-    /** Checkpoint the log and write a checkpoint record. */
-//    CHECKPOINT records consist of active transactions at the time
-//    the checkpoint was taken and their first log record on disk.  The format
-//    of the record is an integer count of the number of transactions, as well
-//    as a long integer transaction id and a long integer first record offset
-//    for each active transaction.
+    /** Checkpoint the log and write a checkpoint record.
+        The checkpoint is fuzzy: it does not flush the buffer pool, so
+        it never holds up transactions for longer than it takes to append
+        the record.  The record holds the transaction table and the dirty
+        page table instead, from which recovery finds the transactions to
+        undo and where to start redoing, and before which the log is
+        truncated.
+    */
     public void logCheckpoint() throws IOException {
-        //make sure we have buffer pool lock before proceeding
-        synchronized (Database.getBufferPool()) {
-            synchronized (this) {
-                //Debug.log("CHECKPOINT, offset = " + raf.getFilePointer());
-                preAppend();
-                long startCpOffset, endCpOffset;
-                Set<Long> keys = tidToFirstLogRecord.keySet();
-                Iterator<Long> els = keys.iterator();
-                force();
-                Database.getBufferPool().flushAllPages();
-                startCpOffset = raf.getFilePointer();
-                raf.writeInt(CHECKPOINT_RECORD);
-                raf.writeLong(-1); //no tid , but leave space for convenience
-
-                //write list of outstanding transactions
-                raf.writeInt(keys.size());
-                while (els.hasNext()) {
-                    Long key = els.next();
-                    Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + key);
-                    raf.writeLong(key);
-                    //Debug.log("WRITING CHECKPOINT TRANSACTION OFFSET: " + tidToFirstLogRecord.get(key));
-                    raf.writeLong(tidToFirstLogRecord.get(key));
-                }
-
-                //once the CP is written, make sure the CP location at the
-                // beginning of the log file is updated
-                endCpOffset = raf.getFilePointer();
-                raf.seek(0);
-                raf.writeLong(startCpOffset);
-                raf.seek(endCpOffset);
-                raf.writeLong(currentOffset);
-                currentOffset = raf.getFilePointer();
-                //Debug.log("CP OFFSET = " + currentOffset);
+        synchronized (this) {
+            //Debug.log("CHECKPOINT, offset = " + currentOffset);
+            DataOutputStream out = beginRecord(CHECKPOINT_RECORD, -1); //no tid , but leave space for convenience
+
+            //write list of outstanding transactions
+            out.writeInt(tidToFirstLogRecord.size());
+            for (Map.Entry<Long,Long> e : tidToFirstLogRecord.entrySet()) {
+                Debug.log("WRITING CHECKPOINT TRANSACTION ID: " + e.getKey());
+                out.writeLong(e.getKey());
+                out.writeLong(e.getValue());
+                out.writeLong(tidToLastLSN.get(e.getKey()));
             }
+            //and of pages that may be dirty
+            out.writeInt(dirtyPages.size());
+            for (Map.Entry<PageId,Long> e : dirtyPages.entrySet()) {
+                writePageId(out, e.getKey());
+                out.writeLong(e.getValue());
+            }
+            long checkpoint = endRecord();
+            // the first update of every page after the checkpoint logs
+            // both images
+            loggedImages.clear();
+            force(checkpoint);
+
+            //once the CP is on disk, make sure the CP location at the
+            // beginning of the log file is updated
+            raf.seek(0);
+            raf.writeLong(checkpoint);
+            forceNow(getEndLSN());
+            //Debug.log("CP OFFSET = " + currentOffset);
         }
 
         logTruncate();
     }
 
+    /**
+     * Start a background thread that calls logCheckpoint() every
+     * intervalMillis milliseconds, which keeps the log, and with it
+     * recovery time, bounded by the oldest running transaction.
+     */
+    public void startCheckpointer(final long intervalMillis) {
+        synchronized (checkpointLock) {
+            if (checkpointer != null) {
+                return;
+            }
+            checkpointerRunning = true;
+            checkpointer = new Thread("LogFile checkpointer") {
+                public void run() {
+                    while (true) {
+                        synchronized (checkpointLock) {
+                            long until = System.currentTimeMillis() + intervalMillis;
+                            long left;
+                            while (checkpointerRunning && (left = until - System.currentTimeMillis()) > 0) {
+                                try {
+                                    checkpointLock.wait(left);
+                                } catch (InterruptedException e) {
+                                    return;
+                                }
+                            }
+                            if (!checkpointerRunning) {
+                                return;
+                            }
+                        }
+                        try {
+                            logCheckpoint();
+                        } catch (IOException e) {
+                            e.printStackTrace();
+                        }
+                    }
+                }
+            };
+            checkpointer.setDaemon(true);
+            checkpointer.start();
+        }
+    }
+
+    /**
+     * Stop the checkpoint thread, waiting for a checkpoint in progress.
+     * (The thread is not interrupted, as that would close the log's
+     * channel in the middle of a force.)
+     */
+    public void stopCheckpointer() {
+        Thread t;
+        synchronized (checkpointLock) {
+            t = checkpointer;
+            checkpointer = null;
+            checkpointerRunning = false;
+            checkpointLock.notifyAll();
+        }
+        if (t != null) {
+            try {
+                t.join();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
     /** Truncate any unneeded portion of the log to reduce its space
-        consumption */
+        consumption: the records before the last checkpoint, the first
+        record of every running transaction, and the recovery LSN of
+        every dirty page */
     public synchronized void logTruncate() throws IOException {
         preAppend();
+        buffer.drainAll();
         raf.seek(0);
         long cpLoc = raf.readLong();
+        if (cpLoc == NO_CHECKPOINT_ID) {
+            return;
+        }
 
         long minLogRecord = cpLoc;
-
-        if (cpLoc != -1L) {
-            raf.seek(cpLoc);
-            int cpType = raf.readInt();
-            @SuppressWarnings("unused")
-            long cpTid = raf.readLong();
-
-            if (cpType != CHECKPOINT_RECORD) {
-                throw new RuntimeException("Checkpoint pointer does not point to checkpoint record");
-            }
-
-            int numOutstanding = raf.readInt();
-
-            for (int i = 0; i < numOutstanding; i++) {
-                @SuppressWarnings("unused")
-                long tid = raf.readLong();
-                long firstLogRecord = raf.readLong();
-                if (firstLogRecord < minLogRecord) {
-                    minLogRecord = firstLogRecord;
-                }
-            }
+        for (long first : tidToFirstLogRecord.values()) {
+            minLogRecord = Math.min(minLogRecord, first);
+        }
+        for (long recLSN : dirtyPages.values()) {
+            minLogRecord = Math.min(minLogRecord, recLSN);
+        }
+        long from = minLogRecord - lsnBase;
+        if (from <= HEADER_SIZE) {
+            return;
         }
 
-        // we can truncate everything before minLogRecord
+        // we can truncate everything before minLogRecord.  Records refer
+        // to each other by LSN, which truncation leaves as it is, so the
+        // rest of the log is copied unchanged
         File newFile = new File("logtmp" + System.currentTimeMillis());
         RandomAccessFile logNew = new RandomAccessFile(newFile, "rw");
         logNew.seek(0);
-        logNew.writeLong((cpLoc - minLogRecord) + LONG_SIZE);
-
-        raf.seek(minLogRecord);
-
-        //have to rewrite log records since offsets are different after truncation
-        while (true) {
-            try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-                long newStart = logNew.getFilePointer();
-
-                Debug.log("NEW START = " + newStart);
-
-                logNew.writeInt(type);
-                logNew.writeLong(record_tid);
-
-                switch (type) {
-                case UPDATE_RECORD:
-                    Page before = readPageData(raf);
-                    Page after = readPageData(raf);
-
-                    writePageData(logNew, before);
-                    writePageData(logNew, after);
-                    break;
-                case CHECKPOINT_RECORD:
-                    int numXactions = raf.readInt();
-                    logNew.writeInt(numXactions);
-                    while (numXactions-- > 0) {
-                        long xid = raf.readLong();
-                        long xoffset = raf.readLong();
-                        logNew.writeLong(xid);
-                        logNew.writeLong((xoffset - minLogRecord) + LONG_SIZE);
-                    }
-                    break;
-                case BEGIN_RECORD:
-                    tidToFirstLogRecord.put(record_tid,newStart);
-                    break;
-                }
-
-                //all xactions finish with a pointer
-                logNew.writeLong(newStart);
-                raf.readLong();
-
-            } catch (EOFException e) {
-                break;
-            }
+        logNew.writeLong(cpLoc);
+        logNew.writeLong(minLogRecord - HEADER_SIZE);
+        FileChannel in = raf.getChannel();
+        long length = in.size();
+        while (from < length) {
+            from += in.transferTo(from, length - from, logNew.getChannel());
         }
+        logNew.close();
 
-        Debug.log("TRUNCATING LOG;  WAS " + raf.length() + " BYTES ; NEW START : " + minLogRecord + " NEW LENGTH: " + (raf.length() - minLogRecord));
+        Debug.log("TRUNCATING LOG;  WAS " + length + " BYTES ; NEW START : " + (minLogRecord - lsnBase) + " NEW LENGTH: " + (length - (minLogRecord - lsnBase) + HEADER_SIZE));
 
         raf.close();
         logFile.delete();
@@ -455,7 +975,12 @@ public class LogFile {
         raf.seek(raf.length());
         newFile.delete();
 
+        // the records keep their LSNs
+        lsnBase = minLogRecord - HEADER_SIZE;
         currentOffset = raf.getFilePointer();
+        buffer.reset(raf.getChannel(), currentOffset);
+        // the copy of the records forced before is not on disk yet
+        forceNow(getEndLSN());
         //print();
     }
 
@@ -463,7 +988,8 @@ public class LogFile {
         of pages it updated to their pre-updated state.  To preserve
         transaction semantics, this should not be called on
         transactions that have already committed (though this may not
-        be enforced by this method.)
+        be enforced by this method.)  Every update undone gets a CLR, so
+        a later rollback, or recovery, does not undo it again.
 
         @param tid The transaction to rollback
     */
@@ -472,41 +998,170 @@ public class LogFile {
         synchronized (Database.getBufferPool()) {
             synchronized(this) {
                 preAppend();
-                // some code goes here
-                HashSet set = new HashSet<PageId>();
-                long tStart = tidToFirstLogRecord.get(tid.getId());
-                raf.seek(tStart);
-                while (true) {
-                    try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                readPageData(raf);
-                                PageId pid = before.getId();
-                                if (record_tid == tid.getId() && !set.contains(pid)) {
-                                    Database.getBufferPool().discardPage(pid);
-                                    set.add(pid);
-                                    Database.getCatalog().getDatabaseFile(pid.getTableId()).writePage(before);
-                                }
+                if (!tidToLastLSN.containsKey(tid.getId())) {
+                    throw new NoSuchElementException("transaction " + tid.getId() + " is not running");
+                }
+                buffer.drainAll();
+                Map<PageId,PageImage> images = new LinkedHashMap<PageId,PageImage>();
+                undo(Collections.singleton(tid.getId()), false, images, INLINE);
+                writeImages(images, INLINE);
+            }
+        }
+    }
 
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-                        }
-                        //all xactions finish with a pointer
-                        raf.readLong();
-                    } catch (EOFException e) {
-                        break;
-                    }
+    /** The records of a running transaction left to undo, read in chunks
+        of UNDO_CHUNK, the next chunk while the records of the last one are
+        undone. */
+    private class UndoChain {
+        final long tid;
+        /** The LSN of the next record to undo */
+        long lsn;
+        private final LogReader in = new LogReader(raf.getChannel(), 0);
+        private final Executor executor;
+        private ArrayDeque<LogRecord> records = new ArrayDeque<LogRecord>();
+        /** The next chunk, or null if the last one was read */
+        private FutureTask<ArrayDeque<LogRecord>> pending;
+
+        UndoChain(long tid, long lsn, Executor executor) {
+            this.tid = tid;
+            this.lsn = lsn;
+            this.executor = executor;
+            pending = readChunk(lsn);
+        }
+
+        private FutureTask<ArrayDeque<LogRecord>> readChunk(long from) {
+            FutureTask<ArrayDeque<LogRecord>> chunk = new FutureTask<ArrayDeque<LogRecord>>(() -> {
+                ArrayDeque<LogRecord> read = new ArrayDeque<LogRecord>();
+                for (long next = from; next != NO_LSN && read.size() < UNDO_CHUNK; ) {
+                    LogRecord r = readRecord(in, next, true);
+                    read.add(r);
+                    next = undoNext(r);
                 }
+                return read;
+            });
+            executor.execute(chunk);
+            return chunk;
+        }
+
+        /** @return the record with LSN lsn */
+        LogRecord take() throws IOException {
+            if (records.isEmpty()) {
+                records = await(pending);
+                long next = undoNext(records.getLast());
+                pending = next != NO_LSN ? readChunk(next) : null;
+            }
+            return records.poll();
+        }
+    }
+
+    /** @return the LSN of the record to undo after r, of its transaction */
+    private static long undoNext(LogRecord r) {
+        return r.type == CLR_RECORD ? r.undoNextLSN : r.prevLSN;
+    }
+
+    /** Undo the updates of the given running transactions, latest record
+        first, following the previous LSNs of their records, and the undo
+        next LSNs of their CLRs, so updates undone before are skipped.
+        Each update undone gets a CLR.  The caller holds this, and has
+        drained the log buffer.
+
+        @param abort Whether to end each transaction with an ABORT record
+        once its first record is reached
+        @param images The images of the pages, as of the last record of
+        the transactions, which are read from disk if missing, and are
+        to be written once the CLRs are on disk
+        @param executor Reads the records of the transactions ahead
+    */
+    private void undo(Collection<Long> tids, boolean abort, Map<PageId,PageImage> images,
+                      Executor executor)
+        throws IOException {
+        PriorityQueue<UndoChain> chains = new PriorityQueue<UndoChain>((x, y) -> Long.compare(y.lsn, x.lsn));
+        for (long tid : tids) {
+            chains.add(new UndoChain(tid, tidToLastLSN.get(tid), executor));
+        }
+        while (!chains.isEmpty()) {
+            UndoChain chain = chains.poll();
+            LogRecord r = chain.take();
+            switch (r.type) {
+            case UPDATE_RECORD:
+                appendCLR(r);
+                images.put(r.pid, r.before);
+                break;
+            case DELTA_RECORD:
+                appendCLR(r);
+                r.delta.undo(imageOf(images, r).data);
+                break;
+            }
+            chain.lsn = undoNext(r);
+            if (chain.lsn != NO_LSN) {
+                chains.add(chain);
+            } else if (abort) {
+                beginRecord(ABORT_RECORD, r.tid);
+                endRecord();
+                tidToFirstLogRecord.remove(r.tid);
+                tidToLastLSN.remove(r.tid);
+            }
+        }
+    }
+
+    /** Return the image of the page of a DELTA record, or CLR without an
+        image, from images, or else from disk. */
+    private PageImage imageOf(Map<PageId,PageImage> images, LogRecord r) {
+        PageImage image = images.get(r.pid);
+        if (image == null) {
+            image = PageImage.read(r);
+            images.put(r.pid, image);
+        }
+        return image;
+    }
+
+    /** Force the log, then write the given page images, replacing the
+        pages in the buffer pool.  The caller holds the buffer pool and
+        this.
+
+        @param executor Writes the pages
+    */
+    private void writeImages(Map<PageId,PageImage> images, Executor executor) throws IOException {
+        if (images.isEmpty()) {
+            return;
+        }
+        force();
+        List<FutureTask<Void>> writes = new ArrayList<FutureTask<Void>>();
+        for (Map.Entry<PageId,PageImage> e : images.entrySet()) {
+            Page p = newPage(e.getValue().pageClass, e.getKey(), e.getValue().data);
+            Database.getBufferPool().discardPage(p.getId());
+            DbFile file = Database.getCatalog().getDatabaseFile(p.getId().getTableId());
+            FutureTask<Void> write = new FutureTask<Void>(() -> {
+                file.writePage(p);
+                return null;
+            });
+            executor.execute(write);
+            writes.add(write);
+        }
+        for (FutureTask<Void> write : writes) {
+            await(write);
+        }
+    }
+
+    /** Wait for the result of a task of recovery, rethrowing what it
+        threw. */
+    static <T> T await(Future<T> f) throws IOException {
+        try {
+            return f.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
             }
+            if (e.getCause() instanceof RuntimeException) {
+                throw (RuntimeException) e.getCause();
+            }
+            if (e.getCause() instanceof Error) {
+                throw (Error) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for recovery");
         }
     }
 
@@ -514,146 +1169,302 @@ public class LogFile {
         is necessary so that start up can happen quickly (without
         extensive recovery.)
     */
-    public synchronized void shutdown() {
-        try {
-            logCheckpoint();  //simple way to shutdown is to write a checkpoint record
-            raf.close();
-        } catch (IOException e) {
-            System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
-            e.printStackTrace();
+    public void shutdown() {
+        // the checkpointer needs this lock to finish its last checkpoint
+        stopCheckpointer();
+        // and the flusher, to force the commits waiting for it
+        stopGroupCommit();
+        synchronized (this) {
+            try {
+                logCheckpoint();  //simple way to shutdown is to write a checkpoint record
+                raf.close();
+            } catch (IOException e) {
+                System.out.println("ERROR SHUTTING DOWN -- IGNORING.");
+                e.printStackTrace();
+            }
         }
     }
 
     /** Recover the database system by ensuring that the updates of
         committed transactions are installed and that the
         updates of uncommitted transactions are not installed.
+        The work is proportional to the log from the last checkpoint on,
+        and the oldest recovery LSN it lists, and is spread over the
+        threads set by setRecoveryThreads().
     */
     public void recover() throws IOException {
-        Database.getLogFile().print();
-        raf.seek(0);
         synchronized (Database.getBufferPool()) {
             synchronized (this) {
                 recoveryUndecided = false;
-                // some code goes here
-                HashSet<Long> commited = new HashSet<>();
-                // tid -> page  前提是每个transaction只改变了一个页, 按照测试用例简化了实现
-                HashMap<Long,Page> beforePages = new HashMap<>();
-                HashMap<Long,Page> afterPages = new HashMap<>();
+                if (raf.length() < HEADER_SIZE) {
+                    // nothing was logged
+                    startLog();
+                    return;
+                }
+                raf.seek(0);
                 long checkpoint = raf.readLong();
-                if (checkpoint != -1) {
-                    raf.seek(checkpoint);
+                lsnBase = raf.readLong();
+                tidToFirstLogRecord.clear();
+                tidToLastLSN.clear();
+                dirtyPages.clear();
+
+                // analysis: the transactions running at the crash, and the
+                // pages that may not have been on disk
+                LogReader in = new LogReader(raf.getChannel(), HEADER_SIZE);
+                long firstLSN = lsnBase + HEADER_SIZE;
+                if (checkpoint != NO_CHECKPOINT_ID) {
+                    LogRecord cp = readRecord(in, checkpoint, false);
+                    for (Map.Entry<Long,long[]> e : cp.transactions.entrySet()) {
+                        tidToFirstLogRecord.put(e.getKey(), e.getValue()[0]);
+                        tidToLastLSN.put(e.getKey(), e.getValue()[1]);
+                    }
+                    for (Map.Entry<PageId,Long> e : cp.dirtyPages.entrySet()) {
+                        // pages flushed since are listed with the recovery
+                        // LSN they had, which truncation may have removed
+                        dirtyPages.put(e.getKey(), Math.max(e.getValue(), firstLSN));
+                    }
                 }
+                long end = in.offset();
                 while (true) {
+                    LogRecord r;
                     try {
-                        int type = raf.readInt();
-                        long record_tid = raf.readLong();
-                        switch (type) {
-                            case UPDATE_RECORD:
-                                Page before = readPageData(raf);
-                                Page after = readPageData(raf);
-                                if (!beforePages.containsKey(record_tid)) {
-                                    beforePages.put(record_tid,before);
-                                }
-                                afterPages.put(record_tid,after);
-                                break;
-                            case CHECKPOINT_RECORD:
-                                int numXactions = raf.readInt();
-                                while (numXactions-- > 0) {
-                                    raf.readLong();
-                                    raf.readLong();
-                                }
-                                break;
-                            case COMMIT_RECORD:
-                                commited.add(record_tid);
-                                break;
-                        }
-                        //all xactions finish with a pointer
-                        raf.readLong();
+                        r = readRecord(in, false);
                     } catch (EOFException e) {
                         break;
                     }
-                }
-
-                for (long tid: commited) {
-                    if (afterPages.containsKey(tid)) {
-                        Page p = afterPages.get(tid);
-                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                    end = in.offset();
+                    switch (r.type) {
+                        case BEGIN_RECORD:
+                            tidToFirstLogRecord.put(r.tid, r.lsn);
+                            tidToLastLSN.put(r.tid, r.lsn);
+                            break;
+                        case UPDATE_RECORD:
+                        case DELTA_RECORD:
+                        case CLR_RECORD:
+                            tidToLastLSN.put(r.tid, r.lsn);
+                            dirtyPages.putIfAbsent(r.pid, r.lsn);
+                            break;
+                        case COMMIT_RECORD:
+                        case ABORT_RECORD:
+                            tidToFirstLogRecord.remove(r.tid);
+                            tidToLastLSN.remove(r.tid);
+                            break;
                     }
                 }
-                for (long tid: beforePages.keySet()) {
-                    if (!commited.contains(tid)) {
-                        Page p = beforePages.get(tid);
-                        Database.getCatalog().getDatabaseFile(p.getId().getTableId()).writePage(p);
+                // a record torn by the crash is not part of the log
+                raf.setLength(end);
+                currentOffset = end;
+                buffer.reset(raf.getChannel(), currentOffset);
+
+                // redo: repeat history from the oldest recovery LSN,
+                // applying the updates and CLRs at or past the recovery LSN
+                // of their page to its image, in memory, so every page is
+                // written once
+                int threads = recoveryThreads;
+                ThreadPoolExecutor pool = threads > 1 ? newRecoveryPool(threads) : null;
+                Executor executor = pool != null ? pool : INLINE;
+                try {
+                    Map<PageId,PageImage> images = new LinkedHashMap<PageId,PageImage>();
+                    if (!dirtyPages.isEmpty()) {
+                        ParallelRedo redo = pool != null ? new ParallelRedo(threads, pool) : null;
+                        try {
+                            in.seek(Collections.min(dirtyPages.values()) - lsnBase);
+                            while (in.offset() < end) {
+                                LogRecord r = readRecord(in, true);
+                                if (r.pid == null) {
+                                    continue;
+                                }
+                                Long recLSN = dirtyPages.get(r.pid);
+                                if (recLSN == null || r.lsn < recLSN) {
+                                    continue;
+                                }
+                                if (redo != null) {
+                                    redo.add(r);
+                                } else if (r.delta != null) {
+                                    r.delta.redo(imageOf(images, r).data);
+                                } else {
+                                    images.put(r.pid, r.after);
+                                }
+                            }
+                        } finally {
+                            if (redo != null) {
+                                images.putAll(redo.finish());
+                            }
+                        }
                     }
-                }
 
+                    // undo: roll back the transactions that were running
+                    undo(new ArrayList<Long>(tidToLastLSN.keySet()), true, images, executor);
+                    writeImages(images, executor);
+                } finally {
+                    if (pool != null) {
+                        pool.shutdownNow();
+                    }
+                }
+                loggedImages.clear();
+                dirtyPages.clear();
             }
          }
     }
 
+    private static ThreadPoolExecutor newRecoveryPool(int threads) {
+        return new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                new LinkedBlockingQueue<Runnable>(), r -> {
+                    Thread t = new Thread(r, "LogFile recovery");
+                    t.setDaemon(true);
+                    return t;
+                });
+    }
+
     /** Print out a human readable represenation of the log */
-    public void print() throws IOException {
+    public synchronized void print() throws IOException {
         // some code goes here
+        buffer.drainAll();
+        if (raf.length() < HEADER_SIZE) {
+            return;
+        }
         raf.seek(0);
 
         StringBuilder sb = new StringBuilder();
-        sb.append(raf.readLong()+"\n");
+        sb.append(raf.readLong()+"\t"+raf.readLong()+"\n");
+        LogReader in = new LogReader(raf.getChannel(), HEADER_SIZE);
         while (true) {
+            LogRecord r;
             try {
-                int type = raf.readInt();
-                long record_tid = raf.readLong();
-
-                switch (type) {
-                    case UPDATE_RECORD:
-                        sb.append("UPDATE_RECORD"+"\t");
-                        sb.append(record_tid+"\t");
-                        readPageData(raf);
-                        readPageData(raf);
-
-                        raf.readLong();
-                        sb.append("END_UPDATE"+"\n");
-                        break;
-                    case CHECKPOINT_RECORD:
-                        sb.append("CHECKPOINT_RECORD"+"\t");
-                        sb.append(record_tid+"\t");
-                        int numXactions = raf.readInt();
-                        while (numXactions-- > 0) {
-                            raf.readLong();
-                            raf.readLong();
-
-                        }
-                        raf.readLong();
-                        sb.append("END_CHECKPOINT"+"\n");
-                        break;
-                    case BEGIN_RECORD:
-                        sb.append("BEGIN_RECORD"+"\t");
-                        sb.append(record_tid+"\t");
-                        raf.readLong();
-                        sb.append("END_BEGIN"+"\n");
-                        break;
-                    case ABORT_RECORD:
-                        sb.append("ABORT_RECORD"+"\t");
-                        sb.append(record_tid+"\t");
-                        raf.readLong();
-                        sb.append("END_ABORT"+"\n");
-                        break;
-                    case COMMIT_RECORD:
-                        sb.append("COMMIT_RECORD"+"\t");
-                        sb.append(record_tid+"\t");
-                        raf.readLong();
-                        sb.append("END_COMMIT"+"\n");
-                        break;
-                }
-
+                r = readRecord(in, false);
             } catch (EOFException e) {
-                System.out.println(sb);
                 break;
             }
+            switch (r.type) {
+                case UPDATE_RECORD:
+                    sb.append("UPDATE_RECORD"+"\t");
+                    break;
+                case DELTA_RECORD:
+                    sb.append("DELTA_RECORD"+"\t");
+                    break;
+                case CLR_RECORD:
+                    sb.append("CLR_RECORD"+"\t");
+                    break;
+                case CHECKPOINT_RECORD:
+                    sb.append("CHECKPOINT_RECORD"+"\t");
+                    break;
+                case BEGIN_RECORD:
+                    sb.append("BEGIN_RECORD"+"\t");
+                    break;
+                case ABORT_RECORD:
+                    sb.append("ABORT_RECORD"+"\t");
+                    break;
+                case COMMIT_RECORD:
+                    sb.append("COMMIT_RECORD"+"\t");
+                    break;
+            }
+            sb.append(r.lsn+"\t"+r.tid+"\t"+r.prevLSN);
+            if (r.pid != null) {
+                sb.append("\t"+r.pid);
+            }
+            if (r.type == CLR_RECORD) {
+                sb.append("\tundo next "+r.undoNextLSN);
+            }
+            if (r.type == CHECKPOINT_RECORD) {
+                sb.append("\t"+r.transactions.size()+" transactions, "+r.dirtyPages.size()+" dirty pages");
+            }
+            sb.append("\n");
         }
+        System.out.println(sb);
     }
 
-    public  synchronized void force() throws IOException {
+    /** Force the log to disk, up to the last record appended.  Unless
+        the caller holds the log, the force is shared with the commits
+        and forces of other threads, see {@link #setGroupCommit}.
+    */
+    public void force() throws IOException {
+        long end;
+        synchronized (this) {
+            end = lsnBase + currentOffset;
+        }
+        awaitDurable(end);
+    }
+
+    /** Force the log to disk up to and including the record with the
+        given LSN, and not necessarily further.  Returns at once if that
+        record is on disk already, which makes it cheap to call before
+        writing any page, with the page's LSN.
+
+        @see Page#getLSN
+    */
+    public void force(long lsn) throws IOException {
+        awaitDurable(lsn + 1);
+    }
+
+    /** Wait until the log is on disk up to LSN upTo, excluded. */
+    private void awaitDurable(long upTo) throws IOException {
+        if (groupCommit.isDurable(upTo)) {
+            return;
+        }
+        // a caller holding the log would keep the flusher from reading it
+        if (Thread.holdsLock(this) || !groupCommitEnabled) {
+            synchronized (this) {
+                forceNow(upTo);
+            }
+            return;
+        }
+        CompletableFuture<Void> done = groupCommit.durable(upTo);
+        if (done == null) {
+            synchronized (this) {
+                forceNow(upTo);
+            }
+            return;
+        }
+        try {
+            done.get();
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for the log to be forced");
+        }
+    }
+
+    /** Force the log to disk up to LSN upTo, excluded, while holding it. */
+    private void forceNow(long upTo) throws IOException {
+        buffer.drain(upTo - lsnBase);
         raf.getChannel().force(true);
+        forces.increment();
+        groupCommit.forced(lsnBase + buffer.getFileEnd());
+    }
+
+    /**
+     * Forces the log up to LSN upTo, excluded, for the group commit
+     * flusher.  The records are written to the file holding the log, but
+     * the log is not held during the force, so other threads go on
+     * appending records.
+     *
+     * @return the LSN up to which the log is on disk
+     */
+    long forceAppended(long upTo) throws IOException {
+        while (true) {
+            FileChannel channel;
+            long durable;
+            synchronized (this) {
+                channel = raf.getChannel();
+                if (!channel.isOpen()) {
+                    throw new IOException("log file is closed");
+                }
+                buffer.drain(upTo - lsnBase);
+                durable = lsnBase + buffer.getFileEnd();
+            }
+            try {
+                channel.force(true);
+                forces.increment();
+                return durable;
+            } catch (ClosedChannelException e) {
+                // logTruncate() replaced the file meanwhile, with a copy
+                // of the records; force the copy
+            }
+        }
     }
 
 }
@@ -0,0 +1,98 @@
+package simpledb;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Reads log records from the file of a LogFile, through a buffer of its
+ * own, so reading the log one record after another does not take a system
+ * call per field.  Reads are positional: they do not move the channel's
+ * position, at which the LogBuffer drains records.
+ * <p>
+ * Positions are offsets in the log file.  Records still in the LogBuffer
+ * have to be drained before they can be read.
+ */
+class LogReader extends DataInputStream {
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static class Input extends InputStream {
+        private final FileChannel channel;
+        private final ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        /** the offset of the first byte of buf */
+        private long start;
+
+        Input(FileChannel channel, long offset) {
+            this.channel = channel;
+            buf.limit(0);
+            seek(offset);
+        }
+
+        long offset() {
+            return start + buf.position();
+        }
+
+        void seek(long offset) {
+            if (offset >= start && offset <= start + buf.limit()) {
+                buf.position((int) (offset - start));
+            } else {
+                start = offset;
+                buf.clear();
+                buf.limit(0);
+            }
+        }
+
+        /** @return false at the end of the file */
+        private boolean fill() throws IOException {
+            start += buf.limit();
+            buf.clear();
+            int n = channel.read(buf, start);
+            buf.flip();
+            return n > 0;
+        }
+
+        @Override
+        public int read() throws IOException {
+            if (!buf.hasRemaining() && !fill()) {
+                return -1;
+            }
+            return buf.get() & 0xff;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buf.hasRemaining() && !fill()) {
+                return -1;
+            }
+            int n = Math.min(len, buf.remaining());
+            buf.get(b, off, n);
+            return n;
+        }
+    }
+
+    private final Input input;
+
+    LogReader(FileChannel channel, long offset) {
+        this(new Input(channel, offset));
+    }
+
+    private LogReader(Input input) {
+        super(input);
+        this.input = input;
+    }
+
+    /** @return the offset of the next byte read */
+    long offset() {
+        return input.offset();
+    }
+
+    /** Makes the next read start at the given offset. */
+    void seek(long offset) {
+        input.seek(offset);
+    }
+}
@@ -0,0 +1,57 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * Least recently used replacement.  Evicting walks from the least
+ * recently used end, so its cost grows with the number of unevictable
+ * pages in front of the victim.
+ */
+public class LruPolicy implements ReplacementPolicy {
+
+    // least recently used first
+    private final LinkedHashSet<PageId> order = new LinkedHashSet<PageId>();
+
+    public void pageAdded(PageId pid) {
+        order.add(pid);
+    }
+
+    public void pageHit(PageId pid) {
+        if (order.remove(pid)) {
+            order.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        order.remove(pid);
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        Iterator<PageId> it = order.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    public List<PageId> nextVictims(int n, Predicate<PageId> wanted) {
+        List<PageId> victims = new ArrayList<PageId>();
+        for (PageId pid : order) {
+            if (victims.size() == n) {
+                break;
+            }
+            if (wanted.test(pid)) {
+                victims.add(pid);
+            }
+        }
+        return victims;
+    }
+}
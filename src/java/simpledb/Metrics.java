@@ -0,0 +1,205 @@
+package simpledb;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+/**
+ * A registry of named counters, gauges and latency histograms.
+ * <p>
+ * Counters and histograms are built on striped {@link LongAdder}s, so
+ * threads updating them on hot paths do not contend on a single cache
+ * line; reading them sums the stripes and is comparatively slow.  Gauges
+ * are computed when a snapshot is taken.
+ *
+ * @Threadsafe
+ * @see BufferPool#getMetrics()
+ */
+public class Metrics {
+
+    /** A monotonically increasing count. */
+    public static class Counter {
+        private final LongAdder count = new LongAdder();
+
+        public void increment() {
+            count.increment();
+        }
+
+        public void add(long n) {
+            count.add(n);
+        }
+
+        public long get() {
+            return count.sum();
+        }
+    }
+
+    /**
+     * Latencies in nanoseconds, bucketed by powers of two, so percentiles
+     * are accurate to within a factor of two.
+     */
+    public static class Histogram {
+        private static final int BUCKETS = 64;
+
+        private final LongAdder[] buckets = new LongAdder[BUCKETS];
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+        private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+        Histogram() {
+            for (int i = 0; i < BUCKETS; i++) {
+                buckets[i] = new LongAdder();
+            }
+        }
+
+        /** Records the time since start, a System.nanoTime() value. */
+        public void recordSince(long start) {
+            record(System.nanoTime() - start);
+        }
+
+        public void record(long nanos) {
+            nanos = Math.max(0, nanos);
+            buckets[63 - Long.numberOfLeadingZeros(Math.max(1, nanos))].increment();
+            count.increment();
+            sum.add(nanos);
+            max.accumulate(nanos);
+        }
+
+        public HistogramSnapshot snapshot() {
+            long[] counts = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                counts[i] = buckets[i].sum();
+            }
+            return new HistogramSnapshot(counts, count.sum(), sum.sum(), max.get());
+        }
+    }
+
+    /** The state of a histogram at one point in time. */
+    public static class HistogramSnapshot {
+        private final long[] buckets;
+        private final long count;
+        private final long sum;
+        private final long max;
+
+        HistogramSnapshot(long[] buckets, long count, long sum, long max) {
+            this.buckets = buckets;
+            this.count = count;
+            this.sum = sum;
+            this.max = max;
+        }
+
+        /** @return the number of recorded latencies */
+        public long getCount() {
+            return count;
+        }
+
+        /** @return the mean latency in nanoseconds, or 0 if there is none */
+        public long getMean() {
+            return count == 0 ? 0 : sum / count;
+        }
+
+        /** @return the largest latency in nanoseconds */
+        public long getMax() {
+            return max;
+        }
+
+        /**
+         * @param p the percentile, between 0 and 100
+         * @return an upper bound of the p-th percentile latency in
+         *     nanoseconds, or 0 if there is none
+         */
+        public long getPercentile(double p) {
+            long rank = (long) Math.ceil(p / 100 * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= rank && seen > 0) {
+                    return i >= 62 ? max : Math.min(max, (1L << (i + 1)) - 1);
+                }
+            }
+            return 0;
+        }
+
+        public String toString() {
+            return String.format("count %d, mean %.1f us, p50 %.1f us, p99 %.1f us, max %.1f us",
+                    count, getMean() / 1e3, getPercentile(50) / 1e3, getPercentile(99) / 1e3, max / 1e3);
+        }
+    }
+
+    /** The values of all metrics of a registry at one point in time. */
+    public static class Snapshot {
+        private final SortedMap<String, Long> counters = new TreeMap<String, Long>();
+        private final SortedMap<String, Long> gauges = new TreeMap<String, Long>();
+        private final SortedMap<String, HistogramSnapshot> histograms = new TreeMap<String, HistogramSnapshot>();
+
+        public SortedMap<String, Long> getCounters() {
+            return counters;
+        }
+
+        public SortedMap<String, Long> getGauges() {
+            return gauges;
+        }
+
+        public SortedMap<String, HistogramSnapshot> getHistograms() {
+            return histograms;
+        }
+
+        /** @return the counter or gauge of the given name, or 0 if there is none */
+        public long get(String name) {
+            Long v = counters.containsKey(name) ? counters.get(name) : gauges.get(name);
+            return v == null ? 0 : v;
+        }
+
+        public String toString() {
+            StringBuilder sb = new StringBuilder();
+            for (Map.Entry<String, Long> e : gauges.entrySet()) {
+                sb.append(String.format("%-24s %d%n", e.getKey(), e.getValue()));
+            }
+            for (Map.Entry<String, Long> e : counters.entrySet()) {
+                sb.append(String.format("%-24s %d%n", e.getKey(), e.getValue()));
+            }
+            for (Map.Entry<String, HistogramSnapshot> e : histograms.entrySet()) {
+                sb.append(String.format("%-24s %s%n", e.getKey(), e.getValue()));
+            }
+            return sb.toString();
+        }
+    }
+
+    private final ConcurrentHashMap<String, Counter> counters = new ConcurrentHashMap<String, Counter>();
+    private final ConcurrentHashMap<String, LongSupplier> gauges = new ConcurrentHashMap<String, LongSupplier>();
+    private final ConcurrentHashMap<String, Histogram> histograms = new ConcurrentHashMap<String, Histogram>();
+
+    /** @return the counter of the given name, created if need be */
+    public Counter counter(String name) {
+        return counters.computeIfAbsent(name, n -> new Counter());
+    }
+
+    /** @return the histogram of the given name, created if need be */
+    public Histogram histogram(String name) {
+        return histograms.computeIfAbsent(name, n -> new Histogram());
+    }
+
+    /** Registers a gauge, replacing any of the same name. */
+    public void gauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /** @return the current values of all metrics */
+    public Snapshot snapshot() {
+        Snapshot s = new Snapshot();
+        for (Map.Entry<String, Counter> e : counters.entrySet()) {
+            s.counters.put(e.getKey(), e.getValue().get());
+        }
+        for (Map.Entry<String, LongSupplier> e : gauges.entrySet()) {
+            s.gauges.put(e.getKey(), e.getValue().getAsLong());
+        }
+        for (Map.Entry<String, Histogram> e : histograms.entrySet()) {
+            s.histograms.put(e.getKey(), e.getValue().snapshot());
+        }
+        return s;
+    }
+}
@@ -0,0 +1,64 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * The read and write sets of a transaction running under optimistic
+ * concurrency control, see {@link BufferPool#beginOptimistic(TransactionId)}.
+ * <p>
+ * Every page the transaction reads is a private copy of the page's
+ * committed image, taken along with the page's commit version.  The
+ * transaction writes its copies in place, so its writes stay local until
+ * it validates and installs them at commit.
+ *
+ * @Threadsafe
+ */
+class OptimisticState {
+    /** the private copy of each page read or written */
+    private final ConcurrentHashMap<PageId, Page> pages = new ConcurrentHashMap<>();
+
+    /** the commit version each page was read at */
+    private final ConcurrentHashMap<PageId, Long> versions = new ConcurrentHashMap<>();
+
+    /** the pages written */
+    private final Set<PageId> written = ConcurrentHashMap.newKeySet();
+
+    /** @return the private copy of pid, or null if it was not read yet */
+    Page get(PageId pid) {
+        return pages.get(pid);
+    }
+
+    /** Adds a page to the read set, read at the given version. */
+    void read(PageId pid, long version, Page copy) {
+        versions.put(pid, version);
+        pages.put(pid, copy);
+    }
+
+    /** Adds a page of the read set to the write set. */
+    void write(PageId pid) {
+        written.add(pid);
+    }
+
+    /** @return the commit version pid was read at */
+    long versionRead(PageId pid) {
+        return versions.get(pid);
+    }
+
+    /** @return the pages read, written or not */
+    Set<PageId> readSet() {
+        return versions.keySet();
+    }
+
+    /**
+     * @return the pages written, in a fixed order, so that transactions
+     *     lock them at commit without deadlocking each other
+     */
+    List<PageId> writeSet() {
+        List<PageId> res = new ArrayList<>(written);
+        res.sort(Comparator.comparingInt(PageId::getTableId)
+                .thenComparingInt(PageId::getPageNumber)
+                .thenComparingInt(PageId::hashCode));
+        return res;
+    }
+}
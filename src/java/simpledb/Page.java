@@ -29,10 +29,25 @@ public interface Page {
     public TransactionId isDirty();
 
   /**
-   * Set the dirty state of this page as dirtied by a particular transaction
+   * Set the dirty state of this page as dirtied by a particular transaction.
+   * Implementations synchronize on the page, so that the background page
+   * writer can write a page and mark it clean without losing a concurrent
+   * update: callers mark pages dirty after modifying them.
    */
     public void markDirty(boolean dirty, TransactionId tid);
 
+    /**
+     * Get the LSN of the last log record of an update to this page, or 0
+     * if none was logged since the page was read.  The log must be on disk
+     * up to this LSN before the page is written (write-ahead logging).
+     *
+     * @see LogFile#force(long)
+     */
+    public long getLSN();
+
+    /** Set the LSN of the last log record of an update to this page. */
+    public void setLSN(long lsn);
+
   /**
    * Generates a byte array representing the contents of this page.
    * Used to serialize this page to disk.
@@ -56,4 +71,14 @@ public interface Page {
      * copy current content to the before image.
      */
     public void setBeforeImage();
+
+    /**
+     * Stop referring to the buffer pool frame this page was read into, if
+     * any, keeping a private copy of its contents instead.  BufferPool calls
+     * this before it hands the frame to another page.
+     *
+     * @see DbFile#readPage(PageId, java.nio.ByteBuffer)
+     */
+    default void detachFrame() {
+    }
 }
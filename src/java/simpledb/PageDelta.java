@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The difference between two images of a page, as the byte ranges that
+ * changed, which the log records instead of the whole images once it has
+ * logged the page in full.
+ * <p>
+ * A range that was all zeros before is a slot insert and only holds the
+ * bytes after; a range that is all zeros after is a slot delete and only
+ * holds the bytes before; other ranges hold both.  Pages zero the slots
+ * they free, so inserting or deleting a tuple logs the tuple once, and
+ * the byte of the header that changed.
+ * <p>
+ * Applying a delta sets its ranges, whatever they held, so redoing or
+ * undoing it twice is harmless, but the bytes outside of the ranges have
+ * to be as they were when the delta was taken.
+ */
+class PageDelta {
+    static final byte INSERT = 1;
+    static final byte DELETE = 2;
+    static final byte DIFF = 3;
+
+    /** Ranges this close together are logged as one */
+    static final int MERGE_GAP = 8;
+
+    private final byte[] kinds;
+    private final int[] offsets;
+    private final byte[][] before;
+    private final byte[][] after;
+
+    private PageDelta(byte[] kinds, int[] offsets, byte[][] before, byte[][] after) {
+        this.kinds = kinds;
+        this.offsets = offsets;
+        this.before = before;
+        this.after = after;
+    }
+
+    /**
+     * Returns the delta turning one image of a page into another.
+     *
+     * @throws IllegalArgumentException if the images differ in length
+     */
+    static PageDelta diff(byte[] from, byte[] to) {
+        if (from.length != to.length) {
+            throw new IllegalArgumentException("page images of different lengths");
+        }
+        List<int[]> ranges = new ArrayList<int[]>();
+        int i = 0;
+        while (i < from.length) {
+            if (from[i] == to[i]) {
+                i++;
+                continue;
+            }
+            int start = i;
+            int end = i + 1;
+            // extend the range over gaps shorter than MERGE_GAP
+            for (int j = end; j < from.length && j < end + MERGE_GAP; j++) {
+                if (from[j] != to[j]) {
+                    end = j + 1;
+                }
+            }
+            ranges.add(new int[] {start, end});
+            i = end;
+        }
+
+        int n = ranges.size();
+        byte[] kinds = new byte[n];
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            int start = ranges.get(r)[0];
+            int len = ranges.get(r)[1] - start;
+            offsets[r] = start;
+            if (isZero(from, start, len)) {
+                kinds[r] = INSERT;
+                after[r] = copy(to, start, len);
+            } else if (isZero(to, start, len)) {
+                kinds[r] = DELETE;
+                before[r] = copy(from, start, len);
+            } else {
+                kinds[r] = DIFF;
+                before[r] = copy(from, start, len);
+                after[r] = copy(to, start, len);
+            }
+        }
+        return new PageDelta(kinds, offsets, before, after);
+    }
+
+    private static boolean isZero(byte[] b, int start, int len) {
+        for (int i = start; i < start + len; i++) {
+            if (b[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static byte[] copy(byte[] b, int start, int len) {
+        byte[] res = new byte[len];
+        System.arraycopy(b, start, res, 0, len);
+        return res;
+    }
+
+    private int length(int r) {
+        return (after[r] != null ? after[r] : before[r]).length;
+    }
+
+    /** @return whether the images the delta was taken from are equal */
+    boolean isEmpty() {
+        return kinds.length == 0;
+    }
+
+    /** @return the delta turning the image after this one into the image before */
+    PageDelta inverse() {
+        byte[] inverted = new byte[kinds.length];
+        for (int r = 0; r < kinds.length; r++) {
+            inverted[r] = kinds[r] == INSERT ? DELETE : kinds[r] == DELETE ? INSERT : DIFF;
+        }
+        return new PageDelta(inverted, offsets, after, before);
+    }
+
+    /** Turns the image before the delta into the image after it, in place. */
+    void redo(byte[] data) {
+        apply(data, after);
+    }
+
+    /** Turns the image after the delta into the image before it, in place. */
+    void undo(byte[] data) {
+        apply(data, before);
+    }
+
+    private void apply(byte[] data, byte[][] images) {
+        for (int r = 0; r < kinds.length; r++) {
+            if (images[r] != null) {
+                System.arraycopy(images[r], 0, data, offsets[r], images[r].length);
+            } else {
+                // the zeros of a slot insert or delete
+                Arrays.fill(data, offsets[r], offsets[r] + length(r), (byte) 0);
+            }
+        }
+    }
+
+    void write(DataOutput out) throws IOException {
+        out.writeInt(kinds.length);
+        for (int r = 0; r < kinds.length; r++) {
+            out.writeByte(kinds[r]);
+            out.writeInt(offsets[r]);
+            out.writeInt(length(r));
+            if (before[r] != null) {
+                out.write(before[r]);
+            }
+            if (after[r] != null) {
+                out.write(after[r]);
+            }
+        }
+    }
+
+    static PageDelta read(DataInput in) throws IOException {
+        int n = in.readInt();
+        byte[] kinds = new byte[n];
+        int[] offsets = new int[n];
+        byte[][] before = new byte[n][];
+        byte[][] after = new byte[n][];
+        for (int r = 0; r < n; r++) {
+            kinds[r] = in.readByte();
+            offsets[r] = in.readInt();
+            int len = in.readInt();
+            if (kinds[r] != INSERT) {
+                before[r] = new byte[len];
+                in.readFully(before[r]);
+            }
+            if (kinds[r] != DELETE) {
+                after[r] = new byte[len];
+                in.readFully(after[r]);
+            }
+        }
+        return new PageDelta(kinds, offsets, before, after);
+    }
+}
@@ -0,0 +1,45 @@
+package simpledb;
+
+/**
+ * A page pinned in the BufferPool on behalf of a transaction.  A pinned
+ * page is never evicted, so its contents can be used, and changed, without
+ * the risk of the pool dropping it and re-reading a stale copy later.
+ * <p>
+ * Handles are meant for try-with-resources:
+ * <pre>
+ * try (PageHandle h = Database.getBufferPool().pinPage(tid, pid, perm)) {
+ *     HeapPage p = (HeapPage) h.getPage();
+ *     ...
+ * }
+ * </pre>
+ * Closing a handle more than once has no further effect.  A handle belongs
+ * to a single thread.
+ *
+ * @see BufferPool#pinPage(TransactionId, PageId, Permissions)
+ */
+public class PageHandle implements AutoCloseable {
+    private final BufferPool pool;
+    private final TransactionId tid;
+    private final Page page;
+    private boolean released;
+
+    PageHandle(BufferPool pool, TransactionId tid, Page page) {
+        this.pool = pool;
+        this.tid = tid;
+        this.page = page;
+    }
+
+    /** @return the pinned page */
+    public Page getPage() {
+        return page;
+    }
+
+    /** Unpins the page. */
+    @Override
+    public void close() {
+        if (!released) {
+            released = true;
+            pool.unpinPage(tid, page.getId());
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package simpledb;
+
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Background thread that trickles dirty pages of a BufferPool to disk
+ * before they reach the eviction end of the pool, so that neither commits
+ * nor evictions have many pages left to write themselves.
+ * <p>
+ * The writer wakes up every {@link #TICK_MILLIS} ms and writes up to its
+ * share of a budget of pages per second, taking the dirty pages its
+ * pool's replacement policy would evict first.  Pages are written through
+ * {@link BufferPool#writeAheadPages}, which logs them and forces the log
+ * before each write.
+ *
+ * @see BufferPool#startPageWriter(int)
+ */
+public class PageWriter {
+    static final long TICK_MILLIS = 100;
+
+    private final BufferPool bp;
+    private final int pagesPerSecond;
+    private final AtomicLong pagesWritten = new AtomicLong();
+
+    private final Object lock = new Object();
+    private boolean running; // guarded by lock
+    private final Thread thread;
+
+    /**
+     * @param bp the pool whose dirty pages to write
+     * @param pagesPerSecond the most pages to write per second
+     */
+    PageWriter(BufferPool bp, int pagesPerSecond) {
+        if (pagesPerSecond <= 0) {
+            throw new IllegalArgumentException("page writer budget must be positive");
+        }
+        this.bp = bp;
+        this.pagesPerSecond = pagesPerSecond;
+        this.thread = new Thread(this::run, "BufferPool page writer");
+        thread.setDaemon(true);
+    }
+
+    /** @return the most pages this writer writes per second */
+    public int getPagesPerSecond() {
+        return pagesPerSecond;
+    }
+
+    /** @return the number of pages written so far */
+    public long getPagesWritten() {
+        return pagesWritten.get();
+    }
+
+    void start() {
+        synchronized (lock) {
+            running = true;
+        }
+        thread.start();
+    }
+
+    /**
+     * Stops the writer, waiting for the page it is writing.  The thread is
+     * not interrupted, as that would close the log's channel in the middle
+     * of a force.
+     */
+    void shutdown() {
+        synchronized (lock) {
+            running = false;
+            lock.notifyAll();
+        }
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void run() {
+        double perTick = pagesPerSecond * TICK_MILLIS / 1000.0;
+        double budget = 0;
+        while (sleep()) {
+            // unused budget does not carry over, so the writer never bursts
+            // above its rate after an idle period
+            budget = Math.min(budget + perTick, Math.max(1, perTick));
+            int n = (int) budget;
+            if (n == 0) {
+                continue;
+            }
+            try {
+                int written = bp.writeAheadPages(n);
+                pagesWritten.addAndGet(written);
+                budget = written == n ? budget - n : 0;
+            } catch (IOException e) {
+                e.printStackTrace();
+                budget = 0;
+            }
+        }
+    }
+
+    /** @return false once the writer has been shut down */
+    private boolean sleep() {
+        synchronized (lock) {
+            long until = System.currentTimeMillis() + TICK_MILLIS;
+            long left;
+            while (running && (left = until - System.currentTimeMillis()) > 0) {
+                try {
+                    lock.wait(left);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            return running;
+        }
+    }
+}
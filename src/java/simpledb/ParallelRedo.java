@@ -0,0 +1,143 @@
+package simpledb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+/**
+ * The redo pass of LogFile recovery, on a thread per partition of the
+ * pages.  The thread recovering reads the log and hands each record to
+ * redo to the partition of its page, by the hash of the PageId, so the
+ * records of a page are applied in log order, by one thread, while the
+ * pages of other partitions are redone at the same time.
+ * <p>
+ * Pages whose first record is a DELTA are read from disk, on the given
+ * executor, as soon as the record is handed over, so the reads overlap
+ * with the records queued before it.
+ *
+ * @see LogFile#recover()
+ */
+class ParallelRedo {
+    /** The most records queued for a partition */
+    static final int QUEUE_SIZE = 1024;
+
+    private static final LogFile.LogRecord DONE = new LogFile.LogRecord();
+
+    private final Executor prefetcher;
+    /** runs the partitions, a thread each */
+    private final ExecutorService workers;
+    private final List<BlockingQueue<LogFile.LogRecord>> queues =
+        new ArrayList<BlockingQueue<LogFile.LogRecord>>();
+    private final List<Future<Map<PageId,LogFile.PageImage>>> partitions =
+        new ArrayList<Future<Map<PageId,LogFile.PageImage>>>();
+    /** Pages handed over so far; only used by the thread handing them */
+    private final Set<PageId> seen = new HashSet<PageId>();
+    private final ConcurrentHashMap<PageId,Future<LogFile.PageImage>> prefetched =
+        new ConcurrentHashMap<PageId,Future<LogFile.PageImage>>();
+
+    /**
+     * Starts the threads of the given number of partitions, which
+     * {@link #finish()} stops.
+     *
+     * @param prefetcher runs the reads of pages ahead of the partitions;
+     *     its tasks must not wait for the partitions
+     */
+    ParallelRedo(int partitions, Executor prefetcher) {
+        this.prefetcher = prefetcher;
+        workers = Executors.newFixedThreadPool(partitions, r -> {
+            Thread t = new Thread(r, "LogFile redo");
+            t.setDaemon(true);
+            return t;
+        });
+        for (int i = 0; i < partitions; i++) {
+            BlockingQueue<LogFile.LogRecord> queue = new ArrayBlockingQueue<LogFile.LogRecord>(QUEUE_SIZE);
+            queues.add(queue);
+            this.partitions.add(workers.submit(() -> redo(queue)));
+        }
+    }
+
+    /** Hand an UPDATE, DELTA or CLR record over to be redone, after the
+        records of its page handed over before it. */
+    void add(LogFile.LogRecord r) throws IOException {
+        if (seen.add(r.pid) && r.delta != null) {
+            FutureTask<LogFile.PageImage> read = new FutureTask<LogFile.PageImage>(() -> LogFile.PageImage.read(r));
+            prefetched.put(r.pid, read);
+            prefetcher.execute(read);
+        }
+        try {
+            queues.get(Math.floorMod(r.pid.hashCode(), queues.size())).put(r);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted handing a log record over to redo");
+        }
+    }
+
+    /** Wait for the records handed over to be redone, and stop the
+        threads of the partitions.
+
+        @return the images of the pages redone
+    */
+    Map<PageId,LogFile.PageImage> finish() throws IOException {
+        Map<PageId,LogFile.PageImage> images = new HashMap<PageId,LogFile.PageImage>();
+        try {
+            for (BlockingQueue<LogFile.LogRecord> queue : queues) {
+                queue.put(DONE);
+            }
+            for (Future<Map<PageId,LogFile.PageImage>> partition : partitions) {
+                images.putAll(LogFile.await(partition));
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("interrupted waiting for redo");
+        } finally {
+            workers.shutdownNow();
+        }
+        return images;
+    }
+
+    /** Apply the records of a partition to the images of its pages.  A
+        partition that fails goes on taking its records, so the thread
+        handing them over is not blocked, and fails once it is done. */
+    private Map<PageId,LogFile.PageImage> redo(BlockingQueue<LogFile.LogRecord> queue) throws Exception {
+        Map<PageId,LogFile.PageImage> images = new HashMap<PageId,LogFile.PageImage>();
+        Exception failure = null;
+        LogFile.LogRecord r;
+        while ((r = queue.take()) != DONE) {
+            if (failure != null) {
+                continue;
+            }
+            try {
+                if (r.delta != null) {
+                    LogFile.PageImage image = images.get(r.pid);
+                    if (image == null) {
+                        Future<LogFile.PageImage> read = prefetched.remove(r.pid);
+                        image = read != null ? LogFile.await(read) : LogFile.PageImage.read(r);
+                        images.put(r.pid, image);
+                    }
+                    r.delta.redo(image.data);
+                } else {
+                    images.put(r.pid, r.after);
+                }
+            } catch (Exception e) {
+                failure = e;
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+        return images;
+    }
+}
@@ -492,7 +492,98 @@ public class Parser {
         return curtrans;
     }
 
+    /**
+     * Handles the statements Zql cannot parse:
+     * <ul>
+     * <li>SHOW BUFFERPOOL; prints the buffer pool's metrics, its sub-pools
+     * and how many pages of each table it caches.</li>
+     * <li>SHOW LOCKS; prints the lock manager's metrics, the locks held and
+     * waited for, and which transactions wait for which.</li>
+     * </ul>
+     *
+     * @param cmd the statement
+     * @return false if cmd is not one of these statements
+     */
+    public boolean handleShowStatement(String cmd) {
+        String c = cmd.trim().replaceAll("\\s+", " ").toLowerCase();
+        if (c.endsWith(";")) {
+            c = c.substring(0, c.length() - 1).trim();
+        }
+        if (c.equals("show bufferpool")) {
+            System.out.print(describeBufferPool());
+            return true;
+        }
+        if (c.equals("show locks")) {
+            System.out.print(describeLocks());
+            return true;
+        }
+        return false;
+    }
+
+    static String describeBufferPool() {
+        BufferPool bp = Database.getBufferPool();
+        StringBuilder sb = new StringBuilder();
+        sb.append(bp.getMetrics().snapshot());
+        for (SubPool pool : bp.getSubPools()) {
+            sb.append(String.format("sub-pool %s, hit ratio %.3f%n", pool, pool.getHitRatio()));
+        }
+        for (Map.Entry<Integer, Integer> e : bp.getResidency().entrySet()) {
+            String name = Database.getCatalog().getTableName(e.getKey());
+            sb.append(String.format("table %-16s %d pages%n", name == null ? e.getKey().toString() : name, e.getValue()));
+        }
+        return sb.toString();
+    }
+
+    static String describeLocks() {
+        LockManager lm = Database.getBufferPool().getLockManager();
+        StringBuilder sb = new StringBuilder();
+        sb.append(lm.getMetrics().snapshot());
+        for (LockManager.LockState l : lm.getLockTable()) {
+            sb.append(String.format("%-32s held by", describeLockKey(l.getKey())));
+            for (Map.Entry<TransactionId, LockManager.Mode> h : l.getHolders().entrySet()) {
+                sb.append(" ").append(h.getKey().getId()).append(":").append(h.getValue());
+            }
+            if (!l.getWaiters().isEmpty()) {
+                sb.append(", waited for by");
+                for (Map.Entry<TransactionId, LockManager.Mode> w : l.getWaiters()) {
+                    sb.append(" ").append(w.getKey().getId()).append(":").append(w.getValue());
+                }
+            }
+            sb.append(String.format("%n"));
+        }
+        for (Map.Entry<TransactionId, Set<TransactionId>> e : lm.getWaitsFor().entrySet()) {
+            sb.append("transaction ").append(e.getKey().getId()).append(" waits for");
+            for (TransactionId t : e.getValue()) {
+                sb.append(" ").append(t.getId());
+            }
+            sb.append(String.format("%n"));
+        }
+        return sb.toString();
+    }
+
+    /** @return a table id, PageId or RecordId locked, with the table's name */
+    private static String describeLockKey(Object key) {
+        if (key instanceof Integer) {
+            return "table " + tableName((Integer) key);
+        }
+        if (key instanceof PageId) {
+            PageId pid = (PageId) key;
+            return "page " + tableName(pid.getTableId()) + ":" + pid.getPageNumber();
+        }
+        RecordId rid = (RecordId) key;
+        return "record " + tableName(rid.getPageId().getTableId()) + ":"
+                + rid.getPageId().getPageNumber() + ":" + rid.getTupleNumber();
+    }
+
+    private static String tableName(int tableId) {
+        String name = Database.getCatalog().getTableName(tableId);
+        return name == null ? Integer.toString(tableId) : name;
+    }
+
     public void processNextStatement(String s) {
+        if (handleShowStatement(s)) {
+            return;
+        }
         try {
             processNextStatement(new ByteArrayInputStream(s.getBytes("UTF-8")));
         } catch (UnsupportedEncodingException e) {
@@ -511,7 +602,8 @@ public class Parser {
                 handleTransactStatement((ZTransactStmt) s);
             else {
                 if (!this.inUserTrans) {
-                    curtrans = new Transaction();
+                    // a lone query reads a snapshot in multi-version mode
+                    curtrans = new Transaction(s instanceof ZQuery);
                     curtrans.start();
                     System.out.println("Started a new transaction tid = "
                             + curtrans.getId().getId());
@@ -581,7 +673,7 @@ public class Parser {
     // Basic SQL completions
     public static final String[] SQL_COMMANDS = { "select", "from", "where",
             "group by", "max(", "min(", "avg(", "count", "rollback", "commit",
-            "insert", "delete", "values", "into" };
+            "insert", "delete", "values", "into", "show bufferpool", "show locks" };
 
     public static void main(String argv[]) throws IOException {
 
@@ -598,7 +690,17 @@ public class Parser {
     static final String usage = "Usage: parser catalogFile [-explain] [-f queryFile]";
     static final int SLEEP_TIME = 1000;
 
+    /** Where the buffer pool's hot pages are kept across restarts. */
+    static final File HOT_PAGES = new File("bufferpool.hot");
+    static final long HOT_PAGES_INTERVAL = 60 * 1000;
+
     protected void shutdown() {
+        Database.getBufferPool().stopHotPageDumper();
+        try {
+            Database.getBufferPool().dumpHotPages(HOT_PAGES);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
         System.out.println("Bye");
     }
 
@@ -608,6 +710,14 @@ public class Parser {
         // first add tables to database
         Database.getCatalog().loadSchema(argv[0]);
         TableStats.computeStatistics();
+        // the statistics scans leave the pool full of cold pages, replace
+        // them with the pages that were hot before the last shutdown
+        try {
+            Database.getBufferPool().warmUp(HOT_PAGES);
+        } catch (IOException e) {
+            System.out.println("Ignoring " + HOT_PAGES + ": " + e.getMessage());
+        }
+        Database.getBufferPool().startHotPageDumper(HOT_PAGES, HOT_PAGES_INTERVAL);
 
         String queryFile = null;
 
@@ -682,12 +792,14 @@ public class Parser {
                         break;
                     }
 
-                    long startTime = System.currentTimeMillis();
-                    processNextStatement(new ByteArrayInputStream(
-                            statementBytes));
-                    long time = System.currentTimeMillis() - startTime;
-                    System.out.printf("----------------\n%.2f seconds\n\n",
-                            ((double) time / 1000.0));
+                    if (!handleShowStatement(cmd)) {
+                        long startTime = System.currentTimeMillis();
+                        processNextStatement(new ByteArrayInputStream(
+                                statementBytes));
+                        long time = System.currentTimeMillis() - startTime;
+                        System.out.printf("----------------\n%.2f seconds\n\n",
+                                ((double) time / 1000.0));
+                    }
 
                     // Grab the remainder of the line
                     line = line.substring(split + 1);
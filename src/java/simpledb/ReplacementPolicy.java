@@ -0,0 +1,69 @@
+package simpledb;
+
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * ReplacementPolicy decides which cached page the BufferPool gives up
+ * when it needs room for another one.  The BufferPool keeps one policy
+ * per page table shard and only calls it while holding that shard's
+ * latch, so implementations need not be thread safe.
+ *
+ * @see BufferPool
+ */
+public interface ReplacementPolicy {
+
+    /** The policies a BufferPool can be built with. */
+    enum Kind {
+        /** least recently used; the original BufferPool behaviour */
+        LRU,
+        /** second chance CLOCK, amortized O(1) evictions */
+        CLOCK,
+        /** full 2Q, keeps one-shot scans from flushing hot pages */
+        TWO_Q;
+
+        /**
+         * @param capacity the number of pages the policy is expected to manage
+         * @return a new, empty policy of this kind
+         */
+        public ReplacementPolicy create(int capacity) {
+            switch (this) {
+            case CLOCK:
+                return new ClockPolicy();
+            case TWO_Q:
+                return new TwoQueuePolicy(capacity);
+            default:
+                return new LruPolicy();
+            }
+        }
+    }
+
+    /** A page was read into the pool. */
+    void pageAdded(PageId pid);
+
+    /** A cached page was requested again. */
+    void pageHit(PageId pid);
+
+    /** A page left the pool for a reason other than eviction (e.g. discardPage). */
+    void pageRemoved(PageId pid);
+
+    /**
+     * Choose a page to evict and forget about it.
+     *
+     * @param evictable tells whether a candidate may be evicted right now
+     *     (e.g. it is not dirty)
+     * @return the evicted page, or null if no tracked page is evictable
+     */
+    PageId evict(Predicate<PageId> evictable);
+
+    /**
+     * List the pages this policy would evict first, without evicting them
+     * or otherwise changing its state.  Used to write dirty pages back
+     * before they get to the eviction end.
+     *
+     * @param n the most pages to return
+     * @param wanted which pages to consider
+     * @return up to n wanted pages, next victim first
+     */
+    List<PageId> nextVictims(int n, Predicate<PageId> wanted);
+}
@@ -0,0 +1,187 @@
+package simpledb;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+
+/**
+ * Read-ahead state of one sequential scan.  An iterator passes the same
+ * ScanContext to every {@link BufferPool#getPage(TransactionId, PageId,
+ * Permissions, ScanContext)} call it makes; once the pool sees consecutive
+ * page numbers it starts reading the following pages on its background I/O
+ * thread.
+ * <p>
+ * The read-ahead window starts small and adapts to the speed of the scan:
+ * it doubles whenever the scan has to wait for pages that are still being
+ * read (the scan is faster than the read-ahead), and halves whenever pages
+ * read ahead were evicted before the scan got to them (the window is too
+ * large for the pool).
+ * <p>
+ * A scan of a table larger than the whole pool also gets a small ring of
+ * its own: each page it reads, or that was read ahead for it, pushes the
+ * oldest page of its ring out of the pool, so the scan recycles a few
+ * frames rather than flushing the pool's working set.
+ * <p>
+ * A ScanContext belongs to a single iterator and is not thread safe.
+ */
+public class ScanContext {
+    /** Smallest and largest number of pages read ahead at once. */
+    static final int MIN_WINDOW = 4;
+    static final int MAX_WINDOW = 64;
+
+    /** Consecutive pages that must be seen before reading ahead. */
+    private static final int TRIGGER = 2;
+
+    private static final int NO_PAGE = Integer.MIN_VALUE;
+
+    private int lastPage;
+    private int run;
+    private int window;
+    /** first page after the pages read ahead so far */
+    private int readAheadEnd;
+
+    /** the last read-ahead issued, and the pages it covers */
+    private Future<?> pending;
+    private int pendingStart;
+    private int pendingEnd;
+
+    private int stalls;
+
+    /** capacity of the ring, 0 for no ring, or -1 until the pool decides */
+    private int ringSize = -1;
+    /** pages this scan brought into the pool, oldest first */
+    private final ArrayDeque<PageId> ring = new ArrayDeque<PageId>();
+
+    public ScanContext() {
+        reset();
+    }
+
+    /**
+     * Forget the access history, e.g. when the scan is rewound.  A
+     * read-ahead in progress is left to complete.
+     */
+    public void reset() {
+        lastPage = NO_PAGE;
+        run = 0;
+        window = MIN_WINDOW;
+        readAheadEnd = 0;
+        pending = null;
+    }
+
+    /** @return the current read-ahead window, in pages */
+    int getWindow() {
+        return window;
+    }
+
+    /** @return whether the pool has decided if this scan uses a ring */
+    boolean ringDecided() {
+        return ringSize >= 0;
+    }
+
+    /** @param size the capacity of the scan's ring, 0 for none */
+    void setRingSize(int size) {
+        ringSize = size;
+    }
+
+    /** @return whether this scan keeps to a ring of pages */
+    boolean usesRing() {
+        return ringSize > 0;
+    }
+
+    /**
+     * Adds a page to the ring.
+     *
+     * @return the page that falls out of the ring to make room, or null
+     */
+    PageId addToRing(PageId pid) {
+        if (ring.contains(pid)) {
+            return null;
+        }
+        ring.addLast(pid);
+        return ring.size() > ringSize ? ring.removeFirst() : null;
+    }
+
+    /** @return how many times the scan waited for a read-ahead to finish */
+    int getStalls() {
+        return stalls;
+    }
+
+    /**
+     * Waits for the read-ahead in progress, if it covers the given page.
+     * Called by the buffer pool when the page is not cached.
+     *
+     * @return true if the scan had to wait
+     */
+    boolean awaitReadAhead(int pgNo) {
+        if (pending == null || pending.isDone() || pgNo < pendingStart || pgNo >= pendingEnd) {
+            return false;
+        }
+        awaitReadAhead();
+        stalls++;
+        // the scan outran the read-ahead, read further ahead next time
+        window = Math.min(MAX_WINDOW, window * 2);
+        return true;
+    }
+
+    /** Waits for the read-ahead in progress, if any, to complete. */
+    void awaitReadAhead() {
+        if (pending == null) {
+            return;
+        }
+        try {
+            pending.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            // the scan falls back to reading the page itself
+        }
+    }
+
+    /**
+     * Records an access to a page of the scanned file.
+     *
+     * @param pgNo the page number
+     * @param hit whether the page was found in the buffer pool
+     */
+    void accessed(int pgNo, boolean hit) {
+        if (pgNo == lastPage + 1) {
+            run++;
+            if (!hit && pgNo < readAheadEnd && (pending == null || pending.isDone())) {
+                // it was read ahead but evicted before we got to it
+                window = Math.max(MIN_WINDOW, window / 2);
+            }
+        } else {
+            run = 0;
+            window = MIN_WINDOW;
+            readAheadEnd = pgNo + 1;
+        }
+        lastPage = pgNo;
+    }
+
+    /**
+     * @param maxWindow the most pages the pool is willing to read ahead
+     * @return the first page to read ahead after the last access, or -1 if
+     * no read-ahead is due.  The number of pages is {@link #getWindow()}.
+     */
+    int nextReadAhead(int maxWindow) {
+        if (run < TRIGGER - 1 || (pending != null && !pending.isDone())) {
+            return -1;
+        }
+        window = Math.min(window, Math.max(1, maxWindow));
+        // start the next read once the scan is half way through the last one
+        if (readAheadEnd - lastPage > window / 2) {
+            return -1;
+        }
+        return Math.max(readAheadEnd, lastPage + 1);
+    }
+
+    /**
+     * Records a read-ahead of pages [start, end) issued for this scan.
+     */
+    void readAheadIssued(int start, int end, Future<?> f) {
+        pending = f;
+        pendingStart = start;
+        pendingEnd = end;
+        readAheadEnd = end;
+    }
+}
@@ -0,0 +1,73 @@
+package simpledb;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * The share of a BufferPool used by the tables the catalog assigns to one
+ * named sub-pool (see {@link Catalog#setTablePool(int, String)}), with its
+ * hit and miss counts.  Tables not assigned to any sub-pool share
+ * {@link Catalog#DEFAULT_POOL}.
+ * <p>
+ * The counts are updated concurrently by the threads using the pool and
+ * are only approximately consistent with each other.
+ *
+ * @see BufferPool#getSubPool(String)
+ */
+public class SubPool {
+    private final String name;
+    private final AtomicInteger numPages = new AtomicInteger();
+    private final LongAdder hits = new LongAdder();
+    private final LongAdder misses = new LongAdder();
+
+    SubPool(String name) {
+        this.name = name;
+    }
+
+    /** @return the name the catalog knows this sub-pool by */
+    public String getName() {
+        return name;
+    }
+
+    /** @return the number of pages of this sub-pool's tables that are cached */
+    public int getNumPages() {
+        return numPages.get();
+    }
+
+    /** @return the number of page requests answered from the cache */
+    public long getHits() {
+        return hits.sum();
+    }
+
+    /** @return the number of page requests that had to read the page */
+    public long getMisses() {
+        return misses.sum();
+    }
+
+    /** @return hits over all requests, or 0 if there were none */
+    public double getHitRatio() {
+        long h = getHits();
+        long total = h + getMisses();
+        return total == 0 ? 0 : (double) h / total;
+    }
+
+    void pageAdded() {
+        numPages.incrementAndGet();
+    }
+
+    void pageRemoved() {
+        numPages.decrementAndGet();
+    }
+
+    void hit() {
+        hits.increment();
+    }
+
+    void miss() {
+        misses.increment();
+    }
+
+    public String toString() {
+        return String.format("%s: %d pages, %d hits, %d misses", name, getNumPages(), getHits(), getMisses());
+    }
+}
@@ -9,15 +9,46 @@ import java.io.*;
 
 public class Transaction {
     private final TransactionId tid;
+    private final boolean readOnly;
+    /** whether the transaction reads a snapshot rather than taking locks */
+    private boolean snapshot;
+    private boolean optimistic;
     volatile boolean started = false;
 
     public Transaction() {
+        this(false);
+    }
+
+    /**
+     * @param readOnly whether the transaction only reads.  If the buffer
+     *     pool is in multi-version mode, such a transaction reads a
+     *     snapshot of the database without locking, and logs nothing.
+     */
+    public Transaction(boolean readOnly) {
         tid = new TransactionId();
+        this.readOnly = readOnly;
+    }
+
+    /**
+     * Runs the transaction under optimistic concurrency control rather
+     * than locking, see {@link BufferPool#beginOptimistic(TransactionId)};
+     * call before start().  It then validates at commit.
+     */
+    public void setOptimistic(boolean optimistic) {
+        this.optimistic = optimistic;
     }
 
     /** Start the transaction running */
     public void start() {
         started = true;
+        if (readOnly && Database.getBufferPool().isMultiVersion()) {
+            Database.getBufferPool().beginSnapshot(tid);
+            snapshot = true;
+            return;
+        }
+        if (optimistic) {
+            Database.getBufferPool().beginOptimistic(tid);
+        }
         try {
             Database.getLogFile().logXactionBegin(tid);
         } catch (IOException e) {
@@ -29,8 +60,21 @@ public class Transaction {
         return tid;
     }
 
-    /** Finish the transaction */
-    public void commit() throws IOException {
+    /**
+     * Finish the transaction
+     *
+     * @throws TransactionAbortedException if the transaction is optimistic
+     *     and fails validation; it has been aborted
+     */
+    public void commit() throws IOException, TransactionAbortedException {
+        if (started && optimistic) {
+            try {
+                Database.getBufferPool().validateAndInstall(tid);
+            } catch (TransactionAbortedException e) {
+                abort();
+                throw e;
+            }
+        }
         transactionComplete(false);
     }
 
@@ -42,7 +86,10 @@ public class Transaction {
     /** Handle the details of transaction commit / abort */
     public void transactionComplete(boolean abort) throws IOException {
 
-        if (started) {
+        if (started && snapshot) {
+            Database.getBufferPool().transactionComplete(tid, !abort);
+            started = false;
+        } else if (started) {
             //write commit / abort records
             if (abort) {
                 Database.getLogFile().logAbort(tid); //does rollback too
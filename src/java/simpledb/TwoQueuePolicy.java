@@ -0,0 +1,118 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.function.Predicate;
+
+/**
+ * 2Q replacement (Johnson and Shasha, VLDB '94).  Pages read for the
+ * first time enter a FIFO probation queue (A1in).  A page is promoted to
+ * the main LRU queue (Am) when it is read again shortly after it fell out
+ * of A1in, which is tracked by remembering the ids of recently evicted
+ * A1in pages in a ghost queue (A1out).  Requests for a page while it is
+ * still in A1in are correlated references, such as a probe followed by
+ * an update of the same page, or a read ahead followed by the scan's own
+ * read, and leave it where it is.  Pages are evicted from A1in while it
+ * is over its share of the pool, so a large sequential scan cycles
+ * through A1in and never displaces the pages in Am, such as the internal
+ * pages of a B+ tree.
+ */
+public class TwoQueuePolicy implements ReplacementPolicy {
+
+    private final int maxIn;
+    private final int maxOut;
+
+    // oldest first
+    private final LinkedHashSet<PageId> a1in = new LinkedHashSet<PageId>();
+    private final LinkedHashSet<PageId> a1out = new LinkedHashSet<PageId>();
+    // least recently used first
+    private final LinkedHashSet<PageId> am = new LinkedHashSet<PageId>();
+
+    /**
+     * @param capacity the number of pages this policy manages; A1in gets a
+     *     quarter of it and A1out remembers half as many evicted ids
+     */
+    public TwoQueuePolicy(int capacity) {
+        this.maxIn = Math.max(1, capacity / 4);
+        this.maxOut = Math.max(1, capacity / 2);
+    }
+
+    public void pageAdded(PageId pid) {
+        if (a1out.remove(pid)) {
+            am.add(pid);
+        } else if (!am.contains(pid)) {
+            a1in.add(pid);
+        }
+    }
+
+    public void pageHit(PageId pid) {
+        // hits in A1in are correlated and leave the page in the FIFO
+        if (am.remove(pid)) {
+            am.add(pid);
+        }
+    }
+
+    public void pageRemoved(PageId pid) {
+        a1in.remove(pid);
+        am.remove(pid);
+    }
+
+    public PageId evict(Predicate<PageId> evictable) {
+        PageId victim = null;
+        if (a1in.size() > maxIn || am.isEmpty()) {
+            victim = evictFrom(a1in, evictable);
+            if (victim != null) {
+                remember(victim);
+                return victim;
+            }
+        }
+        victim = evictFrom(am, evictable);
+        if (victim == null) {
+            victim = evictFrom(a1in, evictable);
+            if (victim != null) {
+                remember(victim);
+            }
+        }
+        return victim;
+    }
+
+    public List<PageId> nextVictims(int n, Predicate<PageId> wanted) {
+        // A1in pages go first, unless it is within its share of the pool
+        List<PageId> victims = new ArrayList<PageId>();
+        for (LinkedHashSet<PageId> queue : a1in.size() > maxIn ? Arrays.asList(a1in, am) : Arrays.asList(am, a1in)) {
+            for (PageId pid : queue) {
+                if (victims.size() == n) {
+                    return victims;
+                }
+                if (wanted.test(pid)) {
+                    victims.add(pid);
+                }
+            }
+        }
+        return victims;
+    }
+
+    private PageId evictFrom(LinkedHashSet<PageId> queue, Predicate<PageId> evictable) {
+        Iterator<PageId> it = queue.iterator();
+        while (it.hasNext()) {
+            PageId pid = it.next();
+            if (evictable.test(pid)) {
+                it.remove();
+                return pid;
+            }
+        }
+        return null;
+    }
+
+    private void remember(PageId pid) {
+        a1out.add(pid);
+        if (a1out.size() > maxOut) {
+            Iterator<PageId> it = a1out.iterator();
+            it.next();
+            it.remove();
+        }
+    }
+}
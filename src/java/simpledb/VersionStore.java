@@ -0,0 +1,286 @@
+package simpledb;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * VersionStore keeps the committed images of pages that transactions
+ * modify, so that snapshot readers see the database as it was when they
+ * started without taking locks (multi-version concurrency control).
+ * <p>
+ * Before a transaction first writes a page, the page's committed image is
+ * saved as a version.  When the writer commits, it takes the next commit
+ * timestamp, which becomes the end of its versions' validity; an aborted
+ * writer's versions are dropped once its pages have been restored.  A
+ * snapshot reader is given the timestamp of the last commit when it starts,
+ * and reads each page in the oldest version that ended after it, or in its
+ * current committed image if there is none.
+ * <p>
+ * Versions are kept per page rather than per tuple, since pages are the
+ * unit the buffer pool undoes and writes.  A version is collected once no
+ * running snapshot is older than its end.
+ * <p>
+ * The current committed images snapshots read are cached too, up to a
+ * limit, so that readers do not copy the same page over and over; the next
+ * writer of the page keeps the cached image as its version.  The cache is
+ * emptied whenever no snapshot is running.
+ *
+ * @Threadsafe
+ * @see BufferPool#setMultiVersion(boolean)
+ */
+public class VersionStore {
+    /** Number of partitions of the version chains; a power of two. */
+    private static final int STRIPES = 64;
+
+    /** A committed image of a page, visible to the snapshots it ended after. */
+    private static class Version {
+        final Page image;
+        /**
+         * the transaction replacing the image, or null for a cached image
+         * nobody replaces yet; guarded by the stripe
+         */
+        TransactionId writer;
+        /** commit timestamp of the writer; guarded by the stripe */
+        long end = Long.MAX_VALUE;
+
+        Version(Page image, TransactionId writer) {
+            this.image = image;
+            this.writer = writer;
+        }
+    }
+
+    /** The version chains of a partition of the pages, oldest first. */
+    private static class Stripe {
+        final HashMap<PageId, List<Version>> chains = new HashMap<>();
+    }
+
+    private final Stripe[] stripes = new Stripe[STRIPES];
+
+    /** timestamp of the last commit; guarded by this */
+    private long clock;
+
+    /** the versions saved by each running writer */
+    private final ConcurrentHashMap<TransactionId, List<Version>> pending = new ConcurrentHashMap<>();
+
+    /** the timestamp of each running snapshot reader */
+    private final ConcurrentHashMap<TransactionId, Long> snapshots = new ConcurrentHashMap<>();
+
+    /** the number of running snapshots by timestamp; guarded by this */
+    private final TreeMap<Long, Integer> active = new TreeMap<>();
+
+    /** the versions of committed writers, in commit order; guarded by this */
+    private final ArrayDeque<Version> committed = new ArrayDeque<>();
+
+    /** most images cached for snapshots */
+    private final int maxCached;
+
+    private final AtomicInteger numVersions = new AtomicInteger();
+    private final AtomicInteger numCached = new AtomicInteger();
+    private final Metrics.Counter created;
+    private final Metrics.Counter collected;
+    private final Metrics.Counter reads;
+    private final Metrics.Counter oldReads;
+
+    /**
+     * @param metrics where to count the versions created and collected,
+     *     and the pages snapshots read, in all and from old versions
+     * @param maxCached most current images to cache for snapshots
+     */
+    public VersionStore(Metrics metrics, int maxCached) {
+        this.maxCached = maxCached;
+        for (int i = 0; i < STRIPES; i++) {
+            stripes[i] = new Stripe();
+        }
+        created = metrics.counter("mvcc.versions.created");
+        collected = metrics.counter("mvcc.versions.collected");
+        reads = metrics.counter("mvcc.snapshot.reads");
+        oldReads = metrics.counter("mvcc.snapshot.reads.old");
+        metrics.gauge("mvcc.versions", numVersions::get);
+        metrics.gauge("mvcc.images.cached", numCached::get);
+    }
+
+    private Stripe stripeFor(PageId pid) {
+        int h = pid.hashCode();
+        h ^= (h >>> 16);
+        return stripes[h & (STRIPES - 1)];
+    }
+
+    /** Starts a snapshot for tid as of the last commit. */
+    public synchronized void beginSnapshot(TransactionId tid) {
+        snapshots.put(tid, clock);
+        active.merge(clock, 1, Integer::sum);
+    }
+
+    /** @return whether tid is a running snapshot reader */
+    public boolean isSnapshot(TransactionId tid) {
+        return snapshots.containsKey(tid);
+    }
+
+    /** Ends the snapshot of tid, and collects the versions only it could see. */
+    public synchronized void endSnapshot(TransactionId tid) {
+        Long ts = snapshots.remove(tid);
+        if (ts != null) {
+            active.computeIfPresent(ts, (k, n) -> n > 1 ? n - 1 : null);
+            collect();
+            if (active.isEmpty() && numCached.get() > 0) {
+                dropCached();
+            }
+        }
+    }
+
+    /** Drops the cached images nobody is replacing. */
+    private void dropCached() {
+        for (Stripe s : stripes) {
+            synchronized (s) {
+                Iterator<List<Version>> it = s.chains.values().iterator();
+                while (it.hasNext()) {
+                    List<Version> chain = it.next();
+                    if (chain.get(chain.size() - 1).writer == null) {
+                        chain.remove(chain.size() - 1);
+                        numCached.decrementAndGet();
+                        if (chain.isEmpty()) {
+                            it.remove();
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns page pid as the snapshot of tid sees it.
+     *
+     * @param current the page as cached, or null if it does not exist
+     * @return an image of the page that must not be modified, or null
+     */
+    public Page read(TransactionId tid, PageId pid, Page current) {
+        long ts = snapshots.get(tid);
+        reads.increment();
+        Stripe s = stripeFor(pid);
+        synchronized (s) {
+            List<Version> chain = s.chains.get(pid);
+            if (chain != null) {
+                for (Version v : chain) {
+                    if (v.end > ts) {
+                        if (v.writer != null) {
+                            oldReads.increment();
+                        }
+                        return v.image;
+                    }
+                }
+            }
+            // nobody has written the page since ts: a writer would have
+            // saved a version here first
+            if (current == null) {
+                return null;
+            }
+            Page image = current.getBeforeImage();
+            if (numCached.get() < maxCached) {
+                if (chain == null) {
+                    chain = new ArrayList<>(2);
+                    s.chains.put(pid, chain);
+                }
+                chain.add(new Version(image, null));
+                numCached.incrementAndGet();
+            }
+            return image;
+        }
+    }
+
+    /**
+     * Saves the committed image of page p before tid first writes it.
+     * Called once tid holds an exclusive lock on the page.
+     */
+    public void beforeWrite(TransactionId tid, Page p) {
+        Stripe s = stripeFor(p.getId());
+        synchronized (s) {
+            List<Version> chain = s.chains.get(p.getId());
+            Version last = chain == null ? null : chain.get(chain.size() - 1);
+            if (last != null && tid.equals(last.writer)) {
+                return;
+            }
+            Version v;
+            if (last != null && last.writer == null) {
+                // the cached image is the committed one
+                v = last;
+                v.writer = tid;
+                numCached.decrementAndGet();
+            } else {
+                if (chain == null) {
+                    chain = new ArrayList<>(2);
+                    s.chains.put(p.getId(), chain);
+                }
+                v = new Version(p.getBeforeImage(), tid);
+                chain.add(v);
+            }
+            pending.computeIfAbsent(tid, t -> new ArrayList<>()).add(v);
+        }
+        created.increment();
+        numVersions.incrementAndGet();
+    }
+
+    /**
+     * Ends the validity of the versions tid saved at a new commit
+     * timestamp, making its updates visible to the snapshots started from
+     * now on.  Called before tid releases its locks.
+     */
+    public synchronized void commit(TransactionId tid) {
+        List<Version> versions = pending.remove(tid);
+        if (versions == null) {
+            return;
+        }
+        long ts = clock + 1;
+        for (Version v : versions) {
+            Stripe s = stripeFor(v.image.getId());
+            synchronized (s) {
+                v.end = ts;
+            }
+            committed.addLast(v);
+        }
+        clock = ts;
+        collect();
+    }
+
+    /**
+     * Drops the versions tid saved.  Called once its pages are restored,
+     * before it releases its locks.
+     */
+    public void abort(TransactionId tid) {
+        List<Version> versions = pending.remove(tid);
+        if (versions == null) {
+            return;
+        }
+        for (Version v : versions) {
+            remove(v);
+        }
+    }
+
+    /** Drops the committed versions no running snapshot can see. */
+    private void collect() {
+        long horizon = active.isEmpty() ? clock : active.firstKey();
+        while (!committed.isEmpty() && committed.peekFirst().end <= horizon) {
+            remove(committed.pollFirst());
+            collected.increment();
+        }
+    }
+
+    private void remove(Version v) {
+        PageId pid = v.image.getId();
+        Stripe s = stripeFor(pid);
+        synchronized (s) {
+            List<Version> chain = s.chains.get(pid);
+            if (chain != null && chain.remove(v)) {
+                numVersions.decrementAndGet();
+                if (chain.isEmpty()) {
+                    s.chains.remove(pid);
+                }
+            }
+        }
+    }
+
+    /** @return the number of versions kept, not counting cached images */
+    public int size() {
+        return numVersions.get();
+    }
+}
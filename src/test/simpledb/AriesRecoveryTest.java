@@ -0,0 +1,152 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class AriesRecoveryTest {
+    private static final int TABLE_PAGES = 16;
+    private static final int POOL_PAGES = 4;
+
+    private File file;
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null, tuples);
+        open();
+    }
+
+    private void open() {
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        open();
+        Database.getLogFile().recover();
+    }
+
+    /** Deletes the first tuple of each of the given pages on behalf of t. */
+    private void deleteFirstOfPages(Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            Iterator<Tuple> it = p.iterator();
+            Tuple victim = it.next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            tuples.remove(SystemTestUtil.tupleToList(victim));
+        }
+    }
+
+    private long recordsRead() {
+        return Database.getLogFile().getMetrics().snapshot().get("log.recordsRead");
+    }
+
+    /**
+     * Recovery undoes the stolen pages of a running transaction, logging
+     * a CLR per update and an ABORT record, after which a second crash
+     * has nothing left to undo.
+     */
+    @Test public void undoWritesCLRs() throws Exception {
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFirstOfPages(loser, 0, TABLE_PAGES);
+
+        crash();
+        SystemTestUtil.matchTuples(hf, all);
+        // a CLR for each page stolen, and the ABORT
+        assertTrue(Database.getLogFile().getTotalRecords() > TABLE_PAGES - POOL_PAGES);
+        assertFalse(Database.getLogFile().isActive(loser.getId()));
+
+        crash();
+        SystemTestUtil.matchTuples(hf, all);
+        assertEquals(0, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Updates undone before a crash, by a rollback that did not get to
+     * log its ABORT record, are not undone again.
+     */
+    @Test public void crashDuringUndo() throws Exception {
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFirstOfPages(loser, 0, TABLE_PAGES);
+        Database.getLogFile().rollback(loser.getId());
+
+        crash();
+        SystemTestUtil.matchTuples(hf, all);
+        // only the ABORT record
+        assertEquals(1, Database.getLogFile().getTotalRecords());
+    }
+
+    /**
+     * Committed updates that were only in the pool at a checkpoint are
+     * redone from the dirty page table, and those after it too.
+     */
+    @Test public void redoFromDirtyPageTable() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES).setStealNoForce(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, 2);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 1, 3);
+        t.commit();
+
+        crash();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Recovery reads the log from the last checkpoint on, and the records
+     * of the transactions it undoes, even when a long running transaction
+     * keeps the log from being truncated.
+     */
+    @Test public void recoveryStartsAtCheckpoint() throws Exception {
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction loser = new Transaction();
+        loser.start();
+        int commits = 50;
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Page p = Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i % TABLE_PAGES), Permissions.READ_WRITE);
+            p.markDirty(true, t.getId());
+            t.commit();
+        }
+        Database.getLogFile().logCheckpoint();
+        assertTrue(Database.getLogFile().getTotalRecords() > 3 * commits);
+        deleteFirstOfPages(loser, 0, 1);
+        Database.getBufferPool().flushAllPages();
+
+        crash();
+        SystemTestUtil.matchTuples(hf, all);
+        assertTrue(recordsRead() < 10);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(AriesRecoveryTest.class);
+    }
+}
@@ -0,0 +1,147 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput of B+ trees under concurrent transactions.
+ * <ul>
+ * <li> inserts: transactions inserting random keys into one B+ tree, by
+ * number of threads.
+ * <li> reads and inserts: point lookups and inserting transactions
+ * running alongside them, on the B+ tree and on a linked B+ tree of the
+ * same tuples.
+ * </ul>
+ *
+ * Usage: java simpledb.BTreeConcurrencyBenchmark
+ */
+public class BTreeConcurrencyBenchmark {
+    private static final int ROWS = 5000;
+
+    private static void insertThroughput() throws Exception {
+        Database.reset();
+        final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        // which got a new buffer pool
+        final BufferPool bp = Database.getBufferPool();
+        for (int threads : new int[] {1, 2, 4, 8}) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicInteger commits = new AtomicInteger();
+            final AtomicInteger aborts = new AtomicInteger();
+            List<Thread> workers = new ArrayList<Thread>();
+            for (int i = 0; i < threads; i++) {
+                final Random rand = new Random(i);
+                workers.add(new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int k = 0; k < 5; k++) {
+                                    int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                                    bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                                }
+                                bp.transactionComplete(tid, true);
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread t : workers) {
+                t.start();
+            }
+            Thread.sleep(1000);
+            done.set(true);
+            for (Thread t : workers) {
+                t.join();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            if (error.get() != null) {
+                throw new RuntimeException("insert failed", error.get());
+            }
+            System.out.println(threads + " threads: "
+                    + String.format("%.0f", commits.get() / secs) + " commits/s, "
+                    + aborts.get() + " aborts in " + (commits.get() + aborts.get()));
+        }
+    }
+
+    private static void readInsertThroughput() throws Exception {
+        Database.reset();
+        final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        final BufferPool bp = Database.getBufferPool();
+        for (BTreeFile tree : new BTreeFile[] {bf, BTreeConcurrencyTest.createLinkedBTreeFile(ROWS)}) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicInteger lookups = new AtomicInteger();
+            final AtomicInteger commits = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 6; i++) {
+                final Random rand = new Random(i);
+                final boolean reader = i < 4;
+                threads.add(new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            TransactionId tid = new TransactionId();
+                            try {
+                                for (int k = 0; k < 5; k++) {
+                                    int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                                    if (reader) {
+                                        DbFileIterator it = tree.indexIterator(tid,
+                                                new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+                                        it.open();
+                                        while (it.hasNext()) {
+                                            it.next();
+                                        }
+                                        it.close();
+                                        lookups.incrementAndGet();
+                                    } else {
+                                        bp.insertTuple(tid, tree.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                                    }
+                                }
+                                bp.transactionComplete(tid, true);
+                                if (!reader) {
+                                    commits.incrementAndGet();
+                                }
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(tid, false);
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread t : threads) {
+                t.start();
+            }
+            Thread.sleep(1500);
+            done.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            if (error.get() != null) {
+                throw new RuntimeException("lookup or insert failed", error.get());
+            }
+            System.out.println((tree.isLinked() ? "linked" : "latched") + ": "
+                    + String.format("%.0f", lookups.get() / secs) + " lookups/s, "
+                    + String.format("%.0f", commits.get() / secs) + " insert commits/s");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        insertThroughput();
+        readInsertThroughput();
+    }
+}
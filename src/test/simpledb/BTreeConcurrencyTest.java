@@ -0,0 +1,175 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BTreeConcurrencyTest {
+    private static final int ROWS = 5000;
+
+    private BufferPool bp;
+    private BTreeFile bf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        bf = BTreeUtility.createRandomBTreeFile(2, ROWS, null, null, 0);
+        // which got a new buffer pool
+        bp = Database.getBufferPool();
+    }
+
+    private static int count(BTreeFile bf, TransactionId tid) throws Exception {
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int n = 0;
+        Field prev = null;
+        while (it.hasNext()) {
+            Field f = it.next().getField(0);
+            assertTrue(prev == null || !prev.compare(Predicate.Op.GREATER_THAN, f));
+            prev = f;
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    /**
+     * Inserts and deletes that do not split or merge pages lock only the
+     * leaf they change, so writers of other leaves do not wait for them.
+     */
+    @Test public void leavesOnly() throws Exception {
+        // split the first and last leaves of the packed tree, making room in them
+        TransactionId t0 = new TransactionId();
+        bp.insertTuple(t0, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        bp.insertTuple(t0, bf.getId(), BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE - 1, 2));
+        bp.transactionComplete(t0, true);
+
+        TransactionId t1 = new TransactionId();
+        bp.insertTuple(t1, bf.getId(), BTreeUtility.getBTreeTuple(1, 2));
+        for (PageId pid : bp.getLockManager().getLockedPages(t1)) {
+            assertEquals(BTreePageId.LEAF, ((BTreePageId) pid).pgcateg());
+        }
+
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        Thread writer = new Thread(() -> {
+            TransactionId t2 = new TransactionId();
+            try {
+                bp.insertTuple(t2, bf.getId(),
+                        BTreeUtility.getBTreeTuple(BTreeUtility.MAX_RAND_VALUE - 1, 2));
+                bp.transactionComplete(t2, true);
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        writer.start();
+        writer.join(10000);
+        assertFalse("waited for a lock on another leaf", writer.isAlive());
+        assertNull(error.get());
+        bp.transactionComplete(t1, true);
+    }
+
+    /**
+     * Concurrent inserts and deletes, splitting and merging pages, leave a
+     * well formed tree holding the tuples of the transactions that committed.
+     */
+    @Test public void insertsAndDeletes() throws Exception {
+        insertsAndDeletes(bf, ROWS);
+    }
+
+    /**
+     * The same, on a linked B+ tree, whose searches take no latches and move
+     * right past the splits they raced.
+     */
+    @Test public void linkedInsertsAndDeletes() throws Exception {
+        insertsAndDeletes(createLinkedBTreeFile(ROWS), ROWS);
+    }
+
+    /**
+     * Creates a linked B+ tree of two int columns holding the given number
+     * of tuples with random keys.
+     */
+    static BTreeFile createLinkedBTreeFile(int rows) throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        File f = File.createTempFile("linked", ".dat");
+        f.deleteOnExit();
+        BTreeFile linked = new BTreeFile(f, 0, Utility.getTupleDesc(2), true);
+        Database.getCatalog().addTable(linked, UUID.randomUUID().toString());
+        Random rand = new Random(0);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < rows; i++) {
+            bp.insertTuple(tid, linked.getId(),
+                    BTreeUtility.getBTreeTuple(rand.nextInt(BTreeUtility.MAX_RAND_VALUE), 2));
+        }
+        bp.transactionComplete(tid, true);
+        return linked;
+    }
+
+    private void insertsAndDeletes(BTreeFile bf, int rows) throws Exception {
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        final AtomicInteger net = new AtomicInteger();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 4; i++) {
+            final Random rand = new Random(i);
+            threads.add(new Thread(() -> {
+                try {
+                    for (int n = 0; n < 100; n++) {
+                        TransactionId tid = new TransactionId();
+                        int delta = 0;
+                        try {
+                            for (int k = 0; k < 10; k++) {
+                                int key = rand.nextInt(BTreeUtility.MAX_RAND_VALUE);
+                                DbFileIterator it = bf.indexIterator(tid,
+                                        new IndexPredicate(Predicate.Op.GREATER_THAN_OR_EQ, new IntField(key)));
+                                it.open();
+                                Tuple t = it.hasNext() ? it.next() : null;
+                                it.close();
+                                if (t != null && rand.nextBoolean()) {
+                                    bp.deleteTuple(tid, t);
+                                    delta--;
+                                } else {
+                                    bp.insertTuple(tid, bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                                    delta++;
+                                }
+                            }
+                            bp.transactionComplete(tid, true);
+                            net.addAndGet(delta);
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error.get());
+
+        TransactionId tid = new TransactionId();
+        assertEquals(rows + net.get(), count(bf, tid));
+        BTreeChecker.checkRep(bf, tid, new HashMap<PageId, Page>(), false);
+        bp.transactionComplete(tid, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BTreeConcurrencyTest.class);
+    }
+}
@@ -166,6 +166,35 @@ public class BTreeInternalPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for BTreeInternalPage.reverseIterator() over a page with free slots
+	 * between its entries, as deleting keys and left children leaves them
+	 */
+	@Test public void testReverseIteratorWithGaps() throws Exception {
+		BTreeInternalPage page = new BTreeInternalPage(pid, EXAMPLE_DATA, 0);
+		Iterator<BTreeEntry> it = page.iterator();
+		it.next();
+		it.next();
+		page.deleteKeyAndLeftChild(it.next());
+
+		ArrayList<BTreeEntry> entries = new ArrayList<BTreeEntry>();
+		it = page.iterator();
+		while (it.hasNext()) {
+			entries.add(0, it.next());
+		}
+
+		int row = 0;
+		it = page.reverseIterator();
+		while (it.hasNext()) {
+			BTreeEntry e = it.next();
+			assertEquals(entries.get(row).getKey(), e.getKey());
+			assertEquals(entries.get(row).getLeftChild(), e.getLeftChild());
+			assertEquals(entries.get(row).getRightChild(), e.getRightChild());
+			row++;
+		}
+		assertEquals(entries.size(), row);
+	}
+
 	/**
 	 * Unit test for BTreeInternalPage.getNumEmptySlots()
 	 */
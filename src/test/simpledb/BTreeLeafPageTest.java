@@ -158,6 +158,24 @@ public class BTreeLeafPageTest extends SimpleDbTestBase {
 		}
 	}
 
+	/**
+	 * Unit test for the high key of linked leaf pages
+	 */
+	@Test public void linkedHighKey() throws Exception {
+		BTreeLeafPage page = new BTreeLeafPage(pid, BTreeLeafPage.createEmptyPageData(), 0, true);
+		assertTrue(page.isLinked());
+		assertEquals(null, page.getHighKey());
+		assertEquals(BufferPool.getPageSize(), page.getPageData().length);
+
+		page.setHighKey(new IntField(42));
+		for (int i = 0; i < 10; i++) {
+			page.insertTuple(BTreeUtility.getBTreeTuple(i, 2));
+		}
+		BTreeLeafPage copy = new BTreeLeafPage(pid, page.getPageData(), 0, true);
+		assertEquals(new IntField(42), copy.getHighKey());
+		assertEquals(10, copy.getMaxTuples() - copy.getNumEmptySlots());
+	}
+
 	/**
 	 * Unit test for BTreeLeafPage.iterator()
 	 */
@@ -0,0 +1,61 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Throughput of the BufferPool.
+ * <ul>
+ * <li> getPage: lookups of the pages of a table twice the size of the
+ * pool, mostly of a hot set that fits in it, on one thread and on
+ * BufferPoolConcurrencyTest.THREADS threads.
+ * <li> cold scan: scan throughput of a table twice the size of the pool,
+ * through a cold pool, with and without read-ahead.
+ * </ul>
+ *
+ * Usage: java simpledb.BufferPoolBenchmark
+ */
+public class BufferPoolBenchmark {
+    private static void getPage() throws Exception {
+        BufferPoolConcurrencyTest test = new BufferPoolConcurrencyTest();
+        test.setUp();
+        int threads = BufferPoolConcurrencyTest.THREADS;
+        int lookups = BufferPoolConcurrencyTest.LOOKUPS_PER_THREAD;
+        long single = test.hammer(1);
+        long multi = test.hammer(threads);
+        System.out.printf("getPage: 1 thread %.0f ops/s, %d threads %.0f ops/s%n",
+                lookups * 1e9 / single, threads, threads * lookups * 1e9 / multi);
+    }
+
+    private static void coldScan() throws Exception {
+        final int pages = 200;
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        // warm up first
+        timeScan(hf, null);
+        timeScan(hf, new ScanContext());
+        long oneByOne = timeScan(hf, null);
+        long readAhead = timeScan(hf, new ScanContext());
+        double mb = (double) pages * BufferPool.getPageSize() / (1 << 20);
+        System.out.printf("cold scan: one page at a time %.0f MB/s, read-ahead %.0f MB/s%n",
+                mb * 1e9 / oneByOne, mb * 1e9 / readAhead);
+    }
+
+    /** @return the nanoseconds a scan of hf through a pool half its size takes */
+    private static long timeScan(HeapFile hf, ScanContext scan) throws Exception {
+        BufferPool bp = Database.resetBufferPool(hf.numPages() / 2);
+        TransactionId tid = new TransactionId();
+        long start = System.nanoTime();
+        for (int i = 0; i < hf.numPages(); i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY, scan);
+        }
+        long elapsed = System.nanoTime() - start;
+        bp.transactionComplete(tid);
+        return elapsed;
+    }
+
+    public static void main(String[] args) throws Exception {
+        getPage();
+        coldScan();
+    }
+}
@@ -0,0 +1,185 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class BufferPoolConcurrencyTest {
+    /** pages in the table, twice the size of the buffer pool */
+    private static final int TABLE_PAGES = 64;
+    private static final int POOL_PAGES = TABLE_PAGES / 2;
+    /** pages most of the lookups go to; they fit in the pool */
+    private static final int HOT_PAGES = 8;
+    static final int THREADS = 8;
+    static final int LOOKUPS_PER_THREAD = 20000;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+        assertEquals(TABLE_PAGES, hf.numPages());
+    }
+
+    /**
+     * Worker that looks pages up in a tight loop, mostly from the hot set
+     * and occasionally from the cold part of the table to force evictions.
+     */
+    private class Reader extends Thread {
+        private final BufferPool bp;
+        private final CountDownLatch start;
+        private final Random rand;
+        volatile Throwable error;
+
+        Reader(BufferPool bp, CountDownLatch start, long seed) {
+            this.bp = bp;
+            this.start = start;
+            this.rand = new Random(seed);
+        }
+
+        public void run() {
+            TransactionId tid = new TransactionId();
+            try {
+                start.await();
+                for (int i = 0; i < LOOKUPS_PER_THREAD; i++) {
+                    int pgNo = rand.nextInt(10) < 9 ? rand.nextInt(HOT_PAGES)
+                            : HOT_PAGES + rand.nextInt(TABLE_PAGES - HOT_PAGES);
+                    HeapPageId pid = new HeapPageId(hf.getId(), pgNo);
+                    Page p = bp.getPage(tid, pid, Permissions.READ_ONLY);
+                    assertNotNull(p);
+                    assertEquals(pid, p.getId());
+                    assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+                }
+            } catch (Throwable t) {
+                error = t;
+            }
+        }
+    }
+
+    /** @return the nanoseconds the given number of readers take */
+    long hammer(int threads) throws Exception {
+        return hammer(threads, ReplacementPolicy.Kind.LRU);
+    }
+
+    private long hammer(int threads, ReplacementPolicy.Kind policy) throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, policy);
+        CountDownLatch start = new CountDownLatch(1);
+        List<Reader> readers = new ArrayList<Reader>();
+        for (int i = 0; i < threads; i++) {
+            Reader r = new Reader(bp, start, i);
+            readers.add(r);
+            r.start();
+        }
+        long begin = System.nanoTime();
+        start.countDown();
+        for (Reader r : readers) {
+            r.join();
+        }
+        long elapsed = System.nanoTime() - begin;
+        for (Reader r : readers) {
+            if (r.error != null) {
+                throw new RuntimeException("reader failed", r.error);
+            }
+        }
+        assertTrue(bp.getNumCachedPages() <= POOL_PAGES);
+        return elapsed;
+    }
+
+    /**
+     * Many threads hammering getPage() on a hot working set must all see
+     * the right pages and never push the pool past its capacity.
+     */
+    @Test public void concurrentGetPage() throws Exception {
+        hammer(1);
+        hammer(THREADS);
+    }
+
+    /**
+     * The same stress under every replacement policy.
+     */
+    @Test public void concurrentGetPageAllPolicies() throws Exception {
+        for (ReplacementPolicy.Kind policy : ReplacementPolicy.Kind.values()) {
+            hammer(THREADS, policy);
+        }
+    }
+
+    /**
+     * Every page must stay reachable after concurrent evictions.
+     */
+    @Test public void allPagesReachableAfterStress() throws Exception {
+        hammer(THREADS);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+    }
+
+    /** A table whose pages cannot be read. */
+    private static class UnreadableHeapFile extends HeapFile {
+        UnreadableHeapFile(java.io.File f) {
+            super(f, Utility.getTupleDesc(2));
+        }
+
+        @Override
+        public Page readPage(PageId pid) {
+            throw new IllegalStateException("unreadable page " + pid);
+        }
+
+        @Override
+        public Page readPage(PageId pid, java.nio.ByteBuffer frame) {
+            throw new IllegalStateException("unreadable page " + pid);
+        }
+    }
+
+    /**
+     * Reads that fail, and lookups of tables that do not exist, give back
+     * the frame they reserved, so the pool keeps its capacity.
+     */
+    @Test public void failedReadsKeepCapacity() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES, ReplacementPolicy.Kind.LRU, true);
+        HeapFile unreadable = new UnreadableHeapFile(
+                SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null, null));
+        Database.getCatalog().addTable(unreadable, SystemTestUtil.getUUID());
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 2 * POOL_PAGES; i++) {
+            try {
+                bp.getPage(tid, new HeapPageId(unreadable.getId(), i % TABLE_PAGES), Permissions.READ_ONLY);
+                fail("page should not be readable");
+            } catch (IllegalStateException e) {
+                // expected
+            }
+            try {
+                bp.getPage(tid, new HeapPageId(unreadable.getId() + 1, i), Permissions.READ_ONLY);
+                fail("table should not exist");
+            } catch (java.util.NoSuchElementException e) {
+                // expected
+            }
+        }
+        assertEquals(0, bp.getNumCachedPages());
+        for (int i = 0; i < POOL_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            assertEquals(pid, bp.getPage(tid, pid, Permissions.READ_ONLY).getId());
+        }
+        assertEquals(POOL_PAGES, bp.getNumCachedPages());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(BufferPoolConcurrencyTest.class);
+    }
+}
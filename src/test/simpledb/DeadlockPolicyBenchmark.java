@@ -0,0 +1,107 @@
+package simpledb;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Throughput and abort rate of threads that each increment the single
+ * value of a table in a transaction, retrying until it commits, under each
+ * of the lock manager's deadlock policies.
+ *
+ * Usage: java simpledb.DeadlockPolicyBenchmark [threads]
+ */
+public class DeadlockPolicyBenchmark {
+    private final int tableId;
+    private final AtomicInteger aborts = new AtomicInteger();
+
+    private DeadlockPolicyBenchmark(LockManager.DeadlockPolicy policy) throws Exception {
+        Database.reset();
+        LockManager lm = Database.getBufferPool().getLockManager();
+        lm.setDeadlockPolicy(policy);
+        // the transactions take a few ms when they do not wait
+        lm.setLockTimeout(100);
+        HashMap<Integer, Integer> columnSpecification = new HashMap<Integer, Integer>();
+        columnSpecification.put(0, 0);
+        tableId = SystemTestUtil.createRandomHeapFile(1, 1, columnSpecification, null).getId();
+    }
+
+    /** Reads the value, deletes it and inserts it plus one, until it commits. */
+    private void increment() throws Exception {
+        while (true) {
+            Transaction tr = new Transaction();
+            try {
+                tr.start();
+                Query q1 = new Query(new SeqScan(tr.getId(), tableId, ""), tr.getId());
+                q1.start();
+                int i = ((IntField) q1.next().getField(0)).getValue();
+                q1.close();
+
+                Query q2 = new Query(new Delete(tr.getId(), new SeqScan(tr.getId(), tableId, "")), tr.getId());
+                q2.start();
+                q2.next();
+                q2.close();
+
+                Tuple t = new Tuple(SystemTestUtil.SINGLE_INT_DESCRIPTOR);
+                t.setField(0, new IntField(i + 1));
+                HashSet<Tuple> hs = new HashSet<Tuple>();
+                hs.add(t);
+                Query q3 = new Query(new Insert(tr.getId(), new TupleIterator(t.getTupleDesc(), hs), tableId),
+                        tr.getId());
+                q3.start();
+                q3.next();
+                q3.close();
+
+                tr.commit();
+                return;
+            } catch (TransactionAbortedException e) {
+                aborts.incrementAndGet();
+                tr.transactionComplete(true);
+            }
+        }
+    }
+
+    /** @return the seconds the given number of threads take to increment the value once each */
+    private double run(int threads) throws Exception {
+        CountDownLatch ready = new CountDownLatch(threads);
+        Thread[] testers = new Thread[threads];
+        Exception[] error = new Exception[1];
+        for (int i = 0; i < threads; i++) {
+            testers[i] = new Thread(() -> {
+                try {
+                    ready.countDown();
+                    ready.await();
+                    increment();
+                } catch (Exception e) {
+                    error[0] = e;
+                }
+            });
+        }
+        long start = System.nanoTime();
+        for (Thread t : testers) {
+            t.start();
+        }
+        for (Thread t : testers) {
+            t.join();
+        }
+        double secs = (System.nanoTime() - start) / 1e9;
+        if (error[0] != null) {
+            throw error[0];
+        }
+        return secs;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int threads = args.length > 0 ? Integer.parseInt(args[0]) : 64;
+        for (LockManager.DeadlockPolicy policy : LockManager.DeadlockPolicy.values()) {
+            DeadlockPolicyBenchmark b = new DeadlockPolicyBenchmark(policy);
+            double secs = b.run(threads);
+            int aborts = b.aborts.get();
+            System.out.printf("%s: %d commits in %.2f s, %.1f commits/s, abort rate %.3f%n",
+                    policy, threads, secs, threads / secs, (double) aborts / (aborts + threads));
+        }
+    }
+}
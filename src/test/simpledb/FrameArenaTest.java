@@ -0,0 +1,149 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class FrameArenaTest {
+    private static final int TABLE_PAGES = 16;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, tuples);
+    }
+
+    private static List<ArrayList<Integer>> contents(HeapPage p) {
+        List<ArrayList<Integer>> l = new ArrayList<ArrayList<Integer>>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            l.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return l;
+    }
+
+    /**
+     * Frames are handed out once until they are released.
+     */
+    @Test public void allocateAndRelease() {
+        FrameArena arena = new FrameArena(4, 64);
+        List<Integer> frames = new ArrayList<Integer>();
+        for (int i = 0; i < 4; i++) {
+            int f = arena.allocate();
+            assertTrue(f >= 0);
+            assertFalse(frames.contains(f));
+            assertEquals(64, arena.frame(f).capacity());
+            frames.add(f);
+        }
+        assertEquals(-1, arena.allocate());
+        arena.release(frames.get(2));
+        assertEquals((int) frames.get(2), arena.allocate());
+    }
+
+    /**
+     * A scan through a pool much smaller than the table sees every tuple.
+     */
+    @Test public void scanThroughOffHeapPool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(4, ReplacementPolicy.Kind.LRU, true);
+        SystemTestUtil.matchTuples(hf, tuples);
+        bp.awaitReadAhead();
+        // every frame in use belongs to a cached page
+        FrameArena arena = bp.getFrameArena();
+        assertTrue(arena.numFrames() - arena.numFreeFrames() <= bp.getNumCachedPages());
+    }
+
+    /**
+     * A page that was evicted keeps its contents after its frame is reused.
+     */
+    @Test public void evictedPageOutlivesItsFrame() throws Exception {
+        BufferPool bp = Database.resetBufferPool(1, ReplacementPolicy.Kind.LRU, true);
+        TransactionId tid = new TransactionId();
+        HeapPageId pid0 = new HeapPageId(hf.getId(), 0);
+        HeapPage p0 = (HeapPage) bp.getPage(tid, pid0, Permissions.READ_ONLY);
+        List<ArrayList<Integer>> expected = contents(p0);
+        // evicts page 0 and reads page 1 into the same frame
+        bp.getPage(tid, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY);
+        assertEquals(0, bp.getFrameArena().numFreeFrames());
+        assertEquals(expected, contents(p0));
+        assertEquals(expected, contents((HeapPage) hf.readPage(pid0)));
+    }
+
+    /**
+     * Inserts and deletes write through to the frame and reach the disk
+     * on commit, and aborted changes are rolled back in place.
+     */
+    @Test public void updatesInFrames() throws Exception {
+        Database.resetBufferPool(TABLE_PAGES, ReplacementPolicy.Kind.LRU, true);
+        Transaction t = new Transaction();
+        t.start();
+        Tuple victim = null;
+        DbFileIterator it = hf.iterator(t.getId());
+        it.open();
+        victim = it.next();
+        it.close();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+        Tuple added = Utility.getHeapTuple(new int[] { -1, -2 });
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(), added);
+        assertEquals(victim.getRecordId(), added.getRecordId());
+        t.commit();
+
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        tuples.add(SystemTestUtil.tupleToList(added));
+        HeapPage onDisk = (HeapPage) hf.readPage(added.getRecordId().getPageId());
+        assertTrue(contents(onDisk).contains(SystemTestUtil.tupleToList(added)));
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        t = new Transaction();
+        t.start();
+        Database.getBufferPool().insertTuple(t.getId(), hf.getId(),
+                Utility.getHeapTuple(new int[] { -3, -4 }));
+        t.transactionComplete(true);
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Contents of cached pages live in the arena, so filling an off-heap
+     * pool barely grows the heap.
+     */
+    @Test public void heapFootprintStaysFlat() throws Exception {
+        int pages = 1024;
+        HeapFile big = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        long offHeap = footprint(big, Database.resetBufferPool(pages, ReplacementPolicy.Kind.LRU, true), pages);
+        assertTrue(offHeap < (long) pages * BufferPool.getPageSize() / 4);
+    }
+
+    private long footprint(HeapFile f, BufferPool bp, int pages) throws Exception {
+        TransactionId tid = new TransactionId();
+        long before = SystemTestUtil.getMemoryFootprint();
+        List<Page> held = new ArrayList<Page>();
+        for (int i = 0; i < pages; i++) {
+            held.add(bp.getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY));
+        }
+        // touch every tuple once, as a scan would
+        for (Page p : held) {
+            contents((HeapPage) p);
+        }
+        long after = SystemTestUtil.getMemoryFootprint();
+        bp.transactionComplete(tid);
+        return after - before;
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(FrameArenaTest.class);
+    }
+}
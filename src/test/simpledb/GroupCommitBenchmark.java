@@ -0,0 +1,48 @@
+package simpledb;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Commit throughput and forces of the log per commit, by number of
+ * concurrent committers, without and with group commit, of empty
+ * transactions and of transactions that write a page.
+ *
+ * Usage: java simpledb.GroupCommitBenchmark
+ */
+public class GroupCommitBenchmark {
+    public static void main(String[] args) throws Exception {
+        GroupCommitTest test = new GroupCommitTest();
+        test.setUp();
+        LogFile log = Database.getLogFile();
+        for (boolean dirty : new boolean[] {false, true}) {
+            for (boolean group : new boolean[] {false, true}) {
+                log.setGroupCommit(group);
+                for (int threads = 1; threads <= GroupCommitTest.MAX_THREADS; threads *= 2) {
+                    long forcesBefore = log.getMetrics().snapshot().get("log.forces");
+                    AtomicBoolean done = new AtomicBoolean();
+                    AtomicInteger commits = new AtomicInteger();
+                    AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+                    long start = System.nanoTime();
+                    List<Thread> committers = test.committers(threads, dirty, done, commits, error);
+                    Thread.sleep(500);
+                    done.set(true);
+                    for (Thread t : committers) {
+                        t.join();
+                    }
+                    double secs = (System.nanoTime() - start) / 1e9;
+                    if (error.get() != null) {
+                        throw new RuntimeException("committer failed", error.get());
+                    }
+                    long forces = log.getMetrics().snapshot().get("log.forces") - forcesBefore;
+                    System.out.println((dirty ? "a page per commit, " : "empty commits, ")
+                            + (group ? "group commit, " : "force per commit, ") + threads + " threads: "
+                            + String.format("%.0f", commits.get() / secs) + " commits/s, "
+                            + String.format("%.1f", (double) commits.get() / Math.max(1, forces)) + " commits per force");
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+import simpledb.systemtest.SystemTestUtil;
+
+public class GroupCommitTest {
+    static final int MAX_THREADS = 128;
+
+    private LogFile log;
+    /** A page for each committer to dirty */
+    private HeapFile table;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        log = Database.getLogFile();
+        // 504 two-int tuples fit on a page
+        table = SystemTestUtil.createRandomHeapFile(2, 504 * MAX_THREADS, null, null);
+        Database.resetBufferPool(2 * MAX_THREADS);
+    }
+
+    /**
+     * Runs the given number of threads, each committing transactions
+     * until done is set, which are empty or dirty a page of the thread's
+     * own.
+     */
+    List<Thread> committers(int threads, boolean dirty, AtomicBoolean done, AtomicInteger commits,
+            AtomicReference<Throwable> error) {
+        List<Thread> res = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final PageId pid = new HeapPageId(table.getId(), i);
+            res.add(new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        Transaction t = new Transaction();
+                        t.start();
+                        if (dirty) {
+                            Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_WRITE)
+                                .markDirty(true, t.getId());
+                        }
+                        t.commit();
+                        commits.incrementAndGet();
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }));
+        }
+        for (Thread t : res) {
+            t.start();
+        }
+        return res;
+    }
+
+    private long snapshot(String name) {
+        return log.getMetrics().snapshot().get(name);
+    }
+
+    /**
+     * Concurrent commits share forces of the log.
+     */
+    @Test public void sharedForces() throws Exception {
+        sharedForces(false);
+    }
+
+    /**
+     * Concurrent commits that write a page share the forces before the
+     * writes too.
+     */
+    @Test public void sharedForcesOfDirtyPages() throws Exception {
+        sharedForces(true);
+    }
+
+    private void sharedForces(boolean dirty) throws Exception {
+        AtomicBoolean done = new AtomicBoolean();
+        AtomicInteger commits = new AtomicInteger();
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = committers(16, dirty, done, commits, error);
+        Thread.sleep(500);
+        done.set(true);
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertNull(error.get());
+        assertEquals(commits.get(), snapshot("log.commits"));
+        assertTrue(snapshot("log.forces") < commits.get());
+    }
+
+    /**
+     * Without group commit, every commit forces the log.
+     */
+    @Test public void forcePerCommit() throws Exception {
+        log.setGroupCommit(false);
+        for (int i = 0; i < 10; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            t.commit();
+        }
+        assertEquals(10, snapshot("log.forces"));
+        assertEquals(0, snapshot("log.groupCommit.waiters"));
+    }
+
+    /**
+     * Once the flusher is stopped, commits force the log themselves.
+     */
+    @Test public void stopped() throws Exception {
+        log.stopGroupCommit();
+        Transaction t = new Transaction();
+        t.start();
+        t.commit();
+        assertEquals(1, snapshot("log.forces"));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(GroupCommitTest.class);
+    }
+}
@@ -0,0 +1,95 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Throughput of the lock manager.
+ * <ul>
+ * <li> uncontended: lock and release throughput on pages no other thread
+ * touches, for growing numbers of threads.  It should grow with the
+ * threads up to the number of cores.
+ * <li> deadlocks: the latency of deadlock detection, and the rate of
+ * aborts of transactions that lock pages in a fixed order and so can
+ * never deadlock.
+ * <li> instrumentation: the cost of the per-request metrics, as
+ * uncontended lock and release throughput without and with them.
+ * </ul>
+ *
+ * Usage: java simpledb.LockManagerBenchmark
+ */
+public class LockManagerBenchmark {
+    private static void uncontendedThroughput() throws Exception {
+        final int ops = 100000;
+        for (int n = 1; n <= 8; n *= 2) {
+            final LockManager m = new LockManager();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < n; i++) {
+                final int table = i + 1;
+                threads.add(new Thread(() -> {
+                    for (int j = 0; j < ops / 16; j++) {
+                        TransactionId tid = new TransactionId();
+                        for (int k = 0; k < 16; k++) {
+                            try {
+                                m.shareLock(tid, new HeapPageId(table, k));
+                            } catch (TransactionAbortedException e) {
+                                throw new RuntimeException(e);
+                            }
+                        }
+                        m.transactionComplete(tid);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread t : threads) {
+                t.start();
+            }
+            for (Thread t : threads) {
+                t.join();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("%d threads: %.0f locks/s", n, n * ops / secs));
+        }
+    }
+
+    private static void deadlocks() throws Exception {
+        final int threads = 8;
+        final int txns = 500;
+        LockManager m = new LockManager();
+        long start = System.nanoTime();
+        int aborts = LockManagerTest.runTransactions(m, threads, txns, false);
+        double secs = (System.nanoTime() - start) / 1e9;
+        Metrics.Snapshot s = m.getMetrics().snapshot();
+        System.out.println(String.format("random order: %d txns in %.2f s, %d aborts, %d late",
+                threads * txns, secs, aborts, s.get("deadlock.victims.late")));
+        System.out.println("deadlock search: " + s.getHistograms().get("deadlock.search"));
+
+        m = new LockManager();
+        aborts = LockManagerTest.runTransactions(m, threads, txns, true);
+        System.out.println(String.format("fixed order: false-abort rate %.4f",
+                (double) aborts / (threads * txns + aborts)));
+    }
+
+    private static void instrumentationOverhead() throws Exception {
+        for (boolean on : new boolean[] {false, true, false, true}) {
+            LockManager m = new LockManager();
+            m.setInstrumented(on);
+            long start = System.nanoTime();
+            for (int j = 0; j < 10000; j++) {
+                TransactionId tid = new TransactionId();
+                for (int k = 0; k < 16; k++) {
+                    m.shareLock(tid, new HeapPageId(1, k));
+                }
+                m.transactionComplete(tid);
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format("instrumented %b: %.0f locks/s", on, 160000 / secs));
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        uncontendedThroughput();
+        deadlocks();
+        instrumentationOverhead();
+    }
+}
@@ -0,0 +1,606 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.CyclicBarrier;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LockManagerTest {
+    private LockManager lm;
+    private TransactionId tid1;
+    private TransactionId tid2;
+    private TransactionId tid3;
+    private final PageId p0 = new HeapPageId(1, 0);
+    private final PageId p1 = new HeapPageId(1, 1);
+
+    @Before public void setUp() {
+        Database.reset();
+        lm = new LockManager();
+        tid1 = new TransactionId();
+        tid2 = new TransactionId();
+        tid3 = new TransactionId();
+    }
+
+    /** A lock request, run by {@link #lockAsync(LockCall, AtomicReference, List)}. */
+    private interface LockCall {
+        void lock() throws TransactionAbortedException;
+    }
+
+    /** Takes a lock in a new thread; the returned latch opens once it is granted. */
+    private CountDownLatch lockAsync(final LockCall call,
+                                     final AtomicReference<Throwable> error, List<Thread> threads) {
+        final CountDownLatch granted = new CountDownLatch(1);
+        Thread t = new Thread(() -> {
+            try {
+                call.lock();
+                granted.countDown();
+            } catch (Throwable e) {
+                error.set(e);
+            }
+        });
+        threads.add(t);
+        t.start();
+        return granted;
+    }
+
+    private CountDownLatch lockAsync(final TransactionId tid, final PageId pid, final boolean exclusive,
+                                     final AtomicReference<Throwable> error, List<Thread> threads) {
+        return lockAsync(() -> {
+            if (exclusive) {
+                lm.exclusiveLock(tid, pid);
+            } else {
+                lm.shareLock(tid, pid);
+            }
+        }, error, threads);
+    }
+
+    private static boolean grantedSoon(CountDownLatch l) throws InterruptedException {
+        return l.await(200, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Shared locks are compatible; exclusive locks wait for all others,
+     * and are granted when the holders complete.
+     */
+    @Test public void sharedAndExclusive() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p0);
+        assertTrue(grantedSoon(lockAsync(tid2, p0, false, error, threads)));
+        CountDownLatch x = lockAsync(tid3, p0, true, error, threads);
+        assertFalse(grantedSoon(x));
+        lm.transactionComplete(tid1);
+        assertFalse(grantedSoon(x));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(x));
+        assertTrue(lm.holdsLock(tid3, p0));
+        assertFalse(lm.holdsLock(tid1, p0));
+        assertNull(error.get());
+    }
+
+    /**
+     * Shared requests queue behind a waiting exclusive one rather than
+     * starving it.
+     */
+    @Test public void fifoQueue() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p0);
+        CountDownLatch x = lockAsync(tid2, p0, true, error, threads);
+        assertFalse(grantedSoon(x));
+        CountDownLatch s = lockAsync(tid3, p0, false, error, threads);
+        assertFalse(grantedSoon(s));
+        lm.releasePage(tid1, p0);
+        assertTrue(grantedSoon(x));
+        assertFalse(grantedSoon(s));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(s));
+        assertNull(error.get());
+    }
+
+    /**
+     * The only holder of a shared lock is upgraded in place; an upgrade
+     * with other holders waits for them.
+     */
+    @Test public void upgrade() throws Exception {
+        lm.shareLock(tid1, p0);
+        lm.exclusiveLock(tid1, p0);
+        lm.shareLock(tid1, p0);
+        assertEquals(1, lm.getLockedPages(tid1).size());
+
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p1);
+        lm.shareLock(tid2, p1);
+        CountDownLatch up = lockAsync(tid1, p1, true, error, threads);
+        assertFalse(grantedSoon(up));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(up));
+        assertNull(error.get());
+    }
+
+    /**
+     * A waiting upgrade goes ahead of the requests queued before it.
+     */
+    @Test public void upgradesGoFirst() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p0);
+        lm.shareLock(tid2, p0);
+        CountDownLatch x3 = lockAsync(tid3, p0, true, error, threads);
+        assertFalse(grantedSoon(x3));
+        CountDownLatch up = lockAsync(tid1, p0, true, error, threads);
+        assertFalse(grantedSoon(up));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(up));
+        assertFalse(grantedSoon(x3));
+        lm.transactionComplete(tid1);
+        assertTrue(grantedSoon(x3));
+        assertNull(error.get());
+        assertEquals(1, lm.getMetrics().snapshot().get("lock.upgrade.waits"));
+    }
+
+    /**
+     * Inserting into a page with free slots upgrades the lock taken to look
+     * for them, rather than releasing it in between.
+     */
+    @Test public void insertUpgradesProbeLock() throws Exception {
+        HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LockManager m = Database.getBufferPool().getLockManager();
+        PageId pid = new HeapPageId(f.getId(), 0);
+        Database.getBufferPool().insertTuple(tid1, f.getId(), Utility.getHeapTuple(1, 2));
+        assertTrue(m.holdsLock(tid1, pid));
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm = m;
+        CountDownLatch s2 = lockAsync(tid2, pid, false, error, threads);
+        assertFalse(grantedSoon(s2));
+        Database.getBufferPool().transactionComplete(tid1);
+        assertTrue(grantedSoon(s2));
+        assertNull(error.get());
+    }
+
+    /**
+     * An interrupted waiter gives up its request with a
+     * TransactionAbortedException, and the queue behind it moves on.
+     */
+    @Test public void interruptAborts() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.exclusiveLock(tid1, p0);
+        CountDownLatch x = lockAsync(tid2, p0, true, error, threads);
+        assertFalse(grantedSoon(x));
+        threads.get(0).interrupt();
+        threads.get(0).join();
+        assertTrue(error.get() instanceof TransactionAbortedException);
+        assertFalse(lm.holdsLock(tid2, p0));
+        lm.transactionComplete(tid1);
+        lm.exclusiveLock(tid3, p0);
+        assertTrue(lm.holdsLock(tid3, p0));
+    }
+
+    /**
+     * Two transactions waiting for each other's pages form a cycle, and the
+     * younger one of equal cost is aborted.
+     */
+    @Test public void detectsDeadlock() throws Exception {
+        AtomicReference<Throwable> error1 = new AtomicReference<Throwable>();
+        AtomicReference<Throwable> error2 = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p0);
+        lm.shareLock(tid2, p1);
+        CountDownLatch x1 = lockAsync(tid1, p1, true, error1, threads);
+        assertFalse(grantedSoon(x1));
+        CountDownLatch x2 = lockAsync(tid2, p0, true, error2, threads);
+        threads.get(1).join(5000);
+        assertTrue(error2.get() instanceof TransactionAbortedException);
+        assertFalse(grantedSoon(x1));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(x1));
+        assertNull(error1.get());
+        assertEquals(1, x2.getCount());
+        assertEquals(1, lm.getMetrics().snapshot().get("deadlock.victims"));
+    }
+
+    /**
+     * Under WAIT_DIE a younger transaction aborts rather than wait for an
+     * older one, and an older one waits.
+     */
+    @Test public void waitDie() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WAIT_DIE);
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.exclusiveLock(tid2, p0);
+        CountDownLatch older = lockAsync(tid1, p0, true, error, threads);
+        assertFalse(grantedSoon(older));
+        try {
+            lm.exclusiveLock(tid3, p0);
+            fail("younger transaction waited");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(older));
+        assertNull(error.get());
+        assertEquals(1, lm.getMetrics().snapshot().get("prevention.dies"));
+    }
+
+    /**
+     * Under WOUND_WAIT an older transaction aborts a younger one it waits
+     * for, and a younger one waits.
+     */
+    @Test public void woundWait() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.WOUND_WAIT);
+        AtomicReference<Throwable> error1 = new AtomicReference<Throwable>();
+        AtomicReference<Throwable> error2 = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.exclusiveLock(tid1, p0);
+        lm.exclusiveLock(tid2, p1);
+        // the younger tid2 waits for tid1
+        CountDownLatch x2 = lockAsync(tid2, p0, true, error2, threads);
+        assertFalse(grantedSoon(x2));
+        assertNull(error2.get());
+        // tid1 wounds tid2, which gives up its wait
+        CountDownLatch x1 = lockAsync(tid1, p1, true, error1, threads);
+        threads.get(0).join(5000);
+        assertTrue(error2.get() instanceof TransactionAbortedException);
+        try {
+            lm.shareLock(tid2, new HeapPageId(1, 2));
+            fail("wounded transaction got a lock");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        assertFalse(grantedSoon(x1));
+        lm.transactionComplete(tid2);
+        assertTrue(grantedSoon(x1));
+        assertNull(error1.get());
+        assertEquals(1, lm.getMetrics().snapshot().get("prevention.wounds"));
+    }
+
+    /**
+     * Under TIMEOUT a request gives up after between one and two timeouts.
+     */
+    @Test public void lockTimeout() throws Exception {
+        lm.setDeadlockPolicy(LockManager.DeadlockPolicy.TIMEOUT);
+        lm.setLockTimeout(100);
+        lm.exclusiveLock(tid1, p0);
+        long start = System.nanoTime();
+        try {
+            lm.shareLock(tid2, p0);
+            fail("request did not time out");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        long ms = (System.nanoTime() - start) / 1000000;
+        assertTrue(ms >= 100);
+        assertFalse(lm.holdsLock(tid2, p0));
+        lm.transactionComplete(tid1);
+        lm.shareLock(tid2, p0);
+    }
+
+    /**
+     * The compatibility matrix and the modes that combine two others.
+     */
+    @Test public void modes() {
+        LockManager.Mode[] m = LockManager.Mode.values();
+        String compatible = "11110" + "11000" + "10100" + "10000" + "00000";
+        for (int i = 0; i < m.length; i++) {
+            for (int j = 0; j < m.length; j++) {
+                assertEquals(compatible.charAt(i * m.length + j) == '1', m[i].compatibleWith(m[j]));
+                assertEquals(m[i].compatibleWith(m[j]), m[j].compatibleWith(m[i]));
+                assertEquals(m[i].join(m[j]), m[j].join(m[i]));
+            }
+        }
+        assertEquals(LockManager.Mode.SIX, LockManager.Mode.S.join(LockManager.Mode.IX));
+        assertEquals(LockManager.Mode.S, LockManager.Mode.IS.join(LockManager.Mode.S));
+        assertEquals(LockManager.Mode.X, LockManager.Mode.SIX.join(LockManager.Mode.X));
+        assertTrue(LockManager.Mode.SIX.covers(LockManager.Mode.IX));
+        assertFalse(LockManager.Mode.S.covers(LockManager.Mode.IX));
+    }
+
+    /**
+     * A table lock S implies S on its pages, and lets other transactions
+     * read the table but not write it.
+     */
+    @Test public void tableLockCoversPages() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.lockTable(tid1, 1, LockManager.Mode.S);
+        lm.shareLock(tid1, p0);
+        assertTrue(lm.holdsLock(tid1, p1));
+        assertEquals(1, lm.getLockedPages(tid1).size());
+        lm.shareLock(tid2, p0);
+        CountDownLatch x = lockAsync(tid2, p1, true, error, threads);
+        assertFalse(grantedSoon(x));
+        lm.transactionComplete(tid1);
+        assertTrue(grantedSoon(x));
+        assertNull(error.get());
+    }
+
+    /**
+     * Past the threshold, page locks are traded for a table lock.
+     */
+    @Test public void escalation() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.setEscalationThreshold(3);
+        for (int i = 0; i < 5; i++) {
+            lm.shareLock(tid1, new HeapPageId(1, i));
+        }
+        assertEquals(1, lm.getMetrics().snapshot().get("lock.escalations"));
+        assertEquals(5, lm.getLockedPages(tid1).size());
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 9)));
+        lm.shareLock(tid2, new HeapPageId(1, 9));
+        CountDownLatch x = lockAsync(tid2, new HeapPageId(1, 8), true, error, threads);
+        assertFalse(grantedSoon(x));
+
+        // the escalated lock is X once the transaction writes
+        for (int i = 0; i < 4; i++) {
+            lm.exclusiveLock(tid3, new HeapPageId(2, i));
+        }
+        assertEquals(2, lm.getMetrics().snapshot().get("lock.escalations"));
+        CountDownLatch s = lockAsync(tid1, new HeapPageId(2, 9), false, error, threads);
+        assertFalse(grantedSoon(s));
+        lm.transactionComplete(tid3);
+        assertTrue(grantedSoon(s));
+        lm.transactionComplete(tid1);
+        assertTrue(grantedSoon(x));
+        assertNull(error.get());
+    }
+
+    /**
+     * A transaction that writes a page and then reads past the threshold
+     * locks the table SIX, not X: other readers go on, except on the page
+     * it writes.
+     */
+    @Test public void escalationKeepsWrites() throws Exception {
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.setEscalationThreshold(3);
+        lm.exclusiveLock(tid1, new HeapPageId(1, 0));
+        for (int i = 1; i < 5; i++) {
+            lm.shareLock(tid1, new HeapPageId(1, i));
+        }
+        assertEquals(1, lm.getMetrics().snapshot().get("lock.escalations"));
+        assertTrue(lm.holdsLock(tid1, new HeapPageId(1, 9)));
+        CountDownLatch s = lockAsync(tid2, new HeapPageId(1, 9), false, error, threads);
+        assertTrue(grantedSoon(s));
+        CountDownLatch written = lockAsync(tid3, new HeapPageId(1, 0), false, error, threads);
+        assertFalse(grantedSoon(written));
+        CountDownLatch x = lockAsync(tid2, new HeapPageId(1, 8), true, error, threads);
+        assertFalse(grantedSoon(x));
+        lm.transactionComplete(tid1);
+        assertTrue(grantedSoon(written));
+        assertTrue(grantedSoon(x));
+        assertNull(error.get());
+    }
+
+    /**
+     * A scan locks its table S, so another transaction's insert waits for
+     * it rather than taking the last page.
+     */
+    @Test public void scanLocksTable() throws Exception {
+        HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        final BufferPool bp = Database.getBufferPool();
+        lm = bp.getLockManager();
+        final int table = f.getId();
+        DbFileIterator it = f.iterator(tid1);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        CountDownLatch ins = lockAsync(() -> {
+            try {
+                bp.insertTuple(tid2, table, Utility.getHeapTuple(1, 2));
+            } catch (DbException | java.io.IOException e) {
+                throw new RuntimeException(e);
+            }
+        }, error, threads);
+        assertFalse(grantedSoon(ins));
+        it.close();
+        bp.transactionComplete(tid1);
+        assertTrue(grantedSoon(ins));
+        assertNull(error.get());
+        assertTrue(lm.holdsLock(tid2, new HeapPageId(table, 0)));
+        bp.transactionComplete(tid2);
+    }
+
+    /**
+     * Two transactions that each read a page of one table and then update
+     * it both commit: a delete locks only the page of its tuple.
+     */
+    @Test public void concurrentReadModifyWrite() throws Exception {
+        // 504 two-int tuples fit on a page
+        final HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 2 * 504, null, null);
+        final BufferPool bp = Database.getBufferPool();
+        final CyclicBarrier read = new CyclicBarrier(2);
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 2; i++) {
+            final HeapPageId pid = new HeapPageId(f.getId(), i);
+            final int value = i;
+            threads.add(new Thread(() -> {
+                try {
+                    Transaction t = new Transaction();
+                    t.start();
+                    HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_ONLY);
+                    Tuple old = p.iterator().next();
+                    // both have read before either writes
+                    read.await();
+                    bp.deleteTuple(t.getId(), old);
+                    bp.insertTuple(t.getId(), f.getId(), Utility.getHeapTuple(value, 2));
+                    t.commit();
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join(10000);
+            assertFalse(t.isAlive());
+        }
+        assertNull(error.get());
+        int n = 0;
+        DbFileIterator it = f.iterator(tid1);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        assertEquals(2 * 504, n);
+    }
+
+    /**
+     * While instrumented, requests are counted by mode and waits are timed;
+     * the lock table and the waits-for graph show who holds and who waits.
+     */
+    @Test public void instrumentation() throws Exception {
+        lm.setInstrumented(true);
+        AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        List<Thread> threads = new ArrayList<Thread>();
+        lm.shareLock(tid1, p0);
+        CountDownLatch x = lockAsync(tid2, p0, true, error, threads);
+        assertFalse(grantedSoon(x));
+
+        Metrics.Snapshot s = lm.getMetrics().snapshot();
+        assertEquals(1, s.get("lock.waiting"));
+        assertEquals(1, s.get("lock.queue.longest"));
+        assertEquals(2, s.get("lock.transactions"));
+        assertEquals(java.util.Collections.singletonMap(tid2, java.util.Collections.singleton(tid1)),
+                lm.getWaitsFor());
+        LockManager.LockState page = null;
+        for (LockManager.LockState l : lm.getLockTable()) {
+            if (l.getKey().equals(p0)) {
+                page = l;
+            }
+        }
+        assertEquals(java.util.Collections.singletonMap(tid1, LockManager.Mode.S), page.getHolders());
+        assertEquals(1, page.getWaiters().size());
+        assertEquals(tid2, page.getWaiters().get(0).getKey());
+        assertEquals(LockManager.Mode.X, page.getWaiters().get(0).getValue());
+
+        lm.transactionComplete(tid1);
+        assertTrue(grantedSoon(x));
+        s = lm.getMetrics().snapshot();
+        assertEquals(1, s.get("lock.requests.S"));
+        assertEquals(1, s.get("lock.requests.X"));
+        assertEquals(1, s.get("lock.requests.IS"));
+        assertEquals(1, s.get("lock.requests.IX"));
+        assertEquals(1, s.get("lock.waits"));
+        assertEquals(1, s.getHistograms().get("lock.wait").getCount());
+        assertEquals(0, s.get("lock.waiting"));
+        assertTrue(lm.getWaitsFor().isEmpty());
+        lm.transactionComplete(tid2);
+        assertNull(error.get());
+
+        lm = new LockManager();
+        lm.shareLock(tid1, p0);
+        assertEquals(0, lm.getMetrics().snapshot().get("lock.requests.S"));
+    }
+
+    /**
+     * SHOW LOCKS lists the locks of the buffer pool's lock manager by table
+     * name.
+     */
+    @Test public void showLocks() throws Exception {
+        HeapFile f = simpledb.systemtest.SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        BufferPool bp = Database.getBufferPool();
+        bp.getPage(tid1, new HeapPageId(f.getId(), 0), Permissions.READ_WRITE);
+        Parser p = new Parser();
+        assertTrue(p.handleShowStatement("SHOW LOCKS;"));
+        String out = Parser.describeLocks();
+        String name = Database.getCatalog().getTableName(f.getId());
+        assertTrue(out.contains("lock.keys"));
+        assertTrue(out.contains("table " + name));
+        assertTrue(out.contains("page " + name + ":0"));
+        assertTrue(out.contains(tid1.getId() + ":X"));
+        bp.transactionComplete(tid1);
+    }
+
+    /**
+     * Runs transactions that each lock a few of a small set of pages
+     * exclusively, in random order or in ascending page order, and returns
+     * the number of aborted attempts.
+     */
+    static int runTransactions(final LockManager m, int threads, final int txns,
+                                       final boolean ordered) throws Exception {
+        final java.util.concurrent.atomic.AtomicInteger aborts = new java.util.concurrent.atomic.AtomicInteger();
+        List<Thread> ts = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            final java.util.Random rand = new java.util.Random(i);
+            ts.add(new Thread(() -> {
+                for (int j = 0; j < txns; j++) {
+                    while (true) {
+                        TransactionId tid = new TransactionId();
+                        List<Integer> pages = new ArrayList<Integer>();
+                        while (pages.size() < 3) {
+                            int pg = rand.nextInt(16);
+                            if (!pages.contains(pg)) {
+                                pages.add(pg);
+                            }
+                        }
+                        if (ordered) {
+                            java.util.Collections.sort(pages);
+                        }
+                        try {
+                            for (int pg : pages) {
+                                m.exclusiveLock(tid, new HeapPageId(1, pg));
+                            }
+                            Thread.yield();
+                            m.transactionComplete(tid);
+                            break;
+                        } catch (TransactionAbortedException e) {
+                            aborts.incrementAndGet();
+                            m.transactionComplete(tid);
+                        }
+                    }
+                }
+            }));
+        }
+        for (Thread t : ts) {
+            t.start();
+        }
+        for (Thread t : ts) {
+            t.join();
+        }
+        return aborts.get();
+    }
+
+    /**
+     * Every abort of transactions locking pages in random order is a
+     * deadlock victim, and transactions that lock pages in a fixed order,
+     * and so can never deadlock, are hardly ever aborted.
+     */
+    @Test public void deadlockVictims() throws Exception {
+        final int threads = 8;
+        final int txns = 500;
+        LockManager m = new LockManager();
+        int aborts = runTransactions(m, threads, txns, false);
+        assertEquals(aborts, m.getMetrics().snapshot().get("deadlock.victims"));
+
+        m = new LockManager();
+        aborts = runTransactions(m, threads, txns, true);
+        assertTrue(aborts <= threads * txns / 100);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LockManagerTest.class);
+    }
+}
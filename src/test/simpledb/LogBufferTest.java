@@ -0,0 +1,136 @@
+package simpledb;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class LogBufferTest {
+    private static final int RECORD = 1024;
+
+    private RandomAccessFile raf;
+    private FileChannel channel;
+    private LogBuffer buffer;
+    private final LogBuffer.Record record = new LogBuffer.Record();
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        File f = File.createTempFile("logbuffer", ".dat");
+        f.deleteOnExit();
+        raf = new RandomAccessFile(f, "rw");
+        channel = raf.getChannel();
+        buffer = new LogBuffer(channel, 0, new Metrics());
+    }
+
+    @After public void tearDown() throws Exception {
+        raf.close();
+    }
+
+    /** Appends a record of the given length filled with b. */
+    private long append(int len, int b) throws Exception {
+        record.reset();
+        byte[] data = new byte[len];
+        Arrays.fill(data, (byte) b);
+        record.write(data);
+        return buffer.append(record);
+    }
+
+    private byte[] read(long offset, int len) throws Exception {
+        ByteBuffer b = ByteBuffer.allocate(len);
+        channel.read(b, offset);
+        return b.array();
+    }
+
+    /**
+     * Records get consecutive offsets and stay in memory until drained;
+     * draining up to a record writes the buffers up to the one holding it.
+     */
+    @Test public void drainUpTo() throws Exception {
+        int perBuffer = LogBuffer.BUFFER_SIZE / RECORD;
+        for (int i = 0; i < 2 * perBuffer; i++) {
+            assertEquals((long) i * RECORD, append(RECORD, i));
+        }
+        assertEquals(0, channel.size());
+
+        buffer.drain(RECORD);
+        assertEquals(LogBuffer.BUFFER_SIZE, channel.size());
+        assertEquals(LogBuffer.BUFFER_SIZE, buffer.getFileEnd());
+        // the records of the next buffer are still in memory
+        buffer.drain(LogBuffer.BUFFER_SIZE);
+        assertEquals(LogBuffer.BUFFER_SIZE, channel.size());
+
+        buffer.drainAll();
+        assertEquals(2L * LogBuffer.BUFFER_SIZE, channel.size());
+        byte[] expected = new byte[RECORD];
+        Arrays.fill(expected, (byte) (perBuffer + 1));
+        assertArrayEquals(expected, read((long) (perBuffer + 1) * RECORD, RECORD));
+    }
+
+    /**
+     * A full ring drains itself, and records larger than a buffer are
+     * written whole.
+     */
+    @Test public void fullRingAndLargeRecords() throws Exception {
+        int n = LogBuffer.BUFFERS * LogBuffer.BUFFER_SIZE / RECORD + 1;
+        for (int i = 0; i < n; i++) {
+            append(RECORD, i);
+        }
+        assertTrue(channel.size() > 0);
+        long start = append(3 * LogBuffer.BUFFER_SIZE, 7);
+        assertEquals((long) n * RECORD, start);
+        buffer.drainAll();
+        assertEquals(start + 3 * LogBuffer.BUFFER_SIZE, channel.size());
+        byte[] expected = new byte[3 * LogBuffer.BUFFER_SIZE];
+        Arrays.fill(expected, (byte) 7);
+        assertArrayEquals(expected, read(start, expected.length));
+    }
+
+    /**
+     * Pages remember the LSN of their last update record, which LSNs of
+     * later records exceed, checkpoints and truncation notwithstanding;
+     * forcing the log up to a record already on disk does not force it.
+     */
+    @Test public void pageLSNs() throws Exception {
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 10, null, null);
+        LogFile log = Database.getLogFile();
+        BufferPool bp = Database.getBufferPool();
+        Transaction t = new Transaction();
+        t.start();
+        long begin = log.getEndLSN();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        Page p = bp.getPage(t.getId(), new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY);
+        t.commit();
+        // the first record after the transaction's BEGIN
+        assertEquals(begin, p.getLSN());
+        assertTrue(log.getEndLSN() > p.getLSN());
+
+        long forces = log.getMetrics().snapshot().get("log.forces");
+        log.force(p.getLSN());
+        assertEquals(forces, log.getMetrics().snapshot().get("log.forces"));
+
+        long end = log.getEndLSN();
+        log.logCheckpoint();
+        t = new Transaction();
+        t.start();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        t.commit();
+        assertTrue(p.getLSN() > end);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(LogBufferTest.class);
+    }
+}
@@ -0,0 +1,24 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Cost of a getPage hit, to keep an eye on the overhead of timing it.
+ *
+ * Usage: java simpledb.MetricsBenchmark
+ */
+public class MetricsBenchmark {
+    public static void main(String[] args) throws Exception {
+        final int pages = 12;
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < 20000; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i % pages), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        System.out.println("getPage: " + bp.getMetrics().snapshot().getHistograms().get("getPage"));
+    }
+}
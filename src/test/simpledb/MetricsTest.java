@@ -0,0 +1,126 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MetricsTest {
+    private static final int TABLE_PAGES = 12;
+
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, null);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * Counters sum their increments from many threads, and histogram
+     * percentiles are within a factor of two.
+     */
+    @Test public void countersAndHistograms() throws Exception {
+        final Metrics m = new Metrics();
+        List<Thread> threads = new ArrayList<Thread>();
+        for (int i = 0; i < 8; i++) {
+            threads.add(new Thread(() -> {
+                for (int j = 0; j < 10000; j++) {
+                    m.counter("c").increment();
+                }
+            }));
+        }
+        for (Thread t : threads) {
+            t.start();
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        assertEquals(80000, m.counter("c").get());
+
+        Metrics.Histogram h = m.histogram("h");
+        for (int i = 1; i <= 100; i++) {
+            h.record(i * 1000);
+        }
+        Metrics.HistogramSnapshot s = h.snapshot();
+        assertEquals(100, s.getCount());
+        assertEquals(50500, s.getMean());
+        assertEquals(100000, s.getMax());
+        assertTrue(s.getPercentile(50) >= 50000 && s.getPercentile(50) < 2 * 50000);
+        assertTrue(s.getPercentile(99) >= 99000 && s.getPercentile(99) <= 100000);
+        assertEquals(0, m.histogram("empty").snapshot().getPercentile(99));
+
+        m.gauge("g", () -> 42);
+        Metrics.Snapshot snap = m.snapshot();
+        assertEquals(42, snap.get("g"));
+        assertEquals(80000, snap.get("c"));
+        assertEquals(Collections.singleton("c"), snap.getCounters().keySet());
+    }
+
+    /**
+     * The pool counts hits, misses, evictions and flushes, and times its
+     * page reads and writes.
+     */
+    @Test public void bufferPoolMetrics() throws Exception {
+        BufferPool bp = Database.resetBufferPool(8);
+        TransactionId tid = new TransactionId();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        for (int i = TABLE_PAGES - 4; i < TABLE_PAGES; i++) {
+            bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        bp.getPage(tid, pid(TABLE_PAGES - 1), Permissions.READ_WRITE).markDirty(true, tid);
+
+        Metrics.Snapshot s = bp.getMetrics().snapshot();
+        assertEquals(TABLE_PAGES, s.get("getPage.misses"));
+        assertEquals(5, s.get("getPage.hits"));
+        assertEquals(TABLE_PAGES - 8, s.get("evictPage.evictions"));
+        assertEquals(8, s.get("pages.cached"));
+        assertEquals(1, s.get("pages.dirty"));
+        assertEquals(TABLE_PAGES + 5, s.getHistograms().get("getPage").getCount());
+        assertEquals(TABLE_PAGES, s.getHistograms().get("DbFile.readPage").getCount());
+        assertEquals(Collections.singletonMap(hf.getId(), 8), bp.getResidency());
+
+        bp.flushAllPages();
+        s = bp.getMetrics().snapshot();
+        assertEquals(1, s.get("flushPage.flushes"));
+        assertEquals(1, s.getHistograms().get("DbFile.writePage").getCount());
+        assertEquals(0, s.get("pages.dirty"));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * SHOW BUFFERPOOL is handled by the parser rather than passed to Zql.
+     */
+    @Test public void showBufferPool() throws Exception {
+        TransactionId tid = new TransactionId();
+        Database.getBufferPool().getPage(tid, pid(0), Permissions.READ_ONLY);
+        Database.getBufferPool().transactionComplete(tid);
+        Parser p = new Parser();
+        assertTrue(p.handleShowStatement("show  BufferPool ;"));
+        assertFalse(p.handleShowStatement("select * from t;"));
+        String out = Parser.describeBufferPool();
+        assertTrue(out.contains("getPage.misses"));
+        assertTrue(out.contains("DbFile.readPage"));
+        assertTrue(out.contains(Database.getCatalog().getTableName(hf.getId())));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MetricsTest.class);
+    }
+}
@@ -0,0 +1,87 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Scan latency of readers under a stream of inserts, with readers that
+ * lock and with snapshot readers.  Each writer transaction inserts a
+ * tuple every millisecond or so, five in all.
+ *
+ * Usage: java simpledb.MultiVersionBenchmark
+ */
+public class MultiVersionBenchmark {
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        final BufferPool bp = Database.getBufferPool();
+        bp.setMultiVersion(true);
+        final HeapFile hf = SystemTestUtil.createRandomHeapFile(2, MultiVersionTest.ROWS, null, null);
+        for (boolean snapshots : new boolean[] {false, true}) {
+            final Metrics.Histogram latency = new Metrics().histogram("scan");
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final int[] inserts = new int[1];
+            Thread writer = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        TransactionId tid = new TransactionId();
+                        try {
+                            for (int i = 0; i < 5; i++) {
+                                bp.insertTuple(tid, hf.getId(), Utility.getHeapTuple(i, 2));
+                                Thread.sleep(1);
+                            }
+                            bp.transactionComplete(tid, true);
+                            inserts[0] += 5;
+                        } catch (TransactionAbortedException e) {
+                            bp.transactionComplete(tid, false);
+                        }
+                    }
+                } catch (Throwable e) {
+                    error.set(e);
+                }
+            });
+            List<Thread> readers = new ArrayList<Thread>();
+            for (int i = 0; i < 2; i++) {
+                readers.add(new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            long start = System.nanoTime();
+                            Transaction t = new Transaction(snapshots);
+                            if (snapshots) {
+                                t.start();
+                            }
+                            try {
+                                MultiVersionTest.count(hf, t.getId());
+                                bp.transactionComplete(t.getId(), true);
+                            } catch (TransactionAbortedException e) {
+                                bp.transactionComplete(t.getId(), false);
+                            }
+                            latency.recordSince(start);
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            writer.start();
+            for (Thread t : readers) {
+                t.start();
+            }
+            Thread.sleep(1500);
+            done.set(true);
+            writer.join();
+            for (Thread t : readers) {
+                t.join();
+            }
+            if (error.get() != null) {
+                throw new RuntimeException("reader or writer failed", error.get());
+            }
+            System.out.println((snapshots ? "snapshot" : "locking") + " readers: " + latency.snapshot()
+                    + ", " + inserts[0] + " inserts");
+        }
+    }
+}
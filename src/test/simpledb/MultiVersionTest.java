@@ -0,0 +1,139 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class MultiVersionTest {
+    static final int ROWS = 1000;
+
+    private BufferPool bp;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        bp = Database.getBufferPool();
+        bp.setMultiVersion(true);
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    static int count(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private Transaction snapshot() {
+        Transaction t = new Transaction(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * A snapshot reader neither waits for an uncommitted writer nor sees
+     * its updates, even after it commits; later snapshots do.
+     */
+    @Test public void snapshotIsolation() throws Exception {
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(1, 2));
+        Transaction r1 = snapshot();
+        assertEquals(ROWS, count(hf, r1.getId()));
+        bp.transactionComplete(writer, true);
+        assertEquals(ROWS, count(hf, r1.getId()));
+        Transaction r2 = snapshot();
+        assertEquals(ROWS + 1, count(hf, r2.getId()));
+        assertNull(bp.getLockManager().getLockedPages(r1.getId()));
+        r1.commit();
+        r2.commit();
+        assertEquals(0, bp.getVersionStore().size());
+    }
+
+    /**
+     * An aborted writer's versions are dropped with its updates.
+     */
+    @Test public void abortDropsVersions() throws Exception {
+        TransactionId writer = new TransactionId();
+        DbFileIterator it = hf.iterator(writer);
+        it.open();
+        bp.deleteTuple(writer, it.next());
+        it.close();
+        assertTrue(bp.getVersionStore().size() > 0);
+        Transaction r = snapshot();
+        assertEquals(ROWS, count(hf, r.getId()));
+        bp.transactionComplete(writer, false);
+        assertEquals(0, bp.getVersionStore().size());
+        assertEquals(ROWS, count(hf, r.getId()));
+        r.commit();
+    }
+
+    /**
+     * Versions are kept while an older snapshot runs, and collected when
+     * it completes.
+     */
+    @Test public void garbageCollection() throws Exception {
+        Transaction r = snapshot();
+        for (int i = 0; i < 3; i++) {
+            TransactionId writer = new TransactionId();
+            bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(i, 2));
+            bp.transactionComplete(writer, true);
+        }
+        assertEquals(3, bp.getVersionStore().size());
+        assertEquals(ROWS, count(hf, r.getId()));
+        r.commit();
+        assertEquals(0, bp.getVersionStore().size());
+        assertEquals(3, bp.getMetrics().snapshot().get("mvcc.versions.collected"));
+    }
+
+    /**
+     * B+ tree pages are versioned too, including the ones splits create.
+     */
+    @Test public void btreeSnapshot() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        // which got a new buffer pool
+        bp = Database.getBufferPool();
+        bp.setMultiVersion(true);
+        Transaction r = snapshot();
+        TransactionId writer = new TransactionId();
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(writer, bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        assertEquals(2000, count(bf, r.getId()));
+        bp.transactionComplete(writer, true);
+        assertEquals(2000, count(bf, r.getId()));
+        r.commit();
+        Transaction r2 = snapshot();
+        assertEquals(3000, count(bf, r2.getId()));
+        r2.commit();
+    }
+
+    /**
+     * Snapshot readers may not write.
+     */
+    @Test public void snapshotIsReadOnly() throws Exception {
+        Transaction r = snapshot();
+        try {
+            bp.insertTuple(r.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+            fail("snapshot inserted a tuple");
+        } catch (DbException e) {
+            // expected
+        }
+        r.commit();
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(MultiVersionTest.class);
+    }
+}
@@ -0,0 +1,78 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Throughput and abort rate of short key-value transactions over a B+
+ * tree, each looking up a random key and inserting a tuple next to it,
+ * under locking and under optimistic concurrency control.
+ *
+ * Usage: java simpledb.OptimisticBenchmark
+ */
+public class OptimisticBenchmark {
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        final int keys = 20000;
+        final BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, keys, null, null, 0);
+        final BufferPool bp = Database.getBufferPool();
+        for (boolean occ : new boolean[] {false, true}) {
+            final AtomicBoolean done = new AtomicBoolean();
+            final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+            final AtomicInteger commits = new AtomicInteger();
+            final AtomicInteger aborts = new AtomicInteger();
+            List<Thread> threads = new ArrayList<Thread>();
+            for (int i = 0; i < 4; i++) {
+                final Random rand = new Random(i);
+                threads.add(new Thread(() -> {
+                    try {
+                        while (!done.get()) {
+                            Transaction t = new Transaction();
+                            t.setOptimistic(occ);
+                            t.start();
+                            try {
+                                int key = rand.nextInt(keys);
+                                DbFileIterator it = bf.indexIterator(t.getId(),
+                                        new IndexPredicate(Predicate.Op.EQUALS, new IntField(key)));
+                                it.open();
+                                while (it.hasNext()) {
+                                    it.next();
+                                }
+                                it.close();
+                                bp.insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(key, 2));
+                                t.commit();
+                                commits.incrementAndGet();
+                            } catch (TransactionAbortedException e) {
+                                // a no-op if commit aborted it
+                                t.abort();
+                                aborts.incrementAndGet();
+                            }
+                        }
+                    } catch (Throwable e) {
+                        error.set(e);
+                    }
+                }));
+            }
+            long start = System.nanoTime();
+            for (Thread t : threads) {
+                t.start();
+            }
+            Thread.sleep(1500);
+            done.set(true);
+            for (Thread t : threads) {
+                t.join();
+            }
+            double secs = (System.nanoTime() - start) / 1e9;
+            if (error.get() != null) {
+                throw new RuntimeException("transaction failed", error.get());
+            }
+            System.out.println((occ ? "optimistic" : "locking") + ": "
+                    + String.format("%.0f", commits.get() / secs) + " commits/s, "
+                    + aborts.get() + " aborts in " + (commits.get() + aborts.get()));
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package simpledb;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class OptimisticTest {
+    private static final int ROWS = 1000;
+
+    private BufferPool bp;
+    private HeapFile hf;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        bp = Database.getBufferPool();
+        hf = SystemTestUtil.createRandomHeapFile(2, ROWS, null, null);
+    }
+
+    private static int count(DbFile f, TransactionId tid) throws Exception {
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            it.next();
+            n++;
+        }
+        it.close();
+        return n;
+    }
+
+    private static Transaction optimistic() {
+        Transaction t = new Transaction();
+        t.setOptimistic(true);
+        t.start();
+        return t;
+    }
+
+    /**
+     * An optimistic transaction's writes are private until it commits, and
+     * it takes no locks before.
+     */
+    @Test public void privateWrites() throws Exception {
+        Transaction t = optimistic();
+        bp.insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        assertEquals(ROWS + 1, count(hf, t.getId()));
+        assertNull(bp.getLockManager().getLockedPages(t.getId()));
+
+        TransactionId reader = new TransactionId();
+        assertEquals(ROWS, count(hf, reader));
+        bp.transactionComplete(reader, true);
+
+        t.commit();
+        reader = new TransactionId();
+        assertEquals(ROWS + 1, count(hf, reader));
+        bp.transactionComplete(reader, true);
+        assertEquals(1, bp.getMetrics().snapshot().get("occ.commits"));
+    }
+
+    /**
+     * Of two optimistic transactions writing the same page, the second to
+     * commit fails validation and is aborted.
+     */
+    @Test public void conflictingCommit() throws Exception {
+        Transaction t1 = optimistic();
+        Transaction t2 = optimistic();
+        bp.insertTuple(t1.getId(), hf.getId(), Utility.getHeapTuple(1, 2));
+        bp.insertTuple(t2.getId(), hf.getId(), Utility.getHeapTuple(2, 2));
+        t1.commit();
+        try {
+            t2.commit();
+            fail("t2 committed over t1");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+        TransactionId reader = new TransactionId();
+        assertEquals(ROWS + 1, count(hf, reader));
+        bp.transactionComplete(reader, true);
+        assertEquals(1, bp.getMetrics().snapshot().get("occ.validation.failures"));
+        assertNull(bp.getLockManager().getLockedPages(t2.getId()));
+    }
+
+    /**
+     * Validation fails on pages that a locking transaction is writing, or
+     * wrote and committed since they were read.
+     */
+    @Test public void lockingWriters() throws Exception {
+        Transaction t = optimistic();
+        count(hf, t.getId());
+        TransactionId writer = new TransactionId();
+        bp.insertTuple(writer, hf.getId(), Utility.getHeapTuple(1, 2));
+        try {
+            t.commit();
+            fail("validated a page being written");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        t = optimistic();
+        count(hf, t.getId());
+        bp.transactionComplete(writer, true);
+        try {
+            t.commit();
+            fail("validated a page written since");
+        } catch (TransactionAbortedException e) {
+            // expected
+        }
+
+        t = optimistic();
+        count(hf, t.getId());
+        t.commit();
+    }
+
+    /**
+     * Inserts that split B+ tree pages install all the pages they wrote.
+     */
+    @Test public void btreeInserts() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 2000, null, null, 0);
+        // which got a new buffer pool
+        bp = Database.getBufferPool();
+        Transaction t = optimistic();
+        for (int i = 0; i < 1000; i++) {
+            bp.insertTuple(t.getId(), bf.getId(), BTreeUtility.getBTreeTuple(i, 2));
+        }
+        t.commit();
+        TransactionId reader = new TransactionId();
+        assertEquals(3000, count(bf, reader));
+        bp.transactionComplete(reader, true);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(OptimisticTest.class);
+    }
+}
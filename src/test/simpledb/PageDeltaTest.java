@@ -0,0 +1,165 @@
+package simpledb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageDeltaTest {
+    private static final int TABLE_PAGES = 4;
+
+    private File file;
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page; leave room for inserts
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 400 * TABLE_PAGES, 1 << 16, null, tuples);
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    private static PageDelta roundTrip(PageDelta d) throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        d.write(new DataOutputStream(bytes));
+        return PageDelta.read(new DataInputStream(new ByteArrayInputStream(bytes.toByteArray())));
+    }
+
+    /**
+     * A delta redoes and undoes the change it was taken from, and so does
+     * its inverse the other way, also once serialized.
+     */
+    @Test public void redoAndUndo() throws Exception {
+        byte[] from = new byte[4096];
+        byte[] to = new byte[4096];
+        for (int i = 0; i < from.length; i++) {
+            from[i] = (byte) (i % 7);
+            to[i] = from[i];
+        }
+        to[3] = 42;
+        to[5] = 43;
+        for (int i = 1000; i < 1100; i++) {
+            to[i] = 0;
+        }
+        to[4095] = 44;
+
+        PageDelta d = roundTrip(PageDelta.diff(from, to));
+        byte[] data = from.clone();
+        d.redo(data);
+        assertArrayEquals(to, data);
+        d.undo(data);
+        assertArrayEquals(from, data);
+
+        PageDelta inverse = roundTrip(d.inverse());
+        inverse.redo(data = to.clone());
+        assertArrayEquals(from, data);
+        assertTrue(PageDelta.diff(from, from).isEmpty());
+    }
+
+    /**
+     * Inserting and deleting a tuple logs the tuple once, and the header
+     * byte, rather than both images of the page.
+     */
+    @Test public void slotInsertAndDelete() throws Exception {
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        HeapPage p = new HeapPage(pid, HeapPage.createEmptyPageData());
+        byte[] empty = p.getPageData();
+        Tuple t = Utility.getHeapTuple(new int[] {1, 2});
+        p.insertTuple(t);
+        byte[] full = p.getPageData();
+
+        ByteArrayOutputStream insert = new ByteArrayOutputStream();
+        PageDelta.diff(empty, full).write(new DataOutputStream(insert));
+        ByteArrayOutputStream delete = new ByteArrayOutputStream();
+        PageDelta.diff(full, empty).write(new DataOutputStream(delete));
+        // two ranges, with 9 bytes of header each: the byte holding the
+        // slot's header bit, and the bytes of the tuple from its first
+        // non-zero byte on
+        assertEquals(4 + 2 * 9 + 1 + 5, insert.size());
+        assertEquals(insert.size(), delete.size());
+    }
+
+    /** Deletes the first tuple of the given page on behalf of t. */
+    private void deleteFirst(Transaction t, int page) throws Exception {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), page), Permissions.READ_ONLY);
+        Iterator<Tuple> it = p.iterator();
+        Tuple victim = it.next();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+    }
+
+    /**
+     * Recovery redoes committed DELTA records and undoes those of a
+     * transaction that was running, across a checkpoint, with the pages
+     * redone in partitions, from images read ahead.
+     */
+    @Test public void recoveryFromDeltas() throws Exception {
+        Database.getBufferPool().setStealNoForce(true);
+        for (int i = 0; i < 3 * TABLE_PAGES; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            deleteFirst(t, i % TABLE_PAGES);
+            t.commit();
+            if (i == 1) {
+                Database.getLogFile().logCheckpoint();
+            }
+        }
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFirst(loser, 1);
+        Database.getBufferPool().flushAllPages();
+        deleteFirst(loser, 1);
+        Database.getBufferPool().flushAllPages();
+
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().setRecoveryThreads(4);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, committed);
+    }
+
+    private long logBytesPerTransaction(boolean compact) throws Exception {
+        LogFile log = Database.getLogFile();
+        log.setCompactUpdates(compact);
+        int transactions = 100;
+        long before = log.getMetrics().snapshot().get("log.bytes");
+        for (int i = 0; i < transactions; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            Database.getBufferPool().insertTuple(t.getId(), hf.getId(), Utility.getHeapTuple(i, 2));
+            t.commit();
+        }
+        return (log.getMetrics().snapshot().get("log.bytes") - before) / transactions;
+    }
+
+    /**
+     * DELTA records cut the log bytes of a transaction inserting a tuple
+     * to a tenth of UPDATE records with both images of the page.
+     */
+    @Test public void logBytesPerTransaction() throws Exception {
+        long full = logBytesPerTransaction(false);
+        long compact = logBytesPerTransaction(true);
+        assertTrue(compact * 10 < full);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageDeltaTest.class);
+    }
+}
@@ -0,0 +1,183 @@
+package simpledb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageHandleTest {
+    private static final int TABLE_PAGES = 16;
+
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, null, tuples);
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /**
+     * A pinned page stays cached while the rest of the table streams
+     * through the pool.
+     */
+    @Test public void pinnedPageIsNotEvicted() throws Exception {
+        BufferPool bp = Database.resetBufferPool(2);
+        TransactionId tid = new TransactionId();
+        try (PageHandle h = bp.pinPage(tid, pid(0), Permissions.READ_ONLY)) {
+            assertEquals(1, bp.getPinCount(pid(0)));
+            for (int i = 1; i < TABLE_PAGES; i++) {
+                bp.getPage(tid, pid(i), Permissions.READ_ONLY);
+            }
+            assertSame(h.getPage(), bp.getPage(tid, pid(0), Permissions.READ_ONLY));
+        }
+        assertEquals(0, bp.getPinCount(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pins nest and closing a handle twice releases it once.
+     */
+    @Test public void pinsAreCounted() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        PageHandle a = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        PageHandle b = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        assertEquals(2, bp.getPinCount(pid(0)));
+        a.close();
+        a.close();
+        assertEquals(1, bp.getPinCount(pid(0)));
+        b.close();
+        assertEquals(0, bp.getPinCount(pid(0)));
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Pins a transaction still holds are dropped when it completes.
+     */
+    @Test public void transactionCompleteUnpins() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        TransactionId tid = new TransactionId();
+        bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        bp.pinPage(tid, pid(1), Permissions.READ_ONLY);
+        bp.transactionComplete(tid);
+        assertEquals(0, bp.getPinCount(pid(0)));
+        assertEquals(0, bp.getPinCount(pid(1)));
+    }
+
+    /**
+     * A page request that finds every page pinned waits for one to be
+     * unpinned, and fails if none is.
+     */
+    @Test public void waitsForUnpin() throws Exception {
+        final BufferPool bp = Database.resetBufferPool(1);
+        TransactionId tid = new TransactionId();
+        final PageHandle h = bp.pinPage(tid, pid(0), Permissions.READ_ONLY);
+        try {
+            bp.getPage(tid, pid(1), Permissions.READ_ONLY);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        Thread unpinner = new Thread(() -> {
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+            }
+            h.close();
+        });
+        unpinner.start();
+        assertEquals(pid(1), bp.getPage(tid, pid(1), Permissions.READ_ONLY).getId());
+        unpinner.join();
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Many concurrent scans share a pool as small as the number of scans,
+     * each keeping the page it is reading pinned.
+     */
+    @Test public void concurrentScansInTinyPool() throws Exception {
+        final int threads = 8;
+        Database.resetBufferPool(threads);
+        final List<Throwable> errors = Collections.synchronizedList(new ArrayList<Throwable>());
+        List<Thread> scanners = new ArrayList<Thread>();
+        for (int i = 0; i < threads; i++) {
+            scanners.add(new Thread(() -> {
+                try {
+                    TransactionId tid = new TransactionId();
+                    DbFileIterator it = hf.iterator(tid);
+                    it.open();
+                    int n = 0;
+                    while (it.hasNext()) {
+                        it.next();
+                        n++;
+                    }
+                    it.close();
+                    assertEquals(tuples.size(), n);
+                    Database.getBufferPool().transactionComplete(tid);
+                } catch (Throwable e) {
+                    errors.add(e);
+                }
+            }));
+        }
+        for (Thread t : scanners) {
+            t.start();
+        }
+        for (Thread t : scanners) {
+            t.join();
+        }
+        assertEquals(Collections.emptyList(), errors);
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            assertEquals(0, Database.getBufferPool().getPinCount(pid(i)));
+        }
+    }
+
+    /**
+     * B+ tree inserts through a pool much smaller than the tree.
+     */
+    @Test public void btreeInsertsInSmallPool() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 0, null, null, 0);
+        Database.resetBufferPool(16);
+        Transaction t = new Transaction();
+        for (int i = 0; i < 5000; i++) {
+            Database.getBufferPool().insertTuple(t.getId(), bf.getId(),
+                    BTreeUtility.getBTreeTuple(new int[] { i, i }));
+            if (i % 100 == 99) {
+                // keep the pool from filling with dirty pages
+                Database.getBufferPool().flushAllPages();
+            }
+        }
+        Database.getBufferPool().transactionComplete(t.getId());
+
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.iterator(tid);
+        it.open();
+        int n = 0;
+        while (it.hasNext()) {
+            assertEquals(n, ((IntField) it.next().getField(0)).getValue());
+            n++;
+        }
+        it.close();
+        assertEquals(5000, n);
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageHandleTest.class);
+    }
+}
@@ -0,0 +1,47 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Time to commit transactions that dirty a few pages each, with and
+ * without the page writer cleaning them in the background.
+ *
+ * Usage: java simpledb.PageWriterBenchmark
+ */
+public class PageWriterBenchmark {
+    private static final int TABLE_PAGES = 40;
+
+    private static long timeCommits(HeapFile hf, boolean writer) throws Exception {
+        if (writer) {
+            Database.getBufferPool().startPageWriter(2000);
+        }
+        long total = 0;
+        int commits = 5;
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 8; j++) {
+                Page p = Database.getBufferPool().getPage(t.getId(),
+                        new HeapPageId(hf.getId(), (i * 8 + j) % TABLE_PAGES), Permissions.READ_WRITE);
+                p.markDirty(true, t.getId());
+            }
+            // time spent by the transaction's work before it commits
+            Thread.sleep(50);
+            long start = System.nanoTime();
+            t.commit();
+            total += System.nanoTime() - start;
+        }
+        Database.getBufferPool().stopPageWriter();
+        return total / commits;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, 1 << 16, null, null);
+        long without = timeCommits(hf, false);
+        long with = timeCommits(hf, true);
+        System.out.printf("commit latency: %.2f ms without page writer, %.2f ms with%n",
+                without / 1e6, with / 1e6);
+    }
+}
@@ -0,0 +1,184 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class PageWriterTest {
+    private static final int TABLE_PAGES = 40;
+
+    private File file;
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null, tuples);
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().stopPageWriter();
+        Database.getLogFile().stopCheckpointer();
+    }
+
+    private static List<ArrayList<Integer>> contents(HeapPage p) {
+        List<ArrayList<Integer>> l = new ArrayList<ArrayList<Integer>>();
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            l.add(SystemTestUtil.tupleToList(it.next()));
+        }
+        return l;
+    }
+
+    /** Waits up to five seconds for the writer to write n pages. */
+    private static void awaitWritten(PageWriter w, long n) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 5000;
+        while (w.getPagesWritten() < n && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertTrue(w.getPagesWritten() >= n);
+    }
+
+    /** Deletes the first tuple of page 0 on behalf of t. */
+    private Tuple deleteFirst(Transaction t) throws Exception {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        Tuple victim = p.iterator().next();
+        Database.getBufferPool().deleteTuple(t.getId(), victim);
+        return victim;
+    }
+
+    /**
+     * Dirty pages of a running transaction are written in the background,
+     * so the commit finds them clean.
+     */
+    @Test public void writesDirtyPages() throws Exception {
+        PageWriter w = Database.getBufferPool().startPageWriter(1000);
+        Transaction t = new Transaction();
+        t.start();
+        Tuple victim = deleteFirst(t);
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        Page p = Database.getBufferPool().getPage(t.getId(), pid, Permissions.READ_ONLY);
+        // the writer counts a batch once it is written, after marking
+        // its pages clean
+        awaitWritten(w, 1);
+        // the delete may dirty the page again just after its first write
+        long deadline = System.currentTimeMillis() + 5000;
+        while (p.isDirty() != null && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        assertNull(p.isDirty());
+        assertFalse(contents((HeapPage) hf.readPage(pid)).contains(SystemTestUtil.tupleToList(victim)));
+        t.commit();
+
+        tuples.remove(SystemTestUtil.tupleToList(victim));
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Aborting a transaction whose pages were written early restores them
+     * on disk from the log.
+     */
+    @Test public void abortUndoesEarlyWrites() throws Exception {
+        PageWriter w = Database.getBufferPool().startPageWriter(1000);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirst(t);
+        awaitWritten(w, 1);
+        Database.getBufferPool().transactionComplete(t.getId(), false);
+        Database.getBufferPool().stopPageWriter();
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 0);
+        assertEquals(504, contents((HeapPage) hf.readPage(pid)).size());
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Pages of transactions that did not log a BEGIN record cannot be
+     * rolled back from the log, so the writer leaves them alone.
+     */
+    @Test public void skipsUnloggedTransactions() throws Exception {
+        PageWriter w = Database.getBufferPool().startPageWriter(1000);
+        TransactionId tid = new TransactionId();
+        Page p = Database.getBufferPool().getPage(tid, new HeapPageId(hf.getId(), 0), Permissions.READ_WRITE);
+        p.markDirty(true, tid);
+        Thread.sleep(3 * PageWriter.TICK_MILLIS);
+        assertEquals(0, w.getPagesWritten());
+        assertEquals(tid, p.isDirty());
+        Database.getBufferPool().transactionComplete(tid, false);
+    }
+
+    /**
+     * The writer never exceeds its budget of pages per second.
+     */
+    @Test public void rateLimited() throws Exception {
+        Transaction t = new Transaction();
+        t.start();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            Page p = Database.getBufferPool().getPage(t.getId(), new HeapPageId(hf.getId(), i),
+                    Permissions.READ_WRITE);
+            p.markDirty(true, t.getId());
+        }
+        long start = System.nanoTime();
+        PageWriter w = Database.getBufferPool().startPageWriter(50);
+        Thread.sleep(500);
+        long written = w.getPagesWritten();
+        double seconds = (System.nanoTime() - start) / 1e9;
+        Database.getBufferPool().stopPageWriter();
+        assertTrue(written > 0);
+        // one tick's worth of slack for the tick in progress
+        assertTrue(written <= 50 * seconds + 5);
+        t.commit();
+    }
+
+    /**
+     * Periodic checkpoints keep the log short while transactions commit,
+     * and recovery after a crash still undoes a transaction whose page was
+     * written early and redoes one that committed.
+     */
+    @Test public void checkpointsAndRecovery() throws Exception {
+        LogFile log = Database.getLogFile();
+        log.startCheckpointer(20);
+        for (int i = 0; i < 20; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            tuples.remove(SystemTestUtil.tupleToList(deleteFirst(t)));
+            t.commit();
+        }
+        Thread.sleep(100);
+        // truncated to about a checkpoint record once nothing is running
+        assertTrue(new File("log").length() < 2 * BufferPool.getPageSize());
+
+        PageWriter w = Database.getBufferPool().startPageWriter(1000);
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFirst(loser);
+        awaitWritten(w, 1);
+
+        // crash
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        Database.getLogFile().recover();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(PageWriterTest.class);
+    }
+}
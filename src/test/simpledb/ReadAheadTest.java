@@ -0,0 +1,258 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReadAheadTest {
+    private static final int TABLE_PAGES = 200;
+
+    /** Counts pages read one at a time and pages read ahead, and holds
+        read-ahead back once it has read its pages while gate is set. */
+    private static class CountingHeapFile extends HeapFile {
+        int pagesRead;
+        int pagesReadAhead;
+        volatile CountDownLatch readAhead;
+        volatile CountDownLatch gate;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid) {
+            pagesRead++;
+            return super.readPage(pid);
+        }
+
+        @Override
+        public synchronized Page readPage(PageId pid, ByteBuffer frame) {
+            pagesRead++;
+            return super.readPage(pid, frame);
+        }
+
+        @Override
+        public List<Page> readPages(PageId first, ByteBuffer[] buffers) {
+            List<Page> pages = super.readPages(first, buffers);
+            synchronized (this) {
+                pagesReadAhead += pages.size();
+            }
+            CountDownLatch g = gate;
+            if (g != null) {
+                readAhead.countDown();
+                try {
+                    g.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            return pages;
+        }
+    }
+
+    private CountingHeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null, tuples);
+        hf = new CountingHeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    /**
+     * A sequential scan through a cold pool gets nearly all of its pages
+     * from read-ahead, and sees every tuple exactly once.
+     */
+    @Test public void scanIsReadAhead() throws Exception {
+        Database.resetBufferPool(TABLE_PAGES / 2);
+        SystemTestUtil.matchTuples(hf, tuples);
+        assertTrue(hf.pagesReadAhead >= TABLE_PAGES * 9 / 10);
+        assertTrue(hf.pagesRead + hf.pagesReadAhead <= TABLE_PAGES * 11 / 10);
+    }
+
+    /**
+     * Pages read ahead into off-heap frames; no frame may leak.
+     */
+    @Test public void readAheadOffHeap() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES / 2, ReplacementPolicy.Kind.LRU, true);
+        TransactionId tid = new TransactionId();
+        ScanContext scan = new ScanContext();
+        for (int i = 0; i < TABLE_PAGES; i++) {
+            HeapPageId pid = new HeapPageId(hf.getId(), i);
+            HeapPage p = (HeapPage) bp.getPage(tid, pid, Permissions.READ_ONLY, scan);
+            assertEquals(pid, p.getId());
+        }
+        scan.awaitReadAhead();
+        assertTrue(hf.pagesReadAhead >= TABLE_PAGES * 9 / 10);
+        // every frame in use belongs to a cached page
+        FrameArena arena = bp.getFrameArena();
+        assertTrue(arena.numFrames() - arena.numFreeFrames() <= bp.getNumCachedPages());
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * Random page accesses never trigger read-ahead.
+     */
+    @Test public void randomAccessIsNotReadAhead() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES);
+        TransactionId tid = new TransactionId();
+        ScanContext scan = new ScanContext();
+        for (int i = 0; i < TABLE_PAGES / 2; i++) {
+            int pgNo = (i * 37) % TABLE_PAGES;
+            bp.getPage(tid, new HeapPageId(hf.getId(), pgNo), Permissions.READ_ONLY, scan);
+        }
+        scan.awaitReadAhead();
+        assertEquals(0, hf.pagesReadAhead);
+        bp.transactionComplete(tid);
+    }
+
+    /**
+     * The window grows when the scan waits for read-ahead, shrinks when
+     * read-ahead pages were evicted unused and resets on a jump.
+     */
+    @Test public void windowAdapts() throws Exception {
+        ScanContext scan = new ScanContext();
+        scan.accessed(0, false);
+        scan.accessed(1, false);
+        int start = scan.nextReadAhead(1000);
+        assertEquals(2, start);
+        final CompletableFuture<Void> io = new CompletableFuture<Void>();
+        scan.readAheadIssued(start, start + scan.getWindow(), io);
+        // still reading when the scan gets there
+        new Thread(() -> {
+            try {
+                Thread.sleep(100);
+            } catch (InterruptedException e) {
+            }
+            io.complete(null);
+        }).start();
+        assertTrue(scan.awaitReadAhead(2));
+        assertEquals(2 * ScanContext.MIN_WINDOW, scan.getWindow());
+        scan.accessed(2, true);
+        // page 3 was read ahead but is gone
+        scan.accessed(3, false);
+        assertEquals(ScanContext.MIN_WINDOW, scan.getWindow());
+        // the window never exceeds what the pool allows
+        scan.accessed(4, true);
+        scan.nextReadAhead(2);
+        assertEquals(2, scan.getWindow());
+        scan.accessed(100, false);
+        assertEquals(ScanContext.MIN_WINDOW, scan.getWindow());
+        assertEquals(-1, scan.nextReadAhead(1000));
+    }
+
+    /**
+     * A page read ahead is dropped if a transaction loaded it, updated
+     * it, committed and let it go while the read was in flight, instead
+     * of replacing the committed page with the image read before.
+     */
+    @Test public void staleReadAheadIsDropped() throws Exception {
+        BufferPool bp = Database.resetBufferPool(TABLE_PAGES / 2);
+        CountDownLatch gate = new CountDownLatch(1);
+        hf.readAhead = new CountDownLatch(1);
+        hf.gate = gate;
+        TransactionId reader = new TransactionId();
+        ScanContext scan = new ScanContext();
+        bp.getPage(reader, new HeapPageId(hf.getId(), 0), Permissions.READ_ONLY, scan);
+        bp.getPage(reader, new HeapPageId(hf.getId(), 1), Permissions.READ_ONLY, scan);
+        // page 2 is read ahead, and the read is held back
+        hf.readAhead.await();
+        hf.gate = null;
+
+        HeapPageId pid = new HeapPageId(hf.getId(), 2);
+        Transaction t = new Transaction();
+        t.start();
+        HeapPage p = (HeapPage) bp.getPage(t.getId(), pid, Permissions.READ_WRITE);
+        Tuple victim = p.iterator().next();
+        ArrayList<Integer> deleted = SystemTestUtil.tupleToList(victim);
+        p.deleteTuple(victim);
+        p.markDirty(true, t.getId());
+        t.commit();
+        bp.discardPage(pid);
+
+        gate.countDown();
+        scan.awaitReadAhead();
+        bp.awaitReadAhead();
+        TransactionId after = new TransactionId();
+        p = (HeapPage) bp.getPage(after, pid, Permissions.READ_ONLY);
+        Iterator<Tuple> it = p.iterator();
+        while (it.hasNext()) {
+            assertFalse(deleted.equals(SystemTestUtil.tupleToList(it.next())));
+        }
+        bp.transactionComplete(reader);
+        bp.transactionComplete(after);
+    }
+
+    /**
+     * Reads the hot pages at the start of a 2Q pool of 100 pages, then
+     * enough other pages to push them out of A1in, and the hot pages again,
+     * which promotes them.  Then scans a table of 90 pages, which fits in
+     * the pool, so the scan does not keep to a ring, with or without
+     * read-ahead.
+     *
+     * @return the hot pages read again after the scan
+     */
+    private int hotReadAgainAfterScan(ScanContext scan) throws Exception {
+        File f = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * 90, 1 << 16, null, null);
+        HeapFile scanned = new HeapFile(f, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(scanned, SystemTestUtil.getUUID());
+        BufferPool bp = Database.resetBufferPool(100, ReplacementPolicy.Kind.TWO_Q);
+        TransactionId tid = new TransactionId();
+        int hot = 20;
+        for (int i = 0; i < hot; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        for (int i = hot; i < hot + 100; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        for (int i = 0; i < hot; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        for (int i = 0; i < 90; i++) {
+            bp.getPage(tid, new HeapPageId(scanned.getId(), i), Permissions.READ_ONLY, scan);
+        }
+        if (scan != null) {
+            scan.awaitReadAhead();
+        }
+        int read = hf.pagesRead;
+        for (int i = 0; i < hot; i++) {
+            bp.getPage(tid, new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+        }
+        bp.transactionComplete(tid);
+        return hf.pagesRead - read;
+    }
+
+    /**
+     * Pages read ahead of a scan count as read once, like the pages the
+     * scan reads itself, so a scan with read-ahead no more pushes the hot
+     * pages out of a 2Q pool than one without.
+     */
+    @Test public void readAheadIsScanResistant() throws Exception {
+        int plain = hotReadAgainAfterScan(null);
+        int readAhead = hotReadAgainAfterScan(new ScanContext());
+        assertEquals(0, plain);
+        assertEquals(0, readAhead);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReadAheadTest.class);
+    }
+}
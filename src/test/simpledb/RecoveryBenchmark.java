@@ -0,0 +1,128 @@
+package simpledb;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Time to open a database after a crash, with a log of UPDATE records
+ * with both page images and no checkpoint, recovered on one thread and
+ * on a thread per processor, and at least four.
+ *
+ * Usage: java simpledb.RecoveryBenchmark [logMegabytes]
+ *
+ * The log is 32 megabytes by default; run with, say, 4096 for a log of a
+ * large instance.
+ */
+public class RecoveryBenchmark {
+    private static final int COMMITTED_PAGES = 32;
+    private static final int LOSERS = 4;
+
+    private File file;
+    private HeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    private RecoveryBenchmark() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * (COMMITTED_PAGES + LOSERS),
+                1 << 16, null, tuples);
+        open();
+    }
+
+    private void open() {
+        hf = Utility.openHeapFile(2, file);
+    }
+
+    /** Deletes the first tuple of the given page on behalf of t, if it
+        has one, and dirties the page anyway.  (HeapFile.deleteTuple would
+        lock every page of the file.)
+
+        @return the tuple deleted, or null
+    */
+    private ArrayList<Integer> deleteFirst(Transaction t, int page) throws Exception {
+        HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                new HeapPageId(hf.getId(), page), Permissions.READ_WRITE);
+        Iterator<Tuple> it = p.iterator();
+        Tuple victim = it.hasNext() ? it.next() : null;
+        if (victim != null) {
+            p.deleteTuple(victim);
+        }
+        p.markDirty(true, t.getId());
+        return victim != null ? SystemTestUtil.tupleToList(victim) : null;
+    }
+
+    /** Crash, then time opening the database and recovering it. */
+    private long timeToOpen(File log, File savedLog, File savedData, int threads,
+                            ArrayList<ArrayList<Integer>> committed) throws Exception {
+        Files.copy(savedLog.toPath(), log.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(savedData.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        long start = System.nanoTime();
+        Database.reset();
+        open();
+        Database.getLogFile().setRecoveryThreads(threads);
+        Database.getLogFile().recover();
+        long nanos = System.nanoTime() - start;
+        SystemTestUtil.matchTuples(hf, committed);
+        return nanos;
+    }
+
+    /**
+     * Every round commits an update of every committed page, and logs an
+     * update of the page of each of the transactions still running at
+     * the crash, which recovery rolls back, until the log is logBytes long.
+     */
+    private void run(long logBytes) throws Exception {
+        Database.resetBufferPool(COMMITTED_PAGES + LOSERS + 8).setStealNoForce(true);
+        LogFile log = Database.getLogFile();
+        log.setCompactUpdates(false);
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction[] losers = new Transaction[LOSERS];
+        for (int i = 0; i < LOSERS; i++) {
+            losers[i] = new Transaction();
+            losers[i].start();
+        }
+        while (log.getEndLSN() < logBytes) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int i = 0; i < COMMITTED_PAGES; i++) {
+                committed.remove(deleteFirst(t, i));
+            }
+            t.commit();
+            for (int i = 0; i < LOSERS; i++) {
+                deleteFirst(losers[i], COMMITTED_PAGES + i);
+                // logs the page without writing it
+                Database.getBufferPool().flushPages(losers[i].getId());
+            }
+        }
+        long bytes = log.getEndLSN();
+
+        File savedLog = File.createTempFile("recovery", ".log");
+        File savedData = File.createTempFile("recovery", ".dat");
+        savedLog.deleteOnExit();
+        savedData.deleteOnExit();
+        Database.reset();
+        Files.copy(log.logFile.toPath(), savedLog.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        Files.copy(file.toPath(), savedData.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+        int threads = Math.max(4, Runtime.getRuntime().availableProcessors());
+        // warm up the JIT and the page cache
+        timeToOpen(log.logFile, savedLog, savedData, threads, committed);
+        long serial = timeToOpen(log.logFile, savedLog, savedData, 1, committed);
+        long parallel = timeToOpen(log.logFile, savedLog, savedData, threads, committed);
+        double mb = bytes / (1024.0 * 1024.0);
+        System.out.printf("time to open after a crash with a %.0f MB log: %.2f s on 1 thread (%.0f MB/s), "
+                + "%.2f s on %d threads (%.0f MB/s)%n",
+                mb, serial / 1e9, mb / (serial / 1e9), parallel / 1e9, threads, mb / (parallel / 1e9));
+    }
+
+    public static void main(String[] args) throws Exception {
+        long mb = args.length > 0 ? Long.parseLong(args[0]) : 32;
+        new RecoveryBenchmark().run(mb * 1024 * 1024);
+    }
+}
@@ -0,0 +1,148 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+/**
+ * Trace driven benchmark of the BufferPool replacement policies.  Each
+ * policy manages a cache of CAPACITY pages (one BufferPool shard) and
+ * replays the same synthetic traces:
+ * <ul>
+ * <li> lookups: B+ tree point lookups, each touching one of a few hot
+ * internal pages and one uniformly chosen leaf page
+ * <li> mixed: the same lookups, interrupted every LOOKUPS_PER_SCAN
+ * lookups by a sequential scan over a table ten times the cache size
+ * </ul>
+ * For every run it reports the overall hit ratio, the hit ratio on the hot
+ * internal pages (overall and right after a scan) and the mean cost of an
+ * eviction.  A fraction of the lookups update their leaf, which stays dirty
+ * (unevictable) until the next commit, to show how eviction cost grows
+ * with pages the policy has to skip.
+ *
+ * Usage: java simpledb.ReplacementPolicyBenchmark [updatePercent]
+ */
+public class ReplacementPolicyBenchmark {
+    private static final int CAPACITY = 256;
+    private static final int INTERNAL_PAGES = 32;
+    private static final int LEAF_PAGES = 2 * CAPACITY;
+    private static final int SCAN_PAGES = 10 * CAPACITY;
+    private static final int LOOKUPS = 200000;
+    private static final int LOOKUPS_PER_SCAN = 2000;
+    private static final int POST_SCAN_LOOKUPS = 200;
+    private static final int LOOKUPS_PER_COMMIT = 100;
+
+    private static final int INTERNAL_TABLE = 1;
+    private static final int LEAF_TABLE = 2;
+    private static final int SCAN_TABLE = 3;
+
+    private static class Run {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<PageId>();
+        final Set<PageId> dirty = new HashSet<PageId>();
+        final Random rand = new Random(0);
+        final int updatePercent;
+        long accesses, hits, hotAccesses, hotHits, evictions, evictNanos;
+        // hot page accesses in the first lookups after a scan
+        long postScanAccesses, postScanHits;
+        long sinceScan = POST_SCAN_LOOKUPS;
+
+        Run(ReplacementPolicy.Kind kind, int updatePercent) {
+            this.policy = kind.create(CAPACITY);
+            this.updatePercent = updatePercent;
+        }
+
+        void access(PageId pid, boolean hot) {
+            accesses++;
+            boolean postScan = hot && sinceScan < POST_SCAN_LOOKUPS;
+            if (hot) {
+                hotAccesses++;
+            }
+            if (postScan) {
+                postScanAccesses++;
+            }
+            if (resident.contains(pid)) {
+                hits++;
+                if (hot) {
+                    hotHits++;
+                }
+                if (postScan) {
+                    postScanHits++;
+                }
+                policy.pageHit(pid);
+                return;
+            }
+            if (resident.size() == CAPACITY) {
+                long start = System.nanoTime();
+                PageId victim = policy.evict(p -> !dirty.contains(p));
+                evictNanos += System.nanoTime() - start;
+                evictions++;
+                if (victim == null) {
+                    // everything is dirty: flush it all and retry
+                    dirty.clear();
+                    victim = policy.evict(p -> true);
+                }
+                resident.remove(victim);
+                dirty.remove(victim);
+            }
+            resident.add(pid);
+            policy.pageAdded(pid);
+        }
+
+        void lookup() {
+            sinceScan++;
+            access(new HeapPageId(INTERNAL_TABLE, rand.nextInt(INTERNAL_PAGES)), true);
+            PageId leaf = new HeapPageId(LEAF_TABLE, rand.nextInt(LEAF_PAGES));
+            boolean update = rand.nextInt(100) < updatePercent;
+            access(leaf, false);
+            if (update) {
+                dirty.add(leaf);
+            }
+            if (sinceScan % LOOKUPS_PER_COMMIT == 0) {
+                // committing transactions write their pages back
+                dirty.clear();
+            }
+        }
+
+        void scan() {
+            for (int i = 0; i < SCAN_PAGES; i++) {
+                access(new HeapPageId(SCAN_TABLE, i), false);
+            }
+            sinceScan = 0;
+        }
+    }
+
+    private static void report(String workload, ReplacementPolicy.Kind kind, Run r) {
+        System.out.printf("%-8s %-6s hit %6.2f%%  hot hit %6.2f%%  hot hit after scan %6.2f%%  %7d evictions  %5.0f ns/eviction%n",
+                workload, kind, 100.0 * r.hits / r.accesses,
+                100.0 * r.hotHits / Math.max(1, r.hotAccesses),
+                r.postScanAccesses == 0 ? Double.NaN : 100.0 * r.postScanHits / r.postScanAccesses,
+                r.evictions, (double) r.evictNanos / Math.max(1, r.evictions));
+    }
+
+    public static void main(String[] args) {
+        int updatePercent = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        System.out.printf("capacity %d pages, %d%% of lookups are updates%n", CAPACITY, updatePercent);
+        for (int pass = 0; pass < 2; pass++) {
+            // the first pass only warms up the JIT
+            boolean print = pass == 1;
+            for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+                Run lookups = new Run(kind, updatePercent);
+                for (int i = 0; i < LOOKUPS; i++) {
+                    lookups.lookup();
+                }
+                Run mixed = new Run(kind, updatePercent);
+                for (int i = 0; i < LOOKUPS; i++) {
+                    if (i % LOOKUPS_PER_SCAN == 0) {
+                        mixed.scan();
+                    }
+                    mixed.lookup();
+                }
+                if (print) {
+                    report("lookups", kind, lookups);
+                    report("mixed", kind, mixed);
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package simpledb;
+
+import java.util.HashSet;
+import java.util.Set;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class ReplacementPolicyTest {
+    private static final int TABLE = 1;
+    private static final int CAPACITY = 16;
+
+    private static PageId pid(int pgNo) {
+        return new HeapPageId(TABLE, pgNo);
+    }
+
+    /**
+     * Minimal cache driven by a policy, the way BufferPool drives it:
+     * every page is evictable.
+     */
+    private static class Cache {
+        final ReplacementPolicy policy;
+        final Set<PageId> resident = new HashSet<PageId>();
+
+        Cache(ReplacementPolicy.Kind kind) {
+            policy = kind.create(CAPACITY);
+        }
+
+        void access(int pgNo) {
+            PageId pid = pid(pgNo);
+            if (resident.contains(pid)) {
+                policy.pageHit(pid);
+                return;
+            }
+            if (resident.size() == CAPACITY) {
+                PageId victim = policy.evict(p -> true);
+                assertNotNull(victim);
+                assertTrue(resident.remove(victim));
+            }
+            resident.add(pid);
+            policy.pageAdded(pid);
+        }
+    }
+
+    @Test public void lruEvictsLeastRecentlyUsed() {
+        ReplacementPolicy lru = ReplacementPolicy.Kind.LRU.create(CAPACITY);
+        lru.pageAdded(pid(0));
+        lru.pageAdded(pid(1));
+        lru.pageAdded(pid(2));
+        lru.pageHit(pid(0));
+        assertEquals(pid(1), lru.evict(p -> true));
+        assertEquals(pid(2), lru.evict(p -> true));
+        assertEquals(pid(0), lru.evict(p -> true));
+        assertNull(lru.evict(p -> true));
+    }
+
+    @Test public void clockGivesReferencedPagesASecondChance() {
+        ReplacementPolicy clock = ReplacementPolicy.Kind.CLOCK.create(CAPACITY);
+        clock.pageAdded(pid(0));
+        clock.pageAdded(pid(1));
+        clock.pageAdded(pid(2));
+        clock.pageHit(pid(0));
+        clock.pageHit(pid(1));
+        assertEquals(pid(2), clock.evict(p -> true));
+        // the sweep cleared the bits of 0 and 1
+        assertEquals(pid(0), clock.evict(p -> true));
+        clock.pageAdded(pid(3));
+        assertEquals(pid(1), clock.evict(p -> true));
+    }
+
+    @Test public void unevictablePagesAreSkipped() {
+        for (ReplacementPolicy.Kind kind : ReplacementPolicy.Kind.values()) {
+            ReplacementPolicy policy = kind.create(CAPACITY);
+            for (int i = 0; i < 4; i++) {
+                policy.pageAdded(pid(i));
+            }
+            assertEquals(kind.toString(), pid(2), policy.evict(p -> p.equals(pid(2))));
+            assertNull(kind.toString(), policy.evict(p -> p.equals(pid(2))));
+            policy.pageRemoved(pid(0));
+            assertNull(kind.toString(), policy.evict(p -> p.equals(pid(0))));
+        }
+    }
+
+    /**
+     * Accesses a working set of hot pages three times, each time followed
+     * by as many other pages as the cache holds, so 2Q sees the hot pages
+     * again after they fell out of A1in, then scans 10 times the cache,
+     * accessing every page of the scan the given number of times in a row.
+     *
+     * @return the number of hot pages still cached
+     */
+    private static int hotAfterScan(ReplacementPolicy.Kind kind, int hot, int accessesPerPage) {
+        Cache cache = new Cache(kind);
+        int cold = 1000;
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < hot; i++) {
+                cache.access(i);
+            }
+            for (int i = 0; i < CAPACITY; i++) {
+                cache.access(cold++);
+            }
+        }
+        for (int i = 0; i < 10 * CAPACITY; i++) {
+            for (int j = 0; j < accessesPerPage; j++) {
+                cache.access(cold);
+            }
+            cold++;
+        }
+        int survivors = 0;
+        for (int i = 0; i < hot; i++) {
+            if (cache.resident.contains(pid(i))) {
+                survivors++;
+            }
+        }
+        return survivors;
+    }
+
+    /**
+     * A sequential scan over many more pages than the pool holds must not
+     * flush a hot working set out of a 2Q cache, while it does flush an
+     * LRU cache.
+     */
+    @Test public void twoQueueIsScanResistant() {
+        // as many as A1out remembers while the cold pages go through
+        int hot = CAPACITY / 4;
+        assertEquals(0, hotAfterScan(ReplacementPolicy.Kind.LRU, hot, 1));
+        assertEquals(hot, hotAfterScan(ReplacementPolicy.Kind.TWO_Q, hot, 1));
+    }
+
+    /**
+     * A page requested again while it is in A1in stays there, first in
+     * line for eviction, so a scan reading every page twice in a row is
+     * no different from one reading it once.
+     */
+    @Test public void twoQueueLeavesA1inHitsInPlace() {
+        ReplacementPolicy twoQ = ReplacementPolicy.Kind.TWO_Q.create(CAPACITY);
+        twoQ.pageAdded(pid(0));
+        twoQ.pageHit(pid(0));
+        // over A1in's quarter of the pool
+        for (int i = 1; i <= CAPACITY / 4; i++) {
+            twoQ.pageAdded(pid(i));
+        }
+        assertEquals(pid(0), twoQ.evict(p -> true));
+
+        int hot = CAPACITY / 4;
+        assertEquals(hot, hotAfterScan(ReplacementPolicy.Kind.TWO_Q, hot, 2));
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(ReplacementPolicyTest.class);
+    }
+}
@@ -0,0 +1,41 @@
+package simpledb;
+
+import simpledb.systemtest.SystemTestUtil;
+
+/**
+ * Commit latency of small update transactions under FORCE and NO-FORCE.
+ *
+ * Usage: java simpledb.StealNoForceBenchmark
+ */
+public class StealNoForceBenchmark {
+    private static final int TABLE_PAGES = 24;
+
+    private static long timeCommits(HeapFile hf, boolean noForce) throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10).setStealNoForce(noForce);
+        int commits = 10;
+        long total = 0;
+        for (int i = 0; i < commits; i++) {
+            Transaction t = new Transaction();
+            t.start();
+            for (int j = 0; j < 8; j++) {
+                Page p = Database.getBufferPool().getPage(t.getId(),
+                        new HeapPageId(hf.getId(), (i * 5 + j * 3) % TABLE_PAGES), Permissions.READ_WRITE);
+                p.markDirty(true, t.getId());
+            }
+            long start = System.nanoTime();
+            t.commit();
+            total += System.nanoTime() - start;
+        }
+        Database.getBufferPool().flushAllPages();
+        return total / commits;
+    }
+
+    public static void main(String[] args) throws Exception {
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        HeapFile hf = SystemTestUtil.createRandomHeapFile(2, 504 * TABLE_PAGES, 1 << 16, null, null);
+        long force = timeCommits(hf, false);
+        long noForce = timeCommits(hf, true);
+        System.out.printf("commit latency: FORCE %.2f ms, NO-FORCE %.2f ms%n", force / 1e6, noForce / 1e6);
+    }
+}
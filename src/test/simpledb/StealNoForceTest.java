@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Iterator;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class StealNoForceTest {
+    private static final int TABLE_PAGES = 24;
+    private static final int POOL_PAGES = 8;
+
+    /** Counts the pages written to the data file. */
+    private static class CountingHeapFile extends HeapFile {
+        int pagesWritten;
+
+        CountingHeapFile(File f, TupleDesc td) {
+            super(f, td);
+        }
+
+        @Override
+        public synchronized void writePage(Page page) throws java.io.IOException {
+            pagesWritten++;
+            super.writePage(page);
+        }
+    }
+
+    private File file;
+    private CountingHeapFile hf;
+    private ArrayList<ArrayList<Integer>> tuples;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        tuples = new ArrayList<ArrayList<Integer>>();
+        // 504 two-int tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null, tuples);
+        open();
+    }
+
+    private void open() {
+        hf = new CountingHeapFile(file, Utility.getTupleDesc(2));
+        Database.getCatalog().addTable(hf, SystemTestUtil.getUUID());
+    }
+
+    private void crash() throws Exception {
+        Database.reset();
+        open();
+        Database.getLogFile().recover();
+    }
+
+    /**
+     * Deletes the first tuple of each of the given pages on behalf of t,
+     * dropping them from tuples.
+     */
+    private void deleteFirstOfPages(Transaction t, int from, int to) throws Exception {
+        for (int i = from; i < to; i++) {
+            HeapPage p = (HeapPage) Database.getBufferPool().getPage(t.getId(),
+                    new HeapPageId(hf.getId(), i), Permissions.READ_ONLY);
+            Iterator<Tuple> it = p.iterator();
+            Tuple victim = it.next();
+            Database.getBufferPool().deleteTuple(t.getId(), victim);
+            tuples.remove(SystemTestUtil.tupleToList(victim));
+        }
+    }
+
+    /**
+     * A transaction dirtying more pages than the pool holds fails under
+     * NO-STEAL and commits under STEAL.
+     */
+    @Test public void largeUpdateInSmallPool() throws Exception {
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+        Database.resetBufferPool(POOL_PAGES);
+        Transaction t = new Transaction();
+        t.start();
+        try {
+            deleteFirstOfPages(t, 0, TABLE_PAGES);
+            fail("expected DbException");
+        } catch (DbException e) {
+            // expected
+        }
+        t.abort();
+        tuples = all;
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+        t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, TABLE_PAGES);
+        t.commit();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * Pages stolen from a transaction that aborts are restored on disk.
+     */
+    @Test public void abortAfterSteal() throws Exception {
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+        ArrayList<ArrayList<Integer>> all = new ArrayList<ArrayList<Integer>>(tuples);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, TABLE_PAGES);
+        assertTrue(hf.pagesWritten > 0);
+        t.abort();
+        SystemTestUtil.matchTuples(hf, all);
+    }
+
+    /**
+     * A commit writes no data pages, and its updates survive a crash.
+     */
+    @Test public void commitOnlyForcesLog() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10).setStealNoForce(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, 4);
+        t.commit();
+        assertEquals(0, hf.pagesWritten);
+        SystemTestUtil.matchTuples(hf, tuples);
+
+        crash();
+        SystemTestUtil.matchTuples(hf, tuples);
+    }
+
+    /**
+     * An aborted transaction does not lose committed updates that are
+     * only in the pool.
+     */
+    @Test public void abortKeepsUnflushedCommits() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES * 10).setStealNoForce(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, 2);
+        t.commit();
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+
+        t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, 2);
+        t.abort();
+        SystemTestUtil.matchTuples(hf, committed);
+
+        crash();
+        SystemTestUtil.matchTuples(hf, committed);
+    }
+
+    /**
+     * After a crash, recovery redoes committed updates that never reached
+     * the disk, also past a checkpoint, and undoes stolen pages of a
+     * transaction that was still running.
+     */
+    @Test public void recoveryRedoesAndUndoes() throws Exception {
+        Database.resetBufferPool(POOL_PAGES).setStealNoForce(true);
+        Transaction t = new Transaction();
+        t.start();
+        deleteFirstOfPages(t, 0, 4);
+        t.commit();
+        Database.getLogFile().logCheckpoint();
+        ArrayList<ArrayList<Integer>> committed = new ArrayList<ArrayList<Integer>>(tuples);
+
+        Transaction loser = new Transaction();
+        loser.start();
+        deleteFirstOfPages(loser, 4, TABLE_PAGES);
+        assertTrue(hf.pagesWritten > 0);
+
+        crash();
+        SystemTestUtil.matchTuples(hf, committed);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(StealNoForceTest.class);
+    }
+}
@@ -0,0 +1,177 @@
+package simpledb;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class SubPoolTest {
+    private static final int POOL_PAGES = 64;
+
+    @Before public void setUp() {
+        Database.reset();
+    }
+
+    /** @return a heap file of about the given number of pages */
+    private static HeapFile table(int pages) throws Exception {
+        // 504 two-int tuples fit on a page
+        return SystemTestUtil.createRandomHeapFile(2, 504 * pages, null, null);
+    }
+
+    /** Reads pages [from, to) of f through the pool. */
+    private static void touch(DbFile f, int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().getPage(tid, new HeapPageId(f.getId(), i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Scans f sequentially. */
+    private static void scan(DbFile f) throws Exception {
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = f.iterator(tid);
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    private static int cachedPagesOf(DbFile f) {
+        int n = 0;
+        for (PageId pid : Database.getBufferPool().getHotPages()) {
+            if (pid.getTableId() == f.getId()) {
+                n++;
+            }
+        }
+        return n;
+    }
+
+    /**
+     * A sub-pool at its quota evicts its own pages, not the other tables'.
+     */
+    @Test public void quotaLimitsSubPool() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile limited = table(40);
+        HeapFile other = table(20);
+        Database.getCatalog().setTablePool(limited.getId(), "limited");
+        Database.getCatalog().setPoolQuota("limited", 10);
+
+        touch(other, 0, 20);
+        touch(limited, 0, 40);
+        assertEquals(10, bp.getSubPool("limited").getNumPages());
+        assertEquals(20, bp.getSubPool(Catalog.DEFAULT_POOL).getNumPages());
+        assertEquals(20, cachedPagesOf(other));
+        assertEquals(30, bp.getNumCachedPages());
+    }
+
+    /**
+     * Hits and misses are counted per sub-pool.
+     */
+    @Test public void hitsAndMisses() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile a = table(5);
+        HeapFile b = table(5);
+        Database.getCatalog().setTablePool(b.getId(), "b");
+        touch(a, 0, 5);
+        touch(a, 0, 5);
+        touch(b, 0, 2);
+        SubPool defaultPool = bp.getSubPool(Catalog.DEFAULT_POOL);
+        assertEquals(5, defaultPool.getHits());
+        assertEquals(5, defaultPool.getMisses());
+        assertEquals(0.5, defaultPool.getHitRatio(), 1e-9);
+        assertEquals(0, bp.getSubPool("b").getHits());
+        assertEquals(2, bp.getSubPool("b").getMisses());
+        assertEquals(2, bp.getSubPools().size());
+    }
+
+    /**
+     * A sequential scan of a table larger than the pool keeps to a small
+     * ring, and the pages other queries use stay cached.
+     */
+    @Test public void scanRingKeepsWorkingSet() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile hot = table(20);
+        HeapFile big = table(3 * POOL_PAGES);
+        touch(hot, 0, 20);
+        scan(big);
+        assertEquals(20, cachedPagesOf(hot));
+        // the ring plus whatever was read ahead and not reached
+        assertTrue(cachedPagesOf(big) <= BufferPool.RING_PAGES + POOL_PAGES / 4);
+
+        SubPool defaultPool = bp.getSubPool(Catalog.DEFAULT_POOL);
+        long misses = defaultPool.getMisses();
+        touch(hot, 0, 20);
+        assertEquals(misses, defaultPool.getMisses());
+    }
+
+    /**
+     * Scans of tables that fit in the pool are cached as before.
+     */
+    @Test public void smallScansAreCached() throws Exception {
+        Database.resetBufferPool(POOL_PAGES);
+        HeapFile small = table(POOL_PAGES - 4);
+        scan(small);
+        assertEquals(small.numPages(), cachedPagesOf(small));
+    }
+
+    /**
+     * Tables are assigned to sub-pools, and quotas set, in the schema file.
+     */
+    @Test public void schemaFile() throws Exception {
+        File schema = File.createTempFile("catalog", ".txt");
+        schema.deleteOnExit();
+        try (FileWriter w = new FileWriter(schema)) {
+            w.write("pool oltp 100\n");
+            w.write("accounts (id int pk, balance int) pool oltp\n");
+            w.write("events (id int, kind int)\n");
+        }
+        Catalog c = Database.getCatalog();
+        c.loadSchema(schema.getPath());
+        assertEquals(100, c.getPoolQuota("oltp"));
+        assertEquals("oltp", c.getTablePool(c.getTableId("accounts")));
+        assertEquals(Catalog.DEFAULT_POOL, c.getTablePool(c.getTableId("events")));
+        assertEquals(0, c.getPoolQuota(Catalog.DEFAULT_POOL));
+    }
+
+    /**
+     * Hit ratio of point reads of a working set while a large scan runs
+     * over the same pool stays above 80%.
+     */
+    @Test public void workingSetHitRatio() throws Exception {
+        BufferPool bp = Database.resetBufferPool(POOL_PAGES);
+        HeapFile hot = table(POOL_PAGES / 2);
+        HeapFile big = table(3 * POOL_PAGES);
+        Database.getCatalog().setTablePool(hot.getId(), "oltp");
+        touch(hot, 0, hot.numPages());
+        List<Integer> order = new ArrayList<Integer>();
+        for (int i = 0; i < 5 * hot.numPages(); i++) {
+            order.add((i * 7) % hot.numPages());
+        }
+        for (int round = 0; round < 3; round++) {
+            scan(big);
+            for (int pgNo : order) {
+                touch(hot, pgNo, pgNo + 1);
+            }
+        }
+        SubPool oltp = bp.getSubPool("oltp");
+        assertTrue(oltp.getHitRatio() > 0.8);
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(SubPoolTest.class);
+    }
+}
@@ -0,0 +1,31 @@
+package simpledb;
+
+/**
+ * Time to scan the hot part of a table right after a restart, with and
+ * without warming the pool up first from a dump of its hot pages.
+ *
+ * Usage: java simpledb.WarmRestartBenchmark
+ */
+public class WarmRestartBenchmark {
+    public static void main(String[] args) throws Exception {
+        WarmRestartTest test = new WarmRestartTest();
+        test.setUp();
+        int pages = WarmRestartTest.TABLE_PAGES;
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        test.touch(0, pages);
+        Database.getBufferPool().dumpHotPages(test.hot);
+
+        test.restart(BufferPool.DEFAULT_PAGES);
+        long start = System.nanoTime();
+        test.touch(0, pages);
+        long cold = System.nanoTime() - start;
+
+        test.restart(BufferPool.DEFAULT_PAGES).warmUp(test.hot).get();
+        start = System.nanoTime();
+        test.touch(0, pages);
+        long warm = System.nanoTime() - start;
+        test.tearDown();
+        System.out.printf("first scan after restart: %.2f ms cold, %.2f ms warmed up%n",
+                cold / 1e6, warm / 1e6);
+    }
+}
@@ -0,0 +1,180 @@
+package simpledb;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import simpledb.systemtest.SystemTestUtil;
+
+import static org.junit.Assert.*;
+import junit.framework.JUnit4TestAdapter;
+
+public class WarmRestartTest {
+    static final int TABLE_PAGES = 40;
+
+    private File file;
+    private HeapFile hf;
+    File hot;
+
+    @Before public void setUp() throws Exception {
+        Database.reset();
+        // 504 two-int tuples fit on a page
+        file = SystemTestUtil.createRandomHeapFileUnopened(2, 504 * TABLE_PAGES, 1 << 16, null,
+                new ArrayList<ArrayList<Integer>>());
+        hf = Utility.openHeapFile(2, file);
+        hot = File.createTempFile("bufferpool", ".hot");
+        hot.delete();
+        hot.deleteOnExit();
+    }
+
+    @After public void tearDown() {
+        Database.getBufferPool().stopHotPageDumper();
+        hot.delete();
+    }
+
+    private HeapPageId pid(int pgNo) {
+        return new HeapPageId(hf.getId(), pgNo);
+    }
+
+    /** Reads pages [from, to) of hf through the pool. */
+    void touch(int from, int to) throws Exception {
+        TransactionId tid = new TransactionId();
+        for (int i = from; i < to; i++) {
+            Database.getBufferPool().getPage(tid, pid(i), Permissions.READ_ONLY);
+        }
+        Database.getBufferPool().transactionComplete(tid);
+    }
+
+    /** Restarts the database with a pool of the given size and reopens hf. */
+    BufferPool restart(int pages) {
+        Database.reset();
+        hf = Utility.openHeapFile(2, file);
+        return Database.resetBufferPool(pages);
+    }
+
+    /**
+     * Heap and B+ tree page ids survive a round trip through the file.
+     */
+    @Test public void listRoundTrip() throws Exception {
+        List<PageId> pids = Arrays.<PageId>asList(
+                new HeapPageId(7, 3),
+                new BTreePageId(9, 0, BTreePageId.ROOT_PTR),
+                new BTreePageId(9, 4, BTreePageId.LEAF),
+                new HeapPageId(-7, 0));
+        HotPageList.write(hot, pids);
+        assertEquals(pids, HotPageList.read(hot));
+        assertEquals(Arrays.asList(), HotPageList.read(new File(hot.getPath() + ".missing")));
+    }
+
+    /**
+     * The dump lists exactly the cached pages, the most recently used
+     * ahead of the rest.
+     */
+    @Test public void dumpsCachedPagesHottestFirst() throws Exception {
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        touch(0, TABLE_PAGES);
+        touch(5, 6);
+        bp.dumpHotPages(hot);
+        List<PageId> pids = HotPageList.read(hot);
+        assertEquals(TABLE_PAGES, pids.size());
+        assertEquals(new HashSet<PageId>(bp.getHotPages()), new HashSet<PageId>(pids));
+        // each shard lists its own hottest page first
+        assertTrue(pids.indexOf(pid(5)) < 16);
+        assertTrue(pids.indexOf(pid(0)) >= TABLE_PAGES - 16);
+    }
+
+    /**
+     * After a restart, the pages that were cached are read back in.
+     */
+    @Test public void warmUpAfterRestart() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        touch(10, 30);
+        Database.getBufferPool().dumpHotPages(hot);
+
+        BufferPool bp = restart(BufferPool.DEFAULT_PAGES);
+        assertEquals(0, bp.getNumCachedPages());
+        assertEquals(20, (int) bp.warmUp(hot).get());
+        HashSet<PageId> expected = new HashSet<PageId>();
+        for (int i = 10; i < 30; i++) {
+            expected.add(pid(i));
+        }
+        assertEquals(expected, new HashSet<PageId>(bp.getHotPages()));
+    }
+
+    /**
+     * A smaller pool is warmed up with the hottest pages that fit.
+     */
+    @Test public void warmUpKeepsHottestPages() throws Exception {
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        touch(0, 20);
+        Database.getBufferPool().dumpHotPages(hot);
+        List<PageId> pids = HotPageList.read(hot);
+
+        BufferPool bp = restart(8);
+        assertEquals(8, (int) bp.warmUp(hot).get());
+        assertEquals(new HashSet<PageId>(pids.subList(0, 8)), new HashSet<PageId>(bp.getHotPages()));
+    }
+
+    /**
+     * Pages of a B+ tree are listed and read back in as well, and pages of
+     * tables that no longer exist are skipped.
+     */
+    @Test public void warmUpBTree() throws Exception {
+        BTreeFile bf = BTreeUtility.createRandomBTreeFile(2, 5000, null, null, 0);
+        Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        TransactionId tid = new TransactionId();
+        DbFileIterator it = bf.indexIterator(tid, new IndexPredicate(Predicate.Op.GREATER_THAN, new IntField(0)));
+        it.open();
+        while (it.hasNext()) {
+            it.next();
+        }
+        it.close();
+        Database.getBufferPool().transactionComplete(tid);
+        touch(0, 4);
+        Database.getBufferPool().dumpHotPages(hot);
+        HashSet<PageId> btreePages = new HashSet<PageId>();
+        for (PageId pid : HotPageList.read(hot)) {
+            if (pid instanceof BTreePageId) {
+                btreePages.add(pid);
+            }
+        }
+        assertTrue(btreePages.size() > 0);
+
+        // only the B+ tree is there after the restart
+        Database.reset();
+        BufferPool bp = Database.resetBufferPool(BufferPool.DEFAULT_PAGES);
+        BTreeUtility.openBTreeFile(2, bf.getFile(), 0);
+        assertEquals(btreePages.size(), (int) bp.warmUp(hot).get());
+        assertEquals(btreePages, new HashSet<PageId>(bp.getHotPages()));
+    }
+
+    /**
+     * The dumper keeps the list on disk up to date.
+     */
+    @Test public void periodicDump() throws Exception {
+        BufferPool bp = Database.getBufferPool();
+        touch(0, 3);
+        bp.startHotPageDumper(hot, 20);
+        long deadline = System.currentTimeMillis() + 5000;
+        while (!hot.exists() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        touch(3, 6);
+        Thread.sleep(100);
+        bp.stopHotPageDumper();
+        assertEquals(6, HotPageList.read(hot).size());
+    }
+
+    /**
+     * JUnit suite target
+     */
+    public static junit.framework.Test suite() {
+        return new JUnit4TestAdapter(WarmRestartTest.class);
+    }
+}
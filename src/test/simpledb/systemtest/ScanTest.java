@@ -6,9 +6,12 @@ import static org.junit.Assert.*;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.NoSuchElementException;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.junit.Test;
 
@@ -83,7 +86,16 @@ public class ScanTest extends SimpleDbTestBase {
                 return super.readPage(pid);
             }
 
+            /** Counts the pages read ahead, on the read-ahead thread. */
+            @Override
+            public List<Page> readPages(PageId first, ByteBuffer[] buffers) {
+                List<Page> pages = super.readPages(first, buffers);
+                readAheadCount.addAndGet(pages.size());
+                return pages;
+            }
+
             public int readCount = 0;
+            public final AtomicInteger readAheadCount = new AtomicInteger();
         }
 
         // Create the table
@@ -94,14 +106,18 @@ public class ScanTest extends SimpleDbTestBase {
         InstrumentedHeapFile table = new InstrumentedHeapFile(f, td);
         Database.getCatalog().addTable(table, SystemTestUtil.getUUID());
 
-        // Scan the table once
+        // Scan the table once: every page is read once, most of them ahead
+        // of the scan
         SystemTestUtil.matchTuples(table, tuples);
-        assertEquals(PAGES, table.readCount);
+        assertEquals(PAGES, table.readCount + table.readAheadCount.get());
+        assertTrue(table.readAheadCount.get() > table.readCount);
         table.readCount = 0;
+        table.readAheadCount.set(0);
 
         // Scan the table again: all pages should be cached
         SystemTestUtil.matchTuples(table, tuples);
         assertEquals(0, table.readCount);
+        assertEquals(0, table.readAheadCount.get());
     }
 
     /** Make test compatible with older version of ant. */